@@ -0,0 +1,215 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+
+/**
+ * Applies many diffs at once, typically when replaying a backlog after a
+ * reconnect.
+ * <p>
+ * Items are grouped by key. Different keys are applied in parallel, while
+ * diffs for the same key are applied in the order they appear, each one
+ * optionally using the previous one's output as its base. Output lengths are
+ * read from the diffs up front so every result is written into a single
+ * arena allocation for the whole batch.
+ *
+ */
+public class ApplyBatch {
+
+	private final ExecutorService workers;
+
+	/**
+	 * @param threadCount
+	 *            how many keys we apply in parallel
+	 */
+	public ApplyBatch(int threadCount) {
+		workers = Executors.newFixedThreadPool(Math.max(1, threadCount), new DaemonThreadFactory("ApplyBatch-worker-"));
+	}
+
+	/**
+	 * Apply every item in the list, blocking until all of them are done.
+	 *
+	 * @param items
+	 *            diffs to apply
+	 * @return per item results in input order
+	 * @throws BadInputException
+	 *             if the combined output won't fit in a single arena
+	 * @throws InterruptedException
+	 *             if we are interrupted while waiting for the workers
+	 */
+	public ApplyBatchResult applyAll(final List<ApplyBatchItem> items) throws BadInputException, InterruptedException {
+
+		final long start = System.currentTimeMillis();
+		final ApplyBatchItemResult[] results = new ApplyBatchItemResult[items.size()];
+		final int[] offsets = new int[results.length];
+		final int[] lengths = new int[results.length];
+
+		// Size everything so we only allocate once
+		long arenaSize = 0;
+
+		for (int i = 0; i < results.length; i++) {
+
+			try {
+				lengths[i] = ByteArrayLib.getFARDTargetLength(items.get(i).getDiff());
+			} catch (BadInputException e) {
+				results[i] = new ApplyBatchItemResult(i, e);
+			}
+
+			offsets[i] = (int) arenaSize;
+			arenaSize += lengths[i];
+
+			if (arenaSize > Integer.MAX_VALUE - 8) {
+				throw new BadInputException("Batch output of at least " + arenaSize + " bytes is too big");
+			}
+		}
+
+		final byte[] arena = new byte[(int) arenaSize];
+
+		// Group by key, keeping the order within each key
+		LinkedHashMap<String, ArrayList<Integer>> chains = new LinkedHashMap<String, ArrayList<Integer>>();
+
+		for (int i = 0; i < results.length; i++) {
+
+			ArrayList<Integer> chain = chains.get(items.get(i).getKey());
+
+			if (chain == null) {
+				chain = new ArrayList<Integer>();
+				chains.put(items.get(i).getKey(), chain);
+			}
+
+			chain.add(i);
+		}
+
+		final CountDownLatch remaining = new CountDownLatch(chains.size());
+
+		for (final ArrayList<Integer> chain : chains.values()) {
+			try {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							applyChain(items, chain, results, arena, offsets, lengths);
+						} finally {
+							remaining.countDown();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Only happens after shutdown()
+				for (int i = 0; i < chain.size(); i++) {
+					results[chain.get(i)] = new ApplyBatchItemResult(chain.get(i), e);
+				}
+				remaining.countDown();
+			}
+		}
+
+		remaining.await();
+
+		return new ApplyBatchResult(results, arena, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Apply the diffs for one key, in order.
+	 *
+	 * @param items
+	 * @param chain
+	 *            indexes into items for this key
+	 * @param results
+	 * @param arena
+	 * @param offsets
+	 * @param lengths
+	 */
+	private static void applyChain(List<ApplyBatchItem> items, ArrayList<Integer> chain,
+			ApplyBatchItemResult[] results, byte[] arena, int[] offsets, int[] lengths) {
+
+		ApplyBatchItemResult previous = null;
+
+		for (int i = 0; i < chain.size(); i++) {
+
+			final int index = chain.get(i);
+			final ApplyBatchItem item = items.get(index);
+
+			if (results[index] != null) {
+				// Already failed while sizing
+				previous = results[index];
+				continue;
+			}
+
+			byte[] baseArray = item.getBase();
+			int baseOffset = 0;
+			int baseLength = baseArray == null ? 0 : baseArray.length;
+
+			if (baseArray == null) {
+
+				if (previous == null || !previous.isOk()) {
+					results[index] = new ApplyBatchItemResult(index,
+							new BadInputException("No base available for key " + item.getKey()));
+					previous = results[index];
+					continue;
+				}
+
+				baseArray = arena;
+				baseOffset = previous.getOffset();
+				baseLength = previous.getLength();
+			}
+
+			try {
+
+				final int actualHashCode = ByteArrayLib.deterministicHashcode(baseArray, baseOffset, baseLength);
+
+				if (actualHashCode != item.getHashcode()) {
+					throw new HashCodeMismatchException(
+							"deterministicHashcode: Got " + actualHashCode + ", expected " + item.getHashcode());
+				}
+
+				ByteArrayLib.decodeFARDData(baseArray, baseOffset, baseLength, item.getDiff(), 0,
+						item.getDiff().length, arena, offsets[index]);
+				results[index] = new ApplyBatchItemResult(index, arena, offsets[index], lengths[index]);
+
+			} catch (HashCodeMismatchException | BadInputException e) {
+				results[index] = new ApplyBatchItemResult(index, e);
+			}
+
+			previous = results[index];
+		}
+	}
+
+	/**
+	 * Stop accepting work. Batches already submitted will still finish.
+	 */
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+}
@@ -0,0 +1,72 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+/**
+ * One diff to be applied as part of an {@link ApplyBatch}.
+ *
+ */
+public class ApplyBatchItem {
+
+	String key = null;
+	byte[] base = null;
+	byte[] diff = null;
+	int hashcode = 0;
+
+	/**
+	 * @param key
+	 *            the key the diff belongs to. Diffs for the same key are
+	 *            applied in the order they appear in the batch.
+	 * @param base
+	 *            the value to apply the diff to. If null we use the result of
+	 *            the previous item in the batch with the same key.
+	 * @param diff
+	 *            the output of calculateDiff
+	 * @param hashcode
+	 *            deterministicHashcode of the value the diff was made against
+	 */
+	public ApplyBatchItem(String key, byte[] base, byte[] diff, int hashcode) {
+		this.key = key;
+		this.base = base;
+		this.diff = diff;
+		this.hashcode = hashcode;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public byte[] getBase() {
+		return base;
+	}
+
+	public byte[] getDiff() {
+		return diff;
+	}
+
+	public int getHashcode() {
+		return hashcode;
+	}
+
+}
@@ -0,0 +1,137 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The outcome of applying one {@link ApplyBatchItem}. Successful results are a
+ * slice of the arena shared by the whole batch.
+ *
+ */
+public class ApplyBatchItemResult {
+
+	private final int index;
+	private final byte[] arena;
+	private final int offset;
+	private final int length;
+	private final Exception exception;
+
+	/**
+	 * Constructor for a successful apply.
+	 *
+	 * @param index
+	 *            position of the item in the batch
+	 * @param arena
+	 *            the batch's output buffer
+	 * @param offset
+	 *            where our value starts in arena
+	 * @param length
+	 *            how long our value is
+	 */
+	ApplyBatchItemResult(int index, byte[] arena, int offset, int length) {
+		this.index = index;
+		this.arena = arena;
+		this.offset = offset;
+		this.length = length;
+		this.exception = null;
+	}
+
+	/**
+	 * Constructor for a failed apply.
+	 *
+	 * @param index
+	 *            position of the item in the batch
+	 * @param exception
+	 *            why we couldn't apply it
+	 */
+	ApplyBatchItemResult(int index, Exception exception) {
+		this.index = index;
+		this.arena = null;
+		this.offset = 0;
+		this.length = 0;
+		this.exception = exception;
+	}
+
+	/**
+	 * @return true if the diff was applied.
+	 */
+	public boolean isOk() {
+		return exception == null;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the shared output buffer our value lives in, or null if we
+	 *         failed.
+	 */
+	public byte[] getArena() {
+		return arena;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * @return a read only view of the new value, without copying it
+	 */
+	public ByteBuffer getValueBuffer() {
+		if (arena == null) {
+			return null;
+		}
+		return ByteBuffer.wrap(arena, offset, length).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return a private copy of the new value
+	 */
+	public byte[] getValue() {
+		if (arena == null) {
+			return null;
+		}
+		return Arrays.copyOfRange(arena, offset, offset + length);
+	}
+
+	@Override
+	public String toString() {
+		if (isOk()) {
+			return "[" + index + " OK " + length + "]";
+		}
+		return "[" + index + " " + exception.getClass().getSimpleName() + "]";
+	}
+
+}
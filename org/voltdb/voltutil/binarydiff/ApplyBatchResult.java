@@ -0,0 +1,88 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of an {@link ApplyBatch} run. Item results are in the same order
+ * as the items that were submitted.
+ *
+ */
+public class ApplyBatchResult {
+
+	private final List<ApplyBatchItemResult> itemResults;
+
+	// Single allocation holding every successful output
+	private final byte[] arena;
+
+	private final long elapsedMs;
+
+	private int okCount = 0;
+
+	ApplyBatchResult(ApplyBatchItemResult[] itemResults, byte[] arena, long elapsedMs) {
+
+		this.itemResults = Collections.unmodifiableList(Arrays.asList(itemResults));
+		this.arena = arena;
+		this.elapsedMs = elapsedMs;
+
+		for (int i = 0; i < itemResults.length; i++) {
+			if (itemResults[i].isOk()) {
+				okCount++;
+			}
+		}
+	}
+
+	/**
+	 * @return per item results, in the same order as the input list
+	 */
+	public List<ApplyBatchItemResult> getItemResults() {
+		return itemResults;
+	}
+
+	public byte[] getArena() {
+		return arena;
+	}
+
+	public long getElapsedMs() {
+		return elapsedMs;
+	}
+
+	public int getOkCount() {
+		return okCount;
+	}
+
+	public int getFailureCount() {
+		return itemResults.size() - okCount;
+	}
+
+	@Override
+	public String toString() {
+		return "Items=" + itemResults.size() + " OK=" + okCount + " Failed=" + getFailureCount() + " Arena="
+				+ arena.length + " Took " + elapsedMs + "ms";
+	}
+
+}
@@ -26,8 +26,10 @@ package org.voltdb.voltutil.binarydiff;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
 import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
 import org.voltdb.voltutil.binarydiff.exceptions.TooBigToDeltaException;
 import org.voltdb.voltutil.binarydiff.exceptions.TooSmallToDeltaException;
@@ -61,10 +63,10 @@ public class ByteArrayLib {
 	public static final int FAST_RUTHLESS_MINIMUM_POSSIBLE_SIZE = 3;
 
 	// How careless we are in splitByteArrayParts...
-	private static final int FAST_AND_RUTHLRESS_DEFAULT_STEPSIZE = 3;
+	static final int FAST_AND_RUTHLRESS_DEFAULT_STEPSIZE = 3;
 
 	// Minimum repeating byte...
-	private static final int FAST_AND_RUTHLRESS_MIN_RUNSIZE = 6;
+	static final int FAST_AND_RUTHLRESS_MIN_RUNSIZE = 6;
 
 	public static int splitByteArrayPartsByRepeatingBytes(
 			ArrayList<FastAndRuthlessDiffImplByteArrayParts> splittableParts, int splitTarget) {
@@ -495,87 +497,240 @@ public class ByteArrayLib {
 	 * @param byteArray
 	 *            Encoded Data
 	 * @return modified Data
+	 * @throws BadInputException
+	 *             if byteArray isn't well formed or refers to data outside
+	 *             oldArray
 	 */
-	public static byte[] decodeFARDData(byte[] oldArray, byte[] byteArray) {
+	public static byte[] decodeFARDData(byte[] oldArray, byte[] byteArray) throws BadInputException {
 
-		ArrayList<FastAndRuthlessDiffImplByteArrayParts> outArrayList = new ArrayList<FastAndRuthlessDiffImplByteArrayParts>();
-		ByteBuffer buf = ByteBuffer.wrap(byteArray).order(ByteOrder.LITTLE_ENDIAN);
+		final int oldLength = oldArray == null ? 0 : oldArray.length;
+		final int targetLength = FARDValidator.validate(byteArray, oldLength);
 
-		// Map inpout byte[] to an arraylist of
-		// FastAndRuthlessDiffImplByteArrayParts
-		while (buf.hasRemaining()) {
+		byte[] outByteArray = new byte[targetLength];
 
-			// 0 means a copy from the old array. Anything else is how much raw
-			// data is next...
-			short start = buf.getShort();
-			if (start == FARD_REPEATING_BLOCK) {
-				// copy
-				short repeatCount = buf.getShort();
-				byte theByte = buf.get();
+		decodeValidatedFARDData(oldArray, 0, byteArray, 0, byteArray.length, outByteArray, 0);
 
-				outArrayList.add(new FastAndRuthlessDiffImplByteArrayParts(repeatCount, theByte));
+		return outByteArray;
 
-			} else if (start == FARD_DATA_BLOCK) { // FARD_DATA_BLOCK
-				short size = buf.getShort();
-				byte[] newBit = new byte[size];
+	}
 
-				try {
-					for (int i = 0; i < newBit.length; i++) {
-						newBit[i] = buf.get();
-					}
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+	/**
+	 * Work out how long the output of decodeFARDData will be without decoding
+	 * it.
+	 * 
+	 * @param byteArray
+	 *            Encoded Data
+	 * @return the length of the decoded data
+	 * @throws BadInputException
+	 *             if byteArray isn't well formed FARD data
+	 */
+	public static int getFARDTargetLength(byte[] byteArray) throws BadInputException {
+		return getFARDTargetLength(byteArray, 0, byteArray == null ? 0 : byteArray.length);
+	}
 
-				outArrayList.add(new FastAndRuthlessDiffImplByteArrayParts(newBit));
-			} else {
-				// copy
-				short end = buf.getShort();
-				try {
-					outArrayList.add(new FastAndRuthlessDiffImplByteArrayParts(start, end));
-				} catch (TooBigToDeltaException e) {
-					// This line is in practice unreachable...
-					e.printStackTrace();
-				}
+	/**
+	 * Work out how long the output of decodeFARDData will be without decoding
+	 * it, when the encoded data is part of a larger array.
+	 * 
+	 * @param byteArray
+	 *            Array containing the encoded data
+	 * @param diffOffset
+	 *            where the encoded data starts
+	 * @param diffLength
+	 *            how long it is
+	 * @return the length of the decoded data
+	 * @throws BadInputException
+	 *             if the encoded data isn't well formed
+	 */
+	public static int getFARDTargetLength(byte[] byteArray, int diffOffset, int diffLength) throws BadInputException {
 
+		// We don't know the base, but a REF can't go past Short.MAX_VALUE
+		return FARDValidator.validate(byteArray, diffOffset, diffLength, Short.MAX_VALUE, Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	 * Decode data in "Fast And Ruthless Diff" format into part of an existing
+	 * array, in a single pass. Both the old and new data can be slices of larger
+	 * arrays.
+	 * 
+	 * @param oldArray
+	 *            Array containing the original data
+	 * @param oldOffset
+	 *            where the original data starts in oldArray
+	 * @param oldLength
+	 *            how long the original data is
+	 * @param byteArray
+	 *            Array containing the encoded data
+	 * @param diffOffset
+	 *            where the encoded data starts in byteArray
+	 * @param diffLength
+	 *            how long the encoded data is
+	 * @param outArray
+	 *            where to put the modified data. Must have room for
+	 *            getFARDTargetLength() bytes after outOffset
+	 * @param outOffset
+	 *            where in outArray to start writing
+	 * @return how many bytes were written
+	 * @throws BadInputException
+	 *             if the encoded data isn't well formed or refers to data
+	 *             outside the original data
+	 */
+	public static int decodeFARDData(byte[] oldArray, int oldOffset, int oldLength, byte[] byteArray, int diffOffset,
+			int diffLength, byte[] outArray, int outOffset) throws BadInputException {
+
+		FARDValidator.validate(byteArray, diffOffset, diffLength, oldLength, outArray.length - outOffset);
+
+		return decodeValidatedFARDData(oldArray, oldOffset, byteArray, diffOffset, diffLength, outArray, outOffset);
+	}
+
+	/**
+	 * Decode FARD data that has already passed FARDValidator.validate(), so
+	 * there is no bounds checking beyond what the JVM does anyway.
+	 * 
+	 * @param oldArray
+	 * @param oldOffset
+	 * @param byteArray
+	 * @param diffOffset
+	 * @param diffLength
+	 * @param outArray
+	 * @param outOffset
+	 * @return how many bytes were written
+	 */
+	private static int decodeValidatedFARDData(byte[] oldArray, int oldOffset, byte[] byteArray, int diffOffset,
+			int diffLength, byte[] outArray, int outOffset) {
+
+		final int limit = diffOffset + diffLength;
+		int inPosition = diffOffset;
+		int position = outOffset;
+
+		while (inPosition < limit) {
+
+			final short start = readFARDShort(byteArray, inPosition);
+			final short second = readFARDShort(byteArray, inPosition + 2);
+			inPosition += 4;
+
+			if (start == FARD_REPEATING_BLOCK) {
+				Arrays.fill(outArray, position, position + second, byteArray[inPosition++]);
+				position += second;
+			} else if (start == FARD_DATA_BLOCK) {
+				System.arraycopy(byteArray, inPosition, outArray, position, second);
+				inPosition += second;
+				position += second;
+			} else {
+				System.arraycopy(oldArray, oldOffset + start, outArray, position, second - start);
+				position += (second - start);
 			}
 		}
 
-		// Turn our arraylist into byte[]
-		FastAndRuthlessDiffImplByteArrayParts[] outArray = new FastAndRuthlessDiffImplByteArrayParts[outArrayList
-				.size()];
-		outArray = outArrayList.toArray(outArray);
+		return position - outOffset;
+	}
 
-		int totalSize = 0;
+	/**
+	 * Read a little endian short, which is how FARD data is encoded.
+	 * 
+	 * @param byteArray
+	 * @param position
+	 * @return the short at byteArray[position]
+	 */
+	public static short readFARDShort(byte[] byteArray, int position) {
+		return (short) ((byteArray[position] & 0xFF) | (byteArray[position + 1] << 8));
+	}
 
-		for (int i = 0; i < outArray.length; i++) {
-			System.out.println(outArray[i] + " " + outArray[i].actualSize());
-			totalSize += outArray[i].actualSize();
+	/**
+	 * Read a little endian short at an absolute position in a ByteBuffer,
+	 * whatever the buffer's byte order is.
+	 * 
+	 * @param buffer
+	 * @param position
+	 * @return the short at position
+	 */
+	public static short readFARDShort(ByteBuffer buffer, int position) {
+		return (short) ((buffer.get(position) & 0xFF) | (buffer.get(position + 1) << 8));
+	}
+
+	/**
+	 * Decode data in "Fast And Ruthless Diff" format by overwriting the original
+	 * data, which only works if the old and new data are the same length.
+	 * <p>
+	 * REF blocks that copy a range onto itself are skipped. A REF block whose
+	 * source was overwritten by an earlier block has its source range copied
+	 * before we start writing, so ops see the original data no matter what
+	 * order they overlap in.
+	 * 
+	 * @param array
+	 *            Original Data, which will become the modified data
+	 * @param byteArray
+	 *            Encoded Data
+	 * @return true if array now contains the modified data, false if the
+	 *         modified data is a different length or array is null, and array
+	 *         wasn't touched
+	 * @throws BadInputException
+	 *             if byteArray isn't well formed. array is left untouched.
+	 */
+	public static boolean decodeFARDDataInPlace(byte[] array, byte[] byteArray) throws BadInputException {
+
+		// Check every op before we change anything
+		final int targetLength = FARDValidator.validate(byteArray, array == null ? 0 : array.length);
+
+		if (array == null || targetLength != array.length) {
+			return false;
 		}
 
-		byte[] outByteArray = new byte[totalSize];
+		final FARDOpList ops = FARDOpList.parse(byteArray, 0, byteArray.length);
 
-		int position = 0;
+		// changedOps[k] is how many of the first k ops change the bytes they
+		// write, so we can tell whether a range of earlier ops wrote anything
+		// without looking at each of them
+		final int[] changedOps = new int[ops.count + 1];
 
-		for (int i = 0; i < outArray.length; i++) {
+		for (int k = 0; k < ops.count; k++) {
+			changedOps[k + 1] = changedOps[k] + (ops.lengths[k] > 0 && !ops.isIdentityReference(k) ? 1 : 0);
+		}
 
-			byte[] tempArray = outArray[i].getActualBytes(oldArray);
+		// Copy any source ranges that an earlier op is going to overwrite
+		byte[][] snapshots = null;
 
-			for (int j = 0; j < tempArray.length; j++) {
+		for (int i = 0; i < ops.count; i++) {
 
-				try {
-					outByteArray[position++] = tempArray[j];
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+			if (ops.types[i] != FARD_REFERENCE_BLOCK || ops.isIdentityReference(i)) {
+				continue;
+			}
+
+			// Ops write left to right, so earlier ops wrote [0, outStarts[i])
+			final int overwrittenEnd = Math.min(ops.sources[i] + ops.lengths[i], ops.outStarts[i]);
+
+			if (ops.sources[i] >= overwrittenEnd) {
+				continue;
 			}
 
+			final int first = ops.findOpAt(ops.sources[i]);
+			final int last = ops.findOpAt(overwrittenEnd - 1);
+
+			if (changedOps[last + 1] > changedOps[first]) {
+
+				if (snapshots == null) {
+					snapshots = new byte[ops.count][];
+				}
+
+				snapshots[i] = Arrays.copyOfRange(array, ops.sources[i], ops.sources[i] + ops.lengths[i]);
+			}
 		}
 
-		return outByteArray;
+		// Now write
+		for (int i = 0; i < ops.count; i++) {
+
+			if (ops.types[i] == FARD_REPEATING_BLOCK) {
+				Arrays.fill(array, ops.outStarts[i], ops.outStarts[i] + ops.lengths[i], (byte) ops.sources[i]);
+			} else if (ops.types[i] == FARD_DATA_BLOCK) {
+				System.arraycopy(byteArray, ops.sources[i], array, ops.outStarts[i], ops.lengths[i]);
+			} else if (snapshots != null && snapshots[i] != null) {
+				System.arraycopy(snapshots[i], 0, array, ops.outStarts[i], ops.lengths[i]);
+			} else if (!ops.isIdentityReference(i)) {
+				System.arraycopy(array, ops.sources[i], array, ops.outStarts[i], ops.lengths[i]);
+			}
+		}
 
+		return true;
 	}
 
 	/**
@@ -686,6 +841,25 @@ public class ByteArrayLib {
 
 	}
 
+	/**
+	 * Throws an exception if the hashcode of the bytes between buffer's
+	 * position and limit is not the one we have been given
+	 * 
+	 * @param buffer
+	 * @param targetHashCode
+	 * @throws HashCodeMismatchException
+	 */
+	public static void checkHashCode(ByteBuffer buffer, int targetHashCode) throws HashCodeMismatchException {
+
+		final int actualHashCode = deterministicHashcode(buffer);
+
+		if (actualHashCode != targetHashCode) {
+			throw new HashCodeMismatchException(
+					"deterministicHashcode: Got " + actualHashCode + ", expected " + targetHashCode);
+		}
+
+	}
+
 	/**
 	 * Complain in this is too small to delta.
 	 * 
@@ -720,6 +894,40 @@ public class ByteArrayLib {
 
 	}
 
+	/**
+	 * Complain if the bytes between buffer's position and limit are too small
+	 * to delta.
+	 * 
+	 * @param buffer
+	 * @param descr
+	 *            a description of it
+	 * @throws TooSmallToDeltaException
+	 */
+	public static void checkTooSmall(ByteBuffer buffer, String descr) throws TooSmallToDeltaException {
+
+		if (buffer == null || buffer.remaining() < FAST_RUTHLESS_MINIMUM_POSSIBLE_SIZE) {
+			throw new TooSmallToDeltaException(descr + " is too small to apply delta function");
+		}
+
+	}
+
+	/**
+	 * Complain if the bytes between buffer's position and limit are too big to
+	 * delta.
+	 * 
+	 * @param buffer
+	 * @param descr
+	 *            a description of it
+	 * @throws TooBigToDeltaException
+	 */
+	public static void checkTooBig(ByteBuffer buffer, String descr) throws TooBigToDeltaException {
+
+		if (buffer == null || buffer.remaining() >= Short.MAX_VALUE - 2) {
+			throw new TooBigToDeltaException(descr + " is too big to apply delta function");
+		}
+
+	}
+
 	/**
 	 * Prevent diffed data from taking up more space than original data
 	 * 
@@ -728,10 +936,21 @@ public class ByteArrayLib {
 	 * @throws UneconomicToDiffException
 	 */
 	public static void giveUpIfUneconomic(byte[] oldArray, byte[] deltaArray) throws UneconomicToDiffException {
+		giveUpIfUneconomic(oldArray.length, deltaArray.length);
+	}
 
-		if (oldArray.length < deltaArray.length) {
-			throw new UneconomicToDiffException(
-					"delta length of " + deltaArray.length + " longer than " + oldArray.length);
+	/**
+	 * Prevent diffed data from taking up more space than original data, before
+	 * we've allocated anything for it.
+	 * 
+	 * @param oldLength
+	 * @param deltaLength
+	 * @throws UneconomicToDiffException
+	 */
+	public static void giveUpIfUneconomic(int oldLength, int deltaLength) throws UneconomicToDiffException {
+
+		if (oldLength < deltaLength) {
+			throw new UneconomicToDiffException("delta length of " + deltaLength + " longer than " + oldLength);
 		}
 
 	}
@@ -768,6 +987,90 @@ public class ByteArrayLib {
 
 	}
 
+	/**
+	 * deterministicHashcode for a slice of a larger array. Gives the same answer
+	 * as deterministicHashcode() would for a copy of the slice.
+	 * 
+	 * @param array
+	 * @param offset
+	 *            where the slice starts
+	 * @param length
+	 *            how long it is
+	 * @return hashcode
+	 */
+	public static int deterministicHashcode(byte[] array, int offset, int length) {
+
+		long value = 42;
+
+		if (array == null) {
+			return Integer.MIN_VALUE;
+		} else if (length == 0) {
+			return Integer.MIN_VALUE + 1;
+		}
+
+		for (int i = 0; i < length; i++) {
+			value += (array[offset + i] * i);
+		}
+
+		if (value > Long.MAX_VALUE - (32767 * 255)) {
+			value = Integer.MIN_VALUE + 2;
+		}
+
+		return (int) (value % Integer.MAX_VALUE);
+
+	}
+
+	/**
+	 * deterministicHashcode for the bytes between buffer's position and limit.
+	 * Gives the same answer as deterministicHashcode() would for a copy of
+	 * them, and doesn't change the buffer's position.
+	 * 
+	 * @param buffer
+	 * @return hashcode
+	 */
+	public static int deterministicHashcode(ByteBuffer buffer) {
+
+		long value = 42;
+
+		if (buffer == null) {
+			return Integer.MIN_VALUE;
+		} else if (!buffer.hasRemaining()) {
+			return Integer.MIN_VALUE + 1;
+		}
+
+		final int base = buffer.position();
+		final int length = buffer.remaining();
+
+		// Read 8 bytes at a time, which is much cheaper than get() per byte on
+		// a direct buffer, in native order so the JVM doesn't swap them
+		if (buffer.order() != ByteOrder.nativeOrder()) {
+			buffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+		}
+
+		final boolean littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+		int i = 0;
+
+		for (; i <= length - 8; i += 8) {
+
+			final long word = buffer.getLong(base + i);
+
+			for (int j = 0; j < 8; j++) {
+				value += ((byte) (word >>> (littleEndian ? j * 8 : 56 - (j * 8))) * (i + j));
+			}
+		}
+
+		for (; i < length; i++) {
+			value += (buffer.get(base + i) * i);
+		}
+
+		if (value > Long.MAX_VALUE - (32767 * 255)) {
+			value = Integer.MIN_VALUE + 2;
+		}
+
+		return (int) (value % Integer.MAX_VALUE);
+
+	}
+
 	/**
 	 * Generate a FARD encoded representation of a start end range
 	 * 
@@ -0,0 +1,281 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+
+/**
+ * Operations on FARD diffs themselves, rather than on the arrays they change.
+ *
+ */
+public class DiffAlgebra {
+
+	/**
+	 * Combine two consecutive diffs into one, without decoding either of them.
+	 * <p>
+	 * Every REF block in diffB refers to the output of diffA. We look up which
+	 * of diffA's blocks produced that range and copy them (or the relevant part
+	 * of them) instead, so the result refers only to diffA's base. DATA and
+	 * repeating blocks in diffB are copied as they are. This takes time
+	 * proportional to the number of blocks plus the literal data, not the
+	 * size of the arrays.
+	 * 
+	 * @param diffA
+	 *            turns base into version 1
+	 * @param diffB
+	 *            turns version 1 into version 2
+	 * @return a diff that turns base into version 2
+	 * @throws BadInputException
+	 *             if either diff is malformed, or diffB refers to data past the
+	 *             end of diffA's output
+	 */
+	public static byte[] compose(byte[] diffA, byte[] diffB) throws BadInputException {
+
+		final int aTargetLength = FARDValidator.validate(diffA, Short.MAX_VALUE);
+		FARDValidator.validate(diffB, aTargetLength);
+
+		final FARDOpList aOps = FARDOpList.parse(diffA, 0, diffA.length);
+		final FARDOpList bOps = FARDOpList.parse(diffB, 0, diffB.length);
+
+		FARDWriter writer = new FARDWriter(diffA.length + diffB.length);
+
+		for (int i = 0; i < bOps.count; i++) {
+
+			if (bOps.types[i] != ByteArrayLib.FARD_REFERENCE_BLOCK) {
+				writer.addOp(bOps, i, 0, bOps.lengths[i]);
+				continue;
+			}
+
+			// Map the referenced range of version 1 back onto diffA's blocks
+			int position = bOps.sources[i];
+			final int end = position + bOps.lengths[i];
+			int a = aOps.findOpAt(position);
+
+			while (position < end) {
+
+				final int aEnd = aOps.outStarts[a] + aOps.lengths[a];
+
+				if (aEnd > position) {
+					final int take = Math.min(end, aEnd) - position;
+					writer.addOp(aOps, a, position - aOps.outStarts[a], take);
+					position += take;
+				}
+
+				a++;
+			}
+		}
+
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Combine a chain of consecutive diffs into one.
+	 * 
+	 * @param diffs
+	 *            diffs in the order they would be applied
+	 * @return a diff that turns the first diff's base into the last diff's
+	 *         output
+	 * @throws BadInputException
+	 *             if any diff is malformed or they don't chain together
+	 */
+	public static byte[] compose(List<byte[]> diffs) throws BadInputException {
+
+		if (diffs.isEmpty()) {
+			throw new BadInputException("Nothing to compose");
+		}
+
+		byte[] result = diffs.get(0);
+
+		for (int i = 1; i < diffs.size(); i++) {
+			result = compose(result, diffs.get(i));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Combine two consecutive FARDEnvelope wrapped diffs into one. The result
+	 * keeps envelopeA's base checksum and base key, if any, and envelopeB's
+	 * target length and checksum.
+	 * 
+	 * @param envelopeA
+	 *            turns base into version 1
+	 * @param envelopeB
+	 *            turns version 1 into version 2
+	 * @return an enveloped diff that turns base into version 2
+	 * @throws BadInputException
+	 *             if either envelope is malformed or envelopeB wasn't made
+	 *             against envelopeA's output
+	 */
+	public static byte[] composeEnveloped(byte[] envelopeA, byte[] envelopeB) throws BadInputException {
+
+		final FARDEnvelope headerA = FARDEnvelope.read(envelopeA);
+		final FARDEnvelope headerB = FARDEnvelope.read(envelopeB);
+
+		if (headerA.usesDictionary() || headerB.usesDictionary()) {
+			throw new BadInputException("Can't compose diffs that use a dictionary");
+		}
+
+		if (headerA.getTargetChecksum() != headerB.getBaseChecksum()) {
+			throw new BadInputException("Second diff was made against " + headerB.getBaseChecksum()
+					+ ", first diff produces " + headerA.getTargetChecksum());
+		}
+
+		if (headerB.getBaseKey() != null) {
+			throw new BadInputException("Second diff applies to the value of " + headerB.getBaseKey()
+					+ ", not the output of the first");
+		}
+
+		final byte[] composed = compose(headerA.getFARDData(envelopeA), headerB.getFARDData(envelopeB));
+
+		final byte[] envelope = FARDEnvelope.wrap(headerA.getBaseChecksum(), headerB.getTargetLength(),
+				headerB.getTargetChecksum(), composed);
+
+		return headerA.getBaseKey() == null ? envelope : FARDEnvelope.addBaseKey(envelope, headerA.getBaseKey());
+	}
+
+
+	/**
+	 * Create the diff that undoes diffForward, so we can roll back without
+	 * keeping the previous value or searching for matches again.
+	 * <p>
+	 * Every REF block in diffForward tells us where a range of oldArray ended
+	 * up in the new array, so the undo diff can copy those ranges back out of
+	 * the new array. Only the parts of oldArray that no REF block reads - the
+	 * bytes that were changed or removed - have to be sent as data. This takes
+	 * time proportional to the number of blocks plus the changed bytes.
+	 * 
+	 * @param oldArray
+	 *            the array diffForward was calculated against
+	 * @param diffForward
+	 *            turns oldArray into a new array
+	 * @return a diff that turns the new array back into oldArray
+	 * @throws BadInputException
+	 *             if diffForward is malformed or doesn't fit oldArray
+	 */
+	public static byte[] invertDiff(byte[] oldArray, byte[] diffForward) throws BadInputException {
+
+		if (oldArray == null) {
+			throw new BadInputException("Can't invert a diff without the old array");
+		}
+
+		FARDValidator.validate(diffForward, oldArray.length);
+
+		final FARDOpList ops = FARDOpList.parse(diffForward, 0, diffForward.length);
+
+		// Sort the REF blocks by where they read from in oldArray. We pack
+		// source and op index into a long so we can sort without boxing.
+		long[] refs = new long[ops.count];
+		int refCount = 0;
+
+		for (int i = 0; i < ops.count; i++) {
+			if (ops.types[i] == ByteArrayLib.FARD_REFERENCE_BLOCK && ops.lengths[i] > 0
+					&& ops.outStarts[i] < ByteArrayLib.FARD_REFERENCE_BLOCK) {
+				refs[refCount++] = ((long) ops.sources[i] << 32) | i;
+			}
+		}
+
+		Arrays.sort(refs, 0, refCount);
+
+		FARDWriter writer = new FARDWriter(refCount * 4 + 64);
+
+		int position = 0;
+		int nextRef = 0;
+
+		// The REF block that covers the most of oldArray from position onwards
+		int best = -1;
+		int bestEnd = 0;
+
+		while (position < oldArray.length) {
+
+			while (nextRef < refCount && (int) (refs[nextRef] >>> 32) <= position) {
+
+				final int op = (int) refs[nextRef];
+				final int end = ops.sources[op] + ops.lengths[op];
+
+				if (end > bestEnd) {
+					best = op;
+					bestEnd = end;
+				}
+
+				nextRef++;
+			}
+
+			if (bestEnd > position) {
+
+				// Copy back from where diffForward put it
+				final int newStart = ops.outStarts[best] + (position - ops.sources[best]);
+				writer.addReference(newStart, newStart + (bestEnd - position));
+				position = bestEnd;
+
+			} else {
+
+				// Nothing refers to this part of oldArray, so we have to send it
+				int gapEnd = oldArray.length;
+
+				if (nextRef < refCount) {
+					gapEnd = Math.min(gapEnd, (int) (refs[nextRef] >>> 32));
+				}
+
+				writer.addData(oldArray, position, gapEnd - position);
+				position = gapEnd;
+			}
+		}
+
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Create the FARDEnvelope wrapped diff that undoes envelopeForward. The
+	 * checksums swap places, so nothing needs to be rehashed.
+	 * 
+	 * @param oldArray
+	 *            the array envelopeForward was calculated against
+	 * @param envelopeForward
+	 *            output of calculateEnvelopedDiff
+	 * @return an enveloped diff that turns the new array back into oldArray
+	 * @throws BadInputException
+	 *             if envelopeForward is malformed or doesn't fit oldArray
+	 */
+	public static byte[] invertEnvelopedDiff(byte[] oldArray, byte[] envelopeForward) throws BadInputException {
+
+		final FARDEnvelope header = FARDEnvelope.read(envelopeForward);
+
+		if (header.usesDictionary()) {
+			throw new BadInputException("Can't invert a diff that uses a dictionary");
+		}
+
+		if (header.getBaseKey() != null) {
+			throw new BadInputException("Can't invert a diff against another key's value");
+		}
+
+		final byte[] inverse = invertDiff(oldArray, header.getFARDData(envelopeForward));
+
+		return FARDEnvelope.wrap(header.getTargetChecksum(), oldArray.length, header.getBaseChecksum(), inverse);
+	}
+
+}
@@ -0,0 +1,195 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diffs many (old, new) pairs in parallel on a bounded pool of worker threads.
+ * <p>
+ * Submitters block once queueCapacity items are waiting for a worker, so a
+ * caller handing over a very large list can't flood the heap. Results come back
+ * in input order and a failure on one item is recorded in its
+ * DiffBatchItemResult - it doesn't stop the rest of the batch.
+ * <p>
+ * FastAndRuthlessDiffImpl keeps unsynchronized stats, so each worker thread
+ * gets its own instance.
+ *
+ */
+public class DiffBatch {
+
+	private final DiffBatchOptions options;
+
+	private final ThreadPoolExecutor workers;
+
+	// Used by calculateAllAsync so the caller doesn't block while we submit.
+	private final ExecutorService dispatcher;
+
+	// One permit per worker thread plus one per queue slot. A worker gives its
+	// permit back just before it finishes, so the queue itself is sized to hold
+	// every permit holder and execute() never has to reject.
+	private final Semaphore submissionPermits;
+
+	private final ThreadLocal<FastAndRuthlessDiffImpl> workerImpl = new ThreadLocal<FastAndRuthlessDiffImpl>() {
+		@Override
+		protected FastAndRuthlessDiffImpl initialValue() {
+			return new FastAndRuthlessDiffImpl();
+		}
+	};
+
+	/**
+	 * @param options
+	 *            thread count, queue capacity and maxSplits for this batcher.
+	 */
+	public DiffBatch(DiffBatchOptions options) {
+
+		this.options = options;
+
+		final int maxOutstanding = options.getThreadCount() + options.getQueueCapacity();
+
+		workers = new ThreadPoolExecutor(options.getThreadCount(), options.getThreadCount(), 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(maxOutstanding),
+				new DaemonThreadFactory("DiffBatch-worker-"));
+
+		dispatcher = Executors.newSingleThreadExecutor(new DaemonThreadFactory("DiffBatch-dispatcher-"));
+
+		submissionPermits = new Semaphore(maxOutstanding);
+	}
+
+	/**
+	 * Diff every item in the list, blocking until all of them are done.
+	 *
+	 * @param items
+	 *            pairs to diff
+	 * @return per item results in input order, plus stats for the batch
+	 * @throws InterruptedException
+	 *             if we are interrupted while waiting for a queue slot or for
+	 *             the workers to finish
+	 */
+	public DiffBatchResult calculateAll(List<DiffBatchItem> items) throws InterruptedException {
+
+		final long start = System.currentTimeMillis();
+		final DiffBatchItemResult[] results = new DiffBatchItemResult[items.size()];
+		final CountDownLatch remaining = new CountDownLatch(results.length);
+
+		for (int i = 0; i < results.length; i++) {
+
+			final int index = i;
+			final DiffBatchItem item = items.get(i);
+
+			submissionPermits.acquire();
+
+			try {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							results[index] = diffOne(index, item);
+						} finally {
+							submissionPermits.release();
+							remaining.countDown();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Only happens after shutdown()
+				submissionPermits.release();
+				results[index] = new DiffBatchItemResult(index, e, 0);
+				remaining.countDown();
+			}
+		}
+
+		remaining.await();
+
+		return new DiffBatchResult(items, results, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Asynchronous version of calculateAll. Submission happens on a dispatcher
+	 * thread, so backpressure is applied to that thread rather than the caller.
+	 *
+	 * @param items
+	 *            pairs to diff
+	 * @return a future that completes once every item has a result
+	 */
+	public CompletableFuture<DiffBatchResult> calculateAllAsync(final List<DiffBatchItem> items) {
+
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return calculateAll(items);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CompletionException(e);
+			}
+		}, dispatcher);
+	}
+
+	/**
+	 * Diff a single item, capturing any exception in the result. An Error is
+	 * recorded wrapped in an ExecutionException, so every item still gets a
+	 * result.
+	 *
+	 * @param index
+	 * @param item
+	 * @return the result for this item
+	 */
+	private DiffBatchItemResult diffOne(int index, DiffBatchItem item) {
+
+		final long start = System.nanoTime();
+
+		try {
+			byte[] diff = workerImpl.get().calculateDiff(item.getOldArray(), item.getNewArray(),
+					options.getMaxSplits());
+			return new DiffBatchItemResult(index, diff, System.nanoTime() - start);
+		} catch (Exception e) {
+			return new DiffBatchItemResult(index, e, System.nanoTime() - start);
+		} catch (Throwable t) {
+			return new DiffBatchItemResult(index, new ExecutionException(t), System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Stop accepting work. Batches already submitted will still finish.
+	 */
+	public void shutdown() {
+		dispatcher.shutdown();
+		workers.shutdown();
+	}
+
+	public DiffBatchOptions getOptions() {
+		return options;
+	}
+
+}
@@ -0,0 +1,54 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+/**
+ * One (old, new) pair to be diffed as part of a {@link DiffBatch}.
+ *
+ */
+public class DiffBatchItem {
+
+	byte[] oldArray = null;
+	byte[] newArray = null;
+
+	/**
+	 * @param oldArray
+	 *            the value the receiver already has
+	 * @param newArray
+	 *            the value we want the receiver to end up with
+	 */
+	public DiffBatchItem(byte[] oldArray, byte[] newArray) {
+		this.oldArray = oldArray;
+		this.newArray = newArray;
+	}
+
+	public byte[] getOldArray() {
+		return oldArray;
+	}
+
+	public byte[] getNewArray() {
+		return newArray;
+	}
+
+}
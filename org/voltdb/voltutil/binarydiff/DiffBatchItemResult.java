@@ -0,0 +1,104 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+/**
+ * The outcome of diffing one {@link DiffBatchItem}. Exactly one of getDiff()
+ * and getException() is non-null.
+ *
+ */
+public class DiffBatchItemResult {
+
+	private final int index;
+	private final byte[] diff;
+	private final Exception exception;
+	private final long elapsedNanos;
+
+	/**
+	 * Constructor for a successful diff.
+	 *
+	 * @param index
+	 *            position of the item in the batch
+	 * @param diff
+	 *            the calculated diff
+	 * @param elapsedNanos
+	 *            how long calculateDiff took
+	 */
+	public DiffBatchItemResult(int index, byte[] diff, long elapsedNanos) {
+		this.index = index;
+		this.diff = diff;
+		this.exception = null;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * Constructor for a failed diff.
+	 *
+	 * @param index
+	 *            position of the item in the batch
+	 * @param exception
+	 *            why we couldn't diff it. Typically one of the exceptions
+	 *            thrown by ArrayDiffIFace.calculateDiff
+	 * @param elapsedNanos
+	 *            how long we spent before giving up
+	 */
+	public DiffBatchItemResult(int index, Exception exception, long elapsedNanos) {
+		this.index = index;
+		this.diff = null;
+		this.exception = exception;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return true if we have a diff.
+	 */
+	public boolean isOk() {
+		return exception == null;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public byte[] getDiff() {
+		return diff;
+	}
+
+	public Exception getException() {
+		return exception;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		if (isOk()) {
+			return "[" + index + " OK " + diff.length + "]";
+		}
+		return "[" + index + " " + exception.getClass().getSimpleName() + "]";
+	}
+
+}
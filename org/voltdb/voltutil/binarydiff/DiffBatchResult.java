@@ -0,0 +1,146 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.voltdb.voltutil.stats.StatsHistogram;
+
+/**
+ * The outcome of a {@link DiffBatch} run. Item results are in the same order
+ * as the items that were submitted, along with aggregated stats for the whole
+ * batch.
+ *
+ */
+public class DiffBatchResult {
+
+	private final List<DiffBatchItemResult> itemResults;
+
+	private final long elapsedMs;
+
+	private int okCount = 0;
+
+	// Failure counts, keyed on exception class name
+	private final Map<String, Integer> failureCounts = new HashMap<String, Integer>();
+
+	// Sum of newArray lengths for items we diffed
+	private long bytesBefore = 0;
+
+	// Sum of diff lengths for items we diffed
+	private long bytesAfter = 0;
+
+	// Tracks % effectiveness of diff
+	private final StatsHistogram compressionHistogram = new StatsHistogram(100);
+
+	// Tracks time spent in calculateDiff, in microseconds
+	private final StatsHistogram latencyHistogram = new StatsHistogram(1000);
+
+	/**
+	 * @param items
+	 *            the items that were diffed
+	 * @param itemResults
+	 *            one result per item, in input order
+	 * @param elapsedMs
+	 *            wall clock time for the whole batch
+	 */
+	DiffBatchResult(List<DiffBatchItem> items, DiffBatchItemResult[] itemResults, long elapsedMs) {
+
+		this.itemResults = Collections.unmodifiableList(Arrays.asList(itemResults));
+		this.elapsedMs = elapsedMs;
+
+		for (int i = 0; i < itemResults.length; i++) {
+
+			latencyHistogram.report((int) (itemResults[i].getElapsedNanos() / 1000), null);
+
+			if (itemResults[i].isOk()) {
+
+				okCount++;
+
+				final int newLength = items.get(i).getNewArray().length;
+				final int diffLength = itemResults[i].getDiff().length;
+
+				bytesBefore += newLength;
+				bytesAfter += diffLength;
+				compressionHistogram.report(100 - ((diffLength * 100) / newLength), null);
+
+			} else {
+
+				final String name = itemResults[i].getException().getClass().getSimpleName();
+				Integer count = failureCounts.get(name);
+				failureCounts.put(name, count == null ? 1 : count + 1);
+
+			}
+		}
+	}
+
+	/**
+	 * @return per item results, in the same order as the input list
+	 */
+	public List<DiffBatchItemResult> getItemResults() {
+		return itemResults;
+	}
+
+	public long getElapsedMs() {
+		return elapsedMs;
+	}
+
+	public int getOkCount() {
+		return okCount;
+	}
+
+	public int getFailureCount() {
+		return itemResults.size() - okCount;
+	}
+
+	public Map<String, Integer> getFailureCounts() {
+		return failureCounts;
+	}
+
+	public long getBytesBefore() {
+		return bytesBefore;
+	}
+
+	public long getBytesAfter() {
+		return bytesAfter;
+	}
+
+	public StatsHistogram getCompressionHistogram() {
+		return compressionHistogram;
+	}
+
+	public StatsHistogram getLatencyHistogram() {
+		return latencyHistogram;
+	}
+
+	@Override
+	public String toString() {
+		return "Items=" + itemResults.size() + " OK=" + okCount + " Failed=" + failureCounts + " Bytes=" + bytesBefore
+				+ "->" + bytesAfter + " Took " + elapsedMs + "ms";
+	}
+
+}
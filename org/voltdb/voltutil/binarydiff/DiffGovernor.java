@@ -0,0 +1,404 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+
+import org.voltdb.voltutil.binarydiff.exceptions.TooBigToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooSmallToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+import com.sun.management.OperatingSystemMXBean;
+
+/**
+ * Sits in front of FastAndRuthlessDiffImpl and trades diff size for CPU as
+ * load changes: under load we send somewhat bigger diffs rather than miss
+ * latency targets, and when things are quiet we try harder.
+ * <p>
+ * How hard we try is a level from 1 to MAX_LEVEL, which sets the encoder's
+ * step size and pattern length and the maxSplits passed to calculateDiff.
+ * DEFAULT_LEVEL uses the same settings as FARDOptions does by default. At
+ * level 0 we don't diff at all and calculateDiff throws
+ * UneconomicToDiffException, so callers send the full value as they would for
+ * any diff that didn't pay.
+ * <p>
+ * Every adjustIntervalMs we look at the average diff time since the last
+ * look, the queue depth and the process CPU load, each as a share of its
+ * limit in DiffGovernorOptions. If the biggest share is over 1 we drop a
+ * level, or two if it's over 2. If all of them are under relaxBelow we go up
+ * a level. We never leave the options' minLevel to maxLevel range.
+ * <p>
+ * What we decided and why is available from the getters and toString().
+ * Safe to use from many threads.
+ *
+ */
+public class DiffGovernor {
+
+	public static final int SKIP_LEVEL = 0;
+
+	public static final int DEFAULT_LEVEL = 3;
+
+	public static final int MAX_LEVEL = 5;
+
+	// Encoder settings for each level. Level 0 doesn't diff.
+	private static final int[] LEVEL_STEP_SIZES = { 0, 8, 5, ByteArrayLib.FAST_AND_RUTHLRESS_DEFAULT_STEPSIZE, 2,
+			1 };
+	private static final int[] LEVEL_PATTERN_LENGTHS = { 0, 32, 24, ByteArrayLib.FAST_RUTHLESS_SPLIT_PATTERN_LENGTH,
+			12, FARDOptions.MIN_PATTERN_LENGTH };
+
+	private final DiffGovernorOptions options;
+
+	private final FARDOptions[] levelOptions = new FARDOptions[MAX_LEVEL + 1];
+
+	private final int[] levelMaxSplits = new int[MAX_LEVEL + 1];
+
+	// FastAndRuthlessDiffImpl keeps unsynchronized stats
+	private final ThreadLocal<FastAndRuthlessDiffImpl> impl = new ThreadLocal<FastAndRuthlessDiffImpl>() {
+		@Override
+		protected FastAndRuthlessDiffImpl initialValue() {
+			return new FastAndRuthlessDiffImpl();
+		}
+	};
+
+	private volatile int level;
+
+	private volatile IntSupplier queueDepthSource = null;
+
+	private volatile DoubleSupplier cpuLoadSource;
+
+	// Since the last adjustment
+	private final LongAdder intervalDiffs = new LongAdder();
+	private final LongAdder intervalNanos = new LongAdder();
+
+	private volatile long lastAdjustNanos = System.nanoTime();
+
+	// What we saw at the last adjustment. Guarded by this.
+	private long lastLatencyMicros = 0;
+	private int lastQueueDepth = 0;
+	private double lastCpuLoad = 0;
+	private double lastPressure = 0;
+	private long adjustments = 0;
+	private long levelDecreases = 0;
+	private long levelIncreases = 0;
+
+	private final AtomicLongArray diffsAtLevel = new AtomicLongArray(MAX_LEVEL + 1);
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * @param options
+	 */
+	public DiffGovernor(DiffGovernorOptions options) {
+
+		this.options = options;
+
+		for (int i = 1; i <= MAX_LEVEL; i++) {
+
+			levelOptions[i] = new FARDOptions();
+			levelOptions[i].setStepSize(LEVEL_STEP_SIZES[i]);
+			levelOptions[i].setPatternLength(LEVEL_PATTERN_LENGTHS[i]);
+
+			levelMaxSplits[i] = options.getMinMaxSplits()
+					+ ((options.getMaxMaxSplits() - options.getMinMaxSplits()) * (i - 1)) / (MAX_LEVEL - 1);
+		}
+
+		level = clampLevel(options.getStartLevel());
+
+		cpuLoadSource = processCpuLoadSource();
+	}
+
+	/**
+	 * Calculate a diff with whatever effort the current load allows.
+	 * 
+	 * @param oldArray
+	 * @param newArray
+	 * @return the same as FastAndRuthlessDiffImpl.calculateDiff
+	 * @throws TooSmallToDeltaException
+	 * @throws TooBigToDeltaException
+	 * @throws UneconomicToDiffException
+	 *             if the diff didn't pay, or we are at level 0
+	 */
+	public byte[] calculateDiff(byte[] oldArray, byte[] newArray)
+			throws TooSmallToDeltaException, TooBigToDeltaException, UneconomicToDiffException {
+
+		final long start = System.nanoTime();
+
+		if (start - lastAdjustNanos >= options.getAdjustIntervalMs() * 1000000) {
+			maybeAdjust();
+		}
+
+		final int currentLevel = level;
+
+		diffsAtLevel.incrementAndGet(currentLevel);
+		bytesIn.add(newArray == null ? 0 : newArray.length);
+
+		if (currentLevel == SKIP_LEVEL) {
+			bytesOut.add(newArray == null ? 0 : newArray.length);
+			throw new UneconomicToDiffException("Not diffing under load");
+		}
+
+		final FastAndRuthlessDiffImpl threadImpl = impl.get();
+		threadImpl.setOptions(levelOptions[currentLevel]);
+
+		boolean diffed = false;
+
+		try {
+			byte[] diff = threadImpl.calculateDiff(oldArray, newArray, levelMaxSplits[currentLevel]);
+			bytesOut.add(diff.length);
+			diffed = true;
+			return diff;
+		} finally {
+
+			if (!diffed) {
+				bytesOut.add(newArray == null ? 0 : newArray.length);
+			}
+
+			intervalNanos.add(System.nanoTime() - start);
+			intervalDiffs.increment();
+		}
+	}
+
+	/**
+	 * Adjust unless another thread got in first. Several threads can see the
+	 * interval expire at once, and only one of them should change the level.
+	 */
+	private synchronized void maybeAdjust() {
+
+		if (System.nanoTime() - lastAdjustNanos >= options.getAdjustIntervalMs() * 1000000) {
+			adjust();
+		}
+	}
+
+	/**
+	 * Decide whether to change level now, rather than waiting for the next
+	 * calculateDiff after adjustIntervalMs.
+	 */
+	public synchronized void adjust() {
+
+		lastAdjustNanos = System.nanoTime();
+
+		final long diffs = intervalDiffs.sumThenReset();
+		final long nanos = intervalNanos.sumThenReset();
+
+		lastLatencyMicros = diffs == 0 ? 0 : nanos / diffs / 1000;
+
+		final IntSupplier queueSource = queueDepthSource;
+		lastQueueDepth = queueSource == null ? 0 : queueSource.getAsInt();
+
+		// Negative if the JVM can't tell us
+		lastCpuLoad = Math.max(0, cpuLoadSource.getAsDouble());
+
+		lastPressure = Math.max((double) lastLatencyMicros / options.getTargetLatencyMicros(),
+				Math.max((double) lastQueueDepth / options.getMaxQueueDepth(), lastCpuLoad / options.getMaxCpuLoad()));
+
+		int newLevel = level;
+
+		if (lastPressure > 2) {
+			newLevel -= 2;
+		} else if (lastPressure > 1) {
+			newLevel--;
+		} else if (lastPressure < options.getRelaxBelow()) {
+			newLevel++;
+		}
+
+		newLevel = clampLevel(newLevel);
+
+		if (newLevel < level) {
+			levelDecreases++;
+		} else if (newLevel > level) {
+			levelIncreases++;
+		}
+
+		level = newLevel;
+		adjustments++;
+	}
+
+	/**
+	 * @return the process CPU load from the JVM's OperatingSystemMXBean, or -1
+	 *         if this JVM, or its module setup, doesn't provide one
+	 */
+	private static DoubleSupplier processCpuLoadSource() {
+
+		try {
+			final Object osBean = ManagementFactory.getOperatingSystemMXBean();
+
+			if (osBean instanceof OperatingSystemMXBean) {
+				return () -> ((OperatingSystemMXBean) osBean).getProcessCpuLoad();
+			}
+		} catch (LinkageError e) {
+			// jdk.management isn't there
+		}
+
+		return () -> -1;
+	}
+
+	private int clampLevel(int wanted) {
+		return Math.max(options.getMinLevel(), Math.min(options.getMaxLevel(), wanted));
+	}
+
+	/**
+	 * @param queueDepthSource
+	 *            how many items are waiting to be diffed, for example a
+	 *            queue's size method. Without one, queue depth is ignored.
+	 */
+	public void setQueueDepthSource(IntSupplier queueDepthSource) {
+		this.queueDepthSource = queueDepthSource;
+	}
+
+	/**
+	 * @param cpuLoadSource
+	 *            CPU load between 0 and 1. Defaults to the process CPU load
+	 *            from the OperatingSystemMXBean, if the JVM provides it.
+	 *            Negative values are ignored.
+	 */
+	public void setCpuLoadSource(DoubleSupplier cpuLoadSource) {
+		this.cpuLoadSource = cpuLoadSource;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param level
+	 * @return the maxSplits we pass to calculateDiff at that level
+	 */
+	public int getMaxSplits(int level) {
+		return levelMaxSplits[level];
+	}
+
+	/**
+	 * @param level
+	 * @return a copy of the encoder settings we use at that level, or null for
+	 *         level 0
+	 */
+	public FARDOptions getLevelOptions(int level) {
+		return levelOptions[level] == null ? null : new FARDOptions(levelOptions[level]);
+	}
+
+	/**
+	 * @param level
+	 * @return how many calculateDiff calls happened at that level
+	 */
+	public long getDiffsAtLevel(int level) {
+		return diffsAtLevel.get(level);
+	}
+
+	public long getSkippedDiffs() {
+		return diffsAtLevel.get(SKIP_LEVEL);
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	/**
+	 * @return bytes of diffs, plus the full length of values we didn't or
+	 *         couldn't diff
+	 */
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public synchronized long getAdjustments() {
+		return adjustments;
+	}
+
+	public synchronized long getLevelDecreases() {
+		return levelDecreases;
+	}
+
+	public synchronized long getLevelIncreases() {
+		return levelIncreases;
+	}
+
+	/**
+	 * @return average diff time over the last adjustment interval
+	 */
+	public synchronized long getLastLatencyMicros() {
+		return lastLatencyMicros;
+	}
+
+	public synchronized int getLastQueueDepth() {
+		return lastQueueDepth;
+	}
+
+	public synchronized double getLastCpuLoad() {
+		return lastCpuLoad;
+	}
+
+	/**
+	 * @return the biggest of latency, queue depth and CPU load as a share of
+	 *         its limit, at the last adjustment
+	 */
+	public synchronized double getLastPressure() {
+		return lastPressure;
+	}
+
+	public DiffGovernorOptions getOptions() {
+		return options;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		StringBuffer b = new StringBuffer();
+
+		b.append("Level=");
+		b.append(level);
+		b.append(" Pressure=");
+		b.append(Math.round(lastPressure * 100) / 100.0);
+		b.append(" LatencyMicros=");
+		b.append(lastLatencyMicros);
+		b.append(" QueueDepth=");
+		b.append(lastQueueDepth);
+		b.append(" CpuLoad=");
+		b.append(Math.round(lastCpuLoad * 100) / 100.0);
+		b.append(" Adjustments=");
+		b.append(adjustments);
+		b.append(" Down=");
+		b.append(levelDecreases);
+		b.append(" Up=");
+		b.append(levelIncreases);
+		b.append(" DiffsAtLevel=");
+
+		for (int i = 0; i <= MAX_LEVEL; i++) {
+			b.append(i == 0 ? "[" : ",");
+			b.append(diffsAtLevel.get(i));
+		}
+
+		b.append("] Bytes=");
+		b.append(bytesIn.sum());
+		b.append("->");
+		b.append(bytesOut.sum());
+
+		return b.toString();
+	}
+
+}
@@ -0,0 +1,143 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff;
+
+/**
+ * Settings for a {@link DiffGovernor}.
+ *
+ */
+public class DiffGovernorOptions {
+
+	// Lowest effort level we'll go to. 0 means we may stop diffing.
+	int minLevel = 1;
+
+	// Highest effort level we'll go to
+	int maxLevel = DiffGovernor.MAX_LEVEL;
+
+	// Where we start
+	int startLevel = DiffGovernor.DEFAULT_LEVEL;
+
+	// maxSplits at level 1 and at MAX_LEVEL. Levels in between get values in
+	// between.
+	int minMaxSplits = 20;
+	int maxMaxSplits = 180;
+
+	// Average diff time we're aiming to stay under
+	long targetLatencyMicros = 500;
+
+	// Queue depth at which we consider ourselves overloaded
+	int maxQueueDepth = 1000;
+
+	// Process CPU load, between 0 and 1, at which we consider ourselves
+	// overloaded
+	double maxCpuLoad = 0.85;
+
+	// How often we decide whether to change level
+	long adjustIntervalMs = 100;
+
+	// If every measure is below this share of its limit we work harder
+	double relaxBelow = 0.5;
+
+	public int getMinLevel() {
+		return minLevel;
+	}
+
+	public void setMinLevel(int minLevel) {
+		this.minLevel = Math.max(DiffGovernor.SKIP_LEVEL, Math.min(DiffGovernor.MAX_LEVEL, minLevel));
+	}
+
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	public void setMaxLevel(int maxLevel) {
+		this.maxLevel = Math.max(DiffGovernor.SKIP_LEVEL, Math.min(DiffGovernor.MAX_LEVEL, maxLevel));
+	}
+
+	public int getStartLevel() {
+		return startLevel;
+	}
+
+	public void setStartLevel(int startLevel) {
+		this.startLevel = Math.max(DiffGovernor.SKIP_LEVEL, Math.min(DiffGovernor.MAX_LEVEL, startLevel));
+	}
+
+	public int getMinMaxSplits() {
+		return minMaxSplits;
+	}
+
+	public void setMinMaxSplits(int minMaxSplits) {
+		this.minMaxSplits = Math.max(1, minMaxSplits);
+	}
+
+	public int getMaxMaxSplits() {
+		return maxMaxSplits;
+	}
+
+	public void setMaxMaxSplits(int maxMaxSplits) {
+		this.maxMaxSplits = Math.max(1, maxMaxSplits);
+	}
+
+	public long getTargetLatencyMicros() {
+		return targetLatencyMicros;
+	}
+
+	public void setTargetLatencyMicros(long targetLatencyMicros) {
+		this.targetLatencyMicros = Math.max(1, targetLatencyMicros);
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public void setMaxQueueDepth(int maxQueueDepth) {
+		this.maxQueueDepth = Math.max(1, maxQueueDepth);
+	}
+
+	public double getMaxCpuLoad() {
+		return maxCpuLoad;
+	}
+
+	public void setMaxCpuLoad(double maxCpuLoad) {
+		this.maxCpuLoad = Math.max(0.01, Math.min(1, maxCpuLoad));
+	}
+
+	public long getAdjustIntervalMs() {
+		return adjustIntervalMs;
+	}
+
+	public void setAdjustIntervalMs(long adjustIntervalMs) {
+		this.adjustIntervalMs = Math.max(1, adjustIntervalMs);
+	}
+
+	public double getRelaxBelow() {
+		return relaxBelow;
+	}
+
+	public void setRelaxBelow(double relaxBelow) {
+		this.relaxBelow = Math.max(0, Math.min(1, relaxBelow));
+	}
+
+}
@@ -0,0 +1,400 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.Arrays;
+
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+import org.voltdb.voltutil.binarydiff.exceptions.MergeConflictException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooBigToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooSmallToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+/**
+ * Three way merge for diffs that lost a race. When two clients diff against
+ * the same base and one of them is applied first, the other's diff no longer
+ * fits the current value. If the two sets of changes touch different parts of
+ * the base we can rebase the late diff onto the current value instead of
+ * making the client read and diff again.
+ * <p>
+ * Both sides are reduced to hunks: ranges of the base that were replaced,
+ * along with what replaced them. Arrays of the same length are compared byte
+ * by byte. Otherwise hunks come from the gaps between a diff's in-order REF
+ * blocks, trimmed of any bytes that didn't actually change. Hunks that overlap,
+ * or two insertions at the same place, are a conflict.
+ *
+ */
+public class DiffMerge {
+
+	private static final int MAX_SPLITS = 100;
+
+	// FastAndRuthlessDiffImpl keeps unsynchronized stats
+	private static final ThreadLocal<FastAndRuthlessDiffImpl> impl = new ThreadLocal<FastAndRuthlessDiffImpl>() {
+		@Override
+		protected FastAndRuthlessDiffImpl initialValue() {
+			return new FastAndRuthlessDiffImpl();
+		}
+	};
+
+	/**
+	 * Rebase a diff made against base so it applies to current instead.
+	 * 
+	 * @param base
+	 *            the array diff was calculated against
+	 * @param current
+	 *            base plus whatever changes have been applied since
+	 * @param diff
+	 *            FARD data that turns base into the client's new value
+	 * @return FARD data that turns current into current plus the client's
+	 *         changes
+	 * @throws MergeConflictException
+	 *             if the client changed something that has changed since
+	 * @throws BadInputException
+	 *             if diff is malformed or current is too big to refer to
+	 */
+	public static byte[] rebase(byte[] base, byte[] current, byte[] diff)
+			throws MergeConflictException, BadInputException {
+
+		checkInputs(base, current);
+
+		final byte[] target = ByteArrayLib.decodeFARDData(base, diff);
+
+		return rebase(base, current, target, diff, 0, diff.length);
+	}
+
+	/**
+	 * Apply a diff made against base to current, keeping the changes made
+	 * since.
+	 * 
+	 * @param base
+	 *            the array diff was calculated against
+	 * @param current
+	 *            base plus whatever changes have been applied since
+	 * @param diff
+	 *            FARD data that turns base into the client's new value
+	 * @return the merged value
+	 * @throws MergeConflictException
+	 *             if the client changed something that has changed since
+	 * @throws BadInputException
+	 *             if diff is malformed or current is too big to refer to
+	 */
+	public static byte[] merge(byte[] base, byte[] current, byte[] diff)
+			throws MergeConflictException, BadInputException {
+		return ByteArrayLib.decodeFARDData(current, rebase(base, current, diff));
+	}
+
+	/**
+	 * Enveloped version of merge. The envelope's checksums are used to check
+	 * that base is the array it was made against and that it produces what the
+	 * client had.
+	 * 
+	 * @param base
+	 *            the array envelope was calculated against
+	 * @param current
+	 *            base plus whatever changes have been applied since
+	 * @param envelope
+	 *            output of calculateEnvelopedDiff
+	 * @return the merged value
+	 * @throws MergeConflictException
+	 *             if the client changed something that has changed since
+	 * @throws BadInputException
+	 *             if envelope is malformed, uses a dictionary, or doesn't fit
+	 *             base
+	 */
+	public static byte[] mergeEnveloped(byte[] base, byte[] current, byte[] envelope)
+			throws MergeConflictException, BadInputException {
+
+		checkInputs(base, current);
+
+		final FARDEnvelope header = FARDEnvelope.read(envelope);
+
+		if (header.usesDictionary()) {
+			throw new BadInputException("Can't merge a diff that uses a dictionary");
+		}
+
+		final byte[] target;
+
+		try {
+			target = impl.get().applyEnvelopedDiff(base, envelope);
+		} catch (HashCodeMismatchException e) {
+			throw new BadInputException("Diff wasn't made against base: " + e.getMessage());
+		}
+
+		final byte[] fardData = header.getFARDData(envelope);
+		final byte[] rebased = rebase(base, current, target, fardData, 0, fardData.length);
+
+		return ByteArrayLib.decodeFARDData(current, rebased);
+	}
+
+	private static void checkInputs(byte[] base, byte[] current) throws BadInputException {
+
+		if (base == null || current == null) {
+			throw new BadInputException("Merging needs both the base and the current value");
+		}
+
+		if (current.length >= ByteArrayLib.FARD_REFERENCE_BLOCK) {
+			throw new BadInputException("Current value of " + current.length + " bytes is too big to refer to");
+		}
+	}
+
+	/**
+	 * @param base
+	 * @param current
+	 * @param target
+	 *            what diff turns base into
+	 * @param diff
+	 *            validated FARD data
+	 * @param diffOffset
+	 * @param diffLength
+	 * @return FARD data that turns current into current plus the client's
+	 *         changes
+	 * @throws MergeConflictException
+	 */
+	private static byte[] rebase(byte[] base, byte[] current, byte[] target, byte[] diff, int diffOffset,
+			int diffLength) throws MergeConflictException {
+
+		final Hunks theirs = changes(base, current);
+		final Hunks ours = base.length == target.length ? Hunks.positional(base, target)
+				: Hunks.fromOps(FARDOpList.parse(diff, diffOffset, diffLength), base, target);
+
+		// Both lists are sorted and don't overlap among themselves, so we can
+		// check for conflicts in one pass.
+		int j = 0;
+
+		for (int i = 0; i < ours.count; i++) {
+
+			while (j < theirs.count && theirs.baseEnds[j] < ours.baseStarts[i]) {
+				j++;
+			}
+
+			for (int k = j; k < theirs.count && theirs.baseStarts[k] <= ours.baseEnds[i]; k++) {
+				if (ours.conflictsWith(i, theirs, k)) {
+					throw new MergeConflictException("Change to base[" + ours.baseStarts[i] + ".."
+							+ ours.baseEnds[i] + ") overlaps change to base[" + theirs.baseStarts[k] + ".."
+							+ theirs.baseEnds[k] + ")");
+				}
+			}
+		}
+
+		// Copy current, except where we replace a range of base with our bytes.
+		// Base positions move by however much their earlier hunks grew or
+		// shrank.
+		FARDWriter writer = new FARDWriter(current.length / 16 + ours.literalLength() + 16);
+
+		int position = 0;
+		int shift = 0;
+		j = 0;
+
+		for (int i = 0; i < ours.count; i++) {
+
+			while (j < theirs.count && theirs.baseStarts[j] < ours.baseStarts[i]) {
+				shift += theirs.growth(j++);
+			}
+
+			final int start = ours.baseStarts[i] + shift;
+
+			while (j < theirs.count && theirs.baseStarts[j] < ours.baseEnds[i]) {
+				shift += theirs.growth(j++);
+			}
+
+			final int end = ours.baseEnds[i] + shift;
+
+			writer.addReference(position, start);
+			writer.addData(target, ours.otherStarts[i], ours.otherEnds[i] - ours.otherStarts[i]);
+			position = end;
+		}
+
+		writer.addReference(position, current.length);
+
+		return writer.toByteArray();
+	}
+
+	/**
+	 * @param base
+	 * @param current
+	 * @return what changed between base and current
+	 */
+	private static Hunks changes(byte[] base, byte[] current) {
+
+		if (base.length == current.length) {
+			return Hunks.positional(base, current);
+		}
+
+		try {
+			final byte[] diff = impl.get().calculateDiff(base, current, MAX_SPLITS);
+			return Hunks.fromOps(FARDOpList.parse(diff, 0, diff.length), base, current);
+		} catch (TooSmallToDeltaException | TooBigToDeltaException | UneconomicToDiffException e) {
+			// Treat it as one big change, less whatever the ends have in common
+			Hunks hunks = new Hunks();
+			hunks.add(base, current, 0, base.length, 0, current.length);
+			return hunks;
+		}
+	}
+
+	/**
+	 * Ranges of a base array that were replaced by ranges of some other array,
+	 * in order.
+	 */
+	private static class Hunks {
+
+		int count = 0;
+
+		int[] baseStarts = new int[8];
+		int[] baseEnds = new int[8];
+		int[] otherStarts = new int[8];
+		int[] otherEnds = new int[8];
+
+		/**
+		 * @param base
+		 * @param other
+		 *            same length as base
+		 * @return one hunk per run of bytes that differ
+		 */
+		static Hunks positional(byte[] base, byte[] other) {
+
+			Hunks hunks = new Hunks();
+
+			int i = 0;
+
+			while (i < base.length) {
+
+				if (base[i] == other[i]) {
+					i++;
+					continue;
+				}
+
+				final int start = i;
+
+				while (i < base.length && base[i] != other[i]) {
+					i++;
+				}
+
+				hunks.add(base, other, start, i, start, i);
+			}
+
+			return hunks;
+		}
+
+		/**
+		 * Each REF block that copies base from at or after where the last one
+		 * ended is kept as is. Everything in between is a hunk.
+		 * 
+		 * @param ops
+		 *            a diff from base to other
+		 * @param base
+		 * @param other
+		 * @return the hunks
+		 */
+		static Hunks fromOps(FARDOpList ops, byte[] base, byte[] other) {
+
+			Hunks hunks = new Hunks();
+
+			int basePosition = 0;
+			int otherPosition = 0;
+
+			for (int i = 0; i < ops.count; i++) {
+
+				if (ops.types[i] == ByteArrayLib.FARD_REFERENCE_BLOCK && ops.sources[i] >= basePosition
+						&& ops.lengths[i] > 0) {
+
+					hunks.add(base, other, basePosition, ops.sources[i], otherPosition, ops.outStarts[i]);
+					basePosition = ops.sources[i] + ops.lengths[i];
+					otherPosition = ops.outStarts[i] + ops.lengths[i];
+				}
+			}
+
+			hunks.add(base, other, basePosition, base.length, otherPosition, other.length);
+
+			return hunks;
+		}
+
+		/**
+		 * Add a hunk, trimming bytes at either end that are the same in both
+		 * arrays. Does nothing if that leaves nothing.
+		 */
+		void add(byte[] base, byte[] other, int baseStart, int baseEnd, int otherStart, int otherEnd) {
+
+			while (baseStart < baseEnd && otherStart < otherEnd && base[baseStart] == other[otherStart]) {
+				baseStart++;
+				otherStart++;
+			}
+
+			while (baseStart < baseEnd && otherStart < otherEnd && base[baseEnd - 1] == other[otherEnd - 1]) {
+				baseEnd--;
+				otherEnd--;
+			}
+
+			if (baseStart == baseEnd && otherStart == otherEnd) {
+				return;
+			}
+
+			if (count == baseStarts.length) {
+				baseStarts = Arrays.copyOf(baseStarts, count * 2);
+				baseEnds = Arrays.copyOf(baseEnds, count * 2);
+				otherStarts = Arrays.copyOf(otherStarts, count * 2);
+				otherEnds = Arrays.copyOf(otherEnds, count * 2);
+			}
+
+			baseStarts[count] = baseStart;
+			baseEnds[count] = baseEnd;
+			otherStarts[count] = otherStart;
+			otherEnds[count] = otherEnd;
+			count++;
+		}
+
+		/**
+		 * @param i
+		 * @param theirs
+		 * @param k
+		 * @return true if our hunk i and their hunk k overlap, or are both
+		 *         at the same place so their order is ambiguous
+		 */
+		boolean conflictsWith(int i, Hunks theirs, int k) {
+			return (baseStarts[i] < theirs.baseEnds[k] && theirs.baseStarts[k] < baseEnds[i])
+					|| baseStarts[i] == theirs.baseStarts[k];
+		}
+
+		/**
+		 * @param i
+		 * @return how much longer hunk i made the array
+		 */
+		int growth(int i) {
+			return (otherEnds[i] - otherStarts[i]) - (baseEnds[i] - baseStarts[i]);
+		}
+
+		int literalLength() {
+
+			int total = 0;
+
+			for (int i = 0; i < count; i++) {
+				total += otherEnds[i] - otherStarts[i];
+			}
+
+			return total;
+		}
+	}
+
+}
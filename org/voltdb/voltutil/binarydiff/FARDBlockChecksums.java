@@ -0,0 +1,119 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 checksums of fixed size blocks of a value. A server can keep these
+ * alongside each stored value, so checking an envelope made with
+ * FARDEnvelope.addBlockChecksums costs a few int comparisons rather than a
+ * pass over the whole value.
+ *
+ */
+public class FARDBlockChecksums {
+
+	/**
+	 * Block size used by FARDEnvelope.addBlockChecksums.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 512;
+
+	private final int blockSize;
+
+	private final int[] checksums;
+
+	private FARDBlockChecksums(int blockSize, int[] checksums) {
+		this.blockSize = blockSize;
+		this.checksums = checksums;
+	}
+
+	/**
+	 * @param value
+	 * @return checksums of value in DEFAULT_BLOCK_SIZE blocks
+	 */
+	public static FARDBlockChecksums of(byte[] value) {
+		return of(value, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param value
+	 * @param blockSize
+	 * @return checksums of value in blockSize blocks. The last block may be
+	 *         short.
+	 */
+	public static FARDBlockChecksums of(byte[] value, int blockSize) {
+
+		final int length = value == null ? 0 : value.length;
+		int[] checksums = new int[(length + blockSize - 1) / blockSize];
+		CRC32 crc = new CRC32();
+
+		for (int i = 0; i < checksums.length; i++) {
+			checksums[i] = checksum(crc, value, i, blockSize);
+		}
+
+		return new FARDBlockChecksums(blockSize, checksums);
+	}
+
+	/**
+	 * @param crc
+	 *            reset and reused, so checking many blocks doesn't allocate
+	 *            one each
+	 * @param value
+	 * @param block
+	 * @param blockSize
+	 * @return CRC32 of value[block * blockSize .. (block + 1) * blockSize),
+	 *         cut short at the end of value
+	 */
+	public static int checksum(CRC32 crc, byte[] value, int block, int blockSize) {
+
+		final int start = block * blockSize;
+
+		crc.reset();
+		crc.update(value, start, Math.min(blockSize, value.length - start));
+		return (int) crc.getValue();
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getBlockCount() {
+		return checksums.length;
+	}
+
+	/**
+	 * @param block
+	 * @return the checksum of block
+	 */
+	public int get(int block) {
+		return checksums[block];
+	}
+
+	@Override
+	public String toString() {
+		return "FARDBlockChecksums [blockSize=" + blockSize + ", blocks=" + checksums.length + "]";
+	}
+
+}
@@ -0,0 +1,682 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The FastAndRuthlessDiffImpl encoder, plus a decoder for ByteBuffers.
+ * calculateDiff uses it for byte[] values, by wrapping them, as well as for
+ * ByteBuffers, so values held in direct (off-heap) buffers can be diffed and
+ * patched without first being copied into byte[].
+ * <p>
+ * The encoder's working set is a list of parts held in parallel primitive
+ * arrays: what type each part is, where it starts in the new value, where it
+ * comes from in the old value and how long it is. Literals are ranges of the
+ * new value rather than copies of it, and the arrays are kept between calls,
+ * so a warmed up encoder allocates nothing. FARDScratch keeps one per thread
+ * and decides when the arrays should shrink. The split decisions, and
+ * the FARD data written, are the same as the FastAndRuthlessDiffImplByteArrayParts
+ * based code in ByteArrayLib makes.
+ * <p>
+ * All positions here are relative to a buffer's position(), and no buffer's
+ * position or limit is changed. Not thread safe - use one per thread.
+ *
+ */
+class FARDBufferEngine {
+
+	private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	// Part can be split by content
+	private static final byte FLAG_SPLITTABLE = 1;
+
+	// Part is DATA that might contain a run of repeating bytes
+	private static final byte FLAG_MIGHT_HAVE_REPEATS = 2;
+
+	// One of ByteArrayLib's FARD_*_BLOCK values
+	private short[] opTypes = new short[16];
+
+	// Where the part starts in the new value. For a repeating block this is
+	// also where to find the repeated byte.
+	private int[] newOffsets = new int[16];
+
+	// Where a REF part starts in the old value. -1 for other parts.
+	private int[] oldOffsets = new int[16];
+
+	// How many bytes of the new value the part covers
+	private int[] lengths = new int[16];
+
+	private byte[] flags = new byte[16];
+
+	private int count = 0;
+
+	// From the FARDOptions passed to split()
+	private int patternLength = ByteArrayLib.FAST_RUTHLESS_SPLIT_PATTERN_LENGTH;
+	private int stepSize = ByteArrayLib.FAST_AND_RUTHLRESS_DEFAULT_STEPSIZE;
+	private int minSplitSize = ByteArrayLib.FAST_RUTHLESS_MIN_SPLIT_SIZE;
+	private int minRunSize = ByteArrayLib.FAST_AND_RUTHLRESS_MIN_RUNSIZE;
+
+	// Most parts we've needed since resetPeakCount()
+	private int peakCount = 0;
+
+	// Replacement parts for the one being split. Never more than 3.
+	private final short[] newOpTypes = new short[3];
+	private final int[] newNewOffsets = new int[3];
+	private final int[] newOldOffsets = new int[3];
+	private final int[] newLengths = new int[3];
+	private int newCount = 0;
+
+	/**
+	 * Split newBuffer into DATA, REPEAT and REF parts.
+	 * 
+	 * @param oldBuffer
+	 * @param newBuffer
+	 * @param maxSplits
+	 * @param options
+	 * @return how many splits we did
+	 */
+	int split(ByteBuffer oldBuffer, ByteBuffer newBuffer, int maxSplits, FARDOptions options) {
+
+		patternLength = options.patternLength;
+		stepSize = options.stepSize;
+		minSplitSize = options.minSplitSize;
+		minRunSize = options.minRunSize;
+
+		// We compare 8 bytes at a time, which is cheapest in native order
+		oldBuffer = nativeOrder(oldBuffer);
+		newBuffer = nativeOrder(newBuffer);
+
+		final int oldBase = oldBuffer.position();
+		final int oldLength = oldBuffer.remaining();
+		final int newBase = newBuffer.position();
+
+		int splitCountsThisArray = 0;
+
+		count = 0;
+		newCount = 0;
+		addNewPart(ByteArrayLib.FARD_DATA_BLOCK, 0, -1, newBuffer.remaining());
+		replace(0, 0);
+
+		int splitTarget = findSplitTarget();
+		while (splitTarget > -1 && splitCountsThisArray < maxSplits) {
+			splitCountsThisArray += splitByContent(splitTarget, oldBuffer, oldBase, oldLength, newBuffer, newBase);
+			splitTarget = findSplitTarget();
+		}
+
+		splitTarget = findRepeatingGroupTarget();
+		while (splitTarget > -1 && splitCountsThisArray < maxSplits) {
+			splitCountsThisArray += splitByRepeatingBytes(splitTarget, newBuffer, newBase);
+			splitTarget = findRepeatingGroupTarget();
+		}
+
+		return splitCountsThisArray;
+	}
+
+	/**
+	 * @return how big the FARD data for the current parts is
+	 */
+	int messageSize() {
+
+		int size = 0;
+
+		for (int i = 0; i < count; i++) {
+			size += messageSize(opTypes[i], lengths[i]);
+		}
+
+		return size;
+	}
+
+	/**
+	 * Write the FARD data for the current parts at outBuffer's position,
+	 * leaving its position unchanged.
+	 * 
+	 * @param newBuffer
+	 *            the buffer split() was called with
+	 * @param outBuffer
+	 *            must have messageSize() bytes remaining
+	 */
+	void write(ByteBuffer newBuffer, ByteBuffer outBuffer) {
+
+		final int newBase = newBuffer.position();
+		int position = outBuffer.position();
+
+		for (int i = 0; i < count; i++) {
+
+			if (opTypes[i] == ByteArrayLib.FARD_DATA_BLOCK) {
+				position = writeFARDShort(outBuffer, position, ByteArrayLib.FARD_DATA_BLOCK);
+				position = writeFARDShort(outBuffer, position, lengths[i]);
+				outBuffer.put(position, newBuffer, newBase + newOffsets[i], lengths[i]);
+				position += lengths[i];
+			} else if (opTypes[i] == ByteArrayLib.FARD_REPEATING_BLOCK) {
+				position = writeFARDShort(outBuffer, position, ByteArrayLib.FARD_REPEATING_BLOCK);
+				position = writeFARDShort(outBuffer, position, lengths[i]);
+				outBuffer.put(position++, newBuffer.get(newBase + newOffsets[i]));
+			} else {
+				position = writeFARDShort(outBuffer, position, oldOffsets[i]);
+				position = writeFARDShort(outBuffer, position, oldOffsets[i] + lengths[i]);
+			}
+		}
+	}
+
+	/**
+	 * Same format as the description calculateDiff has always given the
+	 * compression histogram.
+	 * 
+	 * @param newBuffer
+	 *            the buffer split() was called with
+	 * @param descBuffer
+	 *            an empty StringBuilder to build it in
+	 * @return a description of the current parts
+	 */
+	String describe(ByteBuffer newBuffer, StringBuilder descBuffer) {
+
+		descBuffer.append("Size=").append(newBuffer.remaining()).append("->").append(messageSize()).append(' ');
+
+		for (int i = 0; i < count; i++) {
+			if (opTypes[i] == ByteArrayLib.FARD_DATA_BLOCK) {
+				descBuffer.append("[RAW ").append(lengths[i]).append(']');
+			} else if (opTypes[i] == ByteArrayLib.FARD_REPEATING_BLOCK) {
+				descBuffer.append("[GROUP '").append(newBuffer.get(newBuffer.position() + newOffsets[i]))
+						.append("' * ").append(lengths[i]).append(']');
+			} else {
+				descBuffer.append("[REF ").append(oldOffsets[i]).append("->").append(oldOffsets[i] + lengths[i])
+						.append(']');
+			}
+		}
+
+		return descBuffer.toString();
+	}
+
+	/**
+	 * @return how many parts the arrays can hold without growing
+	 */
+	int getCapacity() {
+		return opTypes.length;
+	}
+
+	/**
+	 * @return the most parts any split() has needed since resetPeakCount()
+	 */
+	int getPeakCount() {
+		return peakCount;
+	}
+
+	void resetPeakCount() {
+		peakCount = 0;
+	}
+
+	/**
+	 * Replace the arrays with ones that hold capacity parts. Only call this
+	 * between diffs, as the current parts are forgotten.
+	 * 
+	 * @param capacity
+	 */
+	void resize(int capacity) {
+		opTypes = new short[capacity];
+		newOffsets = new int[capacity];
+		oldOffsets = new int[capacity];
+		lengths = new int[capacity];
+		flags = new byte[capacity];
+		count = 0;
+	}
+
+	/**
+	 * @return roughly how many bytes the arrays take up
+	 */
+	long getRetainedBytes() {
+		return (long) opTypes.length * (2 + 4 + 4 + 4 + 1);
+	}
+
+	/**
+	 * Decode FARD data that has already passed FARDValidator.validate() into
+	 * outBuffer, starting at its position and leaving its position unchanged.
+	 * 
+	 * @param oldBuffer
+	 * @param diffBuffer
+	 * @param outBuffer
+	 * @return how many bytes were written
+	 */
+	static int decodeValidated(ByteBuffer oldBuffer, ByteBuffer diffBuffer, ByteBuffer outBuffer) {
+
+		final int oldBase = oldBuffer == null ? 0 : oldBuffer.position();
+		final int limit = diffBuffer.limit();
+		int inPosition = diffBuffer.position();
+		int position = outBuffer.position();
+
+		while (inPosition < limit) {
+
+			final short start = ByteArrayLib.readFARDShort(diffBuffer, inPosition);
+			final short second = ByteArrayLib.readFARDShort(diffBuffer, inPosition + 2);
+			inPosition += 4;
+
+			if (start == ByteArrayLib.FARD_REPEATING_BLOCK) {
+				final byte aByte = diffBuffer.get(inPosition++);
+				for (int i = 0; i < second; i++) {
+					outBuffer.put(position++, aByte);
+				}
+			} else if (start == ByteArrayLib.FARD_DATA_BLOCK) {
+				outBuffer.put(position, diffBuffer, inPosition, second);
+				inPosition += second;
+				position += second;
+			} else {
+				outBuffer.put(position, oldBuffer, oldBase + start, second - start);
+				position += (second - start);
+			}
+		}
+
+		return position - outBuffer.position();
+	}
+
+	/**
+	 * See ByteArrayLib.splitByteArrayPartsByContent.
+	 */
+	private int splitByContent(int splitTarget, ByteBuffer oldBuffer, int oldBase, int oldLength,
+			ByteBuffer newBuffer, int newBase) {
+
+		final int sectionStart = newOffsets[splitTarget];
+		final int sectionLength = lengths[splitTarget];
+		final int originalCount = count;
+
+		// make sure we won't try and split it again
+		flags[splitTarget] &= ~FLAG_SPLITTABLE;
+
+		newCount = 0;
+
+		final int firstDiffFromFront = mismatch(oldBuffer, oldBase, newBuffer, newBase + sectionStart,
+				Math.min(oldLength, sectionLength));
+
+		if (firstDiffFromFront == sectionLength) {
+
+			// new section is a prefix of the old value
+			addNewPart(ByteArrayLib.FARD_REFERENCE_BLOCK, sectionStart, 0, sectionLength);
+
+		} else if (sectionLength > minSplitSize) {
+
+			int oldLocation = -1;
+			int newLocation = -1;
+			int runLength = -1;
+
+			for (int i = 0; i < sectionLength - patternLength; i = i + (patternLength * stepSize)) {
+
+				oldLocation = indexOfMatch(oldBuffer, oldBase, oldLength, newBuffer, newBase + sectionStart + i,
+						patternLength);
+
+				if (oldLocation > -1) {
+
+					newLocation = i;
+					runLength = mismatch(oldBuffer, oldBase + oldLocation, newBuffer, newBase + sectionStart + i,
+							Math.min(oldLength - oldLocation, sectionLength - i));
+
+					int howFarBackItsTheSame = 0;
+
+					while (howFarBackItsTheSame < oldLocation && howFarBackItsTheSame < newLocation
+							&& oldBuffer.get(oldBase + oldLocation - howFarBackItsTheSame - 1) == newBuffer
+									.get(newBase + sectionStart + newLocation - howFarBackItsTheSame - 1)) {
+						howFarBackItsTheSame++;
+					}
+
+					newLocation -= howFarBackItsTheSame;
+					oldLocation -= howFarBackItsTheSame;
+					runLength += howFarBackItsTheSame;
+
+					break;
+				}
+			}
+
+			if (oldLocation > -1) {
+
+				if (newLocation > 0) {
+					addNewPart(ByteArrayLib.FARD_DATA_BLOCK, sectionStart, -1, newLocation);
+				}
+
+				addNewPart(ByteArrayLib.FARD_REFERENCE_BLOCK, sectionStart + newLocation, oldLocation, runLength);
+
+				if (newLocation + runLength < sectionLength) {
+					addNewPart(ByteArrayLib.FARD_DATA_BLOCK, sectionStart + newLocation + runLength, -1,
+							sectionLength - (newLocation + runLength));
+				}
+			}
+		}
+
+		// See if we actually saved space...
+		if (newCount > 0 && getNewDiffedSize() < sectionLength) {
+			replace(splitTarget, 1);
+		}
+
+		return count - originalCount;
+	}
+
+	/**
+	 * See ByteArrayLib.splitByteArrayPartsByRepeatingBytes.
+	 */
+	private int splitByRepeatingBytes(int splitTarget, ByteBuffer newBuffer, int newBase) {
+
+		final int sectionOffset = newOffsets[splitTarget];
+		final int sectionStart = newBase + sectionOffset;
+		final int sectionLength = lengths[splitTarget];
+		final int originalCount = count;
+
+		// make sure we won't try and split it again
+		flags[splitTarget] &= ~FLAG_MIGHT_HAVE_REPEATS;
+
+		if (sectionLength < minRunSize) {
+			return 0;
+		}
+
+		int currentRunStart = 0;
+		int currentRunEnd = 0;
+
+		int longestRunStart = 0;
+		int longestRunEnd = 0;
+
+		byte previous = newBuffer.get(sectionStart);
+
+		for (int i = 1; i < sectionLength; i++) {
+
+			final byte current = newBuffer.get(sectionStart + i);
+
+			if (currentRunStart > -1) {
+				if (current == previous) {
+					currentRunEnd = i;
+				} else {
+					if ((currentRunEnd - currentRunStart) > (longestRunEnd - longestRunStart)) {
+						longestRunStart = currentRunStart;
+						longestRunEnd = currentRunEnd;
+					}
+					currentRunStart = -1;
+					currentRunEnd = -1;
+				}
+			} else if (current == previous) {
+				currentRunStart = i - 1;
+				currentRunEnd = i;
+			}
+
+			previous = current;
+		}
+
+		// Handle case where run continued to the end...
+		if ((currentRunEnd - currentRunStart) > (longestRunEnd - longestRunStart)) {
+			longestRunStart = currentRunStart;
+			longestRunEnd = currentRunEnd;
+		}
+
+		// Give up if savings are minimal
+		if (longestRunEnd - longestRunStart < minRunSize) {
+			return 0;
+		}
+
+		newCount = 0;
+
+		if (longestRunStart == 0 && longestRunEnd == (sectionLength - 1)) {
+
+			// We are replacing an entire block...
+			addNewPart(ByteArrayLib.FARD_REPEATING_BLOCK, sectionOffset, -1, sectionLength);
+
+		} else {
+
+			if (longestRunStart > 0) {
+				addNewPart(ByteArrayLib.FARD_DATA_BLOCK, sectionOffset, -1, longestRunStart);
+			}
+
+			addNewPart(ByteArrayLib.FARD_REPEATING_BLOCK, sectionOffset + longestRunStart, -1,
+					longestRunEnd - longestRunStart);
+
+			if (longestRunEnd < sectionLength) {
+				addNewPart(ByteArrayLib.FARD_DATA_BLOCK, sectionOffset + longestRunEnd, -1,
+						sectionLength - longestRunEnd);
+			}
+		}
+
+		// See if we actually saved space...
+		if (getNewDiffedSize() < sectionLength) {
+			replace(splitTarget, 1);
+		}
+
+		return count - originalCount;
+	}
+
+	/**
+	 * @return the longest splittable part, or -1
+	 */
+	private int findSplitTarget() {
+
+		int target = -1;
+		int longestSectionLength = -1;
+
+		for (int i = 0; i < count; i++) {
+			if ((flags[i] & FLAG_SPLITTABLE) != 0 && lengths[i] > longestSectionLength) {
+				longestSectionLength = lengths[i];
+				target = i;
+			}
+		}
+
+		return target;
+	}
+
+	/**
+	 * @return the longest DATA part that might have repeats, or -1
+	 */
+	private int findRepeatingGroupTarget() {
+
+		int target = -1;
+		int longestSectionLength = -1;
+
+		for (int i = 0; i < count; i++) {
+			if (opTypes[i] == ByteArrayLib.FARD_DATA_BLOCK && (flags[i] & FLAG_MIGHT_HAVE_REPEATS) != 0
+					&& lengths[i] > longestSectionLength) {
+				longestSectionLength = lengths[i];
+				target = i;
+			}
+		}
+
+		return target;
+	}
+
+	private void addNewPart(short opType, int newOffset, int oldOffset, int length) {
+		newOpTypes[newCount] = opType;
+		newNewOffsets[newCount] = newOffset;
+		newOldOffsets[newCount] = oldOffset;
+		newLengths[newCount] = length;
+		newCount++;
+	}
+
+	/**
+	 * ByteArrayLib.getDiffedSize of the replacement parts, which starts at -1.
+	 */
+	private int getNewDiffedSize() {
+
+		int size = -1;
+
+		for (int i = 0; i < newCount; i++) {
+			size += messageSize(newOpTypes[i], newLengths[i]);
+		}
+
+		return size;
+	}
+
+	/**
+	 * Replace removeCount parts at index with the replacement parts. A new DATA
+	 * part can be split if it's at least minSplitSize long, as in
+	 * FastAndRuthlessDiffImplByteArrayParts(byte[]).
+	 * 
+	 * @param index
+	 * @param removeCount
+	 */
+	private void replace(int index, int removeCount) {
+
+		final int newSize = count - removeCount + newCount;
+
+		if (newSize > opTypes.length) {
+			final int capacity = Math.max(newSize, opTypes.length * 2);
+			opTypes = Arrays.copyOf(opTypes, capacity);
+			newOffsets = Arrays.copyOf(newOffsets, capacity);
+			oldOffsets = Arrays.copyOf(oldOffsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			flags = Arrays.copyOf(flags, capacity);
+		}
+
+		final int tail = count - (index + removeCount);
+
+		if (tail > 0) {
+			final int to = index + newCount;
+			final int from = index + removeCount;
+			System.arraycopy(opTypes, from, opTypes, to, tail);
+			System.arraycopy(newOffsets, from, newOffsets, to, tail);
+			System.arraycopy(oldOffsets, from, oldOffsets, to, tail);
+			System.arraycopy(lengths, from, lengths, to, tail);
+			System.arraycopy(flags, from, flags, to, tail);
+		}
+
+		for (int i = 0; i < newCount; i++) {
+			final boolean bigData = newOpTypes[i] == ByteArrayLib.FARD_DATA_BLOCK
+					&& newLengths[i] >= minSplitSize;
+			opTypes[index + i] = newOpTypes[i];
+			newOffsets[index + i] = newNewOffsets[i];
+			oldOffsets[index + i] = newOldOffsets[i];
+			lengths[index + i] = newLengths[i];
+			flags[index + i] = bigData ? (byte) (FLAG_SPLITTABLE | FLAG_MIGHT_HAVE_REPEATS) : 0;
+		}
+
+		count = newSize;
+		newCount = 0;
+
+		if (count > peakCount) {
+			peakCount = count;
+		}
+	}
+
+	private static int messageSize(short opType, int length) {
+		if (opType == ByteArrayLib.FARD_DATA_BLOCK) {
+			return 4 + length;
+		} else if (opType == ByteArrayLib.FARD_REPEATING_BLOCK) {
+			return 5;
+		}
+		return 4;
+	}
+
+	/**
+	 * Find the first place in oldBuffer where the pattern at
+	 * newBuffer[patternStart] occurs, searching the same positions as
+	 * ByteArrayLib.indexOfArrayMatch.
+	 * 
+	 * @return offset from oldBase, or -1
+	 */
+	private static int indexOfMatch(ByteBuffer oldBuffer, int oldBase, int oldLength, ByteBuffer newBuffer,
+			int patternStart, int patternLength) {
+
+		final int end = oldLength - patternLength;
+		final long head = newBuffer.getLong(patternStart);
+
+		// Each byte of these is the first / second byte of the pattern
+		final long firstBytes = (newBuffer.get(patternStart) & 0xFFL) * 0x0101010101010101L;
+		final long secondBytes = (newBuffer.get(patternStart + 1) & 0xFFL) * 0x0101010101010101L;
+
+		int i = 0;
+
+		// Look at 8 starting positions at a time. Byte k of candidates is zero
+		// if old[i + k] and old[i + k + 1] match the start of the pattern, and
+		// we only look closer at groups where that might be true.
+		for (; i + 8 <= end; i += 8) {
+
+			final long candidates = (oldBuffer.getLong(oldBase + i) ^ firstBytes)
+					| (oldBuffer.getLong(oldBase + i + 1) ^ secondBytes);
+
+			if (((candidates - 0x0101010101010101L) & ~candidates & 0x8080808080808080L) != 0) {
+				for (int k = 0; k < 8; k++) {
+					if (matchesAt(oldBuffer, oldBase + i + k, newBuffer, patternStart, patternLength, head)) {
+						return i + k;
+					}
+				}
+			}
+		}
+
+		for (; i < end; i++) {
+			if (matchesAt(oldBuffer, oldBase + i, newBuffer, patternStart, patternLength, head)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private static boolean matchesAt(ByteBuffer oldBuffer, int oldPosition, ByteBuffer newBuffer, int patternStart,
+			int patternLength, long head) {
+		return oldBuffer.getLong(oldPosition) == head && mismatch(oldBuffer, oldPosition + 8, newBuffer,
+				patternStart + 8, patternLength - 8) == patternLength - 8;
+	}
+
+	/**
+	 * @return how many bytes are the same before the first difference, up to
+	 *         length
+	 */
+	private static int mismatch(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+
+		int i = 0;
+
+		for (; i <= length - 8; i += 8) {
+
+			final long difference = a.getLong(aOffset + i) ^ b.getLong(bOffset + i);
+
+			if (difference != 0) {
+				return i + ((LITTLE_ENDIAN ? Long.numberOfTrailingZeros(difference)
+						: Long.numberOfLeadingZeros(difference)) >> 3);
+			}
+		}
+
+		for (; i < length; i++) {
+			if (a.get(aOffset + i) != b.get(bOffset + i)) {
+				return i;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * @return buffer, or a view of it in native byte order
+	 */
+	private static ByteBuffer nativeOrder(ByteBuffer buffer) {
+
+		if (buffer.order() == ByteOrder.nativeOrder()) {
+			return buffer;
+		}
+
+		return buffer.duplicate().order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Write a little endian short at an absolute position.
+	 * 
+	 * @return the position after it
+	 */
+	private static int writeFARDShort(ByteBuffer buffer, int position, int value) {
+		buffer.put(position, (byte) value);
+		buffer.put(position + 1, (byte) (value >> 8));
+		return position + 2;
+	}
+
+}
@@ -0,0 +1,268 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A block of bytes that occur often in a family of values, which diffs can
+ * refer to as if it were part of the old value. This lets a key's first value
+ * be sent as a diff against the dictionary instead of in full, and gives later
+ * diffs more to match against.
+ * <p>
+ * Client and server must have the same dictionary. Each one has an id, which
+ * is carried in the FARDEnvelope so the server can tell which one a diff
+ * needs. Treat a dictionary as immutable once it has an id - train a new one
+ * with a new id instead.
+ * <p>
+ * REF blocks address the old value followed by the dictionary, so the two
+ * together must fit in a FARD reference. The old value goes first so that
+ * diffs which mostly copy it look the same as they would without a
+ * dictionary.
+ *
+ */
+public class FARDDictionary {
+
+	/**
+	 * Largest dictionary that still leaves room for a value alongside it.
+	 */
+	public static final int MAX_SIZE = 16 * 1024;
+
+	// Length of the fragments we count while training
+	private static final int TRAIN_WINDOW = 16;
+
+	// Longest fragment we'll take from one place in one sample
+	private static final int MAX_FRAGMENT = 1024;
+
+	private final int id;
+
+	private final byte[] bytes;
+
+	/**
+	 * @param id
+	 *            version id, carried in every envelope that uses this
+	 *            dictionary
+	 * @param bytes
+	 *            dictionary content. We keep our own copy.
+	 */
+	public FARDDictionary(int id, byte[] bytes) {
+
+		if (bytes.length > MAX_SIZE) {
+			throw new IllegalArgumentException("Dictionary is " + bytes.length + " bytes, limit is " + MAX_SIZE);
+		}
+
+		this.id = id;
+		this.bytes = bytes.clone();
+	}
+
+	/**
+	 * Build a dictionary from sample values by finding the fragments that
+	 * appear in the most samples.
+	 * <p>
+	 * We hash every TRAIN_WINDOW byte window of every sample and count how many
+	 * samples each one appears in. Then, most common first, we take each
+	 * window, extend it in both directions while the neighbouring windows are
+	 * nearly as common, and add the result to the dictionary, until it's full.
+	 * 
+	 * @param id
+	 *            version id for the new dictionary
+	 * @param samples
+	 *            typical values
+	 * @param maxSize
+	 *            most bytes the dictionary can have, up to MAX_SIZE
+	 * @return a new dictionary
+	 */
+	public static FARDDictionary train(int id, List<byte[]> samples, int maxSize) {
+
+		maxSize = Math.min(maxSize, MAX_SIZE);
+
+		// Window hashes for every position in every sample
+		final long[][] hashes = new long[samples.size()][];
+
+		// hash -> {samples containing it, last sample seen + 1, first sample,
+		// first position}
+		final HashMap<Long, int[]> stats = new HashMap<Long, int[]>();
+
+		for (int s = 0; s < samples.size(); s++) {
+
+			hashes[s] = windowHashes(samples.get(s));
+
+			for (int p = 0; p < hashes[s].length; p++) {
+
+				int[] stat = stats.get(hashes[s][p]);
+
+				if (stat == null) {
+					stat = new int[] { 0, 0, s, p };
+					stats.put(hashes[s][p], stat);
+				}
+
+				if (stat[1] != s + 1) {
+					stat[0]++;
+					stat[1] = s + 1;
+				}
+			}
+		}
+
+		ArrayList<int[]> candidates = new ArrayList<int[]>();
+
+		for (int[] stat : stats.values()) {
+			if (stat[0] > 1) {
+				candidates.add(stat);
+			}
+		}
+
+		Collections.sort(candidates, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(b[0], a[0]);
+			}
+		});
+
+		final HashSet<Long> used = new HashSet<Long>();
+		final ByteArrayOutputStream dictionary = new ByteArrayOutputStream(maxSize);
+
+		for (int[] candidate : candidates) {
+
+			if (dictionary.size() >= maxSize) {
+				break;
+			}
+
+			final int s = candidate[2];
+			final long[] sampleHashes = hashes[s];
+
+			if (used.contains(sampleHashes[candidate[3]])) {
+				continue;
+			}
+
+			final int minCount = Math.max(2, candidate[0] / 2);
+
+			// First and last window positions of the fragment
+			int first = candidate[3];
+			int last = candidate[3];
+
+			while (first > 0 && last - first < MAX_FRAGMENT && !used.contains(sampleHashes[first - 1])
+					&& stats.get(sampleHashes[first - 1])[0] >= minCount) {
+				first--;
+			}
+
+			while (last < sampleHashes.length - 1 && last - first < MAX_FRAGMENT
+					&& !used.contains(sampleHashes[last + 1]) && stats.get(sampleHashes[last + 1])[0] >= minCount) {
+				last++;
+			}
+
+			for (int p = first; p <= last; p++) {
+				used.add(sampleHashes[p]);
+			}
+
+			final int length = Math.min(last - first + TRAIN_WINDOW, maxSize - dictionary.size());
+			dictionary.write(samples.get(s), first, length);
+		}
+
+		return new FARDDictionary(id, dictionary.toByteArray());
+	}
+
+	/**
+	 * @param sample
+	 * @return a hash for each TRAIN_WINDOW byte window of sample
+	 */
+	private static long[] windowHashes(byte[] sample) {
+
+		if (sample.length < TRAIN_WINDOW) {
+			return new long[0];
+		}
+
+		final long base = 1000003L;
+		long power = 1;
+
+		for (int i = 0; i < TRAIN_WINDOW - 1; i++) {
+			power *= base;
+		}
+
+		long[] result = new long[sample.length - TRAIN_WINDOW + 1];
+		long hash = 0;
+
+		for (int i = 0; i < sample.length; i++) {
+
+			if (i >= TRAIN_WINDOW) {
+				hash -= (sample[i - TRAIN_WINDOW] & 0xFF) * power;
+			}
+
+			hash = hash * base + (sample[i] & 0xFF);
+
+			if (i >= TRAIN_WINDOW - 1) {
+				result[i - TRAIN_WINDOW + 1] = hash;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param oldArray
+	 *            a key's old value, or null
+	 * @return the array REF blocks in a dictionary diff refer to: oldArray
+	 *         followed by the dictionary
+	 */
+	byte[] withBase(byte[] oldArray) {
+
+		if (oldArray == null || oldArray.length == 0) {
+			return bytes;
+		}
+
+		byte[] combined = new byte[oldArray.length + bytes.length];
+		System.arraycopy(oldArray, 0, combined, 0, oldArray.length);
+		System.arraycopy(bytes, 0, combined, oldArray.length, bytes.length);
+		return combined;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return how long the dictionary is
+	 */
+	public int length() {
+		return bytes.length;
+	}
+
+	/**
+	 * @return a copy of the dictionary, for saving or sending to a server
+	 */
+	public byte[] getBytes() {
+		return bytes.clone();
+	}
+
+	@Override
+	public String toString() {
+		return "[DICTIONARY id=" + id + " length=" + bytes.length + "]";
+	}
+
+}
@@ -0,0 +1,596 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+
+/**
+ * A small header wrapped around FARD data so the receiver knows what it is
+ * getting before it starts decoding.
+ * <p>
+ * Layout, little endian like the FARD data itself:
+ * 
+ * <pre>
+ * byte  version          FORMAT_VERSION
+ * byte  flags            FLAG_ bits, 0 for none
+ * int   baseChecksum     deterministicHashcode of the array the diff applies to
+ * int   targetLength     length of the decoded data
+ * int   targetChecksum   deterministicHashcode of the decoded data
+ * int   dictionaryId     only if FLAG_DICTIONARY is set
+ * short baseKeyLength    only if FLAG_BASE_KEY is set
+ * ...   baseKey          only if FLAG_BASE_KEY is set, UTF-8
+ * short blockSize        only if FLAG_BLOCK_CHECKSUMS is set
+ * short blockCount       only if FLAG_BLOCK_CHECKSUMS is set
+ * ...   blocks           only if FLAG_BLOCK_CHECKSUMS is set, blockCount of
+ *                        (short blockIndex, int CRC32 of that block)
+ * ...   FARD data
+ * </pre>
+ * 
+ * Knowing targetLength means the decoder can allocate once and decode in a
+ * single pass, and targetChecksum lets it confirm the output is what the
+ * sender had.
+ * <p>
+ * If FLAG_DEFLATED_LITERALS is set the FARD data has been through
+ * FARDLiteralCoder; getFARDData() undoes that. If FLAG_DICTIONARY is set, REF
+ * blocks refer to the base array followed by the FARDDictionary with
+ * dictionaryId, rather than just the base array. If FLAG_BASE_KEY is set the
+ * diff was calculated against the value of a different key, named in the
+ * envelope, rather than the receiving key's own value. If
+ * FLAG_BLOCK_CHECKSUMS is set, only the blocks of the base array that REF
+ * blocks read are checked, so changes elsewhere in the base don't matter.
+ *
+ */
+public class FARDEnvelope {
+
+	public static final byte FORMAT_VERSION = 1;
+
+	public static final int HEADER_SIZE = 14;
+
+	/**
+	 * DATA block bytes are deflated - see FARDLiteralCoder.
+	 */
+	public static final byte FLAG_DEFLATED_LITERALS = 1;
+
+	/**
+	 * REF blocks refer to the base array followed by a FARDDictionary.
+	 */
+	public static final byte FLAG_DICTIONARY = 2;
+
+	/**
+	 * The base array is the value of the key named in the envelope.
+	 */
+	public static final byte FLAG_BASE_KEY = 4;
+
+	/**
+	 * Check the listed blocks of the base array instead of baseChecksum.
+	 */
+	public static final byte FLAG_BLOCK_CHECKSUMS = 8;
+
+	private static final byte KNOWN_FLAGS = FLAG_DEFLATED_LITERALS | FLAG_DICTIONARY | FLAG_BASE_KEY
+			| FLAG_BLOCK_CHECKSUMS;
+
+	private static final int[] NO_BLOCKS = new int[0];
+
+	private final byte version;
+	private final byte flags;
+	private final int baseChecksum;
+	private final int targetLength;
+	private final int targetChecksum;
+	private final int dictionaryId;
+	private final String baseKey;
+	private final int blockSize;
+	private final int[] blockIndexes;
+	private final int[] blockChecksums;
+	private final int payloadOffset;
+	private final int payloadLength;
+
+	private FARDEnvelope(byte version, byte flags, int baseChecksum, int targetLength, int targetChecksum,
+			int dictionaryId, String baseKey, int blockSize, int[] blockIndexes, int[] blockChecksums,
+			int payloadOffset, int payloadLength) {
+		this.version = version;
+		this.flags = flags;
+		this.baseChecksum = baseChecksum;
+		this.targetLength = targetLength;
+		this.targetChecksum = targetChecksum;
+		this.dictionaryId = dictionaryId;
+		this.baseKey = baseKey;
+		this.blockSize = blockSize;
+		this.blockIndexes = blockIndexes;
+		this.blockChecksums = blockChecksums;
+		this.payloadOffset = payloadOffset;
+		this.payloadLength = payloadLength;
+	}
+
+	/**
+	 * Wrap FARD data in an envelope.
+	 * 
+	 * @param oldArray
+	 *            the array the diff was calculated against
+	 * @param newArray
+	 *            the array the diff produces
+	 * @param fardData
+	 *            output of calculateDiff
+	 * @return header + fardData
+	 */
+	public static byte[] wrap(byte[] oldArray, byte[] newArray, byte[] fardData) {
+		return wrap(ByteArrayLib.deterministicHashcode(oldArray), newArray.length,
+				ByteArrayLib.deterministicHashcode(newArray), fardData);
+	}
+
+	/**
+	 * Wrap FARD data in an envelope when we already know the checksums.
+	 * 
+	 * @param baseChecksum
+	 *            deterministicHashcode of the array the diff applies to
+	 * @param targetLength
+	 *            length of the array the diff produces
+	 * @param targetChecksum
+	 *            deterministicHashcode of the array the diff produces
+	 * @param fardData
+	 *            FARD data
+	 * @return header + fardData
+	 */
+	public static byte[] wrap(int baseChecksum, int targetLength, int targetChecksum, byte[] fardData) {
+		return wrap((byte) 0, baseChecksum, targetLength, targetChecksum, fardData);
+	}
+
+	/**
+	 * Wrap a payload in an envelope with flags set.
+	 * 
+	 * @param flags
+	 *            FLAG_ bits describing how payload is encoded
+	 * @param baseChecksum
+	 *            deterministicHashcode of the array the diff applies to
+	 * @param targetLength
+	 *            length of the array the diff produces
+	 * @param targetChecksum
+	 *            deterministicHashcode of the array the diff produces
+	 * @param payload
+	 *            FARD data, encoded as flags says
+	 * @return header + payload
+	 */
+	public static byte[] wrap(byte flags, int baseChecksum, int targetLength, int targetChecksum, byte[] payload) {
+		return wrap(flags, 0, baseChecksum, targetLength, targetChecksum, payload);
+	}
+
+	/**
+	 * Wrap a payload in an envelope with flags set, including a dictionary id
+	 * if flags has FLAG_DICTIONARY.
+	 * 
+	 * @param flags
+	 *            FLAG_ bits describing how payload is encoded
+	 * @param dictionaryId
+	 *            id of the FARDDictionary the diff was calculated with. Ignored
+	 *            unless flags has FLAG_DICTIONARY.
+	 * @param baseChecksum
+	 *            deterministicHashcode of the array the diff applies to, not
+	 *            including any dictionary
+	 * @param targetLength
+	 *            length of the array the diff produces
+	 * @param targetChecksum
+	 *            deterministicHashcode of the array the diff produces
+	 * @param payload
+	 *            FARD data, encoded as flags says
+	 * @return header + payload
+	 */
+	public static byte[] wrap(byte flags, int dictionaryId, int baseChecksum, int targetLength, int targetChecksum,
+			byte[] payload) {
+		return build((byte) (flags & ~(FLAG_BASE_KEY | FLAG_BLOCK_CHECKSUMS)), dictionaryId, null, 0, NO_BLOCKS,
+				NO_BLOCKS, baseChecksum, targetLength, targetChecksum, payload, 0, payload.length);
+	}
+
+	/**
+	 * Name the key whose value an envelope's diff was calculated against, for
+	 * when that isn't the key being updated - see SimilarityIndex.
+	 * 
+	 * @param envelope
+	 *            an existing envelope
+	 * @param baseKey
+	 *            key whose value is the base array
+	 * @return a copy of envelope with FLAG_BASE_KEY set and baseKey added
+	 * @throws BadInputException
+	 *             if envelope is malformed
+	 */
+	public static byte[] addBaseKey(byte[] envelope, String baseKey) throws BadInputException {
+
+		final FARDEnvelope header = read(envelope);
+		final byte[] keyBytes = baseKey.getBytes(StandardCharsets.UTF_8);
+
+		if (keyBytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Base key is " + keyBytes.length + " bytes long");
+		}
+
+		return build((byte) (header.flags | FLAG_BASE_KEY), header.dictionaryId, keyBytes, header.blockSize,
+				header.blockIndexes, header.blockChecksums, header.baseChecksum, header.targetLength,
+				header.targetChecksum, envelope, header.payloadOffset, header.payloadLength);
+	}
+
+	/**
+	 * Add checksums of just the blocks of oldArray that the diff's REF blocks
+	 * read. The receiver then checks those blocks instead of the whole base, so
+	 * it does less work and accepts the diff even if other parts of the base
+	 * have changed since.
+	 * 
+	 * @param envelope
+	 *            an existing envelope, calculated against oldArray
+	 * @param oldArray
+	 *            the array the diff was calculated against
+	 * @return a copy of envelope with FLAG_BLOCK_CHECKSUMS set
+	 * @throws BadInputException
+	 *             if envelope is malformed
+	 */
+	public static byte[] addBlockChecksums(byte[] envelope, byte[] oldArray) throws BadInputException {
+
+		final FARDEnvelope header = read(envelope);
+		final byte[] fardData = header.getFARDData(envelope);
+
+		FARDValidator.validate(fardData, Short.MAX_VALUE);
+
+		final FARDOpList ops = FARDOpList.parse(fardData, 0, fardData.length);
+		final int blockSize = FARDBlockChecksums.DEFAULT_BLOCK_SIZE;
+		final int oldLength = oldArray == null ? 0 : oldArray.length;
+
+		// REF blocks past the end of oldArray read the dictionary, which is
+		// checked by id
+		boolean[] read = new boolean[(oldLength + blockSize - 1) / blockSize];
+		int blockCount = 0;
+
+		for (int i = 0; i < ops.count; i++) {
+
+			if (ops.types[i] != ByteArrayLib.FARD_REFERENCE_BLOCK || ops.lengths[i] == 0) {
+				continue;
+			}
+
+			final int end = Math.min(ops.sources[i] + ops.lengths[i], oldLength);
+
+			for (int b = ops.sources[i] / blockSize; b * blockSize < end; b++) {
+				if (!read[b]) {
+					read[b] = true;
+					blockCount++;
+				}
+			}
+		}
+
+		int[] blockIndexes = new int[blockCount];
+		int[] blockChecksums = new int[blockCount];
+		CRC32 crc = new CRC32();
+		blockCount = 0;
+
+		for (int b = 0; b < read.length; b++) {
+			if (read[b]) {
+				blockIndexes[blockCount] = b;
+				blockChecksums[blockCount++] = FARDBlockChecksums.checksum(crc, oldArray, b, blockSize);
+			}
+		}
+
+		final byte[] keyBytes = header.baseKey == null ? null : header.baseKey.getBytes(StandardCharsets.UTF_8);
+
+		return build((byte) (header.flags | FLAG_BLOCK_CHECKSUMS), header.dictionaryId, keyBytes, blockSize,
+				blockIndexes, blockChecksums, header.baseChecksum, header.targetLength, header.targetChecksum,
+				envelope, header.payloadOffset, header.payloadLength);
+	}
+
+	private static byte[] build(byte flags, int dictionaryId, byte[] baseKey, int blockSize, int[] blockIndexes,
+			int[] blockChecksums, int baseChecksum, int targetLength, int targetChecksum, byte[] payload,
+			int payloadOffset, int payloadLength) {
+
+		final boolean hasDictionary = (flags & FLAG_DICTIONARY) != 0;
+		final boolean hasBaseKey = (flags & FLAG_BASE_KEY) != 0;
+		final boolean hasBlocks = (flags & FLAG_BLOCK_CHECKSUMS) != 0;
+
+		byte[] envelope = new byte[HEADER_SIZE + (hasDictionary ? 4 : 0) + (hasBaseKey ? 2 + baseKey.length : 0)
+				+ (hasBlocks ? 4 + (6 * blockIndexes.length) : 0) + payloadLength];
+
+		ByteBuffer buf = ByteBuffer.wrap(envelope).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(FORMAT_VERSION);
+		buf.put(flags);
+		buf.putInt(baseChecksum);
+		buf.putInt(targetLength);
+		buf.putInt(targetChecksum);
+
+		if (hasDictionary) {
+			buf.putInt(dictionaryId);
+		}
+
+		if (hasBaseKey) {
+			buf.putShort((short) baseKey.length);
+			buf.put(baseKey);
+		}
+
+		if (hasBlocks) {
+			buf.putShort((short) blockSize);
+			buf.putShort((short) blockIndexes.length);
+			for (int i = 0; i < blockIndexes.length; i++) {
+				buf.putShort((short) blockIndexes[i]);
+				buf.putInt(blockChecksums[i]);
+			}
+		}
+
+		buf.put(payload, payloadOffset, payloadLength);
+
+		return envelope;
+	}
+
+	/**
+	 * Read and sanity check the header of an envelope.
+	 * 
+	 * @param envelope
+	 *            output of wrap()
+	 * @return the header fields, plus where the FARD data starts
+	 * @throws BadInputException
+	 *             if the header is truncated, from a version we don't know,
+	 *             has flags we don't know or claims an impossible target length
+	 */
+	public static FARDEnvelope read(byte[] envelope) throws BadInputException {
+
+		if (envelope == null) {
+			throw new BadInputException("Envelope is too short to have a header");
+		}
+
+		return read(envelope, 0, envelope.length);
+	}
+
+	/**
+	 * Read and sanity check the header of an envelope that is part of a larger
+	 * array, such as a log segment or network buffer.
+	 * 
+	 * @param bytes
+	 *            array containing the envelope
+	 * @param offset
+	 *            where the envelope starts
+	 * @param length
+	 *            how long the envelope is
+	 * @return the header fields. getPayloadOffset() is relative to the start
+	 *         of bytes, not the start of the envelope.
+	 * @throws BadInputException
+	 *             if the header is truncated, from a version we don't know,
+	 *             has flags we don't know or claims an impossible target length
+	 */
+	public static FARDEnvelope read(byte[] bytes, int offset, int length) throws BadInputException {
+
+		if (bytes == null || length < HEADER_SIZE || offset < 0 || offset + length > bytes.length) {
+			throw new BadInputException("Envelope is too short to have a header");
+		}
+
+		ByteBuffer buf = ByteBuffer.wrap(bytes, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+
+		try {
+			final byte version = buf.get();
+			final byte flags = buf.get();
+
+			if (version != FORMAT_VERSION) {
+				throw new BadInputException("Unknown envelope version " + version);
+			}
+
+			if ((flags & ~KNOWN_FLAGS) != 0) {
+				throw new BadInputException("Unknown envelope flags " + flags);
+			}
+
+			final int baseChecksum = buf.getInt();
+			final int targetLength = buf.getInt();
+			final int targetChecksum = buf.getInt();
+
+			if (targetLength < 0 || targetLength >= ByteArrayLib.FARD_REFERENCE_BLOCK) {
+				throw new BadInputException("Target length of " + targetLength + " is impossible");
+			}
+
+			final int dictionaryId = (flags & FLAG_DICTIONARY) != 0 ? buf.getInt() : 0;
+
+			String baseKey = null;
+
+			if ((flags & FLAG_BASE_KEY) != 0) {
+				final int keyLength = buf.getShort() & 0xFFFF;
+				if (keyLength > buf.remaining()) {
+					throw new BadInputException("Base key of " + keyLength + " bytes is truncated");
+				}
+				baseKey = new String(bytes, buf.position(), keyLength, StandardCharsets.UTF_8);
+				buf.position(buf.position() + keyLength);
+			}
+
+			int blockSize = 0;
+			int[] blockIndexes = NO_BLOCKS;
+			int[] blockChecksums = NO_BLOCKS;
+
+			if ((flags & FLAG_BLOCK_CHECKSUMS) != 0) {
+
+				blockSize = buf.getShort() & 0xFFFF;
+				final int blockCount = buf.getShort() & 0xFFFF;
+
+				if (blockSize == 0 || blockCount * 6 > buf.remaining()) {
+					throw new BadInputException(blockCount + " blocks of " + blockSize + " bytes is impossible");
+				}
+
+				blockIndexes = new int[blockCount];
+				blockChecksums = new int[blockCount];
+
+				for (int i = 0; i < blockCount; i++) {
+					blockIndexes[i] = buf.getShort() & 0xFFFF;
+					blockChecksums[i] = buf.getInt();
+				}
+			}
+
+			return new FARDEnvelope(version, flags, baseChecksum, targetLength, targetChecksum, dictionaryId, baseKey,
+					blockSize, blockIndexes, blockChecksums, buf.position(), buf.remaining());
+
+		} catch (BufferUnderflowException e) {
+			throw new BadInputException("Truncated envelope header");
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            the array this header was read from
+	 * @return plain FARD data from the payload, undoing any encoding the flags
+	 *         call for
+	 * @throws BadInputException
+	 *             if the encoded payload is corrupt
+	 */
+	public byte[] getFARDData(byte[] bytes) throws BadInputException {
+
+		if ((flags & FLAG_DEFLATED_LITERALS) != 0) {
+			return FARDLiteralCoder.expand(bytes, payloadOffset, payloadLength, targetLength);
+		}
+
+		return Arrays.copyOfRange(bytes, payloadOffset, payloadOffset + payloadLength);
+	}
+
+	/**
+	 * @return true if the payload is plain FARD data that can be decoded where
+	 *         it is
+	 */
+	public boolean isPlainFARDData() {
+		return (flags & FLAG_DEFLATED_LITERALS) == 0;
+	}
+
+	/**
+	 * @return true if the diff needs the FARDDictionary with getDictionaryId()
+	 */
+	public boolean usesDictionary() {
+		return (flags & FLAG_DICTIONARY) != 0;
+	}
+
+	/**
+	 * @return the id of the FARDDictionary the diff needs, if
+	 *         usesDictionary()
+	 */
+	public int getDictionaryId() {
+		return dictionaryId;
+	}
+
+	/**
+	 * @return the key whose value the diff applies to, or null if it applies
+	 *         to the receiving key's own value
+	 */
+	public String getBaseKey() {
+		return baseKey;
+	}
+
+	/**
+	 * @return true if only some blocks of the base need checking - see
+	 *         checkBase
+	 */
+	public boolean hasBlockChecksums() {
+		return (flags & FLAG_BLOCK_CHECKSUMS) != 0;
+	}
+
+	/**
+	 * @return how many blocks of the base hasBlockChecksums() envelopes check
+	 */
+	public int getBlockCount() {
+		return blockIndexes.length;
+	}
+
+	/**
+	 * Check that base is the array the diff was calculated against: the
+	 * listed blocks if hasBlockChecksums(), otherwise the whole thing.
+	 * 
+	 * @param base
+	 * @param baseBlockChecksums
+	 *            checksums the caller already has for base, or null. Only
+	 *            used if the block size matches.
+	 * @throws HashCodeMismatchException
+	 *             if base isn't the array the diff was calculated against
+	 */
+	public void checkBase(byte[] base, FARDBlockChecksums baseBlockChecksums) throws HashCodeMismatchException {
+
+		if (!hasBlockChecksums()) {
+			ByteArrayLib.checkHashCode(base, baseChecksum);
+			return;
+		}
+
+		if (baseBlockChecksums != null && baseBlockChecksums.getBlockSize() != blockSize) {
+			baseBlockChecksums = null;
+		}
+
+		final int baseLength = base == null ? 0 : base.length;
+		final CRC32 crc = baseBlockChecksums == null ? new CRC32() : null;
+
+		for (int i = 0; i < blockIndexes.length; i++) {
+
+			if (blockIndexes[i] * blockSize >= baseLength) {
+				throw new HashCodeMismatchException("Block " + blockIndexes[i] + " is past the end of the base");
+			}
+
+			final int actual = baseBlockChecksums != null ? baseBlockChecksums.get(blockIndexes[i])
+					: FARDBlockChecksums.checksum(crc, base, blockIndexes[i], blockSize);
+
+			if (actual != blockChecksums[i]) {
+				throw new HashCodeMismatchException(
+						"Block " + blockIndexes[i] + ": Got " + actual + ", expected " + blockChecksums[i]);
+			}
+		}
+	}
+
+	public byte getVersion() {
+		return version;
+	}
+
+	public byte getFlags() {
+		return flags;
+	}
+
+	public int getBaseChecksum() {
+		return baseChecksum;
+	}
+
+	public int getTargetLength() {
+		return targetLength;
+	}
+
+	public int getTargetChecksum() {
+		return targetChecksum;
+	}
+
+	/**
+	 * @return where the FARD data starts in the envelope
+	 */
+	public int getPayloadOffset() {
+		return payloadOffset;
+	}
+
+	/**
+	 * @return how long the FARD data is
+	 */
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+
+	@Override
+	public String toString() {
+		return "[ENVELOPE v" + version + " flags=" + flags + (usesDictionary() ? " dictionary=" + dictionaryId : "")
+				+ (baseKey != null ? " baseKey=" + baseKey : "")
+				+ (hasBlockChecksums() ? " blocks=" + blockIndexes.length + "x" + blockSize : "")
+				+ " base=" + baseChecksum + " target=" + targetLength + "/" + targetChecksum + " payload="
+				+ payloadLength + "]";
+	}
+
+}
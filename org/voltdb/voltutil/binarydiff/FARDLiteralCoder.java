@@ -0,0 +1,287 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+
+/**
+ * Optional second stage for FARD data: the bytes of every DATA block are
+ * pulled out, concatenated and deflated at level 1. REF and repeating blocks
+ * are already tiny, but literals are sent raw, and for text they are most of
+ * the diff.
+ * <p>
+ * Layout, little endian:
+ * 
+ * <pre>
+ * int   opsLength        length of the FARD data with DATA bytes removed
+ * ...   ops              FARD data, each DATA block header kept but its bytes removed
+ * ...   literals         raw deflate of every DATA block's bytes, in order
+ * </pre>
+ * 
+ * Used via FARDEnvelope.FLAG_DEFLATED_LITERALS.
+ *
+ */
+class FARDLiteralCoder {
+
+	// Below this many literal bytes deflate can't win back its overhead
+	static final int MIN_LITERAL_BYTES = 64;
+
+	private static final int BLOCK_HEADER_SIZE = 4;
+
+	// Deflater and Inflater hold native memory, so reuse them
+	private static final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED, true);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	/**
+	 * Compress the literals in FARD data we created ourselves.
+	 * 
+	 * @param fardData
+	 *            output of calculateDiff
+	 * @return the compressed form, or null if it wouldn't be smaller
+	 */
+	static byte[] compress(byte[] fardData) {
+
+		// Pass 1: how many literal bytes are there?
+		int literalLength = 0;
+		int position = 0;
+
+		while (position < fardData.length) {
+
+			final short start = ByteArrayLib.readFARDShort(fardData, position);
+			final short second = ByteArrayLib.readFARDShort(fardData, position + 2);
+			position += BLOCK_HEADER_SIZE;
+
+			if (start == ByteArrayLib.FARD_DATA_BLOCK) {
+				literalLength += second;
+				position += second;
+			} else if (start == ByteArrayLib.FARD_REPEATING_BLOCK) {
+				position++;
+			}
+		}
+
+		if (literalLength < MIN_LITERAL_BYTES) {
+			return null;
+		}
+
+		// Pass 2: split into ops and literals
+		final int opsLength = fardData.length - literalLength;
+		byte[] literals = new byte[literalLength];
+		byte[] out = new byte[4 + opsLength + literalLength];
+
+		writeInt(out, 0, opsLength);
+
+		int opsPosition = 4;
+		int literalPosition = 0;
+		position = 0;
+
+		while (position < fardData.length) {
+
+			final short start = ByteArrayLib.readFARDShort(fardData, position);
+			final short second = ByteArrayLib.readFARDShort(fardData, position + 2);
+
+			int opLength = BLOCK_HEADER_SIZE;
+
+			if (start == ByteArrayLib.FARD_REPEATING_BLOCK) {
+				opLength++;
+			}
+
+			System.arraycopy(fardData, position, out, opsPosition, opLength);
+			opsPosition += opLength;
+			position += opLength;
+
+			if (start == ByteArrayLib.FARD_DATA_BLOCK) {
+				System.arraycopy(fardData, position, literals, literalPosition, second);
+				literalPosition += second;
+				position += second;
+			}
+		}
+
+		// Deflate straight into what's left of out. If it doesn't finish in
+		// that space it isn't worth it.
+		Deflater d = deflater.get();
+		d.reset();
+		d.setInput(literals);
+		d.finish();
+
+		int size = opsPosition;
+
+		while (!d.finished() && size < out.length) {
+			size += d.deflate(out, size, out.length - size);
+		}
+
+		if (!d.finished() || size >= fardData.length) {
+			return null;
+		}
+
+		byte[] result = new byte[size];
+		System.arraycopy(out, 0, result, 0, size);
+		return result;
+	}
+
+	/**
+	 * Turn the output of compress() back into plain FARD data. We don't trust
+	 * the input, but only check enough to rebuild it safely - the result still
+	 * has to go through FARDValidator.
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param maxLiteralLength
+	 *            the most literal bytes we will inflate, typically the target
+	 *            length from the envelope
+	 * @return plain FARD data
+	 * @throws BadInputException
+	 */
+	static byte[] expand(byte[] bytes, int offset, int length, int maxLiteralLength) throws BadInputException {
+
+		if (length < 4) {
+			throw new BadInputException("Compressed literals are too short to have a header");
+		}
+
+		final int opsLength = readInt(bytes, offset);
+		final int opsStart = offset + 4;
+		final int opsEnd = opsStart + opsLength;
+
+		if (opsLength < 0 || opsLength > length - 4) {
+			throw new BadInputException("Ops length of " + opsLength + " is impossible");
+		}
+
+		// Pass 1: how many literal bytes should there be?
+		long literalLength = 0;
+		int position = opsStart;
+
+		while (position < opsEnd) {
+
+			if (opsEnd - position < BLOCK_HEADER_SIZE) {
+				throw new BadInputException("Truncated block header at " + (position - opsStart));
+			}
+
+			final short start = ByteArrayLib.readFARDShort(bytes, position);
+			final short second = ByteArrayLib.readFARDShort(bytes, position + 2);
+			position += BLOCK_HEADER_SIZE;
+
+			if (start == ByteArrayLib.FARD_DATA_BLOCK) {
+
+				if (second < 0) {
+					throw new BadInputException("Negative DATA length at " + (position - opsStart));
+				}
+
+				literalLength += second;
+
+			} else if (start == ByteArrayLib.FARD_REPEATING_BLOCK) {
+				position++;
+			}
+		}
+
+		if (position != opsEnd) {
+			throw new BadInputException("Truncated repeating block at end of ops");
+		}
+
+		if (literalLength > maxLiteralLength) {
+			throw new BadInputException("Ops claim " + literalLength + " literal bytes, limit is " + maxLiteralLength);
+		}
+
+		// Inflating straight into place would take an inflate() call per DATA
+		// block, so inflate everything once and copy.
+		byte[] literals = new byte[(int) literalLength];
+
+		Inflater i = inflater.get();
+		i.reset();
+		i.setInput(bytes, opsEnd, offset + length - opsEnd);
+
+		try {
+			int size = 0;
+
+			while (size < literals.length) {
+				final int n = i.inflate(literals, size, literals.length - size);
+				if (n == 0 && (i.finished() || i.needsInput() || i.needsDictionary())) {
+					break;
+				}
+				size += n;
+			}
+
+			if (size != literals.length) {
+				throw new BadInputException("Literals inflated to " + size + " bytes, expected " + literals.length);
+			}
+
+		} catch (DataFormatException e) {
+			throw new BadInputException("Literals are corrupt: " + e.getMessage());
+		}
+
+		// Pass 2: put them back
+		byte[] fardData = new byte[opsLength + literals.length];
+		int outPosition = 0;
+		int literalPosition = 0;
+		position = opsStart;
+
+		while (position < opsEnd) {
+
+			final short start = ByteArrayLib.readFARDShort(bytes, position);
+			final short second = ByteArrayLib.readFARDShort(bytes, position + 2);
+
+			final int opLength = start == ByteArrayLib.FARD_REPEATING_BLOCK ? BLOCK_HEADER_SIZE + 1
+					: BLOCK_HEADER_SIZE;
+
+			System.arraycopy(bytes, position, fardData, outPosition, opLength);
+			outPosition += opLength;
+			position += opLength;
+
+			if (start == ByteArrayLib.FARD_DATA_BLOCK) {
+				System.arraycopy(literals, literalPosition, fardData, outPosition, second);
+				literalPosition += second;
+				outPosition += second;
+			}
+		}
+
+		return fardData;
+	}
+
+	private static void writeInt(byte[] bytes, int position, int value) {
+		bytes[position] = (byte) value;
+		bytes[position + 1] = (byte) (value >> 8);
+		bytes[position + 2] = (byte) (value >> 16);
+		bytes[position + 3] = (byte) (value >> 24);
+	}
+
+	private static int readInt(byte[] bytes, int position) {
+		return (bytes[position] & 0xFF) | ((bytes[position + 1] & 0xFF) << 8) | ((bytes[position + 2] & 0xFF) << 16)
+				| ((bytes[position + 3] & 0xFF) << 24);
+	}
+
+}
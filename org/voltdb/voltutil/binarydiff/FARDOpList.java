@@ -0,0 +1,159 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.Arrays;
+
+/**
+ * FARD data parsed into parallel arrays of ops, one entry per block, along
+ * with where each block's output starts.
+ * <p>
+ * What's in sources depends on the block type: the start of the range in the
+ * old array for a REF block, the position of the data in encodedData for a
+ * DATA block, and the repeated byte for a repeating block.
+ *
+ */
+class FARDOpList {
+
+	int count = 0;
+
+	short[] types;
+	int[] outStarts;
+	int[] sources;
+	int[] lengths;
+
+	// Total output length so far
+	int targetLength = 0;
+
+	// The FARD data DATA block sources point into
+	byte[] encodedData = null;
+
+	FARDOpList(int capacity) {
+		capacity = Math.max(1, capacity);
+		types = new short[capacity];
+		outStarts = new int[capacity];
+		sources = new int[capacity];
+		lengths = new int[capacity];
+	}
+
+	/**
+	 * Append an op. Its output starts where the previous one's ended.
+	 * 
+	 * @param type
+	 *            FARD_REFERENCE_BLOCK, FARD_DATA_BLOCK or FARD_REPEATING_BLOCK
+	 * @param source
+	 * @param length
+	 *            how many bytes of output it produces
+	 */
+	void add(short type, int source, int length) {
+
+		if (count == types.length) {
+			types = Arrays.copyOf(types, count * 2);
+			outStarts = Arrays.copyOf(outStarts, count * 2);
+			sources = Arrays.copyOf(sources, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+		}
+
+		types[count] = type;
+		outStarts[count] = targetLength;
+		sources[count] = source;
+		lengths[count] = length;
+		targetLength += length;
+		count++;
+	}
+
+	/**
+	 * Parse FARD data that has already passed FARDValidator.validate().
+	 * 
+	 * @param byteArray
+	 *            Encoded data
+	 * @param diffOffset
+	 *            where it starts
+	 * @param diffLength
+	 *            how long it is
+	 * @return the ops
+	 */
+	static FARDOpList parse(byte[] byteArray, int diffOffset, int diffLength) {
+
+		// Most blocks are at least 5 bytes long
+		FARDOpList ops = new FARDOpList(diffLength / 5 + 1);
+		ops.encodedData = byteArray;
+
+		final int limit = diffOffset + diffLength;
+		int inPosition = diffOffset;
+
+		while (inPosition < limit) {
+
+			final short start = ByteArrayLib.readFARDShort(byteArray, inPosition);
+			final short second = ByteArrayLib.readFARDShort(byteArray, inPosition + 2);
+			inPosition += 4;
+
+			if (start == ByteArrayLib.FARD_REPEATING_BLOCK) {
+				ops.add(ByteArrayLib.FARD_REPEATING_BLOCK, byteArray[inPosition++], second);
+			} else if (start == ByteArrayLib.FARD_DATA_BLOCK) {
+				ops.add(ByteArrayLib.FARD_DATA_BLOCK, inPosition, second);
+				inPosition += second;
+			} else {
+				ops.add(ByteArrayLib.FARD_REFERENCE_BLOCK, start, second - start);
+			}
+		}
+
+		return ops;
+	}
+
+	/**
+	 * Find the op that produces a given output position.
+	 * 
+	 * @param outPosition
+	 * @return the index of the last op starting at or before outPosition.
+	 *         Zero length ops may share a start with the op we want, so
+	 *         callers should skip forward past any that end before
+	 *         outPosition.
+	 */
+	int findOpAt(int outPosition) {
+
+		int low = 0;
+		int high = count - 1;
+
+		while (low < high) {
+			final int mid = (low + high + 1) >>> 1;
+			if (outStarts[mid] <= outPosition) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * @param i
+	 * @return true if op i is a REF that copies a range to the same position
+	 */
+	boolean isIdentityReference(int i) {
+		return types[i] == ByteArrayLib.FARD_REFERENCE_BLOCK && sources[i] == outStarts[i];
+	}
+
+}
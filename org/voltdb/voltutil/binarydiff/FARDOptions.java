@@ -0,0 +1,128 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff;
+
+/**
+ * Encoder settings for a {@link FastAndRuthlessDiffImpl}. The defaults are the
+ * values calculateDiff has always used. None of them change the FARD format,
+ * so applyDiff doesn't need to know what they were.
+ * <p>
+ * The best values depend on the data: text tends to want shorter patterns
+ * and more careful searching than binary does. {@link FARDTuner} can find
+ * them for you.
+ *
+ */
+public class FARDOptions {
+
+	// The engine compares the first 8 bytes of a pattern in one go
+	public static final int MIN_PATTERN_LENGTH = 8;
+
+	public static final int MAX_PATTERN_LENGTH = 1024;
+
+	public static final int MAX_STEP_SIZE = 64;
+
+	// How many bytes of the new value we look for in the old one
+	int patternLength = ByteArrayLib.FAST_RUTHLESS_SPLIT_PATTERN_LENGTH;
+
+	// How many pattern lengths we move along the new value between searches
+	int stepSize = ByteArrayLib.FAST_AND_RUTHLRESS_DEFAULT_STEPSIZE;
+
+	// A DATA block has to be longer than this before we search for it
+	int minSplitSize = ByteArrayLib.FAST_RUTHLESS_MIN_SPLIT_SIZE;
+
+	// The shortest run of one byte we'll turn into a REPEAT block
+	int minRunSize = ByteArrayLib.FAST_AND_RUTHLRESS_MIN_RUNSIZE;
+
+	public FARDOptions() {
+	}
+
+	/**
+	 * @param other
+	 *            options to copy
+	 */
+	public FARDOptions(FARDOptions other) {
+		this.patternLength = other.patternLength;
+		this.stepSize = other.stepSize;
+		this.minSplitSize = other.minSplitSize;
+		this.minRunSize = other.minRunSize;
+	}
+
+	public int getPatternLength() {
+		return patternLength;
+	}
+
+	public void setPatternLength(int patternLength) {
+		this.patternLength = Math.max(MIN_PATTERN_LENGTH, Math.min(MAX_PATTERN_LENGTH, patternLength));
+	}
+
+	public int getStepSize() {
+		return stepSize;
+	}
+
+	public void setStepSize(int stepSize) {
+		this.stepSize = Math.max(1, Math.min(MAX_STEP_SIZE, stepSize));
+	}
+
+	public int getMinSplitSize() {
+		return minSplitSize;
+	}
+
+	public void setMinSplitSize(int minSplitSize) {
+		this.minSplitSize = Math.max(1, Math.min(Short.MAX_VALUE, minSplitSize));
+	}
+
+	public int getMinRunSize() {
+		return minRunSize;
+	}
+
+	public void setMinRunSize(int minRunSize) {
+		this.minRunSize = Math.max(1, Math.min(Short.MAX_VALUE, minRunSize));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+
+		if (!(obj instanceof FARDOptions)) {
+			return false;
+		}
+
+		FARDOptions other = (FARDOptions) obj;
+
+		return patternLength == other.patternLength && stepSize == other.stepSize
+				&& minSplitSize == other.minSplitSize && minRunSize == other.minRunSize;
+	}
+
+	@Override
+	public int hashCode() {
+		return ((patternLength * 31 + stepSize) * 31 + minSplitSize) * 31 + minRunSize;
+	}
+
+	@Override
+	public String toString() {
+		return "PatternLength=" + patternLength + " StepSize=" + stepSize + " MinSplitSize=" + minSplitSize
+				+ " MinRunSize=" + minRunSize;
+	}
+
+}
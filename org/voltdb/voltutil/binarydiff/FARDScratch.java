@@ -0,0 +1,177 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per thread scratch space for the FARD encoder and decoders, so a warmed up
+ * thread can diff and patch without allocating anything apart from the arrays
+ * it hands back to the caller.
+ * <p>
+ * The encoder's part arrays grow to fit whatever a diff needs. Every
+ * TRIM_INTERVAL uses they are shrunk to fit the biggest diff seen in that
+ * interval, so one unusual value doesn't leave a thread holding on to memory
+ * for ever, and a thread never keeps room for more than MAX_RETAINED_PARTS
+ * parts between calls.
+ * <p>
+ * If a thread asks for scratch space while it's already using its own -
+ * because an OutputStream we are writing to calls applyDiff, say - it gets a
+ * temporary one.
+ *
+ */
+class FARDScratch {
+
+	static final int MIN_PARTS = 16;
+
+	static final int MAX_RETAINED_PARTS = 4096;
+
+	static final int TRIM_INTERVAL = 256;
+
+	static final int MAX_RETAINED_DESCRIPTION_CHARS = 16384;
+
+	private static final ThreadLocal<FARDScratch> threadScratch = new ThreadLocal<FARDScratch>() {
+		@Override
+		protected FARDScratch initialValue() {
+			return new FARDScratch();
+		}
+	};
+
+	private final FARDBufferEngine engine = new FARDBufferEngine();
+
+	// Repeating blocks are expanded into here by FARDStreamDecoder
+	private byte[] repeatArray = null;
+	private ByteBuffer repeatBuffer = null;
+
+	private final ByteBuffer[] gatherBatch = new ByteBuffer[FARDStreamDecoder.MAX_GATHER];
+
+	private StringBuilder description = new StringBuilder();
+
+	private boolean inUse = false;
+
+	private int usesSinceTrim = 0;
+
+	/**
+	 * @return this thread's scratch space, or a temporary one if it's in use.
+	 *         Call release() when finished.
+	 */
+	static FARDScratch acquire() {
+
+		FARDScratch scratch = threadScratch.get();
+
+		if (scratch.inUse) {
+			scratch = new FARDScratch();
+		}
+
+		scratch.inUse = true;
+		return scratch;
+	}
+
+	/**
+	 * @return roughly how many bytes of scratch space this thread is keeping
+	 */
+	static long getThreadRetainedBytes() {
+		return threadScratch.get().getRetainedBytes();
+	}
+
+	/**
+	 * Finished with this for now. Shrinks anything that has grown too big.
+	 */
+	void release() {
+
+		// Don't keep the caller's buffers reachable if a write failed
+		Arrays.fill(gatherBatch, null);
+
+		if (description.capacity() > MAX_RETAINED_DESCRIPTION_CHARS) {
+			description = new StringBuilder();
+		}
+
+		if (++usesSinceTrim >= TRIM_INTERVAL || engine.getCapacity() > MAX_RETAINED_PARTS) {
+
+			final int wanted = Math.min(MAX_RETAINED_PARTS, Math.max(MIN_PARTS, engine.getPeakCount()));
+
+			// Leave it alone unless it's a lot bigger than we need, or it
+			// would be resized over and over
+			if (engine.getCapacity() > wanted * 2 || engine.getCapacity() > MAX_RETAINED_PARTS) {
+				engine.resize(wanted);
+			}
+
+			engine.resetPeakCount();
+			usesSinceTrim = 0;
+		}
+
+		inUse = false;
+	}
+
+	FARDBufferEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @return an empty StringBuilder
+	 */
+	StringBuilder getDescription() {
+		description.setLength(0);
+		return description;
+	}
+
+	/**
+	 * @return a byte[] of FARDStreamDecoder.REPEAT_BUFFER_SIZE bytes
+	 */
+	byte[] getRepeatArray() {
+
+		if (repeatArray == null) {
+			repeatArray = new byte[FARDStreamDecoder.REPEAT_BUFFER_SIZE];
+		}
+
+		return repeatArray;
+	}
+
+	/**
+	 * @return a heap ByteBuffer over getRepeatArray()
+	 */
+	ByteBuffer getRepeatBuffer() {
+
+		if (repeatBuffer == null) {
+			repeatBuffer = ByteBuffer.wrap(getRepeatArray());
+		}
+
+		return repeatBuffer;
+	}
+
+	/**
+	 * @return an array of FARDStreamDecoder.MAX_GATHER nulls
+	 */
+	ByteBuffer[] getGatherBatch() {
+		return gatherBatch;
+	}
+
+	long getRetainedBytes() {
+		return engine.getRetainedBytes() + (repeatArray == null ? 0 : repeatArray.length)
+				+ (description.capacity() * 2L) + (gatherBatch.length * 8L);
+	}
+
+}
@@ -0,0 +1,217 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Decodes validated FARD data straight to an OutputStream or
+ * WritableByteChannel instead of into a new array.
+ * <p>
+ * REF and DATA blocks are written as slices of the base and the diff, so
+ * nothing is copied. Repeating blocks are expanded into a buffer of
+ * REPEAT_BUFFER_SIZE bytes. For channels, slices are collected into batches
+ * of up to MAX_GATHER buffers and written with one gathering write where the
+ * channel supports it. Memory used is therefore the same whatever the size of
+ * the value, and the repeat buffer and batch array come from the caller's
+ * FARDScratch, so the OutputStream version allocates nothing.
+ *
+ */
+class FARDStreamDecoder {
+
+	static final int REPEAT_BUFFER_SIZE = 4096;
+
+	static final int MAX_GATHER = 64;
+
+	/**
+	 * Write the output of FARD data to an OutputStream.
+	 * 
+	 * @param oldArray
+	 *            base the diff was validated against
+	 * @param byteArray
+	 *            FARD data that has passed FARDValidator.validate()
+	 * @param out
+	 * @param scratch
+	 * @return how many bytes were written
+	 * @throws IOException
+	 */
+	static long decodeValidated(byte[] oldArray, byte[] byteArray, OutputStream out, FARDScratch scratch)
+			throws IOException {
+
+		final byte[] repeatBuffer = scratch.getRepeatArray();
+		long written = 0;
+		int inPosition = 0;
+
+		while (inPosition < byteArray.length) {
+
+			final short start = ByteArrayLib.readFARDShort(byteArray, inPosition);
+			final short second = ByteArrayLib.readFARDShort(byteArray, inPosition + 2);
+			inPosition += 4;
+
+			if (start == ByteArrayLib.FARD_REPEATING_BLOCK) {
+
+				Arrays.fill(repeatBuffer, 0, Math.min(second, repeatBuffer.length), byteArray[inPosition++]);
+
+				for (int remaining = second; remaining > 0; remaining -= repeatBuffer.length) {
+					out.write(repeatBuffer, 0, Math.min(remaining, repeatBuffer.length));
+				}
+
+				written += second;
+
+			} else if (start == ByteArrayLib.FARD_DATA_BLOCK) {
+				out.write(byteArray, inPosition, second);
+				inPosition += second;
+				written += second;
+			} else if (second > start) {
+				out.write(oldArray, start, second - start);
+				written += (second - start);
+			}
+		}
+
+		return written;
+	}
+
+	/**
+	 * Write the output of FARD data to a channel. The bytes between each
+	 * buffer's position and limit are used, and their positions aren't changed.
+	 * 
+	 * @param oldBuffer
+	 *            base the diff was validated against
+	 * @param diffBuffer
+	 *            FARD data that has passed FARDValidator.validate()
+	 * @param out
+	 * @param scratch
+	 * @return how many bytes were written
+	 * @throws IOException
+	 */
+	static long decodeValidated(ByteBuffer oldBuffer, ByteBuffer diffBuffer, WritableByteChannel out,
+			FARDScratch scratch) throws IOException {
+
+		final int oldBase = oldBuffer == null ? 0 : oldBuffer.position();
+		final int limit = diffBuffer.limit();
+		int inPosition = diffBuffer.position();
+
+		final ByteBuffer[] batch = scratch.getGatherBatch();
+		int batchSize = 0;
+
+		// Repeats are expanded into here, one after another, until it's full
+		final ByteBuffer repeatBuffer = scratch.getRepeatBuffer();
+		int repeatUsed = 0;
+
+		long written = 0;
+
+		while (inPosition < limit) {
+
+			final short start = ByteArrayLib.readFARDShort(diffBuffer, inPosition);
+			final short second = ByteArrayLib.readFARDShort(diffBuffer, inPosition + 2);
+			inPosition += 4;
+
+			if (start == ByteArrayLib.FARD_REPEATING_BLOCK) {
+
+				final byte aByte = diffBuffer.get(inPosition++);
+
+				int remaining = second;
+
+				while (remaining > 0) {
+
+					if (repeatUsed == REPEAT_BUFFER_SIZE || batchSize == MAX_GATHER) {
+						write(out, batch, batchSize);
+						batchSize = 0;
+						repeatUsed = 0;
+					}
+
+					final int chunk = Math.min(remaining, REPEAT_BUFFER_SIZE - repeatUsed);
+
+					for (int i = 0; i < chunk; i++) {
+						repeatBuffer.put(repeatUsed + i, aByte);
+					}
+
+					batch[batchSize++] = repeatBuffer.slice(repeatUsed, chunk);
+					repeatUsed += chunk;
+					remaining -= chunk;
+				}
+
+				written += second;
+				continue;
+			}
+
+			if (batchSize == MAX_GATHER) {
+				write(out, batch, batchSize);
+				batchSize = 0;
+				repeatUsed = 0;
+			}
+
+			if (start == ByteArrayLib.FARD_DATA_BLOCK) {
+				batch[batchSize++] = diffBuffer.slice(inPosition, second);
+				inPosition += second;
+				written += second;
+			} else if (second > start) {
+				batch[batchSize++] = oldBuffer.slice(oldBase + start, second - start);
+				written += (second - start);
+			}
+		}
+
+		write(out, batch, batchSize);
+
+		return written;
+	}
+
+	/**
+	 * Write all of batch[0..batchSize) to out, then forget it.
+	 */
+	private static void write(WritableByteChannel out, ByteBuffer[] batch, int batchSize) throws IOException {
+
+		if (out instanceof GatheringByteChannel) {
+
+			final GatheringByteChannel gatheringOut = (GatheringByteChannel) out;
+			int first = 0;
+
+			while (first < batchSize) {
+
+				gatheringOut.write(batch, first, batchSize - first);
+
+				while (first < batchSize && !batch[first].hasRemaining()) {
+					first++;
+				}
+			}
+
+		} else {
+
+			for (int i = 0; i < batchSize; i++) {
+				while (batch[i].hasRemaining()) {
+					out.write(batch[i]);
+				}
+			}
+		}
+
+		Arrays.fill(batch, 0, batchSize, null);
+	}
+
+}
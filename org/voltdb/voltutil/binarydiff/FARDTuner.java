@@ -0,0 +1,383 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.voltdb.voltutil.binarydiff.exceptions.TooBigToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooSmallToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+/**
+ * Finds good FARDOptions for each class of data you diff - text and binary
+ * payloads, say - while you use it to diff them.
+ * <p>
+ * Each diff is done with the best options found so far for its workload
+ * class. Now and then the same pair is also diffed with a neighbouring set of
+ * options, where one setting has moved one step, and the costs of the two
+ * diffs are compared. If the candidate is cheaper over TRIAL_LENGTH pairs it
+ * becomes the new best, so the options climb towards whatever is cheapest for
+ * that class. Cost is the size of the diff plus the time it took, converted
+ * to bytes at nanosPerByte.
+ * <p>
+ * Trial diffs are only done while the time spent on them is less than
+ * maxExplorationShare of all the diff time for the class. Once a whole round
+ * of neighbours has failed to beat the best, exploring stops for
+ * PAUSE_AFTER_ROUND diffs, then starts again in case the data has changed.
+ * <p>
+ * The diffs returned always come from the best options. Not thread safe - use
+ * one per thread, like FastAndRuthlessDiffImpl.
+ *
+ */
+public class FARDTuner {
+
+	public static final int TRIAL_LENGTH = 32;
+
+	public static final int PAUSE_AFTER_ROUND = 10000;
+
+	// A candidate has to be at least this much cheaper to replace the best
+	public static final double MIN_IMPROVEMENT = 0.01;
+
+	public static final double DEFAULT_MAX_EXPLORATION_SHARE = 0.05;
+
+	public static final double DEFAULT_NANOS_PER_BYTE = 500;
+
+	// See neighbour()
+	private static final int MOVE_COUNT = 8;
+
+	private final double maxExplorationShare;
+
+	private final double nanosPerByte;
+
+	private final FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+	private final FastAndRuthlessDiffImpl trialImpl = new FastAndRuthlessDiffImpl();
+
+	private final HashMap<String, WorkloadTuning> workloads = new HashMap<String, WorkloadTuning>();
+
+	public FARDTuner() {
+		this(DEFAULT_MAX_EXPLORATION_SHARE, DEFAULT_NANOS_PER_BYTE);
+	}
+
+	/**
+	 * @param maxExplorationShare
+	 *            most of a class's diff time that can go on trials, between 0
+	 *            and 1
+	 * @param nanosPerByte
+	 *            how much CPU time is worth spending to make a diff one byte
+	 *            smaller. Double.POSITIVE_INFINITY tunes for size alone.
+	 */
+	public FARDTuner(double maxExplorationShare, double nanosPerByte) {
+		this.maxExplorationShare = Math.max(0, Math.min(1, maxExplorationShare));
+		this.nanosPerByte = nanosPerByte;
+	}
+
+	/**
+	 * Calculate a diff with the best options we have for workloadClass, and
+	 * maybe try out another set of options on the same pair.
+	 * 
+	 * @param workloadClass
+	 *            whatever name you want to tune this kind of data under
+	 * @param oldArray
+	 * @param newArray
+	 * @param maxSplits
+	 * @return the same as FastAndRuthlessDiffImpl.calculateDiff
+	 * @throws TooSmallToDeltaException
+	 * @throws TooBigToDeltaException
+	 * @throws UneconomicToDiffException
+	 */
+	public byte[] calculateDiff(String workloadClass, byte[] oldArray, byte[] newArray, int maxSplits)
+			throws TooSmallToDeltaException, TooBigToDeltaException, UneconomicToDiffException {
+
+		WorkloadTuning tuning = workloads.get(workloadClass);
+
+		if (tuning == null) {
+			tuning = new WorkloadTuning();
+			workloads.put(workloadClass, tuning);
+		}
+
+		final boolean trial = tuning.wantsTrial(maxExplorationShare);
+
+		// Alternate which diff goes first, so neither always finds the
+		// arrays already in cache
+		if (trial && tuning.trialsDone % 2 == 1) {
+			runTrial(tuning, oldArray, newArray, maxSplits);
+		}
+
+		impl.setOptions(tuning.best);
+
+		byte[] diff = null;
+		UneconomicToDiffException uneconomic = null;
+		final long start = System.nanoTime();
+
+		try {
+			diff = impl.calculateDiff(oldArray, newArray, maxSplits);
+		} catch (UneconomicToDiffException e) {
+			uneconomic = e;
+		}
+
+		final long nanos = System.nanoTime() - start;
+		final int diffLength = diff == null ? newArray.length : diff.length;
+
+		tuning.diffs++;
+		tuning.nanos += nanos;
+		tuning.bytesIn += newArray.length;
+		tuning.bytesOut += diffLength;
+
+		if (trial) {
+
+			tuning.bestCost += cost(diffLength, nanos);
+
+			if (tuning.trialsDone % 2 == 0) {
+				runTrial(tuning, oldArray, newArray, maxSplits);
+			}
+
+			tuning.finishTrial();
+		}
+
+		if (uneconomic != null) {
+			throw uneconomic;
+		}
+
+		return diff;
+	}
+
+	/**
+	 * Diff the pair with tuning.candidate and add the cost to the trial.
+	 */
+	private void runTrial(WorkloadTuning tuning, byte[] oldArray, byte[] newArray, int maxSplits)
+			throws TooSmallToDeltaException, TooBigToDeltaException {
+
+		trialImpl.setOptions(tuning.candidate);
+
+		int diffLength = newArray.length;
+		final long start = System.nanoTime();
+
+		try {
+			diffLength = trialImpl.calculateDiff(oldArray, newArray, maxSplits).length;
+		} catch (UneconomicToDiffException e) {
+			// Costs the same as sending newArray
+		}
+
+		final long nanos = System.nanoTime() - start;
+
+		tuning.explorationNanos += nanos;
+		tuning.candidateCost += cost(diffLength, nanos);
+	}
+
+	private double cost(int diffLength, long nanos) {
+		return diffLength + (nanos / nanosPerByte);
+	}
+
+	/**
+	 * @param workloadClass
+	 * @return a copy of the best options we have for workloadClass, which are
+	 *         the defaults if we haven't seen it
+	 */
+	public FARDOptions getOptions(String workloadClass) {
+
+		WorkloadTuning tuning = workloads.get(workloadClass);
+
+		if (tuning == null) {
+			return new FARDOptions();
+		}
+
+		return new FARDOptions(tuning.best);
+	}
+
+	/**
+	 * @param workloadClass
+	 * @return what share of the diff time for workloadClass went on trials
+	 */
+	public double getExplorationShare(String workloadClass) {
+
+		WorkloadTuning tuning = workloads.get(workloadClass);
+
+		if (tuning == null || tuning.nanos + tuning.explorationNanos == 0) {
+			return 0;
+		}
+
+		return (double) tuning.explorationNanos / (tuning.nanos + tuning.explorationNanos);
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuffer b = new StringBuffer();
+
+		for (Map.Entry<String, WorkloadTuning> entry : new TreeMap<String, WorkloadTuning>(workloads).entrySet()) {
+
+			final WorkloadTuning tuning = entry.getValue();
+
+			b.append(entry.getKey());
+			b.append(": ");
+			b.append(tuning.best);
+			b.append(" Diffs=");
+			b.append(tuning.diffs);
+			b.append(" Bytes=");
+			b.append(tuning.bytesIn);
+			b.append("->");
+			b.append(tuning.bytesOut);
+			b.append(" Improvements=");
+			b.append(tuning.improvements);
+			b.append(" Exploration=");
+			b.append(Math.round(getExplorationShare(entry.getKey()) * 1000) / 10.0);
+			b.append("%\n");
+		}
+
+		return b.toString();
+	}
+
+	/**
+	 * @param from
+	 * @param move
+	 *            which setting to change, and which way
+	 * @return a copy of from with one setting moved, or null if that setting
+	 *         can't move that way
+	 */
+	static FARDOptions neighbour(FARDOptions from, int move) {
+
+		FARDOptions to = new FARDOptions(from);
+
+		switch (move) {
+		case 0:
+			to.setPatternLength(from.patternLength + 4);
+			break;
+		case 1:
+			to.setPatternLength(from.patternLength - 4);
+			break;
+		case 2:
+			to.setStepSize(from.stepSize + 1);
+			break;
+		case 3:
+			to.setStepSize(from.stepSize - 1);
+			break;
+		case 4:
+			to.setMinSplitSize(from.minSplitSize * 2);
+			break;
+		case 5:
+			to.setMinSplitSize(from.minSplitSize / 2);
+			break;
+		case 6:
+			to.setMinRunSize(from.minRunSize + 2);
+			break;
+		default:
+			to.setMinRunSize(from.minRunSize - 2);
+			break;
+		}
+
+		if (to.equals(from)) {
+			return null;
+		}
+
+		return to;
+	}
+
+	/**
+	 * Where we've got to tuning one workload class.
+	 */
+	private static class WorkloadTuning {
+
+		FARDOptions best = new FARDOptions();
+
+		// What we're trying instead, and how it's going
+		FARDOptions candidate = null;
+		int move = 0;
+		int trialsDone = 0;
+		double bestCost = 0;
+		double candidateCost = 0;
+
+		// Moves in a row that haven't helped
+		int failedMoves = 0;
+
+		long pausedUntil = 0;
+
+		long diffs = 0;
+		long nanos = 0;
+		long explorationNanos = 0;
+		long bytesIn = 0;
+		long bytesOut = 0;
+		int improvements = 0;
+
+		/**
+		 * @return true if we should try a candidate on this diff, in which
+		 *         case candidate is set
+		 */
+		boolean wantsTrial(double maxExplorationShare) {
+
+			if (diffs < pausedUntil || diffs == 0
+					|| explorationNanos > maxExplorationShare * (nanos + explorationNanos)) {
+				return false;
+			}
+
+			for (int i = 0; candidate == null && i < MOVE_COUNT; i++) {
+
+				candidate = neighbour(best, move);
+
+				if (candidate == null) {
+					nextMove();
+				}
+			}
+
+			return candidate != null;
+		}
+
+		void finishTrial() {
+
+			trialsDone++;
+
+			if (trialsDone < TRIAL_LENGTH) {
+				return;
+			}
+
+			if (candidateCost < bestCost * (1 - MIN_IMPROVEMENT)) {
+				// Keep going the same way
+				best = candidate;
+				improvements++;
+				failedMoves = 0;
+			} else {
+				nextMove();
+			}
+
+			candidate = null;
+			trialsDone = 0;
+			bestCost = 0;
+			candidateCost = 0;
+		}
+
+		private void nextMove() {
+
+			move = (move + 1) % MOVE_COUNT;
+
+			if (++failedMoves >= MOVE_COUNT) {
+				pausedUntil = diffs + PAUSE_AFTER_ROUND;
+				failedMoves = 0;
+			}
+		}
+	}
+
+}
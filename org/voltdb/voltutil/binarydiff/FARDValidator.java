@@ -0,0 +1,199 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.nio.ByteBuffer;
+
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+
+/**
+ * Checks that FARD data is safe to decode before any output is written.
+ * <p>
+ * Diffs arrive from clients, so we don't trust them. validate() makes a single
+ * pass over the encoded data without allocating anything, checking that every
+ * block header and DATA block fits in what's left of the input, that block
+ * lengths aren't negative, and that every REF block lies inside the base
+ * array. Once it has passed, the decoders can copy without further checks.
+ *
+ */
+public class FARDValidator {
+
+	// Every block starts with two shorts
+	private static final int BLOCK_HEADER_SIZE = 4;
+
+	/**
+	 * Validate FARD data against the base array it will be applied to.
+	 * 
+	 * @param byteArray
+	 *            Array containing the encoded data
+	 * @param diffOffset
+	 *            where the encoded data starts
+	 * @param diffLength
+	 *            how long it is
+	 * @param baseLength
+	 *            length of the array REF blocks will copy from
+	 * @param maxTargetLength
+	 *            the most output we are prepared to produce
+	 * @return the length of the decoded data
+	 * @throws BadInputException
+	 *             describing the first problem found and where it is
+	 */
+	public static int validate(byte[] byteArray, int diffOffset, int diffLength, int baseLength, int maxTargetLength)
+			throws BadInputException {
+
+		if (byteArray == null) {
+			throw new BadInputException("FARD data is null");
+		}
+
+		if (diffOffset < 0 || diffLength < 0 || diffOffset > byteArray.length - diffLength) {
+			throw new BadInputException("FARD data range " + diffOffset + "+" + diffLength
+					+ " is outside array of length " + byteArray.length);
+		}
+
+		return validate(byteArray, null, diffOffset, diffOffset + diffLength, baseLength, maxTargetLength);
+	}
+
+	/**
+	 * Validate the FARD data between a buffer's position and limit against
+	 * the base it will be applied to. The buffer's position isn't changed.
+	 * 
+	 * @param buffer
+	 *            Buffer containing the encoded data
+	 * @param baseLength
+	 *            length of the base REF blocks will copy from
+	 * @param maxTargetLength
+	 *            the most output we are prepared to produce
+	 * @return the length of the decoded data
+	 * @throws BadInputException
+	 *             describing the first problem found and where it is
+	 */
+	public static int validate(ByteBuffer buffer, int baseLength, int maxTargetLength) throws BadInputException {
+
+		if (buffer == null) {
+			throw new BadInputException("FARD data is null");
+		}
+
+		return validate(null, buffer, buffer.position(), buffer.limit(), baseLength, maxTargetLength);
+	}
+
+	/**
+	 * Validate FARD data against the base array it will be applied to, allowing
+	 * any output length.
+	 * 
+	 * @param byteArray
+	 *            Encoded Data
+	 * @param baseLength
+	 *            length of the array REF blocks will copy from
+	 * @return the length of the decoded data
+	 * @throws BadInputException
+	 *             describing the first problem found and where it is
+	 */
+	public static int validate(byte[] byteArray, int baseLength) throws BadInputException {
+		return validate(byteArray, 0, byteArray == null ? 0 : byteArray.length, baseLength, Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	 * The checks for both public versions. Reads from byteArray if it isn't
+	 * null, otherwise from buffer, so neither needs a wrapper allocating.
+	 * 
+	 * @param byteArray
+	 * @param buffer
+	 * @param diffOffset
+	 *            where the encoded data starts
+	 * @param limit
+	 *            where it ends
+	 * @param baseLength
+	 * @param maxTargetLength
+	 * @return the length of the decoded data
+	 * @throws BadInputException
+	 */
+	private static int validate(byte[] byteArray, ByteBuffer buffer, int diffOffset, int limit, int baseLength,
+			int maxTargetLength) throws BadInputException {
+
+		int position = diffOffset;
+		long totalSize = 0;
+
+		while (position < limit) {
+
+			if (limit - position < BLOCK_HEADER_SIZE) {
+				throw new BadInputException("Truncated block header at " + (position - diffOffset));
+			}
+
+			final short start = readShort(byteArray, buffer, position);
+			final short second = readShort(byteArray, buffer, position + 2);
+			final int blockStart = position;
+			position += BLOCK_HEADER_SIZE;
+
+			if (start == ByteArrayLib.FARD_REPEATING_BLOCK) {
+
+				if (second < 0) {
+					throw new BadInputException("Negative repeat count " + second + " at " + (blockStart - diffOffset));
+				}
+
+				if (position >= limit) {
+					throw new BadInputException("Truncated repeating block at " + (blockStart - diffOffset));
+				}
+
+				position++;
+				totalSize += second;
+
+			} else if (start == ByteArrayLib.FARD_DATA_BLOCK) {
+
+				if (second < 0) {
+					throw new BadInputException("Negative data size " + second + " at " + (blockStart - diffOffset));
+				}
+
+				if (limit - position < second) {
+					throw new BadInputException("Data block of " + second + " at " + (blockStart - diffOffset)
+							+ " only has " + (limit - position) + " bytes left");
+				}
+
+				position += second;
+				totalSize += second;
+
+			} else {
+
+				if (start < 0 || second < start || second > baseLength) {
+					throw new BadInputException("Reference " + start + "->" + second + " at "
+							+ (blockStart - diffOffset) + " is outside base of length " + baseLength);
+				}
+
+				totalSize += (second - start);
+			}
+
+			if (totalSize > maxTargetLength) {
+				throw new BadInputException(
+						"Output would be at least " + totalSize + " bytes, limit is " + maxTargetLength);
+			}
+		}
+
+		return (int) totalSize;
+	}
+
+	private static short readShort(byte[] byteArray, ByteBuffer buffer, int position) {
+		return byteArray != null ? ByteArrayLib.readFARDShort(byteArray, position)
+				: ByteArrayLib.readFARDShort(buffer, position);
+	}
+
+}
@@ -0,0 +1,191 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff;
+
+import java.util.Arrays;
+
+/**
+ * Builds FARD data one block at a time into a growable buffer.
+ * <p>
+ * Blocks that continue the previous block - a REF that starts where the last
+ * one ended, DATA after DATA, or more of the same repeating byte - are merged
+ * into it, as long as the result still fits in a short.
+ *
+ */
+class FARDWriter {
+
+	private byte[] buffer;
+	private int size = 0;
+
+	// Type of the last block written, or 0 if there isn't one
+	private short lastType = 0;
+
+	// Where the last block's header starts in buffer
+	private int lastHeader = 0;
+
+	FARDWriter(int initialCapacity) {
+		buffer = new byte[Math.max(16, initialCapacity)];
+	}
+
+	/**
+	 * Add a reference to oldArray[start..end)
+	 * 
+	 * @param start
+	 * @param end
+	 */
+	void addReference(int start, int end) {
+
+		if (end <= start) {
+			return;
+		}
+
+		if (lastType == ByteArrayLib.FARD_REFERENCE_BLOCK && readShort(lastHeader + 2) == start) {
+			writeShort(lastHeader + 2, end);
+			return;
+		}
+
+		ensureCapacity(4);
+		lastType = ByteArrayLib.FARD_REFERENCE_BLOCK;
+		lastHeader = size;
+		writeShort(size, start);
+		writeShort(size + 2, end);
+		size += 4;
+	}
+
+	/**
+	 * Add literal data
+	 * 
+	 * @param source
+	 * @param offset
+	 * @param length
+	 */
+	void addData(byte[] source, int offset, int length) {
+
+		while (length > 0) {
+
+			int chunk;
+
+			if (lastType == ByteArrayLib.FARD_DATA_BLOCK && readShort(lastHeader + 2) < Short.MAX_VALUE) {
+
+				final int existing = readShort(lastHeader + 2);
+				chunk = Math.min(length, Short.MAX_VALUE - existing);
+				writeShort(lastHeader + 2, existing + chunk);
+
+			} else {
+
+				chunk = Math.min(length, Short.MAX_VALUE);
+				ensureCapacity(4);
+				lastType = ByteArrayLib.FARD_DATA_BLOCK;
+				lastHeader = size;
+				writeShort(size, ByteArrayLib.FARD_DATA_BLOCK);
+				writeShort(size + 2, chunk);
+				size += 4;
+			}
+
+			ensureCapacity(chunk);
+			System.arraycopy(source, offset, buffer, size, chunk);
+			size += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	/**
+	 * Add a run of a single byte
+	 * 
+	 * @param theByte
+	 * @param count
+	 */
+	void addRepeat(byte theByte, int count) {
+
+		while (count > 0) {
+
+			if (lastType == ByteArrayLib.FARD_REPEATING_BLOCK && buffer[lastHeader + 4] == theByte
+					&& readShort(lastHeader + 2) < Short.MAX_VALUE) {
+
+				final int existing = readShort(lastHeader + 2);
+				final int chunk = Math.min(count, Short.MAX_VALUE - existing);
+				writeShort(lastHeader + 2, existing + chunk);
+				count -= chunk;
+
+			} else {
+
+				final int chunk = Math.min(count, Short.MAX_VALUE);
+				ensureCapacity(5);
+				lastType = ByteArrayLib.FARD_REPEATING_BLOCK;
+				lastHeader = size;
+				writeShort(size, ByteArrayLib.FARD_REPEATING_BLOCK);
+				writeShort(size + 2, chunk);
+				buffer[size + 4] = theByte;
+				size += 5;
+				count -= chunk;
+			}
+		}
+	}
+
+	/**
+	 * Copy op i of a FARDOpList, or part of it.
+	 * 
+	 * @param ops
+	 * @param i
+	 * @param skip
+	 *            how many bytes at the start of the op's output to leave out
+	 * @param length
+	 *            how many bytes of output to copy
+	 */
+	void addOp(FARDOpList ops, int i, int skip, int length) {
+
+		if (ops.types[i] == ByteArrayLib.FARD_REFERENCE_BLOCK) {
+			addReference(ops.sources[i] + skip, ops.sources[i] + skip + length);
+		} else if (ops.types[i] == ByteArrayLib.FARD_DATA_BLOCK) {
+			addData(ops.encodedData, ops.sources[i] + skip, length);
+		} else {
+			addRepeat((byte) ops.sources[i], length);
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buffer, size);
+	}
+
+	private void ensureCapacity(int extra) {
+		if (size + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+		}
+	}
+
+	private int readShort(int position) {
+		return ByteArrayLib.readFARDShort(buffer, position);
+	}
+
+	private void writeShort(int position, int value) {
+		buffer[position] = (byte) value;
+		buffer[position + 1] = (byte) (value >> 8);
+	}
+
+}
@@ -23,7 +23,12 @@
 
 package org.voltdb.voltutil.binarydiff;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 
 import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
 import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
@@ -46,6 +51,28 @@ public class FastAndRuthlessDiffImpl  implements ArrayDiffIFace {
 	// Tracks number of splits
 	StatsHistogram splitsHistogram = new StatsHistogram(100);
 
+	// We only keep an example diff for each compression bucket, and building
+	// one allocates, so after the first we replace it every DESCRIBE_INTERVAL
+	// diffs
+	static final int DESCRIBE_INTERVAL = 1024;
+
+	private int diffsSinceDescribe = 0;
+
+	private FARDOptions options;
+
+	public FastAndRuthlessDiffImpl() {
+		this(new FARDOptions());
+	}
+
+	/**
+	 * @param options
+	 *            encoder settings. We keep a reference, so later changes to
+	 *            options apply to later diffs.
+	 */
+	public FastAndRuthlessDiffImpl(FARDOptions options) {
+		this.options = options;
+	}
+
 	/**
 	 * @param oldArray
 	 *            An arbitrary length of byte[] that could be null, byte[0],
@@ -65,98 +92,614 @@ public class FastAndRuthlessDiffImpl  implements ArrayDiffIFace {
 	public byte[] calculateDiff(byte[] oldArray, byte[] newArray, int maxSplits)
 			throws TooSmallToDeltaException, TooBigToDeltaException, UneconomicToDiffException {
 
-		int splitCountsThisArray = 0;
-
 		ByteArrayLib.checkTooSmall(oldArray, "old array");
 		ByteArrayLib.checkTooSmall(newArray, "new array");
 		ByteArrayLib.checkTooBig(oldArray, "old array");
 		ByteArrayLib.checkTooBig(newArray, "new array");
 
-		ArrayList<FastAndRuthlessDiffImplByteArrayParts> diffArrayList = new ArrayList<FastAndRuthlessDiffImplByteArrayParts>();
+		final FARDScratch scratch = FARDScratch.acquire();
+
+		try {
+
+			final FARDBufferEngine engine = scratch.getEngine();
+
+			// Native order saves the engine making its own views
+			final ByteBuffer oldBuffer = ByteBuffer.wrap(oldArray).order(ByteOrder.nativeOrder());
+			final ByteBuffer newBuffer = ByteBuffer.wrap(newArray).order(ByteOrder.nativeOrder());
+
+			splitsHistogram.report(engine.split(oldBuffer, newBuffer, maxSplits, options), null);
+
+			final int totalMessageSize = engine.messageSize();
+
+			ByteArrayLib.giveUpIfUneconomic(oldArray.length, totalMessageSize);
+
+			byte[] outArray = new byte[totalMessageSize];
+			engine.write(newBuffer, ByteBuffer.wrap(outArray));
+
+			reportCompression(100 - ((totalMessageSize * 100) / newArray.length), newBuffer, scratch);
+
+			return outArray;
+
+		} finally {
+			scratch.release();
+		}
+
+	}
+
+
+	/**
+	 * @param inArray
+	 *            An arbitrary length of byte[] that could be null, byte[0],
+	 *            byte[n]...
+	 * @param inDiff
+	 *            A byte[] which can be used to turn oldArray into newArray...
+	 *            How this happens is up to the implementing class...
+	 * @param targetHashCode
+	 *            an int that is used to sanity check whether inDiff is
+	 *            appropriate or not according to AbstractDiffImply.determinsiticHashcode()
+	 * @return A byte[] containing the updated value...
+	 * @throws HashCodeMismatchException
+	 * @throws BadInputException
+	 */
+	@Override
+	public byte[] applyDiff(byte[] inArray, byte[] inDiff, int targetHashCode)
+			throws HashCodeMismatchException, BadInputException {
+
+		ByteArrayLib.checkHashCode(inArray, targetHashCode);
+
+		return ByteArrayLib.decodeFARDData(inArray, inDiff);
+	}
+
+
+	/**
+	 * Record how well a diff compressed, along with a description of it if
+	 * that bucket doesn't have one or it's been DESCRIBE_INTERVAL diffs since
+	 * we last built one.
+	 */
+	private void reportCompression(int compression, ByteBuffer newBuffer, FARDScratch scratch) {
+
+		final String[] comments = compressionHistogram.getLatencyComment();
+		final int bucket = Math.max(0, Math.min(compression, comments.length - 1));
+		String description = null;
+
+		if (++diffsSinceDescribe >= DESCRIBE_INTERVAL || comments[bucket].isEmpty()) {
+			description = scratch.getEngine().describe(newBuffer, scratch.getDescription());
+			diffsSinceDescribe = 0;
+		}
+
+		compressionHistogram.report(compression, description);
+	}
+
+	/**
+	 * Encoder and decoder scratch space is kept per thread, rather than per
+	 * instance, and shrinks again after an unusually complex diff.
+	 * 
+	 * @return roughly how many bytes of it the calling thread is holding
+	 */
+	public static long getThreadScratchBytes() {
+		return FARDScratch.getThreadRetainedBytes();
+	}
+
+	/**
+	 * Version of calculateDiff for values held in ByteBuffers, which can be
+	 * direct. The bytes between each buffer's position and limit are used, and
+	 * the diff is written straight into outBuffer without being copied through
+	 * a byte[]. The result is the same as calculateDiff(byte[]...) would give.
+	 * 
+	 * @param oldBuffer
+	 *            the old value. Its position isn't changed.
+	 * @param newBuffer
+	 *            the new value. Its position isn't changed.
+	 * @param maxSplits
+	 * @param outBuffer
+	 *            where to write the diff, starting at its position, which is
+	 *            moved past the diff. An economic diff is never longer than
+	 *            oldBuffer.remaining().
+	 * @return how many bytes were written
+	 * @throws TooSmallToDeltaException
+	 * @throws TooBigToDeltaException
+	 * @throws UneconomicToDiffException
+	 * @throws BufferOverflowException
+	 *             if outBuffer doesn't have room. Nothing is written.
+	 */
+	public int calculateDiff(ByteBuffer oldBuffer, ByteBuffer newBuffer, int maxSplits, ByteBuffer outBuffer)
+			throws TooSmallToDeltaException, TooBigToDeltaException, UneconomicToDiffException {
+
+		ByteArrayLib.checkTooSmall(oldBuffer, "old buffer");
+		ByteArrayLib.checkTooSmall(newBuffer, "new buffer");
+		ByteArrayLib.checkTooBig(oldBuffer, "old buffer");
+		ByteArrayLib.checkTooBig(newBuffer, "new buffer");
+
+		final FARDScratch scratch = FARDScratch.acquire();
+
+		try {
+
+			final FARDBufferEngine engine = scratch.getEngine();
 
-		FastAndRuthlessDiffImplByteArrayParts rootArray = new FastAndRuthlessDiffImplByteArrayParts(newArray);
-		diffArrayList.add(rootArray);
+			splitsHistogram.report(engine.split(oldBuffer, newBuffer, maxSplits, options), null);
 
-		int splitTarget = ByteArrayLib.findSplitTarget(diffArrayList);
-		while (splitTarget > -1 && splitCountsThisArray < maxSplits) {
-			
-			splitCountsThisArray += ByteArrayLib.splitByteArrayPartsByContent(diffArrayList, splitTarget, oldArray);
-			splitTarget = ByteArrayLib.findSplitTarget(diffArrayList);
+			final int totalMessageSize = engine.messageSize();
+
+			ByteArrayLib.giveUpIfUneconomic(oldBuffer.remaining(), totalMessageSize);
+
+			if (outBuffer.remaining() < totalMessageSize) {
+				throw new BufferOverflowException();
+			}
+
+			engine.write(newBuffer, outBuffer);
+			outBuffer.position(outBuffer.position() + totalMessageSize);
+
+			reportCompression(100 - ((totalMessageSize * 100) / newBuffer.remaining()), newBuffer, scratch);
+
+			return totalMessageSize;
+
+		} finally {
+			scratch.release();
 		}
+	}
 
-	    splitTarget = ByteArrayLib.findRepeatingGroupTarget(diffArrayList);
-		while (splitTarget > -1 && splitCountsThisArray < maxSplits) {
-			
-			splitCountsThisArray += ByteArrayLib.splitByteArrayPartsByRepeatingBytes(diffArrayList, splitTarget);
-			splitTarget = ByteArrayLib.findRepeatingGroupTarget(diffArrayList);
+	/**
+	 * Version of applyDiff for values held in ByteBuffers, which can be
+	 * direct. The bytes between each buffer's position and limit are used and
+	 * the new value is written straight into outBuffer.
+	 * 
+	 * @param inBuffer
+	 *            the old value. Its position isn't changed.
+	 * @param inDiff
+	 *            FARD data. Its position isn't changed.
+	 * @param targetHashCode
+	 *            deterministicHashcode of the old value
+	 * @param outBuffer
+	 *            where to write the new value, starting at its position, which
+	 *            is moved past it.
+	 * @return how many bytes were written
+	 * @throws HashCodeMismatchException
+	 * @throws BadInputException
+	 * @throws BufferOverflowException
+	 *             if outBuffer doesn't have room. Nothing is written.
+	 */
+	public int applyDiff(ByteBuffer inBuffer, ByteBuffer inDiff, int targetHashCode, ByteBuffer outBuffer)
+			throws HashCodeMismatchException, BadInputException {
+
+		ByteArrayLib.checkHashCode(inBuffer, targetHashCode);
 
+		final int targetLength = FARDValidator.validate(inDiff, inBuffer == null ? 0 : inBuffer.remaining(),
+				Integer.MAX_VALUE - 8);
+
+		if (outBuffer.remaining() < targetLength) {
+			throw new BufferOverflowException();
 		}
 
-		splitsHistogram.report(splitCountsThisArray, null);
+		FARDBufferEngine.decodeValidated(inBuffer, inDiff, outBuffer);
+		outBuffer.position(outBuffer.position() + targetLength);
 
-		FastAndRuthlessDiffImplByteArrayParts[] theParts = new FastAndRuthlessDiffImplByteArrayParts[0];
-		theParts = diffArrayList.toArray(theParts);
+		return targetLength;
+	}
 
-		int totalMessageSize = 0;
+	/**
+	 * Version of applyDiff that writes the new value to an OutputStream as it
+	 * is decoded, rather than building it in an array first. REF and DATA
+	 * blocks are written straight from inArray and inDiff.
+	 * <p>
+	 * inDiff is checked before anything is written, so a bad diff leaves out
+	 * untouched.
+	 * 
+	 * @param inArray
+	 * @param inDiff
+	 * @param targetHashCode
+	 *            deterministicHashcode of inArray
+	 * @param out
+	 *            not flushed or closed
+	 * @return how many bytes were written
+	 * @throws HashCodeMismatchException
+	 * @throws BadInputException
+	 * @throws IOException
+	 *             from out
+	 */
+	public long applyDiff(byte[] inArray, byte[] inDiff, int targetHashCode, OutputStream out)
+			throws HashCodeMismatchException, BadInputException, IOException {
+
+		ByteArrayLib.checkHashCode(inArray, targetHashCode);
+		FARDValidator.validate(inDiff, inArray == null ? 0 : inArray.length);
 
-		for (int i = 0; i < theParts.length; i++) {
-			totalMessageSize += theParts[i].messageSize();
+		final FARDScratch scratch = FARDScratch.acquire();
+
+		try {
+			return FARDStreamDecoder.decodeValidated(inArray, inDiff, out, scratch);
+		} finally {
+			scratch.release();
 		}
+	}
 
-		int pctDecrease = 100 - ((totalMessageSize * 100) / newArray.length);
+	/**
+	 * Version of applyDiff that writes the new value to a channel as it is
+	 * decoded. REF and DATA blocks go out as slices of inBuffer and inDiff,
+	 * batched into gathering writes if the channel supports them, so a
+	 * FileChannel or SocketChannel gets the data without it being copied
+	 * first. The bytes between each buffer's position and limit are used.
+	 * <p>
+	 * inDiff is checked before anything is written, so a bad diff leaves out
+	 * untouched.
+	 * 
+	 * @param inBuffer
+	 *            the old value. Its position isn't changed.
+	 * @param inDiff
+	 *            FARD data. Its position isn't changed.
+	 * @param targetHashCode
+	 *            deterministicHashcode of the old value
+	 * @param out
+	 *            not closed
+	 * @return how many bytes were written
+	 * @throws HashCodeMismatchException
+	 * @throws BadInputException
+	 * @throws IOException
+	 *             from out
+	 */
+	public long applyDiff(ByteBuffer inBuffer, ByteBuffer inDiff, int targetHashCode, WritableByteChannel out)
+			throws HashCodeMismatchException, BadInputException, IOException {
 
-		byte[] outArray = new byte[totalMessageSize];
+		ByteArrayLib.checkHashCode(inBuffer, targetHashCode);
+		FARDValidator.validate(inDiff, inBuffer == null ? 0 : inBuffer.remaining(), Integer.MAX_VALUE - 8);
 
-		ByteArrayLib.giveUpIfUneconomic(oldArray, outArray);
+		final FARDScratch scratch = FARDScratch.acquire();
 
-		StringBuffer descBuffer = new StringBuffer(theParts.length * 10);
-		
-		descBuffer.append("Size=" +  newArray.length  + "->" +totalMessageSize  + " ");
-		
-		int position = 0;
-		for (int i = 0; i < theParts.length; i++) {
-			
-			descBuffer.append(theParts[i]);
+		try {
+			return FARDStreamDecoder.decodeValidated(inBuffer, inDiff, out, scratch);
+		} finally {
+			scratch.release();
+		}
+	}
 
-			byte[] tempArray = theParts[i].getMessageBytes();
+	/**
+	 * Calculate a diff and wrap it in a FARDEnvelope, which records the target
+	 * length and checksums so applyEnvelopedDiff can verify its output.
+	 * 
+	 * @param oldArray
+	 * @param newArray
+	 * @param maxSplits
+	 * @return an enveloped diff
+	 * @throws TooSmallToDeltaException
+	 * @throws TooBigToDeltaException
+	 * @throws UneconomicToDiffException
+	 */
+	public byte[] calculateEnvelopedDiff(byte[] oldArray, byte[] newArray, int maxSplits)
+			throws TooSmallToDeltaException, TooBigToDeltaException, UneconomicToDiffException {
 
-			for (int j = 0; j < tempArray.length; j++) {
-				outArray[position++] = tempArray[j];
+		return FARDEnvelope.wrap(oldArray, newArray, calculateDiff(oldArray, newArray, maxSplits));
+	}
+
+	/**
+	 * Like calculateEnvelopedDiff, but optionally deflates the DATA block
+	 * bytes as well. This helps when literals dominate the diff, as they do for
+	 * text. The compressed form is only used if it's smaller.
+	 * 
+	 * @param oldArray
+	 * @param newArray
+	 * @param maxSplits
+	 * @param compressLiterals
+	 *            true to try deflating literals
+	 * @return an enveloped diff
+	 * @throws TooSmallToDeltaException
+	 * @throws TooBigToDeltaException
+	 * @throws UneconomicToDiffException
+	 */
+	public byte[] calculateEnvelopedDiff(byte[] oldArray, byte[] newArray, int maxSplits, boolean compressLiterals)
+			throws TooSmallToDeltaException, TooBigToDeltaException, UneconomicToDiffException {
+
+		final byte[] fardData = calculateDiff(oldArray, newArray, maxSplits);
+
+		if (compressLiterals) {
+
+			final byte[] compressed = FARDLiteralCoder.compress(fardData);
+
+			if (compressed != null) {
+				return FARDEnvelope.wrap(FARDEnvelope.FLAG_DEFLATED_LITERALS,
+						ByteArrayLib.deterministicHashcode(oldArray), newArray.length,
+						ByteArrayLib.deterministicHashcode(newArray), compressed);
+			}
+		}
+
+		return FARDEnvelope.wrap(oldArray, newArray, fardData);
+	}
+
+	/**
+	 * Calculate an enveloped diff that can also refer to a shared
+	 * FARDDictionary. oldArray may be null, in which case the diff is against
+	 * the dictionary alone - this is how a key's first value can be sent as a
+	 * diff. When there is an old value it usually matches far better than the
+	 * dictionary does, so the dictionary mostly pays off for first writes.
+	 * 
+	 * @param oldArray
+	 *            the key's previous value, or null
+	 * @param newArray
+	 * @param maxSplits
+	 * @param compressLiterals
+	 *            true to try deflating literals
+	 * @param dictionary
+	 *            dictionary the server also has, or null for none
+	 * @return an enveloped diff
+	 * @throws TooSmallToDeltaException
+	 * @throws TooBigToDeltaException
+	 *             if newArray is too big, or there's no oldArray and the
+	 *             dictionary plus newArray won't fit
+	 * @throws UneconomicToDiffException
+	 *             if the diff isn't smaller than newArray
+	 */
+	public byte[] calculateEnvelopedDiff(byte[] oldArray, byte[] newArray, int maxSplits, boolean compressLiterals,
+			FARDDictionary dictionary)
+			throws TooSmallToDeltaException, TooBigToDeltaException, UneconomicToDiffException {
+
+		if (dictionary == null) {
+			return calculateEnvelopedDiff(oldArray, newArray, maxSplits, compressLiterals);
+		}
+
+		final byte[] base = dictionary.withBase(oldArray);
+
+		byte[] fardData;
+
+		try {
+			fardData = calculateDiff(base, newArray, maxSplits);
+		} catch (TooBigToDeltaException e) {
+
+			if (oldArray == null || newArray.length >= ByteArrayLib.FARD_REFERENCE_BLOCK) {
+				throw e;
 			}
 
+			// Dictionary and old value together are too big. Do without the
+			// dictionary.
+			return calculateEnvelopedDiff(oldArray, newArray, maxSplits, compressLiterals);
 		}
 
-		compressionHistogram.report(pctDecrease, descBuffer.toString());
+		// calculateDiff compares against the base, which now includes the
+		// dictionary
+		if (fardData.length >= newArray.length) {
+			throw new UneconomicToDiffException(
+					"delta length of " + fardData.length + " not shorter than " + newArray.length);
+		}
 
-		return outArray;
+		byte flags = FARDEnvelope.FLAG_DICTIONARY;
+
+		if (compressLiterals) {
+
+			final byte[] compressed = FARDLiteralCoder.compress(fardData);
 
+			if (compressed != null) {
+				fardData = compressed;
+				flags |= FARDEnvelope.FLAG_DEFLATED_LITERALS;
+			}
+		}
+
+		return FARDEnvelope.wrap(flags, dictionary.getId(), ByteArrayLib.deterministicHashcode(oldArray),
+				newArray.length, ByteArrayLib.deterministicHashcode(newArray), fardData);
 	}
 
+	/**
+	 * Apply a diff created by calculateEnvelopedDiff. The base checksum in the
+	 * envelope is checked before we decode anything, the output is allocated
+	 * once at the length given in the envelope, and the result is checked
+	 * against the target checksum.
+	 * 
+	 * @param inArray
+	 *            the array the diff was calculated against
+	 * @param inEnvelope
+	 *            output of calculateEnvelopedDiff
+	 * @return A byte[] containing the updated value...
+	 * @throws HashCodeMismatchException
+	 *             inArray isn't the array the diff was calculated against
+	 * @throws BadInputException
+	 *             the envelope is malformed or the output didn't match the
+	 *             target length and checksum
+	 */
+	public byte[] applyEnvelopedDiff(byte[] inArray, byte[] inEnvelope)
+			throws HashCodeMismatchException, BadInputException {
+		return applyEnvelopedDiff(inArray, inEnvelope, (FARDDictionary) null);
+	}
 
 	/**
+	 * Apply an enveloped diff which may refer to a FARDDictionary.
+	 * 
+	 * @param inArray
+	 *            the array the diff was calculated against, or null if it was
+	 *            calculated against the dictionary alone
+	 * @param inEnvelope
+	 *            output of calculateEnvelopedDiff
+	 * @param dictionary
+	 *            the dictionary named in the envelope, or null if it doesn't
+	 *            use one
+	 * @return A byte[] containing the updated value...
+	 * @throws HashCodeMismatchException
+	 * @throws BadInputException
+	 *             as for applyEnvelopedDiff, or the envelope needs a
+	 *             dictionary we weren't given
+	 */
+	public byte[] applyEnvelopedDiff(byte[] inArray, byte[] inEnvelope, FARDDictionary dictionary)
+			throws HashCodeMismatchException, BadInputException {
+
+		if (inEnvelope == null) {
+			throw new BadInputException("Envelope is null");
+		}
+
+		return applyEnvelopedDiff(inArray, inEnvelope, 0, inEnvelope.length, dictionary);
+	}
+
+	/**
+	 * Apply an enveloped diff that is part of a larger array without copying it
+	 * out first.
+	 * 
+	 * @param inArray
+	 *            the array the diff was calculated against
+	 * @param bytes
+	 *            array containing the envelope
+	 * @param offset
+	 *            where the envelope starts
+	 * @param length
+	 *            how long the envelope is
+	 * @return A byte[] containing the updated value...
+	 * @throws HashCodeMismatchException
+	 *             inArray isn't the array the diff was calculated against
+	 * @throws BadInputException
+	 *             the envelope is malformed or the output didn't match the
+	 *             target length and checksum
+	 */
+	public byte[] applyEnvelopedDiff(byte[] inArray, byte[] bytes, int offset, int length)
+			throws HashCodeMismatchException, BadInputException {
+		return applyEnvelopedDiff(inArray, bytes, offset, length, null, null);
+	}
+
+	/**
+	 * Apply an enveloped diff using block checksums the caller keeps for
+	 * inArray, so an envelope with FLAG_BLOCK_CHECKSUMS doesn't need any of
+	 * inArray read to check it.
+	 * 
+	 * @param inArray
+	 *            the array the diff was calculated against
+	 * @param inEnvelope
+	 *            output of calculateEnvelopedDiff
+	 * @param baseBlockChecksums
+	 *            FARDBlockChecksums.of(inArray), or null
+	 * @return A byte[] containing the updated value...
+	 * @throws HashCodeMismatchException
+	 *             inArray isn't the array the diff was calculated against
+	 * @throws BadInputException
+	 *             the envelope is malformed or the output didn't match the
+	 *             target length and checksum
+	 */
+	public byte[] applyEnvelopedDiff(byte[] inArray, byte[] inEnvelope, FARDBlockChecksums baseBlockChecksums)
+			throws HashCodeMismatchException, BadInputException {
+
+		if (inEnvelope == null) {
+			throw new BadInputException("Envelope is null");
+		}
+
+		return applyEnvelopedDiff(inArray, inEnvelope, 0, inEnvelope.length, null, baseBlockChecksums);
+	}
+
+	/**
+	 * Apply an enveloped diff that is part of a larger array and may refer to
+	 * a FARDDictionary.
+	 * 
+	 * @param inArray
+	 *            the array the diff was calculated against
+	 * @param bytes
+	 *            array containing the envelope
+	 * @param offset
+	 *            where the envelope starts
+	 * @param length
+	 *            how long the envelope is
+	 * @param dictionary
+	 *            the dictionary named in the envelope, or null
+	 * @return A byte[] containing the updated value...
+	 * @throws HashCodeMismatchException
+	 *             inArray isn't the array the diff was calculated against
+	 * @throws BadInputException
+	 *             the envelope is malformed, needs a dictionary we weren't
+	 *             given, or the output didn't match the target length and
+	 *             checksum
+	 */
+	public byte[] applyEnvelopedDiff(byte[] inArray, byte[] bytes, int offset, int length, FARDDictionary dictionary)
+			throws HashCodeMismatchException, BadInputException {
+		return applyEnvelopedDiff(inArray, bytes, offset, length, dictionary, null);
+	}
+
+	/**
+	 * Apply an enveloped diff that is part of a larger array, may refer to a
+	 * FARDDictionary, and may carry block checksums the caller already has
+	 * for inArray.
+	 * 
+	 * @param inArray
+	 *            the array the diff was calculated against
+	 * @param bytes
+	 *            array containing the envelope
+	 * @param offset
+	 *            where the envelope starts
+	 * @param length
+	 *            how long the envelope is
+	 * @param dictionary
+	 *            the dictionary named in the envelope, or null
+	 * @param baseBlockChecksums
+	 *            FARDBlockChecksums.of(inArray), or null
+	 * @return A byte[] containing the updated value...
+	 * @throws HashCodeMismatchException
+	 *             inArray isn't the array the diff was calculated against
+	 * @throws BadInputException
+	 *             the envelope is malformed, needs a dictionary we weren't
+	 *             given, or the output didn't match the target length and
+	 *             checksum
+	 */
+	public byte[] applyEnvelopedDiff(byte[] inArray, byte[] bytes, int offset, int length, FARDDictionary dictionary,
+			FARDBlockChecksums baseBlockChecksums) throws HashCodeMismatchException, BadInputException {
+
+		final FARDEnvelope envelope = FARDEnvelope.read(bytes, offset, length);
+
+		envelope.checkBase(inArray, baseBlockChecksums);
+
+		if (envelope.usesDictionary()) {
+
+			if (dictionary == null || dictionary.getId() != envelope.getDictionaryId()) {
+				throw new BadInputException("Diff needs dictionary " + envelope.getDictionaryId() + ", we have "
+						+ (dictionary == null ? "none" : dictionary.getId()));
+			}
+
+			inArray = dictionary.withBase(inArray);
+		}
+
+		byte[] outArray = new byte[envelope.getTargetLength()];
+
+		final int written;
+
+		if (envelope.isPlainFARDData()) {
+			written = ByteArrayLib.decodeFARDData(inArray, 0, inArray == null ? 0 : inArray.length, bytes,
+					envelope.getPayloadOffset(), envelope.getPayloadLength(), outArray, 0);
+		} else {
+			final byte[] fardData = envelope.getFARDData(bytes);
+			written = ByteArrayLib.decodeFARDData(inArray, 0, inArray == null ? 0 : inArray.length, fardData, 0,
+					fardData.length, outArray, 0);
+		}
+
+		if (written != outArray.length) {
+			throw new BadInputException("Decoded " + written + " bytes, expected " + outArray.length);
+		}
+
+		final int actualChecksum = ByteArrayLib.deterministicHashcode(outArray);
+
+		if (actualChecksum != envelope.getTargetChecksum()) {
+			throw new BadInputException(
+					"Target checksum: Got " + actualChecksum + ", expected " + envelope.getTargetChecksum());
+		}
+
+		return outArray;
+	}
+
+	/**
+	 * Like applyDiff, but when the new value is the same length as inArray we
+	 * overwrite inArray instead of allocating a new byte[].
+	 * 
 	 * @param inArray
 	 *            An arbitrary length of byte[] that could be null, byte[0],
-	 *            byte[n]...
+	 *            byte[n]... May be modified.
 	 * @param inDiff
 	 *            A byte[] which can be used to turn oldArray into newArray...
-	 *            How this happens is up to the implementing class...
 	 * @param targetHashCode
 	 *            an int that is used to sanity check whether inDiff is
-	 *            appropriate or not according to AbstractDiffImply.determinsiticHashcode()
-	 * @return A byte[] containing the updated value...
+	 *            appropriate or not according to ByteArrayLib.determinsiticHashcode()
+	 * @return inArray, if we could change it in place, otherwise a new byte[]
+	 *         containing the updated value...
 	 * @throws HashCodeMismatchException
 	 * @throws BadInputException
 	 */
-	@Override
-	public byte[] applyDiff(byte[] inArray, byte[] inDiff, int targetHashCode) throws HashCodeMismatchException {
+	public byte[] applyDiffInPlace(byte[] inArray, byte[] inDiff, int targetHashCode)
+			throws HashCodeMismatchException, BadInputException {
 
 		ByteArrayLib.checkHashCode(inArray, targetHashCode);
 
+		if (inArray != null && ByteArrayLib.decodeFARDDataInPlace(inArray, inDiff)) {
+			return inArray;
+		}
+
 		return ByteArrayLib.decodeFARDData(inArray, inDiff);
 	}
 
 
-
 	/**
 	 * 
 	 */
@@ -175,6 +718,14 @@ public class FastAndRuthlessDiffImpl  implements ArrayDiffIFace {
 		return description;
 	}
 
+	public FARDOptions getOptions() {
+		return options;
+	}
+
+	public void setOptions(FARDOptions options) {
+		this.options = options;
+	}
+
 	public StatsHistogram getCompressionHistogram() {
 		return compressionHistogram;
 	}
@@ -28,6 +28,10 @@ import org.voltdb.voltutil.binarydiff.exceptions.TooBigToDeltaException;
 
 /**
  * A class representing a chunk of FastAndRuthlessDiffImpl encoded data.
+ * <p>
+ * calculateDiff no longer builds lists of these - it keeps the same
+ * information in parallel arrays in FARDBufferEngine - but the ByteArrayLib
+ * methods that work on them are still here for anyone calling them directly.
  * 
  * @author drolfe
  *
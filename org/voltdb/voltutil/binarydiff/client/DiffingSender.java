@@ -0,0 +1,357 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.client;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooBigToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooSmallToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+/**
+ * Sends new values to a server as diffs whenever it can, so callers don't have
+ * to keep old values, calculate hashcodes or catch the exceptions that mean
+ * "send it in full".
+ * <p>
+ * We remember the last value the server acknowledged for each key in a least
+ * recently used cache bounded by key count and bytes. If we have a value for a
+ * key and the diff pays, we send the diff. Otherwise, or if the server says its
+ * value isn't the one we diffed against, we send the full value.
+ * <p>
+ * A KeyEconomics remembers which keys' diffs don't pay, and for those we send
+ * the full value without calling calculateDiff, apart from the occasional
+ * retry.
+ * <p>
+ * Safe to use from many threads, as long as two threads don't send the same
+ * key at the same time.
+ *
+ */
+public class DiffingSender {
+
+	private final DiffingSenderOptions options;
+
+	private final DiffingSenderTransport transport;
+
+	// Access ordered, so iteration starts with the least recently used.
+	// Guarded by this.
+	private final LinkedHashMap<String, ValueSnapshot> cache = new LinkedHashMap<String, ValueSnapshot>(16, 0.75f,
+			true);
+
+	private long cachedBytes = 0;
+
+	// FastAndRuthlessDiffImpl keeps unsynchronized stats
+	private final ThreadLocal<FastAndRuthlessDiffImpl> impl = new ThreadLocal<FastAndRuthlessDiffImpl>() {
+		@Override
+		protected FastAndRuthlessDiffImpl initialValue() {
+			return new FastAndRuthlessDiffImpl();
+		}
+	};
+
+	// null if options.getEconomicsWidth() is 0
+	private final KeyEconomics economics;
+
+	private long sends = 0;
+	private long cacheHits = 0;
+	private long diffsSent = 0;
+	private long fullsSent = 0;
+	private long notWorthDiffing = 0;
+	private long diffsSkipped = 0;
+	private long resyncs = 0;
+	private long evictions = 0;
+	private long valueBytes = 0;
+	private long bytesSent = 0;
+
+	/**
+	 * @param options
+	 * @param transport
+	 *            how to reach the server
+	 */
+	public DiffingSender(DiffingSenderOptions options, DiffingSenderTransport transport) {
+		this.options = options;
+		this.transport = transport;
+		this.economics = options.getEconomicsWidth() > 0
+				? new KeyEconomics(options.getEconomicsWidth(), KeyEconomics.DEFAULT_MIN_PAY_RATE,
+						KeyEconomics.DEFAULT_REPROBE_INTERVAL)
+				: null;
+	}
+
+	/**
+	 * Get a new value for a key to the server, as a diff if possible.
+	 * 
+	 * @param key
+	 * @param value
+	 *            the new value. We keep our own copy.
+	 * @return true if we sent a diff, false if we sent the full value
+	 * @throws IOException
+	 *             if the transport failed. We forget the key, since we don't
+	 *             know what the server has.
+	 */
+	public boolean send(String key, byte[] value) throws IOException {
+
+		final ValueSnapshot previous;
+
+		synchronized (this) {
+			previous = cache.get(key);
+			sends++;
+			valueBytes += value.length;
+			if (previous != null) {
+				cacheHits++;
+			}
+		}
+
+		final int newHashcode = ByteArrayLib.deterministicHashcode(value);
+
+		try {
+
+			if (previous != null && economics != null && !economics.shouldDiff(key, value.length)) {
+
+				synchronized (this) {
+					diffsSkipped++;
+				}
+
+			} else if (previous != null) {
+
+				byte[] diff = null;
+				final long start = System.nanoTime();
+
+				try {
+					diff = impl.get().calculateDiff(previous.get(), value, options.getMaxSplits());
+				} catch (TooSmallToDeltaException | TooBigToDeltaException | UneconomicToDiffException e) {
+					synchronized (this) {
+						notWorthDiffing++;
+					}
+				}
+
+				if (economics != null) {
+					economics.record(key, diff != null, System.nanoTime() - start, value.length);
+				}
+
+				if (diff != null) {
+					try {
+						transport.sendDiff(key, diff, previous.hashcode);
+						remember(key, value, newHashcode, diff.length, true);
+						return true;
+					} catch (HashCodeMismatchException e) {
+						// Server has something else. Fall through and send it all.
+						synchronized (this) {
+							resyncs++;
+							bytesSent += diff.length;
+						}
+					}
+				}
+			}
+
+			transport.sendFull(key, value);
+			remember(key, value, newHashcode, value.length, false);
+			return false;
+
+		} catch (IOException | RuntimeException e) {
+			forget(key);
+			throw e;
+		}
+	}
+
+	/**
+	 * Record that the server now has value for key.
+	 */
+	private void remember(String key, byte[] value, int hashcode, int sentLength, boolean wasDiff) {
+
+		// Copying, and maybe compressing, the value is the expensive part, so
+		// do it before we take the lock. null means we'll never be able to diff
+		// against it.
+		final ValueSnapshot snapshot = value.length < ByteArrayLib.FAST_RUTHLESS_MINIMUM_POSSIBLE_SIZE ? null
+				: ValueSnapshot.create(value, hashcode, options.getCacheMode());
+
+		synchronized (this) {
+
+			bytesSent += sentLength;
+
+			if (wasDiff) {
+				diffsSent++;
+			} else {
+				fullsSent++;
+			}
+
+			if (snapshot == null) {
+				forget(key);
+			} else {
+				cache(key, snapshot);
+			}
+		}
+	}
+
+	/**
+	 * Add snapshot to the cache and evict until we're within limits. Caller
+	 * holds the lock.
+	 */
+	private void cache(String key, ValueSnapshot snapshot) {
+
+		ValueSnapshot old = cache.put(key, snapshot);
+
+		if (old != null) {
+			cachedBytes -= old.storedSize();
+		}
+
+		cachedBytes += snapshot.storedSize();
+
+		Iterator<Map.Entry<String, ValueSnapshot>> it = cache.entrySet().iterator();
+
+		while ((cache.size() > options.getMaxKeys() || cachedBytes > options.getMaxBytes()) && it.hasNext()) {
+
+			Map.Entry<String, ValueSnapshot> eldest = it.next();
+			cachedBytes -= eldest.getValue().storedSize();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Forget what we sent for a key, so the next send is a full value. Call
+	 * this if the key was changed on the server by someone else.
+	 * 
+	 * @param key
+	 */
+	public synchronized void forget(String key) {
+
+		ValueSnapshot old = cache.remove(key);
+
+		if (old != null) {
+			cachedBytes -= old.storedSize();
+		}
+	}
+
+	/**
+	 * @return how many calls to send() there have been
+	 */
+	public synchronized long getSends() {
+		return sends;
+	}
+
+	/**
+	 * @return sends where we had a previous value for the key
+	 */
+	public synchronized long getCacheHits() {
+		return cacheHits;
+	}
+
+	/**
+	 * @return cache hits as a % of sends
+	 */
+	public synchronized int getHitRatePct() {
+		return sends == 0 ? 0 : (int) (cacheHits * 100 / sends);
+	}
+
+	public synchronized long getDiffsSent() {
+		return diffsSent;
+	}
+
+	public synchronized long getFullsSent() {
+		return fullsSent;
+	}
+
+	/**
+	 * @return cache hits where calculateDiff said it wasn't worth it
+	 */
+	public synchronized long getNotWorthDiffing() {
+		return notWorthDiffing;
+	}
+
+	/**
+	 * @return cache hits where we didn't try calculateDiff, because diffs for
+	 *         that key haven't been paying
+	 */
+	public synchronized long getDiffsSkipped() {
+		return diffsSkipped;
+	}
+
+	/**
+	 * @return what we know about which keys are worth diffing, including an
+	 *         estimate of the CPU time skipping saved. null if turned off.
+	 */
+	public KeyEconomics getEconomics() {
+		return economics;
+	}
+
+	/**
+	 * @return diffs the server rejected with a hashcode mismatch
+	 */
+	public synchronized long getResyncs() {
+		return resyncs;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return what sending every value in full would have cost
+	 */
+	public synchronized long getValueBytes() {
+		return valueBytes;
+	}
+
+	/**
+	 * @return diff and value bytes actually sent, including rejected diffs
+	 */
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return getValueBytes() - getBytesSent()
+	 */
+	public synchronized long getBytesSaved() {
+		return valueBytes - bytesSent;
+	}
+
+	public synchronized int getCachedKeys() {
+		return cache.size();
+	}
+
+	/**
+	 * @return bytes used by cached values, as stored
+	 */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	public DiffingSenderOptions getOptions() {
+		return options;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Sends=" + sends + " HitRate=" + getHitRatePct() + "% Diffs=" + diffsSent + " Fulls=" + fullsSent
+				+ " NotWorthDiffing=" + notWorthDiffing + " Skipped=" + diffsSkipped + " Resyncs=" + resyncs
+				+ " Evictions=" + evictions + " Bytes=" + valueBytes + "->" + bytesSent + " Cached=" + cache.size()
+				+ "/" + cachedBytes;
+	}
+
+}
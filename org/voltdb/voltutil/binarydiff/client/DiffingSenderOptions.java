@@ -0,0 +1,99 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.client;
+
+/**
+ * Settings for a {@link DiffingSender}.
+ *
+ */
+public class DiffingSenderOptions {
+
+	/**
+	 * How the last acknowledged value for each key is kept.
+	 */
+	public enum CacheMode {
+		/** Plain byte[] copies. Fastest, uses the most heap. */
+		HEAP,
+		/** Direct ByteBuffers, so the cache doesn't add to GC work. */
+		OFF_HEAP,
+		/** Deflated at level 1. Smallest, costs CPU on every send. */
+		COMPRESSED
+	}
+
+	// Most keys to remember
+	int maxKeys = 10000;
+
+	// Most bytes of snapshots to remember, as stored
+	long maxBytes = 64L * 1024 * 1024;
+
+	// Passed to calculateDiff
+	int maxSplits = 100;
+
+	CacheMode cacheMode = CacheMode.HEAP;
+
+	// Cells per row of the KeyEconomics that decides which keys aren't worth
+	// diffing. 0 means diff every key we have a previous value for.
+	int economicsWidth = KeyEconomics.DEFAULT_WIDTH;
+
+	public int getMaxKeys() {
+		return maxKeys;
+	}
+
+	public void setMaxKeys(int maxKeys) {
+		this.maxKeys = Math.max(1, maxKeys);
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = Math.max(1, maxBytes);
+	}
+
+	public int getMaxSplits() {
+		return maxSplits;
+	}
+
+	public void setMaxSplits(int maxSplits) {
+		this.maxSplits = maxSplits;
+	}
+
+	public CacheMode getCacheMode() {
+		return cacheMode;
+	}
+
+	public void setCacheMode(CacheMode cacheMode) {
+		this.cacheMode = cacheMode;
+	}
+
+	public int getEconomicsWidth() {
+		return economicsWidth;
+	}
+
+	public void setEconomicsWidth(int economicsWidth) {
+		this.economicsWidth = Math.max(0, economicsWidth);
+	}
+
+}
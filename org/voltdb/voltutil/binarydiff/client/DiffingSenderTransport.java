@@ -0,0 +1,64 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.client;
+
+import java.io.IOException;
+
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+
+/**
+ * How a {@link DiffingSender} talks to the server. Typically each method calls
+ * a stored procedure, like the DiffedUpdate example in the README.
+ *
+ */
+public interface DiffingSenderTransport {
+
+	/**
+	 * Send a complete value, replacing whatever the server has.
+	 * 
+	 * @param key
+	 * @param value
+	 * @throws IOException
+	 *             if the server didn't accept it
+	 */
+	public void sendFull(String key, byte[] value) throws IOException;
+
+	/**
+	 * Send a diff for the server to apply to its current value.
+	 * 
+	 * @param key
+	 * @param diff
+	 *            output of calculateDiff
+	 * @param baseHashcode
+	 *            deterministicHashcode of the value the diff was calculated
+	 *            against
+	 * @throws HashCodeMismatchException
+	 *             if the server's value isn't the one we diffed against. The
+	 *             sender will follow up with sendFull.
+	 * @throws IOException
+	 *             if the server didn't accept it for some other reason
+	 */
+	public void sendDiff(String key, byte[] diff, int baseHashcode) throws HashCodeMismatchException, IOException;
+
+}
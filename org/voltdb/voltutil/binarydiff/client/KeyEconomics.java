@@ -0,0 +1,255 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Remembers which keys' diffs pay, so we can stop calling calculateDiff for
+ * keys holding encrypted or completely rewritten values, which only ever end
+ * in UneconomicToDiffException after we've done all the work.
+ * <p>
+ * Memory use is fixed whatever the number of keys. Like a count-min sketch,
+ * each key hashes to one cell in each of ROWS rows of width cells. A cell holds
+ * a moving average of how often the diffs that landed there paid. We only skip
+ * a key if every one of its cells says its diffs rarely pay, so a key that
+ * shares cells with a good one is diffed rather than skipped. One in
+ * reprobeInterval skipped keys is diffed anyway, so a key whose data changes
+ * gets another chance.
+ * <p>
+ * We also keep how long failed diffs took per byte of value, so we can
+ * estimate how much CPU the skips saved. Safe to use from many threads.
+ *
+ */
+public class KeyEconomics {
+
+	public static final int ROWS = 4;
+
+	public static final int DEFAULT_WIDTH = 4096;
+
+	public static final double DEFAULT_MIN_PAY_RATE = 0.1;
+
+	public static final int DEFAULT_REPROBE_INTERVAL = 16;
+
+	// A cell is a fixed point pay rate: 0 never pays, ALWAYS_PAYS always does
+	private static final int ALWAYS_PAYS = Short.MAX_VALUE;
+
+	// Each outcome moves a cell 1 / 2^MOVING_AVERAGE_SHIFT of the way
+	private static final int MOVING_AVERAGE_SHIFT = 1;
+
+	// Odd multipliers for each row's hash
+	private static final int[] ROW_SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+
+	private final short[] cells;
+
+	private final int widthBits;
+
+	private final int minPayRate;
+
+	private final int reprobeInterval;
+
+	private long predictions = 0;
+	private long skips = 0;
+	private long skippedBytes = 0;
+	private long reprobes = 0;
+	private long reprobesThatPaid = 0;
+
+	private long failedDiffs = 0;
+	private long failedBytes = 0;
+	private long failedNanos = 0;
+
+	public KeyEconomics() {
+		this(DEFAULT_WIDTH, DEFAULT_MIN_PAY_RATE, DEFAULT_REPROBE_INTERVAL);
+	}
+
+	/**
+	 * @param width
+	 *            cells per row, rounded up to a power of 2. More keys than
+	 *            this means more sharing of cells, and fewer skips.
+	 * @param minPayRate
+	 *            skip keys whose diffs pay less often than this, between 0
+	 *            and 1
+	 * @param reprobeInterval
+	 *            diff one in this many keys we'd otherwise skip
+	 */
+	public KeyEconomics(int width, double minPayRate, int reprobeInterval) {
+
+		widthBits = 32 - Integer.numberOfLeadingZeros(Math.max(2, Math.min(1 << 24, width)) - 1);
+		cells = new short[ROWS << widthBits];
+
+		// Start off assuming keys are worth diffing
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = ALWAYS_PAYS;
+		}
+
+		this.minPayRate = (int) (Math.max(0, Math.min(1, minPayRate)) * ALWAYS_PAYS);
+		this.reprobeInterval = Math.max(1, reprobeInterval);
+	}
+
+	/**
+	 * @param key
+	 * @param valueLength
+	 *            how big the new value is, for the CPU saved estimate
+	 * @return false if diffs for this key don't pay, so calculateDiff should
+	 *         be skipped
+	 */
+	public synchronized boolean shouldDiff(String key, int valueLength) {
+
+		predictions++;
+
+		final int hash = key.hashCode();
+
+		for (int row = 0; row < ROWS; row++) {
+			if (cells[cell(hash, row)] >= minPayRate) {
+				return true;
+			}
+		}
+
+		if (ThreadLocalRandom.current().nextInt(reprobeInterval) == 0) {
+			reprobes++;
+			return true;
+		}
+
+		skips++;
+		skippedBytes += valueLength;
+		return false;
+	}
+
+	/**
+	 * Record how a diff for key went.
+	 * 
+	 * @param key
+	 * @param paid
+	 *            false if calculateDiff said it wasn't worth it
+	 * @param nanos
+	 *            how long calculateDiff took
+	 * @param valueLength
+	 *            how big the new value was
+	 */
+	public synchronized void record(String key, boolean paid, long nanos, int valueLength) {
+
+		final int hash = key.hashCode();
+		boolean wasSkippable = true;
+
+		for (int row = 0; row < ROWS; row++) {
+
+			final int index = cell(hash, row);
+
+			if (cells[index] >= minPayRate) {
+				wasSkippable = false;
+			}
+
+			final int target = paid ? ALWAYS_PAYS : 0;
+			cells[index] += (target - cells[index]) >> MOVING_AVERAGE_SHIFT;
+
+			// The shift rounds towards minus infinity, so make sure a cell
+			// can still get all the way back up
+			if (paid && cells[index] < ALWAYS_PAYS && cells[index] >= ALWAYS_PAYS - (1 << MOVING_AVERAGE_SHIFT)) {
+				cells[index] = ALWAYS_PAYS;
+			}
+		}
+
+		if (wasSkippable && paid) {
+			reprobesThatPaid++;
+		}
+
+		if (!paid) {
+			failedDiffs++;
+			failedBytes += valueLength;
+			failedNanos += nanos;
+		}
+	}
+
+	private int cell(int hash, int row) {
+		return (row << widthBits) + ((hash * ROW_SEEDS[row]) >>> (32 - widthBits));
+	}
+
+	/**
+	 * @return how many times shouldDiff has been asked
+	 */
+	public synchronized long getPredictions() {
+		return predictions;
+	}
+
+	/**
+	 * @return how many diffs we told the caller to skip
+	 */
+	public synchronized long getSkips() {
+		return skips;
+	}
+
+	/**
+	 * @return total length of the values whose diffs we skipped
+	 */
+	public synchronized long getSkippedBytes() {
+		return skippedBytes;
+	}
+
+	/**
+	 * @return how many times we said to diff a key we'd otherwise skip
+	 */
+	public synchronized long getReprobes() {
+		return reprobes;
+	}
+
+	/**
+	 * @return reprobes where the diff turned out to pay
+	 */
+	public synchronized long getReprobesThatPaid() {
+		return reprobesThatPaid;
+	}
+
+	public synchronized long getFailedDiffs() {
+		return failedDiffs;
+	}
+
+	/**
+	 * @return how long the skipped diffs would have taken, going by how long
+	 *         failed diffs took per byte of value
+	 */
+	public synchronized long getEstimatedNanosSaved() {
+
+		if (failedBytes == 0) {
+			return 0;
+		}
+
+		return (long) ((double) skippedBytes * failedNanos / failedBytes);
+	}
+
+	/**
+	 * @return roughly how many bytes of heap this uses
+	 */
+	public long getSizeBytes() {
+		return cells.length * 2L;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Predictions=" + predictions + " Skips=" + skips + " SkippedBytes=" + skippedBytes + " Reprobes="
+				+ reprobes + "/" + reprobesThatPaid + " FailedDiffs=" + failedDiffs + " EstimatedMsSaved="
+				+ (getEstimatedNanosSaved() / 1000000);
+	}
+
+}
@@ -0,0 +1,199 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A value the server has acknowledged, stored in one of the ways listed in
+ * {@link DiffingSenderOptions.CacheMode}.
+ *
+ */
+abstract class ValueSnapshot {
+
+	// deterministicHashcode of the value, so we don't recalculate it per send
+	final int hashcode;
+
+	final int length;
+
+	private ValueSnapshot(int hashcode, int length) {
+		this.hashcode = hashcode;
+		this.length = length;
+	}
+
+	/**
+	 * @return a copy of the value
+	 */
+	abstract byte[] get();
+
+	/**
+	 * @return how many bytes this snapshot occupies
+	 */
+	abstract int storedSize();
+
+	/**
+	 * @param value
+	 * @param hashcode
+	 *            deterministicHashcode of value
+	 * @param mode
+	 * @return a snapshot of value
+	 */
+	static ValueSnapshot create(byte[] value, int hashcode, DiffingSenderOptions.CacheMode mode) {
+
+		switch (mode) {
+		case OFF_HEAP:
+			return new OffHeap(value, hashcode);
+		case COMPRESSED:
+			return new Compressed(value, hashcode);
+		default:
+			return new Heap(value, hashcode);
+		}
+	}
+
+	private static class Heap extends ValueSnapshot {
+
+		private final byte[] value;
+
+		Heap(byte[] value, int hashcode) {
+			super(hashcode, value.length);
+			this.value = value.clone();
+		}
+
+		@Override
+		byte[] get() {
+			return value.clone();
+		}
+
+		@Override
+		int storedSize() {
+			return value.length;
+		}
+	}
+
+	private static class OffHeap extends ValueSnapshot {
+
+		private final ByteBuffer buffer;
+
+		OffHeap(byte[] value, int hashcode) {
+			super(hashcode, value.length);
+			buffer = ByteBuffer.allocateDirect(value.length);
+			buffer.put(value);
+		}
+
+		@Override
+		byte[] get() {
+			byte[] value = new byte[length];
+			buffer.duplicate().position(0).get(value);
+			return value;
+		}
+
+		@Override
+		int storedSize() {
+			return length;
+		}
+	}
+
+	private static class Compressed extends ValueSnapshot {
+
+		// Deflater and Inflater hold native memory, so reuse them
+		private static final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(Deflater.BEST_SPEED, true);
+			}
+		};
+
+		private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+			@Override
+			protected Inflater initialValue() {
+				return new Inflater(true);
+			}
+		};
+
+		private final byte[] compressed;
+
+		Compressed(byte[] value, int hashcode) {
+
+			super(hashcode, value.length);
+
+			Deflater d = deflater.get();
+			d.reset();
+			d.setInput(value);
+			d.finish();
+
+			// Level 1 on incompressible data can come out slightly bigger
+			byte[] buffer = new byte[value.length + (value.length >> 4) + 64];
+			int size = 0;
+
+			while (!d.finished()) {
+				if (size == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+				size += d.deflate(buffer, size, buffer.length - size);
+			}
+
+			compressed = Arrays.copyOf(buffer, size);
+		}
+
+		@Override
+		byte[] get() {
+
+			Inflater i = inflater.get();
+			i.reset();
+			i.setInput(compressed);
+
+			byte[] value = new byte[length];
+
+			try {
+				int size = 0;
+				while (size < length && !i.finished()) {
+					final int n = i.inflate(value, size, length - size);
+					if (n == 0 && (i.needsInput() || i.needsDictionary())) {
+						break;
+					}
+					size += n;
+				}
+
+				if (size != length) {
+					throw new IllegalStateException("Snapshot inflated to " + size + " bytes, expected " + length);
+				}
+
+			} catch (DataFormatException e) {
+				throw new IllegalStateException("Snapshot is corrupt", e);
+			}
+
+			return value;
+		}
+
+		@Override
+		int storedSize() {
+			return compressed.length;
+		}
+	}
+
+}
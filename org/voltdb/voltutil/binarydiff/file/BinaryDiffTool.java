@@ -0,0 +1,129 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Command line front end for {@link FileDiff}:
+ * 
+ * <pre>
+ * binarydiff [-w windowSize] [-s maxSplits] diff oldFile newFile diffFile
+ * binarydiff patch oldFile diffFile newFile
+ * </pre>
+ * 
+ * Prints throughput, compression and peak resident set size when done.
+ *
+ */
+public class BinaryDiffTool {
+
+	public static void main(String[] args) {
+
+		int windowSize = FileDiff.DEFAULT_WINDOW_SIZE;
+		int maxSplits = FileDiff.DEFAULT_MAX_SPLITS;
+		int arg = 0;
+
+		try {
+			while (arg < args.length - 1 && args[arg].startsWith("-")) {
+				if (args[arg].equals("-w")) {
+					windowSize = Integer.parseInt(args[arg + 1]);
+				} else if (args[arg].equals("-s")) {
+					maxSplits = Integer.parseInt(args[arg + 1]);
+				} else {
+					usage("Unknown option " + args[arg]);
+				}
+				arg += 2;
+			}
+		} catch (NumberFormatException e) {
+			usage("Bad number " + e.getMessage());
+		}
+
+		if (args.length - arg != 4) {
+			usage(null);
+		}
+
+		final String command = args[arg];
+		final File first = new File(args[arg + 1]);
+		final File second = new File(args[arg + 2]);
+		final File third = new File(args[arg + 3]);
+
+		try {
+
+			final FileDiff fileDiff = new FileDiff(windowSize, maxSplits);
+			FileDiffStats stats = null;
+
+			if (command.equals("diff")) {
+				stats = fileDiff.diff(first, second, third);
+			} else if (command.equals("patch")) {
+				stats = fileDiff.patch(first, second, third);
+			} else {
+				usage("Unknown command " + command);
+			}
+
+			System.out.println(command + ": " + stats + " PeakRSS=" + getPeakRssKb() + "KB MaxHeap="
+					+ (Runtime.getRuntime().maxMemory() / 1024) + "KB");
+
+		} catch (Exception e) {
+			System.err.println(command + " failed: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return VmHWM from /proc/self/status, or -1 if we aren't on Linux
+	 */
+	static long getPeakRssKb() {
+
+		try {
+			List<String> lines = Files.readAllLines(new File("/proc/self/status").toPath(), StandardCharsets.UTF_8);
+
+			for (String line : lines) {
+				if (line.startsWith("VmHWM:")) {
+					return Long.parseLong(line.substring(6).replace("kB", "").trim());
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			// Not Linux
+		}
+
+		return -1;
+	}
+
+	private static void usage(String problem) {
+
+		if (problem != null) {
+			System.err.println(problem);
+		}
+
+		System.err.println("Usage: binarydiff [-w windowSize] [-s maxSplits] diff oldFile newFile diffFile");
+		System.err.println("       binarydiff [-w windowSize] [-s maxSplits] patch oldFile diffFile newFile");
+		System.exit(2);
+	}
+
+}
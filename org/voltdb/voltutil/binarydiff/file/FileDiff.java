@@ -0,0 +1,484 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooBigToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooSmallToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+/**
+ * Diffs and patches files of any size.
+ * <p>
+ * FARD references are shorts, so the new file is split into windows of up to
+ * windowSize bytes and each window is diffed against a MAX_BASE_LENGTH byte
+ * window of the old file, centred where we expect its content to be. Where
+ * that is moves as we go: the last REF block of each window tells us how far
+ * the old file's content has drifted from the new file's, so insertions and
+ * deletions are followed as long as no single one is more than about
+ * (MAX_BASE_LENGTH - windowSize) / 2 bytes.
+ * <p>
+ * Both inputs are memory-mapped and diffed through the ByteBuffer methods of
+ * FastAndRuthlessDiffImpl, and each window's record is written to the output
+ * as soon as it is made, so the only heap we use is a couple of window-sized
+ * buffers. Not thread safe.
+ * <p>
+ * Layout of a diff file, little endian:
+ * 
+ * <pre>
+ * int   MAGIC
+ * int   FORMAT_VERSION
+ * long  oldLength
+ * long  newLength
+ * int   windowSize
+ * records...
+ * </pre>
+ * 
+ * Each record is:
+ * 
+ * <pre>
+ * byte  type             WINDOW_DIFF or WINDOW_RAW
+ * int   length           bytes of the new file in this window
+ * int   crc              CRC32 of them
+ * long  baseOffset       WINDOW_DIFF only: where the base is in the old file
+ * int   baseLength       WINDOW_DIFF only
+ * int   baseHashcode     WINDOW_DIFF only: deterministicHashcode of the base
+ * int   diffLength       WINDOW_DIFF only
+ * ...   payload          FARD data, or length bytes for WINDOW_RAW
+ * </pre>
+ *
+ */
+public class FileDiff {
+
+	static final int MAGIC = 0x46415244;
+
+	static final int FORMAT_VERSION = 1;
+
+	static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+	/**
+	 * Record holds FARD data for the window.
+	 */
+	public static final byte WINDOW_DIFF = 1;
+
+	/**
+	 * Record holds the window as it is.
+	 */
+	public static final byte WINDOW_RAW = 2;
+
+	// type + length + crc
+	static final int RAW_HEADER_SIZE = 1 + 4 + 4;
+
+	// ... + baseOffset + baseLength + baseHashcode + diffLength
+	static final int DIFF_HEADER_SIZE = RAW_HEADER_SIZE + 8 + 4 + 4 + 4;
+
+	/**
+	 * Largest base or window FARD can handle.
+	 */
+	public static final int MAX_BASE_LENGTH = Short.MAX_VALUE - 3;
+
+	public static final int DEFAULT_WINDOW_SIZE = 16384;
+
+	public static final int DEFAULT_MAX_SPLITS = 100;
+
+	private final int windowSize;
+
+	private final int maxSplits;
+
+	private final FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+	private final CRC32 crc = new CRC32();
+
+	// One record, or one window of output when patching
+	private final ByteBuffer scratch = ByteBuffer.allocateDirect(DIFF_HEADER_SIZE + MAX_BASE_LENGTH)
+			.order(ByteOrder.LITTLE_ENDIAN);
+
+	public FileDiff() {
+		this(DEFAULT_WINDOW_SIZE, DEFAULT_MAX_SPLITS);
+	}
+
+	/**
+	 * @param windowSize
+	 *            how much of the new file each record covers. Smaller windows
+	 *            follow bigger insertions and deletions. At most
+	 *            MAX_BASE_LENGTH.
+	 * @param maxSplits
+	 *            passed to calculateDiff for each window
+	 */
+	public FileDiff(int windowSize, int maxSplits) {
+
+		if (windowSize < ByteArrayLib.FAST_RUTHLESS_MINIMUM_POSSIBLE_SIZE || windowSize > MAX_BASE_LENGTH) {
+			throw new IllegalArgumentException("Window size of " + windowSize + " must be between "
+					+ ByteArrayLib.FAST_RUTHLESS_MINIMUM_POSSIBLE_SIZE + " and " + MAX_BASE_LENGTH);
+		}
+
+		this.windowSize = windowSize;
+		this.maxSplits = maxSplits;
+	}
+
+	/**
+	 * Write a file to diffFile that patch() can use to turn oldFile into
+	 * newFile.
+	 * 
+	 * @param oldFile
+	 * @param newFile
+	 * @param diffFile
+	 *            created or overwritten
+	 * @return stats
+	 * @throws IOException
+	 */
+	public FileDiffStats diff(File oldFile, File newFile, File diffFile) throws IOException {
+
+		checkNotSameFile(diffFile, oldFile);
+		checkNotSameFile(diffFile, newFile);
+
+		final long start = System.nanoTime();
+
+		long diffWindows = 0;
+		long rawWindows = 0;
+		long diffLength = HEADER_SIZE;
+
+		try (MappedInput oldInput = new MappedInput(oldFile);
+				MappedInput newInput = new MappedInput(newFile);
+				FileChannel out = FileChannel.open(diffFile.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+			final long oldLength = oldInput.length();
+			final long newLength = newInput.length();
+			final int baseLength = (int) Math.min(MAX_BASE_LENGTH, oldLength);
+
+			scratch.clear();
+			scratch.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(oldLength).putLong(newLength).putInt(windowSize);
+			write(out);
+
+			// Where the old file's content is, relative to the new file's
+			long drift = 0;
+
+			for (long newPosition = 0; newPosition < newLength; newPosition += windowSize) {
+
+				final int length = (int) Math.min(windowSize, newLength - newPosition);
+				final ByteBuffer window = newInput.slice(newPosition, length);
+
+				crc.reset();
+				crc.update(window.duplicate());
+
+				final long baseOffset = Math.max(0,
+						Math.min(oldLength - baseLength, newPosition + drift - ((baseLength - length) / 2)));
+
+				int payloadLength = -1;
+
+				if (baseLength >= ByteArrayLib.FAST_RUTHLESS_MINIMUM_POSSIBLE_SIZE) {
+
+					final ByteBuffer base = oldInput.slice(baseOffset, baseLength);
+
+					scratch.clear();
+					scratch.position(DIFF_HEADER_SIZE);
+
+					try {
+						payloadLength = impl.calculateDiff(base, window, maxSplits, scratch);
+						scratch.put(0, WINDOW_DIFF);
+						scratch.putLong(RAW_HEADER_SIZE, baseOffset);
+						scratch.putInt(RAW_HEADER_SIZE + 8, baseLength);
+						scratch.putInt(RAW_HEADER_SIZE + 12, ByteArrayLib.deterministicHashcode(base));
+						scratch.putInt(RAW_HEADER_SIZE + 16, payloadLength);
+					} catch (TooSmallToDeltaException | TooBigToDeltaException | UneconomicToDiffException e) {
+						payloadLength = -1;
+					}
+				}
+
+				if (payloadLength < 0) {
+
+					scratch.clear();
+					scratch.put(WINDOW_RAW);
+					scratch.position(RAW_HEADER_SIZE);
+					scratch.put(window.duplicate());
+					rawWindows++;
+
+				} else {
+
+					final long lastReference = findLastReference(scratch, DIFF_HEADER_SIZE, payloadLength);
+
+					if (lastReference >= 0) {
+						// (old start << 32) | position in window
+						drift = baseOffset + (lastReference >>> 32) - (newPosition + (int) lastReference);
+					}
+
+					diffWindows++;
+				}
+
+				scratch.putInt(1, length);
+				scratch.putInt(5, (int) crc.getValue());
+				diffLength += write(out);
+
+				newInput.releaseBefore(newPosition);
+				oldInput.releaseBefore(baseOffset);
+			}
+
+			return new FileDiffStats(newLength, diffLength, diffWindows, rawWindows, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Turn oldFile into newFile using the output of diff(). Every window is
+	 * checked against its CRC as it is written. If anything goes wrong outFile
+	 * is deleted.
+	 * 
+	 * @param oldFile
+	 * @param diffFile
+	 * @param outFile
+	 *            created or overwritten
+	 * @return stats
+	 * @throws IOException
+	 * @throws BadInputException
+	 *             if diffFile is damaged or wasn't made from oldFile
+	 * @throws HashCodeMismatchException
+	 *             if a window of oldFile isn't what the diff was made from
+	 */
+	public FileDiffStats patch(File oldFile, File diffFile, File outFile)
+			throws IOException, BadInputException, HashCodeMismatchException {
+
+		checkNotSameFile(outFile, oldFile);
+		checkNotSameFile(outFile, diffFile);
+
+		boolean ok = false;
+
+		try {
+			final FileDiffStats stats = patchOrFail(oldFile, diffFile, outFile);
+			ok = true;
+			return stats;
+		} finally {
+			if (!ok) {
+				outFile.delete();
+			}
+		}
+	}
+
+	private FileDiffStats patchOrFail(File oldFile, File diffFile, File outFile)
+			throws IOException, BadInputException, HashCodeMismatchException {
+
+		final long start = System.nanoTime();
+
+		long diffWindows = 0;
+		long rawWindows = 0;
+
+		try (MappedInput oldInput = new MappedInput(oldFile);
+				MappedInput diffInput = new MappedInput(diffFile);
+				FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+			final long diffLength = diffInput.length();
+
+			if (diffLength < HEADER_SIZE) {
+				throw new BadInputException("Diff file is only " + diffLength + " bytes long");
+			}
+
+			final ByteBuffer header = diffInput.slice(0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+			if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+				throw new BadInputException("Not a version " + FORMAT_VERSION + " diff file");
+			}
+
+			if (header.getLong(8) != oldInput.length()) {
+				throw new BadInputException(
+						"Diff is for an old file of " + header.getLong(8) + " bytes, not " + oldInput.length());
+			}
+
+			final long newLength = header.getLong(16);
+			long newPosition = 0;
+			long position = HEADER_SIZE;
+
+			while (position < diffLength) {
+
+				if (diffLength - position < RAW_HEADER_SIZE) {
+					throw new BadInputException("Truncated record at " + position);
+				}
+
+				final ByteBuffer record = diffInput.slice(position,
+						(int) Math.min(DIFF_HEADER_SIZE, diffLength - position)).order(ByteOrder.LITTLE_ENDIAN);
+				final byte type = record.get(0);
+				final int length = record.getInt(1);
+				final int expectedCrc = record.getInt(5);
+
+				if (length <= 0 || length > MAX_BASE_LENGTH || length > newLength - newPosition) {
+					throw new BadInputException("Bad window length " + length + " at " + position);
+				}
+
+				scratch.clear();
+
+				if (type == WINDOW_RAW) {
+
+					if (diffLength - position - RAW_HEADER_SIZE < length) {
+						throw new BadInputException("Truncated record at " + position);
+					}
+
+					scratch.put(diffInput.slice(position + RAW_HEADER_SIZE, length));
+					position += RAW_HEADER_SIZE + length;
+					rawWindows++;
+
+				} else if (type == WINDOW_DIFF) {
+
+					if (record.limit() < DIFF_HEADER_SIZE) {
+						throw new BadInputException("Truncated record at " + position);
+					}
+
+					final long baseOffset = record.getLong(RAW_HEADER_SIZE);
+					final int baseLength = record.getInt(RAW_HEADER_SIZE + 8);
+					final int baseHashcode = record.getInt(RAW_HEADER_SIZE + 12);
+					final int payloadLength = record.getInt(RAW_HEADER_SIZE + 16);
+
+					if (baseOffset < 0 || baseLength < 0 || baseLength > MAX_BASE_LENGTH
+							|| baseOffset > oldInput.length() - baseLength) {
+						throw new BadInputException(
+								"Base " + baseOffset + "+" + baseLength + " at " + position + " is outside old file");
+					}
+
+					if (payloadLength < 0 || payloadLength > MAX_BASE_LENGTH
+							|| diffLength - position - DIFF_HEADER_SIZE < payloadLength) {
+						throw new BadInputException("Truncated record at " + position);
+					}
+
+					scratch.limit(length);
+
+					try {
+						impl.applyDiff(oldInput.slice(baseOffset, baseLength),
+								diffInput.slice(position + DIFF_HEADER_SIZE, payloadLength), baseHashcode, scratch);
+					} catch (BufferOverflowException e) {
+						throw new BadInputException("Window at " + position + " is longer than " + length);
+					}
+
+					position += DIFF_HEADER_SIZE + payloadLength;
+					oldInput.releaseBefore(baseOffset);
+					diffWindows++;
+
+				} else {
+					throw new BadInputException("Unknown record type " + type + " at " + position);
+				}
+
+				scratch.flip();
+
+				crc.reset();
+				crc.update(scratch.duplicate());
+
+				if (scratch.remaining() != length || (int) crc.getValue() != expectedCrc) {
+					throw new BadInputException("Window ending at " + position + " doesn't match its CRC");
+				}
+
+				while (scratch.hasRemaining()) {
+					out.write(scratch);
+				}
+
+				newPosition += length;
+				diffInput.releaseBefore(position);
+			}
+
+			if (newPosition != newLength) {
+				throw new BadInputException("Diff file produced " + newPosition + " bytes, expected " + newLength);
+			}
+
+			return new FileDiffStats(newLength, diffLength, diffWindows, rawWindows, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * We truncate the output file before reading the inputs, so it mustn't be
+	 * one of them.
+	 */
+	private static void checkNotSameFile(File outFile, File inFile) throws IOException {
+		if (outFile.getCanonicalFile().equals(inFile.getCanonicalFile())) {
+			throw new IllegalArgumentException(outFile + " is also an input file");
+		}
+	}
+
+	/**
+	 * Write scratch from 0 to its position.
+	 * 
+	 * @return bytes written
+	 */
+	private int write(FileChannel out) throws IOException {
+
+		scratch.flip();
+		final int length = scratch.remaining();
+
+		while (scratch.hasRemaining()) {
+			out.write(scratch);
+		}
+
+		return length;
+	}
+
+	/**
+	 * Find the last REF block in some FARD data.
+	 * 
+	 * @return (old start << 32) | position in the output, or -1 if there
+	 *         isn't one
+	 */
+	private static long findLastReference(ByteBuffer buffer, int offset, int length) {
+
+		long found = -1;
+		int position = offset;
+		int outPosition = 0;
+
+		while (position < offset + length) {
+
+			final short first = ByteArrayLib.readFARDShort(buffer, position);
+			final short second = ByteArrayLib.readFARDShort(buffer, position + 2);
+			position += 4;
+
+			if (first == ByteArrayLib.FARD_DATA_BLOCK) {
+				position += second;
+				outPosition += second;
+			} else if (first == ByteArrayLib.FARD_REPEATING_BLOCK) {
+				position++;
+				outPosition += second;
+			} else {
+				found = ((long) first << 32) | outPosition;
+				outPosition += second - first;
+			}
+		}
+
+		return found;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getMaxSplits() {
+		return maxSplits;
+	}
+
+}
@@ -0,0 +1,114 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.file;
+
+/**
+ * What a {@link FileDiff} diff or patch did.
+ *
+ */
+public class FileDiffStats {
+
+	private final long newLength;
+
+	private final long diffLength;
+
+	private final long diffWindows;
+
+	private final long rawWindows;
+
+	private final long elapsedNanos;
+
+	FileDiffStats(long newLength, long diffLength, long diffWindows, long rawWindows, long elapsedNanos) {
+		this.newLength = newLength;
+		this.diffLength = diffLength;
+		this.diffWindows = diffWindows;
+		this.rawWindows = rawWindows;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return length of the new file
+	 */
+	public long getNewLength() {
+		return newLength;
+	}
+
+	/**
+	 * @return length of the diff file
+	 */
+	public long getDiffLength() {
+		return diffLength;
+	}
+
+	/**
+	 * @return windows stored as FARD diffs
+	 */
+	public long getDiffWindows() {
+		return diffWindows;
+	}
+
+	/**
+	 * @return windows stored as they are, because diffing them didn't help
+	 */
+	public long getRawWindows() {
+		return rawWindows;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return length of the new file divided by the time taken
+	 */
+	public double getMBPerSecond() {
+
+		if (elapsedNanos == 0) {
+			return 0;
+		}
+
+		return (newLength * 1000.0) / elapsedNanos;
+	}
+
+	/**
+	 * @return how much smaller the diff is than the new file, as a %
+	 */
+	public double getCompressionPercent() {
+
+		if (newLength == 0) {
+			return 0;
+		}
+
+		return 100.0 - ((diffLength * 100.0) / newLength);
+	}
+
+	@Override
+	public String toString() {
+		return "Size=" + newLength + "->" + diffLength + " Windows=" + diffWindows + " diffed, " + rawWindows + " raw"
+				+ String.format(" Compression=%.1f%% Speed=%.1fMB/s Took %dms", getCompressionPercent(),
+						getMBPerSecond(), elapsedNanos / 1000000);
+	}
+
+}
@@ -0,0 +1,117 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read only file, memory-mapped a region at a time.
+ * <p>
+ * A single MappedByteBuffer can't be bigger than 2GB, so we map the file as
+ * REGION_SIZE regions, each of which also maps the next REGION_OVERLAP bytes.
+ * That way any range up to REGION_OVERLAP long is entirely inside one region
+ * and can be returned as a single buffer. Regions are mapped when first
+ * needed, and callers reading sequentially can release the ones behind them
+ * so their pages don't stay mapped for the whole run.
+ *
+ */
+class MappedInput implements Closeable {
+
+	static final int REGION_SIZE = 1 << 26;
+
+	static final int REGION_OVERLAP = 1 << 16;
+
+	private final FileChannel channel;
+
+	private final long length;
+
+	private final MappedByteBuffer[] regions;
+
+	MappedInput(File file) throws IOException {
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		length = channel.size();
+		regions = new MappedByteBuffer[(int) ((length + REGION_SIZE - 1) / REGION_SIZE)];
+	}
+
+	/**
+	 * @param offset
+	 * @param sliceLength
+	 *            no more than REGION_OVERLAP
+	 * @return a buffer whose position is 0 and whose limit is sliceLength,
+	 *         looking at file[offset, offset + sliceLength)
+	 * @throws IOException
+	 *             if the range isn't inside the file or can't be mapped
+	 */
+	ByteBuffer slice(long offset, int sliceLength) throws IOException {
+
+		if (offset < 0 || sliceLength < 0 || sliceLength > REGION_OVERLAP || offset > length - sliceLength) {
+			throw new IOException("Range " + offset + "+" + sliceLength + " is outside file of length " + length);
+		}
+
+		final int region = (int) (offset / REGION_SIZE);
+		final long regionStart = (long) region * REGION_SIZE;
+
+		if (regions[region] == null) {
+			regions[region] = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+					Math.min(length - regionStart, (long) REGION_SIZE + REGION_OVERLAP));
+		}
+
+		return regions[region].slice((int) (offset - regionStart), sliceLength);
+	}
+
+	/**
+	 * Forget the regions that end well before offset. Java can't unmap a
+	 * buffer directly - it is unmapped once it has been garbage collected. A
+	 * region we need again later is just mapped again.
+	 * 
+	 * @param offset
+	 */
+	void releaseBefore(long offset) {
+
+		final long keepFrom = (offset / REGION_SIZE) - 1;
+
+		for (int i = 0; i < regions.length && i < keepFrom; i++) {
+			regions[i] = null;
+		}
+	}
+
+	long length() {
+		return length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// Mappings stay valid until they are garbage collected
+		channel.close();
+	}
+
+}
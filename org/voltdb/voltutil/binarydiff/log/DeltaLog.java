@@ -0,0 +1,619 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+
+/**
+ * An append-only log of values and FARD diffs, stored in memory-mapped
+ * segment files in a directory.
+ * <p>
+ * Each record gets a log sequence number (LSN), which is its byte position in
+ * the log as a whole. Appends are cheap - a copy into the mapped segment - and
+ * a background flusher forces them to disk. Callers that need durability call
+ * awaitDurable(lsn) or sync(); everyone waiting at the same time is covered by
+ * a single force (group commit), and nobody waits longer than groupCommitMs
+ * for unforced data to be written anyway.
+ * <p>
+ * On open the last segment is scanned and anything after the last record with
+ * a good CRC is discarded, so a crash mid-append loses at most the records
+ * that hadn't been made durable.
+ * <p>
+ * Diff records should be FARDEnvelopes, so replayInto() can check it's
+ * applying each diff to the right base and producing the right value.
+ *
+ */
+public class DeltaLog implements Closeable {
+
+	/**
+	 * Record holds a complete value.
+	 */
+	public static final byte RECORD_FULL = 1;
+
+	/**
+	 * Record holds a FARDEnvelope to apply to the key's previous value.
+	 */
+	public static final byte RECORD_DIFF = 2;
+
+	private final File dir;
+
+	private final DeltaLogOptions options;
+
+	// Oldest first. The last one is the one we append to.
+	private final ArrayList<LogSegment> segments = new ArrayList<LogSegment>();
+
+	private LogSegment active;
+
+	// LSN after the last record appended
+	private long writtenLsn;
+
+	// Everything before this LSN is on disk
+	private long durableLsn;
+
+	// Someone is waiting in awaitDurable
+	private boolean syncRequested = false;
+
+	private boolean closed = false;
+
+	// Set if forcing a segment failed. Nothing after durableLsn will ever be
+	// durable, so waiters get this instead.
+	private IOException flushFailure = null;
+
+	private final Thread flusher;
+
+	private long recordsAppended = 0;
+	private long bytesAppended = 0;
+	private long syncCount = 0;
+
+	/**
+	 * Open or create a log in dir, recovering from any torn writes at the end.
+	 * 
+	 * @param dir
+	 *            directory for segment files. Created if missing.
+	 * @param options
+	 * @throws IOException
+	 */
+	public DeltaLog(File dir, DeltaLogOptions options) throws IOException {
+
+		this.dir = dir;
+		this.options = options;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.endsWith(LogSegment.SEGMENT_SUFFIX);
+			}
+		});
+
+		// Names are zero padded LSNs, so this is LSN order
+		Arrays.sort(files);
+
+		for (int i = 0; i < files.length; i++) {
+			segments.add(LogSegment.open(files[i], options.getIndexInterval(), i == files.length - 1));
+		}
+
+		if (segments.isEmpty()) {
+			segments.add(LogSegment.create(dir, 0, options.getSegmentSize(), options.getIndexInterval()));
+		}
+
+		active = segments.get(segments.size() - 1);
+		writtenLsn = active.getEndLsn();
+		durableLsn = writtenLsn;
+
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "DeltaLog-flusher-" + dir.getName());
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Append a complete value for a key.
+	 * 
+	 * @param key
+	 * @param value
+	 * @return the LSN of the new record
+	 * @throws IOException
+	 */
+	public long appendFull(String key, byte[] value) throws IOException {
+		return append(RECORD_FULL, key, value, 0, value.length);
+	}
+
+	/**
+	 * Append a diff for a key.
+	 * 
+	 * @param key
+	 * @param envelope
+	 *            output of FastAndRuthlessDiffImpl.calculateEnvelopedDiff
+	 * @return the LSN of the new record
+	 * @throws IOException
+	 */
+	public long appendDiff(String key, byte[] envelope) throws IOException {
+		return append(RECORD_DIFF, key, envelope, 0, envelope.length);
+	}
+
+	/**
+	 * Append a record. Returns once it's in the mapped segment, which survives
+	 * a process crash but not an OS crash until awaitDurable() says so.
+	 * 
+	 * @param type
+	 *            RECORD_FULL or RECORD_DIFF
+	 * @param key
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return the LSN of the new record
+	 * @throws IOException
+	 *             if we needed a new segment and couldn't create it
+	 */
+	public long append(byte type, String key, byte[] payload, int offset, int length) throws IOException {
+
+		final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+		if (keyBytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Key is " + keyBytes.length + " bytes long");
+		}
+
+		final int recordLength = LogSegment.RECORD_OVERHEAD + keyBytes.length + length;
+
+		if (recordLength > options.getSegmentSize() - LogSegment.HEADER_SIZE) {
+			throw new IllegalArgumentException("Record of " + recordLength + " bytes won't fit in a segment");
+		}
+
+		synchronized (this) {
+
+			if (closed) {
+				throw new IllegalStateException("Log is closed");
+			}
+
+			if (flushFailure != null) {
+				throw flushFailure;
+			}
+
+			if (!active.hasRoomFor(recordLength)) {
+				roll();
+			}
+
+			final boolean wasClean = writtenLsn == durableLsn;
+
+			final long lsn = active.append(type, keyBytes, payload, offset, length);
+
+			writtenLsn = active.getEndLsn();
+			recordsAppended++;
+			bytesAppended += recordLength;
+
+			if (wasClean) {
+				// Wake the flusher so it starts its groupCommitMs timer
+				notifyAll();
+			}
+
+			return lsn;
+		}
+	}
+
+	/**
+	 * Seal the active segment and start a new one. Called holding the lock.
+	 * 
+	 * @throws IOException
+	 */
+	private void roll() throws IOException {
+
+		active.seal();
+
+		active = LogSegment.create(dir, active.getEndLsn(), options.getSegmentSize(), options.getIndexInterval());
+		segments.add(active);
+	}
+
+	/**
+	 * Wait until the record at lsn, and everything before it, is on disk.
+	 * 
+	 * @param lsn
+	 *            as returned by append
+	 * @throws InterruptedException
+	 * @throws IOException
+	 *             if forcing the log to disk failed, or it was closed before
+	 *             lsn was appended
+	 */
+	public synchronized void awaitDurable(long lsn) throws InterruptedException, IOException {
+
+		while (durableLsn <= lsn) {
+
+			if (flushFailure != null) {
+				throw flushFailure;
+			}
+
+			// close() has forced everything there is
+			if (closed && durableLsn == writtenLsn) {
+				throw new IOException("Log closed before LSN " + lsn + " was appended");
+			}
+
+			// Only the first waiter needs to wake the flusher. Everyone else
+			// rides along on the same sync.
+			if (!syncRequested) {
+				syncRequested = true;
+				notifyAll();
+			}
+
+			wait();
+		}
+	}
+
+	/**
+	 * Wait until everything appended so far is on disk.
+	 * 
+	 * @throws InterruptedException
+	 * @throws IOException
+	 *             if forcing the log to disk failed
+	 */
+	public void sync() throws InterruptedException, IOException {
+
+		final long target;
+
+		synchronized (this) {
+			target = writtenLsn;
+		}
+
+		if (target > 0) {
+			awaitDurable(target - 1);
+		}
+	}
+
+	/**
+	 * Force dirty data to disk when someone asks for it, or when it has been
+	 * waiting groupCommitMs.
+	 */
+	private void flushLoop() {
+
+		while (true) {
+
+			final long target;
+			final LogSegment segment;
+
+			synchronized (this) {
+
+				try {
+					while (!closed && writtenLsn == durableLsn) {
+						wait();
+					}
+
+					if (!closed && !syncRequested) {
+						wait(options.getGroupCommitMs());
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				if (writtenLsn == durableLsn) {
+					if (closed) {
+						return;
+					}
+					continue;
+				}
+
+				syncRequested = false;
+				target = writtenLsn;
+				segment = active;
+			}
+
+			// Older segments were forced when they were sealed. Appends can
+			// carry on while we do this.
+			try {
+				segment.force();
+			} catch (RuntimeException e) {
+				flushFailed(e);
+				return;
+			}
+
+			synchronized (this) {
+				durableLsn = Math.max(durableLsn, target);
+				syncCount++;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Remember why a force failed and wake everyone waiting, so they don't
+	 * wait forever for a flusher that has stopped.
+	 * 
+	 * @param e
+	 *            usually an UncheckedIOException from MappedByteBuffer.force
+	 * @return the failure waiters will see
+	 */
+	private synchronized IOException flushFailed(RuntimeException e) {
+
+		if (flushFailure == null) {
+			flushFailure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+					: new IOException("Unable to force log to disk", e);
+		}
+
+		notifyAll();
+		return flushFailure;
+	}
+
+	/**
+	 * Call listener for every record with an LSN of fromLsn or later that had
+	 * been appended when we started. Each segment is copied out of its mapping
+	 * with one bulk read and records are handed over in place, without a copy
+	 * per record.
+	 * 
+	 * @param fromLsn
+	 *            0 for everything
+	 * @param listener
+	 * @return how many records were passed to listener
+	 * @throws IOException
+	 *             if a record is corrupt, or listener threw it
+	 */
+	public long replay(long fromLsn, DeltaLogListener listener) throws IOException {
+
+		final LogSegment[] snapshot;
+		final int[] endPositions;
+
+		synchronized (this) {
+
+			snapshot = segments.toArray(new LogSegment[segments.size()]);
+			endPositions = new int[snapshot.length];
+
+			for (int i = 0; i < snapshot.length; i++) {
+				endPositions[i] = snapshot[i].getWritePosition();
+			}
+		}
+
+		final CRC32 crc = new CRC32();
+		long count = 0;
+
+		for (int i = 0; i < snapshot.length; i++) {
+
+			final long segmentBase = snapshot[i].getBaseLsn();
+
+			if (segmentBase + endPositions[i] <= fromLsn) {
+				continue;
+			}
+
+			final int startPosition = snapshot[i].findStartPosition(fromLsn);
+			final byte[] bytes = snapshot[i].readRange(startPosition, endPositions[i]);
+
+			int position = 0;
+
+			while (position < bytes.length) {
+
+				final long lsn = segmentBase + startPosition + position;
+				final int bodyLength = readInt(bytes, position);
+
+				if (bodyLength < 3 || position + 4 + bodyLength + 4 > bytes.length) {
+					throw new IOException("Corrupt record length at LSN " + lsn);
+				}
+
+				crc.reset();
+				crc.update(bytes, position + 4, bodyLength);
+
+				if ((int) crc.getValue() != readInt(bytes, position + 4 + bodyLength)) {
+					throw new IOException("CRC mismatch at LSN " + lsn);
+				}
+
+				if (lsn >= fromLsn) {
+
+					final byte type = bytes[position + 4];
+					final int keyLength = (bytes[position + 5] & 0xFF) | ((bytes[position + 6] & 0xFF) << 8);
+					final int keyStart = position + 7;
+					final int payloadStart = keyStart + keyLength;
+
+					listener.onRecord(lsn, type, new String(bytes, keyStart, keyLength, StandardCharsets.UTF_8),
+							bytes, payloadStart, position + 4 + bodyLength - payloadStart);
+					count++;
+				}
+
+				position += 4 + bodyLength + 4;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Rebuild values by replaying the log into a map. Full records replace the
+	 * value, diff records are applied to it with their base and target
+	 * checksums checked.
+	 * 
+	 * @param fromLsn
+	 *            0 for everything. If not 0, values must already hold the
+	 *            state as of fromLsn.
+	 * @param values
+	 *            key to value
+	 * @return how many records were applied
+	 * @throws IOException
+	 *             if the log is corrupt or a diff doesn't apply
+	 */
+	public long replayInto(long fromLsn, final Map<String, byte[]> values) throws IOException {
+
+		final FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		return replay(fromLsn, new DeltaLogListener() {
+
+			@Override
+			public void onRecord(long lsn, byte type, String key, byte[] bytes, int offset, int length)
+					throws IOException {
+
+				if (type == RECORD_FULL) {
+					values.put(key, Arrays.copyOfRange(bytes, offset, offset + length));
+					return;
+				}
+
+				try {
+					values.put(key, impl.applyEnvelopedDiff(values.get(key), bytes, offset, length));
+				} catch (BadInputException | HashCodeMismatchException e) {
+					throw new IOException("Can't apply diff for " + key + " at LSN " + lsn + ": " + e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	private static int readInt(byte[] bytes, int position) {
+		return (bytes[position] & 0xFF) | ((bytes[position + 1] & 0xFF) << 8) | ((bytes[position + 2] & 0xFF) << 16)
+				| ((bytes[position + 3] & 0xFF) << 24);
+	}
+
+	/**
+	 * Delete sealed segments that only hold records before lsn, such as once
+	 * a snapshot as of lsn has been taken.
+	 * 
+	 * @param lsn
+	 * @return how many segments were deleted
+	 */
+	public synchronized int deleteSegmentsBefore(long lsn) {
+
+		int deleted = 0;
+
+		while (segments.size() > 1 && segments.get(0).getEndLsn() <= lsn) {
+
+			LogSegment segment = segments.remove(0);
+			segment.getFile().delete();
+			new File(segment.getFile().getPath() + LogSegment.INDEX_SUFFIX).delete();
+			deleted++;
+		}
+
+		return deleted;
+	}
+
+	/**
+	 * Force everything to disk and stop the flusher. Further appends will
+	 * fail.
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+
+		synchronized (this) {
+
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Waiters keep waiting until this force is done, as until then their
+		// records may not be on disk
+		synchronized (this) {
+
+			if (flushFailure != null) {
+				throw flushFailure;
+			}
+
+			try {
+				active.force();
+			} catch (RuntimeException e) {
+				throw flushFailed(e);
+			}
+
+			durableLsn = writtenLsn;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return LSN of the oldest record we still have
+	 */
+	public synchronized long getFirstLsn() {
+		return segments.get(0).getBaseLsn() + LogSegment.HEADER_SIZE;
+	}
+
+	/**
+	 * @return LSN the next record will get
+	 */
+	public synchronized long getEndLsn() {
+		return writtenLsn;
+	}
+
+	/**
+	 * @return everything before this LSN is on disk
+	 */
+	public synchronized long getDurableLsn() {
+		return durableLsn;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return records appended since this log was opened
+	 */
+	public synchronized long getRecordsAppended() {
+		return recordsAppended;
+	}
+
+	/**
+	 * @return bytes appended since this log was opened, including record
+	 *         overhead
+	 */
+	public synchronized long getBytesAppended() {
+		return bytesAppended;
+	}
+
+	/**
+	 * @return how many times the flusher has forced the active segment
+	 */
+	public synchronized long getSyncCount() {
+		return syncCount;
+	}
+
+	public DeltaLogOptions getOptions() {
+		return options;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Segments=" + segments.size() + " LSN=" + writtenLsn + " Durable=" + durableLsn + " Records="
+				+ recordsAppended + " Bytes=" + bytesAppended + " Syncs=" + syncCount;
+	}
+
+}
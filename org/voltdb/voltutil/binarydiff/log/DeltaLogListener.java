@@ -0,0 +1,54 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.log;
+
+import java.io.IOException;
+
+/**
+ * Receives records from {@link DeltaLog#replay(long, DeltaLogListener)}.
+ *
+ */
+public interface DeltaLogListener {
+
+	/**
+	 * Called once per record, in LSN order. The payload is not copied out of
+	 * the segment, so it is only valid until this method returns.
+	 * 
+	 * @param lsn
+	 *            the record's log sequence number
+	 * @param type
+	 *            DeltaLog.RECORD_FULL or DeltaLog.RECORD_DIFF
+	 * @param key
+	 * @param bytes
+	 *            array containing the payload
+	 * @param offset
+	 *            where the payload starts
+	 * @param length
+	 *            how long the payload is
+	 * @throws IOException
+	 *             to stop the replay
+	 */
+	public void onRecord(long lsn, byte type, String key, byte[] bytes, int offset, int length) throws IOException;
+
+}
@@ -0,0 +1,67 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.log;
+
+/**
+ * Settings for a {@link DeltaLog}.
+ *
+ */
+public class DeltaLogOptions {
+
+	// Size of each segment file. A record must fit in one segment.
+	int segmentSize = 64 * 1024 * 1024;
+
+	// How long unsynced appends can wait before the flusher forces them to
+	// disk anyway. Appends that arrive while a sync is in progress are all
+	// covered by the next one.
+	int groupCommitMs = 5;
+
+	// Bytes between entries in a segment's sparse index
+	int indexInterval = 64 * 1024;
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = Math.max(1024 * 1024, segmentSize);
+	}
+
+	public int getGroupCommitMs() {
+		return groupCommitMs;
+	}
+
+	public void setGroupCommitMs(int groupCommitMs) {
+		this.groupCommitMs = Math.max(1, groupCommitMs);
+	}
+
+	public int getIndexInterval() {
+		return indexInterval;
+	}
+
+	public void setIndexInterval(int indexInterval) {
+		this.indexInterval = Math.max(1024, indexInterval);
+	}
+
+}
@@ -0,0 +1,479 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped file in a {@link DeltaLog}.
+ * <p>
+ * Layout, little endian:
+ * 
+ * <pre>
+ * int   MAGIC
+ * int   FORMAT_VERSION
+ * long  baseLsn          LSN of the first byte of this segment
+ * records...
+ * </pre>
+ * 
+ * Each record is:
+ * 
+ * <pre>
+ * int   length           bytes from type to the end of payload
+ * byte  type             DeltaLog.RECORD_FULL or DeltaLog.RECORD_DIFF
+ * short keyLength
+ * ...   key              UTF-8
+ * ...   payload          the full value or a FARDEnvelope
+ * int   crc              CRC32 of type through payload
+ * </pre>
+ * 
+ * The file is created at its full size, so unwritten space is zeros and a
+ * length of 0 marks the end of the records.
+ * <p>
+ * A record's LSN is baseLsn + its position in the file. We keep a sparse index
+ * of (LSN, position) pairs, one at least every indexInterval bytes, so a
+ * reader can start near any LSN without scanning the whole segment. Sealed
+ * segments save the index next to the segment file.
+ *
+ */
+class LogSegment {
+
+	static final int MAGIC = 0x46444C47;
+
+	static final int FORMAT_VERSION = 1;
+
+	static final int HEADER_SIZE = 16;
+
+	// length + type + keyLength + crc
+	static final int RECORD_OVERHEAD = 4 + 1 + 2 + 4;
+
+	static final String SEGMENT_SUFFIX = ".fardlog";
+
+	static final String INDEX_SUFFIX = ".idx";
+
+	private final File file;
+
+	private final long baseLsn;
+
+	private final int indexInterval;
+
+	private final MappedByteBuffer buffer;
+
+	private final CRC32 crc = new CRC32();
+
+	// Where the next record goes
+	private int writePosition = HEADER_SIZE;
+
+	// Sparse index
+	private long[] indexLsns = new long[16];
+	private int[] indexPositions = new int[16];
+	private int indexCount = 0;
+	private int nextIndexPosition = 0;
+
+	private boolean sealed = false;
+
+	private LogSegment(File file, long baseLsn, int indexInterval, MappedByteBuffer buffer) {
+		this.file = file;
+		this.baseLsn = baseLsn;
+		this.indexInterval = indexInterval;
+		this.buffer = buffer;
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @param dir
+	 * @param baseLsn
+	 * @return the file name for a segment starting at baseLsn
+	 */
+	static File segmentFile(File dir, long baseLsn) {
+		return new File(dir, String.format("%020d", baseLsn) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Create a new, empty segment.
+	 * 
+	 * @param dir
+	 * @param baseLsn
+	 * @param size
+	 * @param indexInterval
+	 * @return a writable segment
+	 * @throws IOException
+	 */
+	static LogSegment create(File dir, long baseLsn, int size, int indexInterval) throws IOException {
+
+		File file = segmentFile(dir, baseLsn);
+
+		LogSegment segment = new LogSegment(file, baseLsn, indexInterval, map(file, size));
+
+		segment.buffer.putInt(0, MAGIC);
+		segment.buffer.putInt(4, FORMAT_VERSION);
+		segment.buffer.putLong(8, baseLsn);
+		segment.buffer.force();
+
+		return segment;
+	}
+
+	/**
+	 * Open an existing segment, scanning it to find where the valid records
+	 * end. Anything after the last good record - a torn write from a crash -
+	 * is zeroed so it can't be mistaken for a record later.
+	 * 
+	 * @param file
+	 * @param indexInterval
+	 * @param writable
+	 *            true if this is the last segment and we will append to it
+	 * @return the segment
+	 * @throws IOException
+	 *             if the file isn't a segment at all
+	 */
+	static LogSegment open(File file, int indexInterval, boolean writable) throws IOException {
+
+		MappedByteBuffer buffer = map(file, (int) file.length());
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException(file + " is not a delta log segment");
+		}
+
+		if (buffer.getInt(4) != FORMAT_VERSION) {
+			throw new IOException(file + " has unknown version " + buffer.getInt(4));
+		}
+
+		LogSegment segment = new LogSegment(file, buffer.getLong(8), indexInterval, buffer);
+
+		if (writable || !segment.loadIndex()) {
+
+			segment.writePosition = segment.scan();
+
+			if (writable) {
+				segment.zeroTail();
+			}
+		}
+
+		segment.sealed = !writable;
+
+		return segment;
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			// The mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/**
+	 * @param recordLength
+	 *            total bytes a record will take, including overhead
+	 * @return true if it fits
+	 */
+	boolean hasRoomFor(int recordLength) {
+		return !sealed && writePosition + recordLength <= buffer.capacity();
+	}
+
+	/**
+	 * Append a record. Caller must have checked hasRoomFor().
+	 * 
+	 * @param type
+	 * @param key
+	 *            UTF-8 key
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return the LSN of the record
+	 */
+	long append(byte type, byte[] key, byte[] payload, int offset, int length) {
+
+		final int start = writePosition;
+		final int bodyLength = 1 + 2 + key.length + length;
+
+		// Write the length last, so a reader that sees it non-zero sees the
+		// rest of the record too.
+		buffer.position(start + 4);
+		buffer.put(type);
+		buffer.putShort((short) key.length);
+		buffer.put(key);
+		buffer.put(payload, offset, length);
+		buffer.putInt(start + 4 + bodyLength, crcOf(start + 4, bodyLength));
+		buffer.putInt(start, bodyLength);
+
+		writePosition = start + 4 + bodyLength + 4;
+
+		maybeIndex(start);
+
+		return baseLsn + start;
+	}
+
+	private int crcOf(int position, int length) {
+
+		crc.reset();
+		crc.update(buffer.duplicate().position(position).limit(position + length));
+		return (int) crc.getValue();
+	}
+
+	private void maybeIndex(int recordPosition) {
+
+		if (recordPosition < nextIndexPosition) {
+			return;
+		}
+
+		if (indexCount == indexLsns.length) {
+			indexLsns = Arrays.copyOf(indexLsns, indexCount * 2);
+			indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+		}
+
+		indexLsns[indexCount] = baseLsn + recordPosition;
+		indexPositions[indexCount] = recordPosition;
+		indexCount++;
+
+		nextIndexPosition = recordPosition + indexInterval;
+	}
+
+	/**
+	 * Walk the records from the start of the segment, rebuilding the index.
+	 * 
+	 * @return the position after the last good record
+	 */
+	private int scan() {
+
+		indexCount = 0;
+		nextIndexPosition = 0;
+
+		int position = HEADER_SIZE;
+
+		while (true) {
+
+			final int recordLength = validRecordLength(position);
+
+			if (recordLength < 0) {
+				return position;
+			}
+
+			maybeIndex(position);
+			position += recordLength;
+		}
+	}
+
+	/**
+	 * @param position
+	 * @return the total length of the record at position, or -1 if there isn't
+	 *         a complete, uncorrupted record there
+	 */
+	private int validRecordLength(int position) {
+
+		if (position + RECORD_OVERHEAD > buffer.capacity()) {
+			return -1;
+		}
+
+		final int bodyLength = buffer.getInt(position);
+
+		if (bodyLength < 3 || position + 4 + bodyLength + 4 > buffer.capacity()) {
+			return -1;
+		}
+
+		final byte type = buffer.get(position + 4);
+		final int keyLength = buffer.getShort(position + 5) & 0xFFFF;
+
+		if ((type != DeltaLog.RECORD_FULL && type != DeltaLog.RECORD_DIFF) || 3 + keyLength > bodyLength) {
+			return -1;
+		}
+
+		if (crcOf(position + 4, bodyLength) != buffer.getInt(position + 4 + bodyLength)) {
+			return -1;
+		}
+
+		return 4 + bodyLength + 4;
+	}
+
+	private void zeroTail() {
+
+		final byte[] zeros = new byte[64 * 1024];
+
+		buffer.position(writePosition);
+
+		while (buffer.remaining() > 0) {
+			buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+		}
+
+		buffer.force();
+	}
+
+	/**
+	 * Flush everything written so far to disk.
+	 */
+	void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Flush and stop accepting records, saving the sparse index so reopening
+	 * doesn't need a scan.
+	 * 
+	 * @throws IOException
+	 */
+	void seal() throws IOException {
+
+		force();
+		sealed = true;
+
+		File tmp = new File(file.getPath() + INDEX_SUFFIX + ".tmp");
+
+		try (FileOutputStream fos = new FileOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+
+			out.writeInt(writePosition);
+			out.writeInt(indexCount);
+
+			for (int i = 0; i < indexCount; i++) {
+				out.writeLong(indexLsns[i]);
+				out.writeInt(indexPositions[i]);
+			}
+
+			out.flush();
+			fos.getFD().sync();
+		}
+
+		if (!tmp.renameTo(new File(file.getPath() + INDEX_SUFFIX))) {
+			throw new IOException("Unable to rename " + tmp);
+		}
+	}
+
+	/**
+	 * @return true if we read a saved index
+	 */
+	private boolean loadIndex() {
+
+		File indexFile = new File(file.getPath() + INDEX_SUFFIX);
+
+		if (!indexFile.exists()) {
+			return false;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+
+			final int endPosition = in.readInt();
+			final int count = in.readInt();
+
+			if (endPosition < HEADER_SIZE || endPosition > buffer.capacity() || count < 0) {
+				return false;
+			}
+
+			indexLsns = new long[Math.max(1, count)];
+			indexPositions = new int[Math.max(1, count)];
+
+			for (int i = 0; i < count; i++) {
+				indexLsns[i] = in.readLong();
+				indexPositions[i] = in.readInt();
+			}
+
+			indexCount = count;
+			writePosition = endPosition;
+			return true;
+
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param lsn
+	 * @return the position of an indexed record at or before lsn, from which a
+	 *         reader can scan forward
+	 */
+	int findStartPosition(long lsn) {
+
+		int lo = 0;
+		int hi = indexCount - 1;
+		int found = HEADER_SIZE;
+
+		while (lo <= hi) {
+
+			final int mid = (lo + hi) >>> 1;
+
+			if (indexLsns[mid] <= lsn) {
+				found = indexPositions[mid];
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Copy the used part of the segment into a heap array with one bulk get,
+	 * so records can be decoded directly from it.
+	 * 
+	 * @param from
+	 *            first position to copy
+	 * @param to
+	 *            position after the last byte to copy
+	 * @return bytes [from, to)
+	 */
+	byte[] readRange(int from, int to) {
+
+		byte[] bytes = new byte[to - from];
+		buffer.duplicate().position(from).get(bytes);
+		return bytes;
+	}
+
+	long getBaseLsn() {
+		return baseLsn;
+	}
+
+	/**
+	 * @return the LSN the next record in this segment would get
+	 */
+	long getEndLsn() {
+		return baseLsn + writePosition;
+	}
+
+	int getWritePosition() {
+		return writePosition;
+	}
+
+	int getIndexCount() {
+		return indexCount;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+}
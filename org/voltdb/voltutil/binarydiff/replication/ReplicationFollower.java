@@ -0,0 +1,273 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.replication;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+import org.voltdb.voltutil.stats.StatsHistogram;
+
+/**
+ * The receiving side of diff based replication. Reads frames from a
+ * {@link ReplicationPrimary} on a background thread and applies them to a
+ * local copy of the data.
+ * <p>
+ * If a diff doesn't apply - because we missed something, or our copy is
+ * corrupt - we drop the key, ignore further diffs for it and ask the primary
+ * to send it in full.
+ *
+ */
+public class ReplicationFollower implements Closeable {
+
+	private final DataInputStream in;
+
+	private final DataOutputStream resyncOut;
+
+	private final ConcurrentHashMap<String, byte[]> values = new ConcurrentHashMap<String, byte[]>();
+
+	// Keys we've asked to have resent. Only used by the reader thread.
+	private final HashSet<String> awaitingResync = new HashSet<String>();
+
+	private final FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+	private final Thread reader;
+
+	private long framesApplied = 0;
+	private long diffFramesFailed = 0;
+	private long framesIgnored = 0;
+
+	// Milliseconds from update() on the primary to the frame being applied
+	// here
+	private final StatsHistogram lagHistogram = new StatsHistogram(10000);
+
+	private IOException failure = null;
+
+	private boolean finished = false;
+
+	/**
+	 * @param in
+	 *            stream from the primary
+	 * @param resyncOut
+	 *            stream back to the primary for resync requests, or null if
+	 *            there isn't one
+	 */
+	public ReplicationFollower(InputStream in, OutputStream resyncOut) {
+
+		this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+		this.resyncOut = resyncOut == null ? null : new DataOutputStream(resyncOut);
+
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "ReplicationFollower-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void readLoop() {
+
+		byte[] payload = new byte[64 * 1024];
+
+		try {
+			while (true) {
+
+				final byte type;
+
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					// Primary closed the stream
+					break;
+				}
+
+				final long enqueuedMillis = in.readLong();
+				final String key = ReplicationProtocol.readKey(in);
+				final int length = in.readInt();
+
+				payload = ReplicationProtocol.readPayload(in, payload, length);
+
+				apply(type, key, payload, length);
+
+				synchronized (this) {
+					lagHistogram.report((int) (System.currentTimeMillis() - enqueuedMillis), null);
+				}
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+			}
+		}
+
+		synchronized (this) {
+			finished = true;
+			notifyAll();
+		}
+	}
+
+	private void apply(byte type, String key, byte[] payload, int length) throws IOException {
+
+		if (type == ReplicationProtocol.FRAME_FULL) {
+
+			values.put(key, Arrays.copyOf(payload, length));
+			awaitingResync.remove(key);
+
+			synchronized (this) {
+				framesApplied++;
+			}
+			return;
+		}
+
+		if (type != ReplicationProtocol.FRAME_DIFF) {
+			throw new IOException("Unknown frame type " + type);
+		}
+
+		if (awaitingResync.contains(key)) {
+			// No point - we don't have the base. The full copy is on its way.
+			synchronized (this) {
+				framesIgnored++;
+			}
+			return;
+		}
+
+		try {
+			values.put(key, impl.applyEnvelopedDiff(values.get(key), payload, 0, length));
+
+			synchronized (this) {
+				framesApplied++;
+			}
+
+		} catch (BadInputException | HashCodeMismatchException e) {
+
+			values.remove(key);
+
+			synchronized (this) {
+				diffFramesFailed++;
+			}
+
+			if (resyncOut != null) {
+				awaitingResync.add(key);
+				ReplicationProtocol.writeKey(resyncOut, key);
+				resyncOut.flush();
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return our copy of the value, or null if we don't have one. Don't
+	 *         modify it.
+	 */
+	public byte[] get(String key) {
+		return values.get(key);
+	}
+
+	/**
+	 * @return how many keys we have
+	 */
+	public int size() {
+		return values.size();
+	}
+
+	/**
+	 * Wait for the primary to close the stream and for everything it sent to be
+	 * applied.
+	 * 
+	 * @throws InterruptedException
+	 * @throws IOException
+	 *             if reading from the primary failed
+	 */
+	public synchronized void awaitFinished() throws InterruptedException, IOException {
+
+		while (!finished) {
+			wait();
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Stop reading. The input stream is closed.
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+
+		in.close();
+
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized long getFramesApplied() {
+		return framesApplied;
+	}
+
+	/**
+	 * @return diffs that didn't apply, each of which caused a resync request
+	 */
+	public synchronized long getDiffFramesFailed() {
+		return diffFramesFailed;
+	}
+
+	/**
+	 * @return diffs skipped because their key was waiting for a resync
+	 */
+	public synchronized long getFramesIgnored() {
+		return framesIgnored;
+	}
+
+	/**
+	 * @return end to end lag, in milliseconds
+	 */
+	public StatsHistogram getLagHistogram() {
+		return lagHistogram;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Keys=" + values.size() + " Applied=" + framesApplied + " Failed=" + diffFramesFailed + " Ignored="
+				+ framesIgnored;
+	}
+
+}
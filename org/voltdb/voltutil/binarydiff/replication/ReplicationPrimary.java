@@ -0,0 +1,417 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.replication;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.TooBigToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooSmallToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+/**
+ * The sending side of diff based replication.
+ * <p>
+ * Updates are held for up to batchWindowMs. If a key is updated more than once
+ * in that window only the newest value is shipped. Each shipped value is sent
+ * as a FARDEnvelope against the last value we shipped for that key, or in full
+ * if it's the first time we've seen the key or diffing doesn't pay.
+ * <p>
+ * If the follower can't apply a diff it sends the key back to us and we ship
+ * the key in full next time.
+ *
+ */
+public class ReplicationPrimary implements Closeable {
+
+	private final DataOutputStream out;
+
+	private final DataInputStream resyncIn;
+
+	private final int batchWindowMs;
+
+	private final int maxSplits;
+
+	// Updates waiting for the next batch, in arrival order. Guarded by this.
+	private LinkedHashMap<String, PendingUpdate> pending = new LinkedHashMap<String, PendingUpdate>();
+
+	// What the follower should have for each key. Guarded by shipLock.
+	private final HashMap<String, byte[]> lastShipped = new HashMap<String, byte[]>();
+
+	private final Object shipLock = new Object();
+
+	// Only used holding shipLock
+	private final FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+	private final Thread shipper;
+
+	private final Thread resyncReader;
+
+	private boolean closed = false;
+
+	private IOException failure = null;
+
+	private long updatesReceived = 0;
+	private long updatesCoalesced = 0;
+	private long updateBytes = 0;
+	private long framesShipped = 0;
+	private long diffFramesShipped = 0;
+	private long bytesShipped = 0;
+	private long resyncsRequested = 0;
+
+	/**
+	 * A value waiting to be shipped.
+	 */
+	private static class PendingUpdate {
+
+		final byte[] value;
+
+		// When the oldest update this replaces arrived
+		final long enqueuedMillis;
+
+		PendingUpdate(byte[] value, long enqueuedMillis) {
+			this.value = value;
+			this.enqueuedMillis = enqueuedMillis;
+		}
+	}
+
+	/**
+	 * @param out
+	 *            stream to the follower, such as a socket or pipe
+	 * @param resyncIn
+	 *            stream of resync requests from the follower, or null if
+	 *            there isn't a back channel
+	 * @param batchWindowMs
+	 *            how long to collect updates before shipping them
+	 * @param maxSplits
+	 *            passed to calculateDiff
+	 */
+	public ReplicationPrimary(OutputStream out, InputStream resyncIn, int batchWindowMs, int maxSplits) {
+
+		this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		this.resyncIn = resyncIn == null ? null : new DataInputStream(resyncIn);
+		this.batchWindowMs = Math.max(0, batchWindowMs);
+		this.maxSplits = maxSplits;
+
+		shipper = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				shipLoop();
+			}
+		}, "ReplicationPrimary-shipper");
+		shipper.setDaemon(true);
+		shipper.start();
+
+		if (this.resyncIn != null) {
+			resyncReader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					resyncLoop();
+				}
+			}, "ReplicationPrimary-resync");
+			resyncReader.setDaemon(true);
+			resyncReader.start();
+		} else {
+			resyncReader = null;
+		}
+	}
+
+	/**
+	 * Queue a new value for a key.
+	 * 
+	 * @param key
+	 * @param value
+	 *            the new value. We keep our own copy.
+	 * @throws IOException
+	 *             if shipping has already failed
+	 */
+	public synchronized void update(String key, byte[] value) throws IOException {
+
+		if (failure != null) {
+			throw failure;
+		}
+
+		if (closed) {
+			throw new IllegalStateException("Primary is closed");
+		}
+
+		final PendingUpdate previous = pending.get(key);
+
+		if (previous == null) {
+			pending.put(key, new PendingUpdate(value.clone(), System.currentTimeMillis()));
+		} else {
+			// Keep the original arrival time so lag covers the whole wait
+			pending.put(key, new PendingUpdate(value.clone(), previous.enqueuedMillis));
+			updatesCoalesced++;
+		}
+
+		updatesReceived++;
+		updateBytes += value.length;
+
+		if (pending.size() == 1) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Ship everything that's pending now, without waiting for the batch
+	 * window.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+
+		shipPending();
+
+		synchronized (this) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private void shipLoop() {
+
+		while (true) {
+
+			synchronized (this) {
+				try {
+					while (pending.isEmpty() && !closed) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				if (pending.isEmpty() && closed) {
+					return;
+				}
+			}
+
+			try {
+				// The window starts with the first update of the batch
+				Thread.sleep(batchWindowMs);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			shipPending();
+
+			synchronized (this) {
+				if (failure != null) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take whatever is pending and write it to the follower.
+	 */
+	private void shipPending() {
+
+		synchronized (shipLock) {
+
+			final LinkedHashMap<String, PendingUpdate> batch;
+
+			synchronized (this) {
+
+				if (pending.isEmpty() || failure != null) {
+					return;
+				}
+
+				batch = pending;
+				pending = new LinkedHashMap<String, PendingUpdate>();
+			}
+
+			long frames = 0;
+			long diffFrames = 0;
+			long bytes = 0;
+
+			try {
+
+				for (Map.Entry<String, PendingUpdate> entry : batch.entrySet()) {
+
+					final String key = entry.getKey();
+					final byte[] value = entry.getValue().value;
+					final byte[] previous = lastShipped.get(key);
+
+					byte[] envelope = null;
+
+					if (previous != null) {
+						try {
+							envelope = impl.calculateEnvelopedDiff(previous, value, maxSplits);
+						} catch (TooSmallToDeltaException | TooBigToDeltaException | UneconomicToDiffException e) {
+							// Send it in full
+						}
+					}
+
+					// The whole envelope goes on the wire, header and all
+					if (envelope != null && envelope.length < value.length) {
+						bytes += ReplicationProtocol.writeFrame(out, ReplicationProtocol.FRAME_DIFF,
+								entry.getValue().enqueuedMillis, key, envelope);
+						diffFrames++;
+					} else {
+						bytes += ReplicationProtocol.writeFrame(out, ReplicationProtocol.FRAME_FULL,
+								entry.getValue().enqueuedMillis, key, value);
+					}
+
+					lastShipped.put(key, value);
+					frames++;
+				}
+
+				out.flush();
+
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+				}
+			}
+
+			synchronized (this) {
+				framesShipped += frames;
+				diffFramesShipped += diffFrames;
+				bytesShipped += bytes;
+			}
+		}
+	}
+
+	/**
+	 * Read keys the follower couldn't apply, and arrange to send them in full.
+	 */
+	private void resyncLoop() {
+
+		try {
+			while (true) {
+
+				final String key = ReplicationProtocol.readKey(resyncIn);
+
+				synchronized (shipLock) {
+
+					final byte[] value = lastShipped.remove(key);
+
+					synchronized (this) {
+
+						resyncsRequested++;
+
+						// If there's a newer value pending it will go in full
+						// anyway, since lastShipped no longer has the key.
+						if (value != null && !pending.containsKey(key)) {
+							pending.put(key, new PendingUpdate(value, System.currentTimeMillis()));
+							notifyAll();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			// Follower went away
+		}
+	}
+
+	/**
+	 * Ship anything pending and stop. Closes the output stream.
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			shipper.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		shipPending();
+		out.close();
+
+		synchronized (this) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * @return calls to update()
+	 */
+	public synchronized long getUpdatesReceived() {
+		return updatesReceived;
+	}
+
+	/**
+	 * @return updates that replaced a pending value before it was shipped
+	 */
+	public synchronized long getUpdatesCoalesced() {
+		return updatesCoalesced;
+	}
+
+	/**
+	 * @return what replicating every update in full would have sent, ignoring
+	 *         framing
+	 */
+	public synchronized long getUpdateBytes() {
+		return updateBytes;
+	}
+
+	public synchronized long getFramesShipped() {
+		return framesShipped;
+	}
+
+	public synchronized long getDiffFramesShipped() {
+		return diffFramesShipped;
+	}
+
+	/**
+	 * @return bytes written to the follower, including framing
+	 */
+	public synchronized long getBytesShipped() {
+		return bytesShipped;
+	}
+
+	public synchronized long getResyncsRequested() {
+		return resyncsRequested;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Updates=" + updatesReceived + " Coalesced=" + updatesCoalesced + " Frames=" + framesShipped
+				+ " Diffs=" + diffFramesShipped + " Bytes=" + updateBytes + "->" + bytesShipped + " Resyncs="
+				+ resyncsRequested;
+	}
+
+}
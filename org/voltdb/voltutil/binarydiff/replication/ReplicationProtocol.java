@@ -0,0 +1,128 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.replication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format shared by {@link ReplicationPrimary} and
+ * {@link ReplicationFollower}.
+ * <p>
+ * Primary to follower, one frame per shipped update:
+ * 
+ * <pre>
+ * byte   FRAME_FULL or FRAME_DIFF
+ * long   System.currentTimeMillis() of the oldest update in this frame
+ * short  key length
+ * ...    key, UTF-8
+ * int    payload length
+ * ...    payload - the value, or a FARDEnvelope
+ * </pre>
+ * 
+ * Follower to primary, when a diff can't be applied:
+ * 
+ * <pre>
+ * short  key length
+ * ...    key to send in full next time, UTF-8
+ * </pre>
+ *
+ */
+class ReplicationProtocol {
+
+	static final byte FRAME_FULL = 1;
+
+	static final byte FRAME_DIFF = 2;
+
+	/**
+	 * @param out
+	 * @param type
+	 * @param enqueuedMillis
+	 * @param key
+	 * @param payload
+	 * @return how many bytes the frame took
+	 * @throws IOException
+	 */
+	static int writeFrame(DataOutputStream out, byte type, long enqueuedMillis, String key, byte[] payload)
+			throws IOException {
+		out.writeByte(type);
+		out.writeLong(enqueuedMillis);
+		final int keyLength = writeKey(out, key);
+		out.writeInt(payload.length);
+		out.write(payload);
+		return 1 + 8 + keyLength + 4 + payload.length;
+	}
+
+	/**
+	 * @param out
+	 * @param key
+	 * @return how many bytes the key took
+	 * @throws IOException
+	 */
+	static int writeKey(DataOutputStream out, String key) throws IOException {
+
+		final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+		if (keyBytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Key is " + keyBytes.length + " bytes long");
+		}
+
+		out.writeShort(keyBytes.length);
+		out.write(keyBytes);
+		return 2 + keyBytes.length;
+	}
+
+	static String readKey(DataInputStream in) throws IOException {
+
+		final byte[] keyBytes = new byte[in.readUnsignedShort()];
+		in.readFully(keyBytes);
+		return new String(keyBytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param in
+	 * @param payload
+	 *            reusable buffer
+	 * @param length
+	 *            how many bytes to read
+	 * @return payload, or a bigger replacement if it didn't fit
+	 * @throws IOException
+	 */
+	static byte[] readPayload(DataInputStream in, byte[] payload, int length) throws IOException {
+
+		if (length < 0) {
+			throw new IOException("Negative payload length " + length);
+		}
+
+		if (payload.length < length) {
+			payload = new byte[length];
+		}
+
+		in.readFully(payload, 0, length);
+		return payload;
+	}
+
+}
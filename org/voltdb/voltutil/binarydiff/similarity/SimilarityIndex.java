@@ -0,0 +1,447 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.similarity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.voltdb.voltutil.binarydiff.FARDEnvelope;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooBigToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooSmallToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+/**
+ * Remembers a bounded number of recent values and, given a new value, finds
+ * the one most like it - typically a sibling record - so a key with no
+ * previous value can still be sent as a diff.
+ * <p>
+ * Each value is reduced to a MinHash signature over its 8 byte shingles. We
+ * use one permutation hashing: a single hash per shingle, with the top bits
+ * picking which of the NUM_HASHES minimums it competes for, so a signature
+ * costs one pass over the value. Signatures are split into BANDS bands of
+ * ROWS rows and each band is hashed into a bucket; values sharing any bucket
+ * are candidates, and the candidate with the most matching minimums wins.
+ * <p>
+ * Once capacity values are held, the least recently put value is dropped.
+ * Safe to use from many threads.
+ *
+ */
+public class SimilarityIndex {
+
+	/**
+	 * Bytes per shingle.
+	 */
+	public static final int SHINGLE_LENGTH = 8;
+
+	/**
+	 * Minimums per signature.
+	 */
+	public static final int NUM_HASHES = 32;
+
+	public static final int BANDS = 8;
+
+	public static final int ROWS = NUM_HASHES / BANDS;
+
+	/**
+	 * Default for the lowest estimated similarity findBase will return.
+	 */
+	public static final double DEFAULT_MIN_SIMILARITY = 0.25;
+
+	// Stops a lookup in a crowded bucket from getting slow.
+	private static final int MAX_CANDIDATES = 256;
+
+	// log2(NUM_HASHES)
+	private static final int BIN_BITS = 5;
+
+	private static final long EMPTY = Long.MAX_VALUE;
+
+	private final int capacity;
+
+	private final double minSimilarity;
+
+	// Insertion ordered, so iteration starts with the oldest. Guarded by this.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	// Guarded by this.
+	private final HashMap<Long, ArrayList<Entry>> buckets = new HashMap<Long, ArrayList<Entry>>();
+
+	private long lookups = 0;
+	private long hits = 0;
+	private long candidatesExamined = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param capacity
+	 *            how many values to remember
+	 */
+	public SimilarityIndex(int capacity) {
+		this(capacity, DEFAULT_MIN_SIMILARITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            how many values to remember
+	 * @param minSimilarity
+	 *            findBase returns null rather than a value less similar than
+	 *            this
+	 */
+	public SimilarityIndex(int capacity, double minSimilarity) {
+		this.capacity = Math.max(1, capacity);
+		this.minSimilarity = minSimilarity;
+	}
+
+	/**
+	 * Remember a value, replacing any previous value for key.
+	 * 
+	 * @param key
+	 * @param value
+	 *            We keep our own copy. Values shorter than SHINGLE_LENGTH
+	 *            aren't indexed.
+	 */
+	public void put(String key, byte[] value) {
+
+		final long[] signature = signature(value);
+
+		if (signature == null) {
+			remove(key);
+			return;
+		}
+
+		final Entry entry = new Entry(key, value.clone(), signature);
+
+		synchronized (this) {
+
+			removeEntry(entries.remove(key));
+			entries.put(key, entry);
+
+			for (int b = 0; b < BANDS; b++) {
+				ArrayList<Entry> bucket = buckets.get(entry.bandKeys[b]);
+				if (bucket == null) {
+					bucket = new ArrayList<Entry>(4);
+					buckets.put(entry.bandKeys[b], bucket);
+				}
+				bucket.add(entry);
+			}
+
+			Iterator<Entry> oldest = entries.values().iterator();
+
+			while (entries.size() > capacity) {
+				removeEntry(oldest.next());
+				oldest.remove();
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Forget a key's value.
+	 * 
+	 * @param key
+	 */
+	public synchronized void remove(String key) {
+		removeEntry(entries.remove(key));
+	}
+
+	/**
+	 * Find the remembered value most like value.
+	 * 
+	 * @param value
+	 * @return the best match, or null if nothing is at least minSimilarity
+	 *         alike
+	 */
+	public SimilarityMatch findBase(byte[] value) {
+
+		final long[] signature = signature(value);
+		final long[] bandKeys = signature == null ? null : bandKeys(signature);
+
+		synchronized (this) {
+
+			lookups++;
+
+			if (signature == null) {
+				return null;
+			}
+
+			Entry best = null;
+			int bestMatches = -1;
+			int examined = 0;
+
+			for (int b = 0; b < BANDS && examined < MAX_CANDIDATES; b++) {
+
+				ArrayList<Entry> bucket = buckets.get(bandKeys[b]);
+
+				if (bucket == null) {
+					continue;
+				}
+
+				// Newest first
+				for (int i = bucket.size() - 1; i >= 0 && examined < MAX_CANDIDATES; i--) {
+
+					final Entry candidate = bucket.get(i);
+
+					if (candidate.lastLookup == lookups) {
+						continue;
+					}
+
+					candidate.lastLookup = lookups;
+					examined++;
+
+					int matches = 0;
+
+					for (int h = 0; h < NUM_HASHES; h++) {
+						if (candidate.signature[h] == signature[h]) {
+							matches++;
+						}
+					}
+
+					if (matches > bestMatches) {
+						best = candidate;
+						bestMatches = matches;
+					}
+				}
+			}
+
+			candidatesExamined += examined;
+
+			final double similarity = (double) bestMatches / NUM_HASHES;
+
+			if (best == null || similarity < minSimilarity) {
+				return null;
+			}
+
+			hits++;
+			return new SimilarityMatch(best.key, best.value, similarity);
+		}
+	}
+
+	/**
+	 * Diff newValue against the most similar value we have, naming that value's
+	 * key in the envelope so the receiver knows which of its values to apply
+	 * it to.
+	 * 
+	 * @param impl
+	 * @param newValue
+	 * @param maxSplits
+	 * @return an envelope with FLAG_BASE_KEY set, or null if nothing similar
+	 *         enough was found or the diff wasn't worth sending
+	 */
+	public byte[] calculateEnvelopedDiff(FastAndRuthlessDiffImpl impl, byte[] newValue, int maxSplits) {
+
+		final SimilarityMatch match = findBase(newValue);
+
+		if (match == null) {
+			return null;
+		}
+
+		try {
+			return FARDEnvelope.addBaseKey(impl.calculateEnvelopedDiff(match.getValue(), newValue, maxSplits),
+					match.getKey());
+		} catch (TooSmallToDeltaException | TooBigToDeltaException | UneconomicToDiffException e) {
+			return null;
+		} catch (BadInputException e) {
+			// We just made the envelope, so this can't happen
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return how many values we are remembering
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getLookups() {
+		return lookups;
+	}
+
+	/**
+	 * @return how many lookups found a value at least minSimilarity alike
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getCandidatesExamined() {
+		return candidatesExamined;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SimilarityIndex [size=" + entries.size() + "/" + capacity + ", buckets=" + buckets.size()
+				+ ", lookups=" + lookups + ", hits=" + hits + ", candidatesExamined=" + candidatesExamined
+				+ ", evictions=" + evictions + "]";
+	}
+
+	/**
+	 * Take an entry out of its buckets.
+	 * 
+	 * @param entry
+	 *            may be null
+	 */
+	private void removeEntry(Entry entry) {
+
+		if (entry == null) {
+			return;
+		}
+
+		for (int b = 0; b < BANDS; b++) {
+
+			ArrayList<Entry> bucket = buckets.get(entry.bandKeys[b]);
+
+			if (bucket != null) {
+				for (int i = 0; i < bucket.size(); i++) {
+					if (bucket.get(i) == entry) {
+						bucket.remove(i);
+						break;
+					}
+				}
+
+				if (bucket.isEmpty()) {
+					buckets.remove(entry.bandKeys[b]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param value
+	 * @return a one permutation MinHash signature of value's shingles, or null
+	 *         if value is shorter than one shingle
+	 */
+	static long[] signature(byte[] value) {
+
+		if (value == null || value.length < SHINGLE_LENGTH) {
+			return null;
+		}
+
+		long[] bins = new long[NUM_HASHES];
+
+		for (int i = 0; i < bins.length; i++) {
+			bins[i] = EMPTY;
+		}
+
+		// With SHINGLE_LENGTH == 8 the window is the whole shingle
+		long window = 0;
+
+		for (int i = 0; i < value.length; i++) {
+
+			window = (window << 8) | (value[i] & 0xFF);
+
+			if (i >= SHINGLE_LENGTH - 1) {
+
+				final long h = mix(window);
+				final int bin = (int) (h >>> (64 - BIN_BITS));
+				final long rest = h & (EMPTY >>> BIN_BITS);
+
+				if (rest < bins[bin]) {
+					bins[bin] = rest;
+				}
+			}
+		}
+
+		// Short values leave bins empty. Borrow from the next full bin, mixed
+		// with the distance so two borrowed bins don't trivially match.
+		long[] signature = bins.clone();
+
+		for (int i = 0; i < NUM_HASHES; i++) {
+			if (bins[i] == EMPTY) {
+				for (int d = 1; d < NUM_HASHES; d++) {
+					final long donor = bins[(i + d) % NUM_HASHES];
+					if (donor != EMPTY) {
+						signature[i] = mix(donor + d) & (EMPTY >>> BIN_BITS);
+						break;
+					}
+				}
+			}
+		}
+
+		return signature;
+	}
+
+	/**
+	 * @param signature
+	 * @return one bucket key per band
+	 */
+	static long[] bandKeys(long[] signature) {
+
+		long[] bandKeys = new long[BANDS];
+
+		for (int b = 0; b < BANDS; b++) {
+
+			long h = b;
+
+			for (int r = 0; r < ROWS; r++) {
+				h = mix(h * 31 + signature[(b * ROWS) + r]);
+			}
+
+			bandKeys[b] = h;
+		}
+
+		return bandKeys;
+	}
+
+	/**
+	 * MurmurHash3's 64 bit finalizer.
+	 * 
+	 * @param h
+	 * @return h with its bits well scrambled
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static class Entry {
+
+		final String key;
+		final byte[] value;
+		final long[] signature;
+		final long[] bandKeys;
+
+		// Stamped with the lookup number so each candidate is scored once
+		long lastLookup = 0;
+
+		Entry(String key, byte[] value, long[] signature) {
+			this.key = key;
+			this.value = value;
+			this.signature = signature;
+			this.bandKeys = bandKeys(signature);
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.similarity;
+
+/**
+ * A value SimilarityIndex.findBase thinks is close to the one it was asked
+ * about.
+ *
+ */
+public class SimilarityMatch {
+
+	private final String key;
+
+	private final byte[] value;
+
+	private final double similarity;
+
+	SimilarityMatch(String key, byte[] value, double similarity) {
+		this.key = key;
+		this.value = value;
+		this.similarity = similarity;
+	}
+
+	/**
+	 * @return the key the value was stored under
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the index's own copy of the value. Don't modify it.
+	 */
+	public byte[] getValue() {
+		return value;
+	}
+
+	/**
+	 * @return estimated Jaccard similarity of the two values' shingles, from 0
+	 *         to 1
+	 */
+	public double getSimilarity() {
+		return similarity;
+	}
+
+	@Override
+	public String toString() {
+		return "SimilarityMatch [key=" + key + ", length=" + value.length + ", similarity=" + similarity + "]";
+	}
+
+}
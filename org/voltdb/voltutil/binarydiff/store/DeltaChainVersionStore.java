@@ -0,0 +1,317 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.store;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+
+/**
+ * Keeps every version of every key, storing a full keyframe every
+ * keyframeInterval versions and FARD deltas in between, so any version can be
+ * rebuilt with fewer than keyframeInterval applyDiff calls.
+ * <p>
+ * A background compactor can be started to rewrite older history: dropping
+ * versions beyond a retention limit and thinning out keyframes in versions
+ * that are no longer recent, since those are read less often.
+ *
+ */
+public class DeltaChainVersionStore {
+
+	private final int keyframeInterval;
+
+	private final int maxSplits;
+
+	private final ConcurrentHashMap<String, VersionChain> chains = new ConcurrentHashMap<String, VersionChain>();
+
+	// FastAndRuthlessDiffImpl keeps unsynchronized stats
+	private final ThreadLocal<FastAndRuthlessDiffImpl> impl = new ThreadLocal<FastAndRuthlessDiffImpl>() {
+		@Override
+		protected FastAndRuthlessDiffImpl initialValue() {
+			return new FastAndRuthlessDiffImpl();
+		}
+	};
+
+	private final AtomicLong keyframesWritten = new AtomicLong();
+	private final AtomicLong deltasWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong bytesSavedByCompaction = new AtomicLong();
+	private final AtomicLong compactionFailures = new AtomicLong();
+
+	private ScheduledExecutorService compactor = null;
+
+	/**
+	 * @param keyframeInterval
+	 *            store a full copy at least this often
+	 * @param maxSplits
+	 *            passed to calculateDiff
+	 */
+	public DeltaChainVersionStore(int keyframeInterval, int maxSplits) {
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+		this.maxSplits = maxSplits;
+	}
+
+	/**
+	 * Store a new version of a key.
+	 * 
+	 * @param key
+	 * @param value
+	 *            the new value. We keep our own copy.
+	 * @return the new version number. Versions for each key start at 0.
+	 */
+	public long put(String key, byte[] value) {
+
+		VersionChain chain = chains.computeIfAbsent(key, k -> new VersionChain());
+
+		synchronized (chain) {
+
+			if (chain.add(value, impl.get(), keyframeInterval, maxSplits)) {
+				deltasWritten.incrementAndGet();
+			} else {
+				keyframesWritten.incrementAndGet();
+			}
+
+			bytesWritten.addAndGet(value.length);
+			return chain.getLatestVersion();
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param version
+	 * @return a copy of that version, or null if we don't have it
+	 */
+	public byte[] get(String key, long version) {
+
+		VersionChain chain = chains.get(key);
+
+		if (chain == null) {
+			return null;
+		}
+
+		synchronized (chain) {
+			return chain.get(version);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return a copy of the newest version, or null if we don't have the key
+	 */
+	public byte[] getLatest(String key) {
+
+		VersionChain chain = chains.get(key);
+
+		if (chain == null) {
+			return null;
+		}
+
+		synchronized (chain) {
+			return chain.get(chain.getLatestVersion());
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the newest version number for a key, or -1 if we don't have it
+	 */
+	public long getLatestVersion(String key) {
+
+		VersionChain chain = chains.get(key);
+
+		if (chain == null) {
+			return -1;
+		}
+
+		synchronized (chain) {
+			return chain.getLatestVersion();
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the oldest version we still have for a key, or -1 if we don't
+	 *         have it
+	 */
+	public long getOldestVersion(String key) {
+
+		VersionChain chain = chains.get(key);
+
+		if (chain == null) {
+			return -1;
+		}
+
+		synchronized (chain) {
+			return chain.firstVersion;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param version
+	 * @return how many applyDiff calls get(key, version) would make, or -1 if
+	 *         we don't have that version
+	 */
+	public int getDeltasToRebuild(String key, long version) {
+
+		VersionChain chain = chains.get(key);
+
+		if (chain == null) {
+			return -1;
+		}
+
+		synchronized (chain) {
+			return chain.getDeltasToRebuild(version);
+		}
+	}
+
+	/**
+	 * Compact every chain once. See startCompactor for what the parameters
+	 * mean.
+	 * 
+	 * @param retainVersions
+	 * @param recentVersions
+	 * @param agedKeyframeInterval
+	 * @return bytes saved
+	 */
+	public long compact(int retainVersions, int recentVersions, int agedKeyframeInterval) {
+
+		// The recent part of each chain has to include the open run of deltas
+		// after the newest keyframe, or put() would lose track of it.
+		final int safeRecentVersions = Math.max(recentVersions, keyframeInterval);
+		final int safeRetainVersions = retainVersions > 0 ? Math.max(retainVersions, safeRecentVersions) : 0;
+
+		long saved = 0;
+
+		for (VersionChain chain : chains.values()) {
+			synchronized (chain) {
+				saved += chain.compact(impl.get(), safeRetainVersions, safeRecentVersions,
+						Math.max(1, agedKeyframeInterval), maxSplits);
+			}
+		}
+
+		bytesSavedByCompaction.addAndGet(saved);
+		return saved;
+	}
+
+	/**
+	 * Start compacting every chain in the background.
+	 * 
+	 * @param periodMs
+	 *            how often to compact
+	 * @param retainVersions
+	 *            how many versions of each key to keep, or 0 to keep them all
+	 * @param recentVersions
+	 *            how many of the newest versions of each key to leave alone
+	 * @param agedKeyframeInterval
+	 *            keyframe spacing for versions older than that. Typically a
+	 *            multiple of keyframeInterval.
+	 */
+	public synchronized void startCompactor(long periodMs, final int retainVersions, final int recentVersions,
+			final int agedKeyframeInterval) {
+
+		stopCompactor();
+
+		compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "DeltaChainVersionStore-compactor");
+			t.setDaemon(true);
+			return t;
+		});
+
+		compactor.scheduleWithFixedDelay(() -> {
+			try {
+				compact(retainVersions, recentVersions, agedKeyframeInterval);
+			} catch (RuntimeException e) {
+				// An exception would cancel the schedule, so count it and carry
+				// on next time
+				compactionFailures.incrementAndGet();
+			}
+		}, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the background compactor, if it is running.
+	 */
+	public synchronized void stopCompactor() {
+		if (compactor != null) {
+			compactor.shutdown();
+			compactor = null;
+		}
+	}
+
+	/**
+	 * @return how many bytes of keyframes and deltas we are holding
+	 */
+	public long getBytesStored() {
+
+		long total = 0;
+
+		for (VersionChain chain : chains.values()) {
+			synchronized (chain) {
+				total += chain.bytesStored;
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 * @return how many bytes of values have been passed to put()
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getKeyframesWritten() {
+		return keyframesWritten.get();
+	}
+
+	public long getDeltasWritten() {
+		return deltasWritten.get();
+	}
+
+	public long getBytesSavedByCompaction() {
+		return bytesSavedByCompaction.get();
+	}
+
+	/**
+	 * @return background compaction runs that stopped with an exception,
+	 *         typically IllegalStateException for a corrupt delta
+	 */
+	public long getCompactionFailures() {
+		return compactionFailures.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Keys=" + chains.size() + " Keyframes=" + keyframesWritten.get() + " Deltas=" + deltasWritten.get()
+				+ " Bytes=" + bytesWritten.get() + "->" + getBytesStored() + " Compacted="
+				+ bytesSavedByCompaction.get() + " CompactionFailures=" + compactionFailures.get();
+	}
+
+}
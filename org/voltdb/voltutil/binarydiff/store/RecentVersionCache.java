@@ -0,0 +1,257 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.store;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.DiffMerge;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+import org.voltdb.voltutil.binarydiff.exceptions.MergeConflictException;
+
+/**
+ * Server side memory of the last few values of recently updated keys, indexed
+ * by deterministicHashcode, so a diff made against a value that has since been
+ * replaced can be merged with DiffMerge instead of being refused.
+ * <p>
+ * Keys are dropped least recently used first once there are more than
+ * maxKeys of them. Safe to use from many threads, but callers must not apply
+ * two diffs to the same key at the same time.
+ *
+ */
+public class RecentVersionCache {
+
+	private final int maxKeys;
+
+	private final int versionsPerKey;
+
+	// Access ordered, so the eldest entry is the least recently used.
+	// Guarded by this.
+	private final LinkedHashMap<String, Versions> keys;
+
+	private long directApplies = 0;
+	private long merges = 0;
+	private long conflicts = 0;
+	private long misses = 0;
+
+	/**
+	 * @param maxKeys
+	 *            how many keys to remember versions for
+	 * @param versionsPerKey
+	 *            how many versions of each key to remember
+	 */
+	public RecentVersionCache(final int maxKeys, int versionsPerKey) {
+
+		this.maxKeys = Math.max(1, maxKeys);
+		this.versionsPerKey = Math.max(1, versionsPerKey);
+
+		keys = new LinkedHashMap<String, Versions>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Versions> eldest) {
+				return size() > RecentVersionCache.this.maxKeys;
+			}
+		};
+	}
+
+	/**
+	 * Remember a new value for key, for example after a full update.
+	 * 
+	 * @param key
+	 * @param value
+	 *            We keep our own copy.
+	 */
+	public void put(String key, byte[] value) {
+		remember(key, value.clone());
+	}
+
+	/**
+	 * @param key
+	 * @param hashCode
+	 *            deterministicHashcode of the value we want
+	 * @return the value, or null if we don't have it
+	 */
+	public synchronized byte[] get(String key, int hashCode) {
+
+		Versions versions = keys.get(key);
+
+		return versions == null ? null : versions.get(hashCode);
+	}
+
+	/**
+	 * Apply a diff to a key's current value. If the diff was made against an
+	 * older value we still have, merge it with the changes made since.
+	 * 
+	 * @param key
+	 * @param current
+	 *            the key's current value
+	 * @param diff
+	 *            FARD data
+	 * @param baseHashCode
+	 *            deterministicHashcode of the value diff was made against
+	 * @return the new value, which we also remember
+	 * @throws HashCodeMismatchException
+	 *             if diff wasn't made against current and we don't have the
+	 *             value it was made against
+	 * @throws MergeConflictException
+	 *             if diff changes something that has changed since
+	 * @throws BadInputException
+	 *             if diff is malformed
+	 */
+	public byte[] applyDiff(String key, byte[] current, byte[] diff, int baseHashCode)
+			throws HashCodeMismatchException, MergeConflictException, BadInputException {
+
+		byte[] result;
+
+		if (current != null && ByteArrayLib.deterministicHashcode(current) == baseHashCode) {
+
+			result = ByteArrayLib.decodeFARDData(current, diff);
+			synchronized (this) {
+				directApplies++;
+			}
+
+		} else {
+
+			final byte[] base = get(key, baseHashCode);
+
+			if (base == null || current == null) {
+				synchronized (this) {
+					misses++;
+				}
+				throw new HashCodeMismatchException(
+						"Don't have version " + baseHashCode + " of " + key + " to merge against");
+			}
+
+			try {
+				result = DiffMerge.merge(base, current, diff);
+				synchronized (this) {
+					merges++;
+				}
+			} catch (MergeConflictException e) {
+				synchronized (this) {
+					conflicts++;
+				}
+				throw e;
+			}
+		}
+
+		remember(key, result);
+		return result;
+	}
+
+	/**
+	 * Forget everything we know about key.
+	 * 
+	 * @param key
+	 */
+	public synchronized void remove(String key) {
+		keys.remove(key);
+	}
+
+	private synchronized void remember(String key, byte[] value) {
+
+		Versions versions = keys.get(key);
+
+		if (versions == null) {
+			versions = new Versions(versionsPerKey);
+			keys.put(key, versions);
+		}
+
+		versions.add(ByteArrayLib.deterministicHashcode(value), value);
+	}
+
+	/**
+	 * @return how many diffs were made against the current value
+	 */
+	public synchronized long getDirectApplies() {
+		return directApplies;
+	}
+
+	/**
+	 * @return how many stale diffs were merged
+	 */
+	public synchronized long getMerges() {
+		return merges;
+	}
+
+	/**
+	 * @return how many stale diffs overlapped later changes
+	 */
+	public synchronized long getConflicts() {
+		return conflicts;
+	}
+
+	/**
+	 * @return how many stale diffs were made against a value we didn't have
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RecentVersionCache [keys=" + keys.size() + "/" + maxKeys + ", directApplies=" + directApplies
+				+ ", merges=" + merges + ", conflicts=" + conflicts + ", misses=" + misses + "]";
+	}
+
+	/**
+	 * A small ring of (hashcode, value) pairs, newest last.
+	 */
+	private static class Versions {
+
+		final int[] hashCodes;
+		final byte[][] values;
+		int next = 0;
+
+		Versions(int size) {
+			hashCodes = new int[size];
+			values = new byte[size][];
+		}
+
+		void add(int hashCode, byte[] value) {
+			hashCodes[next] = hashCode;
+			values[next] = value;
+			next = (next + 1) % values.length;
+		}
+
+		byte[] get(int hashCode) {
+
+			// Newest first, in case two versions share a hashcode
+			for (int i = 1; i <= values.length; i++) {
+				final int slot = (next - i + values.length) % values.length;
+				if (values[slot] != null && hashCodes[slot] == hashCode) {
+					return values[slot];
+				}
+			}
+
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,355 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooBigToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.TooSmallToDeltaException;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+/**
+ * The version history of one key. Each entry is either a keyframe - a full
+ * copy of that version - or a FARD diff against the previous version.
+ * keyframePositions lists where the keyframes are, so finding the nearest one
+ * at or before a version is a binary search. Callers synchronize on the chain.
+ *
+ */
+class VersionChain {
+
+	// Version number of entries.get(0)
+	long firstVersion = 0;
+
+	final ArrayList<byte[]> entries = new ArrayList<byte[]>();
+
+	// Ascending positions in entries that are keyframes. Position 0 always is.
+	int[] keyframePositions = new int[4];
+	int keyframeCount = 0;
+
+	// A full copy of the newest version, so put() doesn't have to rebuild it
+	byte[] latest = null;
+
+	// How many deltas since the last keyframe
+	int sinceKeyframe = 0;
+
+	long bytesStored = 0;
+
+	/**
+	 * Add a new version.
+	 * 
+	 * @param value
+	 *            the new version. We keep our own copy.
+	 * @param impl
+	 * @param keyframeInterval
+	 *            force a keyframe at least this often
+	 * @param maxSplits
+	 * @return true if we stored a delta, false if we stored a keyframe
+	 */
+	boolean add(byte[] value, FastAndRuthlessDiffImpl impl, int keyframeInterval, int maxSplits) {
+
+		final byte[] copy = value.clone();
+		boolean isDelta = false;
+
+		if (latest != null && sinceKeyframe + 1 < keyframeInterval) {
+			try {
+				final byte[] delta = impl.calculateDiff(latest, copy, maxSplits);
+				entries.add(delta);
+				bytesStored += delta.length;
+				sinceKeyframe++;
+				isDelta = true;
+			} catch (TooSmallToDeltaException | UneconomicToDiffException | TooBigToDeltaException e) {
+				// Store it in full instead
+			}
+		}
+
+		if (!isDelta) {
+			addKeyframePosition(entries.size());
+			entries.add(copy);
+			bytesStored += copy.length;
+			sinceKeyframe = 0;
+		}
+
+		latest = copy;
+		return isDelta;
+	}
+
+	/**
+	 * @return the newest version number, or -1 if we're empty
+	 */
+	long getLatestVersion() {
+		return firstVersion + entries.size() - 1;
+	}
+
+	/**
+	 * Rebuild a version from its nearest keyframe.
+	 * 
+	 * @param version
+	 * @return a private copy of the version, or null if we don't have it
+	 */
+	byte[] get(long version) {
+
+		final long position = version - firstVersion;
+
+		if (position < 0 || position >= entries.size()) {
+			return null;
+		}
+
+		if (position == entries.size() - 1) {
+			return latest.clone();
+		}
+
+		final int keyframe = keyframePositions[findKeyframeIndex((int) position)];
+
+		if (keyframe == position) {
+			return entries.get(keyframe).clone();
+		}
+
+		return rebuild(keyframe, (int) position);
+	}
+
+	/**
+	 * @param version
+	 * @return how many deltas get(version) has to apply, or -1 if we don't
+	 *         have it
+	 */
+	int getDeltasToRebuild(long version) {
+
+		final long position = version - firstVersion;
+
+		if (position < 0 || position >= entries.size()) {
+			return -1;
+		}
+
+		if (position == entries.size() - 1) {
+			return 0;
+		}
+
+		return (int) position - keyframePositions[findKeyframeIndex((int) position)];
+	}
+
+	/**
+	 * Apply deltas from a keyframe up to a position.
+	 * 
+	 * @param keyframe
+	 *            position of a keyframe
+	 * @param position
+	 *            position we want, after keyframe
+	 * @return a new array containing that version
+	 */
+	private byte[] rebuild(int keyframe, int position) {
+
+		byte[] value = entries.get(keyframe);
+
+		for (int i = keyframe + 1; i <= position; i++) {
+			value = decode(value, i);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Rewrite history so it takes less space: keep only the newest
+	 * retainVersions versions, and outside the newest recentVersions only keep
+	 * keyframes at multiples of agedKeyframeInterval, replacing the others with
+	 * deltas. The recent part is extended back to the keyframe it starts from,
+	 * so recent versions are still fewer than keyframeInterval deltas from a
+	 * keyframe.
+	 * 
+	 * @param impl
+	 * @param retainVersions
+	 *            how many versions to keep, or 0 to keep them all
+	 * @param recentVersions
+	 *            how many of the newest versions to leave alone
+	 * @param agedKeyframeInterval
+	 *            keyframe spacing for older versions
+	 * @param maxSplits
+	 * @return how many bytes we saved
+	 */
+	long compact(FastAndRuthlessDiffImpl impl, int retainVersions, int recentVersions, int agedKeyframeInterval,
+			int maxSplits) {
+
+		final long bytesBefore = bytesStored;
+
+		if (retainVersions > 0 && entries.size() > retainVersions) {
+			dropOldest(entries.size() - retainVersions);
+		}
+
+		if (entries.size() - recentVersions <= 1) {
+			return bytesBefore - bytesStored;
+		}
+
+		// The oldest recent version is rebuilt from the keyframe at or before
+		// it, so that keyframe has to stay
+		final int agedEnd = keyframePositions[findKeyframeIndex(entries.size() - recentVersions)];
+
+		if (agedEnd <= 1) {
+			return bytesBefore - bytesStored;
+		}
+
+		// Walk the aged part of the chain, rebuilding each version from the one
+		// before. Keyframes that aren't on the aged grid become deltas, and
+		// versions on the grid become keyframes, so no version is more than
+		// agedKeyframeInterval deltas from a keyframe.
+		final int[] oldKeyframes = keyframePositions;
+		final int oldKeyframeCount = keyframeCount;
+
+		keyframePositions = new int[oldKeyframes.length];
+		keyframeCount = 0;
+		addKeyframePosition(0);
+
+		byte[] previous = entries.get(0);
+		int k = 1;
+
+		for (int i = 1; i < agedEnd; i++) {
+
+			final boolean isKeyframe = k < oldKeyframeCount && oldKeyframes[k] == i;
+			final boolean onGrid = (firstVersion + i) % agedKeyframeInterval == 0;
+			byte[] current;
+
+			if (isKeyframe) {
+
+				current = entries.get(i);
+				k++;
+
+				if (onGrid) {
+					addKeyframePosition(i);
+				} else {
+					try {
+						final byte[] delta = impl.calculateDiff(previous, current, maxSplits);
+						entries.set(i, delta);
+						bytesStored += delta.length - current.length;
+					} catch (TooSmallToDeltaException | UneconomicToDiffException | TooBigToDeltaException e) {
+						// Leave it as a keyframe
+						addKeyframePosition(i);
+					}
+				}
+
+			} else {
+
+				current = decode(previous, i);
+
+				if (onGrid) {
+					bytesStored += current.length - entries.get(i).length;
+					entries.set(i, current);
+					addKeyframePosition(i);
+				}
+			}
+
+			previous = current;
+		}
+
+		// Keyframes in the recent part stay where they are
+		while (k < oldKeyframeCount) {
+			addKeyframePosition(oldKeyframes[k++]);
+		}
+
+		return bytesBefore - bytesStored;
+	}
+
+	/**
+	 * Forget the oldest versions, making the new oldest version a keyframe.
+	 * 
+	 * @param count
+	 *            how many versions to drop
+	 */
+	private void dropOldest(int count) {
+
+		final byte[] newFirst = get(firstVersion + count);
+
+		for (int i = 0; i <= count; i++) {
+			bytesStored -= entries.get(i).length;
+		}
+
+		entries.subList(0, count).clear();
+		entries.set(0, newFirst);
+		bytesStored += newFirst.length;
+		firstVersion += count;
+
+		// Shift the keyframe index
+		int[] newKeyframes = new int[keyframePositions.length];
+		int newKeyframeCount = 0;
+		newKeyframes[newKeyframeCount++] = 0;
+
+		for (int i = 0; i < keyframeCount; i++) {
+			if (keyframePositions[i] > count) {
+				newKeyframes[newKeyframeCount++] = keyframePositions[i] - count;
+			}
+		}
+
+		keyframePositions = newKeyframes;
+		keyframeCount = newKeyframeCount;
+	}
+
+	/**
+	 * @param position
+	 * @return index into keyframePositions of the last keyframe at or before
+	 *         position
+	 */
+	private int findKeyframeIndex(int position) {
+
+		int low = 0;
+		int high = keyframeCount - 1;
+
+		while (low < high) {
+			final int mid = (low + high + 1) >>> 1;
+			if (keyframePositions[mid] <= position) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		return low;
+	}
+
+	private void addKeyframePosition(int position) {
+
+		if (keyframeCount == keyframePositions.length) {
+			keyframePositions = Arrays.copyOf(keyframePositions, keyframeCount * 2);
+		}
+
+		keyframePositions[keyframeCount++] = position;
+	}
+
+	/**
+	 * Apply the delta at a position to the version before it.
+	 * 
+	 * @param previous
+	 * @param position
+	 * @return the version at position
+	 */
+	private byte[] decode(byte[] previous, int position) {
+		try {
+			return ByteArrayLib.decodeFARDData(previous, entries.get(position));
+		} catch (BadInputException e) {
+			// We made these deltas ourselves, so this means memory corruption
+			throw new IllegalStateException("Corrupt delta at version " + (firstVersion + position), e);
+		}
+	}
+
+}
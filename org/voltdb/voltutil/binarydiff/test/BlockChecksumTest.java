@@ -0,0 +1,198 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.FARDBlockChecksums;
+import org.voltdb.voltutil.binarydiff.FARDEnvelope;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+
+/**
+ * Checks that envelopes with block checksums only care about the blocks of
+ * the base their REF blocks read, and compares apply speed against checking
+ * the whole base.
+ *
+ */
+public class BlockChecksumTest {
+
+	private static final int VALUE_SIZE = 16384;
+
+	private static final int TAIL_SIZE = 2048;
+
+	private static final int VALUE_COUNT = 200;
+
+	private static final int APPLY_COUNT = 50000;
+
+	private static final int WARMUP_ROUNDS = 5;
+
+	private static final int TIMING_ROUNDS = 7;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		byte[][] oldValues = new byte[VALUE_COUNT][];
+		byte[][] newValues = new byte[VALUE_COUNT][];
+		byte[][] plainEnvelopes = new byte[VALUE_COUNT][];
+		byte[][] blockEnvelopes = new byte[VALUE_COUNT][];
+		FARDBlockChecksums[] cached = new FARDBlockChecksums[VALUE_COUNT];
+
+		long plainBytes = 0;
+		long blockBytes = 0;
+		long blocksChecked = 0;
+
+		for (int i = 0; i < VALUE_COUNT; i++) {
+
+			// A few small edits, and a new tail
+			oldValues[i] = TestValues.randomText(r, VALUE_SIZE);
+			newValues[i] = oldValues[i].clone();
+
+			for (int j = 0; j < 5; j++) {
+				newValues[i][r.nextInt(VALUE_SIZE - TAIL_SIZE)] = '#';
+			}
+
+			System.arraycopy(TestValues.randomText(r, TAIL_SIZE), 0, newValues[i], VALUE_SIZE - TAIL_SIZE, TAIL_SIZE);
+
+			plainEnvelopes[i] = impl.calculateEnvelopedDiff(oldValues[i], newValues[i], 100);
+			blockEnvelopes[i] = FARDEnvelope.addBlockChecksums(plainEnvelopes[i], oldValues[i]);
+			cached[i] = FARDBlockChecksums.of(oldValues[i]);
+
+			plainBytes += plainEnvelopes[i].length;
+			blockBytes += blockEnvelopes[i].length;
+			blocksChecked += FARDEnvelope.read(blockEnvelopes[i]).getBlockCount();
+
+			if (!ArrayUtils.isEquals(newValues[i], impl.applyEnvelopedDiff(oldValues[i], blockEnvelopes[i]))
+					|| !ArrayUtils.isEquals(newValues[i],
+							impl.applyEnvelopedDiff(oldValues[i], blockEnvelopes[i], cached[i]))) {
+				System.err.println("Block checked arrays differ...");
+				retCode = false;
+			}
+
+			// Someone else changes the tail, which the diff replaces anyway
+			byte[] tailChanged = oldValues[i].clone();
+			tailChanged[VALUE_SIZE - 1] = '!';
+
+			if (!ArrayUtils.isEquals(newValues[i], impl.applyEnvelopedDiff(tailChanged, blockEnvelopes[i]))) {
+				System.err.println("Change to unread block wasn't ignored");
+				retCode = false;
+			}
+
+			if (tryApply(impl, tailChanged, plainEnvelopes[i])) {
+				System.err.println("Whole base check missed a change");
+				retCode = false;
+			}
+
+			// Someone else changes a byte the diff reads
+			byte[] headChanged = oldValues[i].clone();
+			headChanged[1] = '!';
+
+			if (tryApply(impl, headChanged, blockEnvelopes[i])) {
+				System.err.println("Change to a block the diff reads wasn't noticed");
+				retCode = false;
+			}
+
+			if (tryApply(impl, ArrayUtils.subarray(oldValues[i], 0, TAIL_SIZE), blockEnvelopes[i])) {
+				System.err.println("Short base wasn't noticed");
+				retCode = false;
+			}
+		}
+
+		System.out.println("Envelopes: " + plainBytes + " bytes plain, " + blockBytes + " with block checksums, "
+				+ (blocksChecked / VALUE_COUNT) + "/" + (VALUE_SIZE / FARDBlockChecksums.DEFAULT_BLOCK_SIZE)
+				+ " blocks checked per diff");
+
+		// Warm up, then time each way of checking the base over several rounds,
+		// taking turns to go first, and report the median of each
+
+		for (int w = 0; w < WARMUP_ROUNDS; w++) {
+			time(impl, oldValues, plainEnvelopes, null, APPLY_COUNT / 10);
+			time(impl, oldValues, blockEnvelopes, null, APPLY_COUNT / 10);
+			time(impl, oldValues, blockEnvelopes, cached, APPLY_COUNT / 10);
+		}
+
+		long[][] nanos = new long[3][TIMING_ROUNDS];
+
+		for (int round = 0; round < TIMING_ROUNDS; round++) {
+			for (int k = 0; k < 3; k++) {
+
+				final int way = (round + k) % 3;
+
+				nanos[way][round] = time(impl, oldValues, way == 0 ? plainEnvelopes : blockEnvelopes,
+						way == 2 ? cached : null, APPLY_COUNT);
+			}
+		}
+
+		final long bytes = (long) APPLY_COUNT * VALUE_SIZE;
+		final String[] names = { "whole base checked", "blocks checked", "cached block checksums" };
+		StringBuffer b = new StringBuffer("Apply, median of " + TIMING_ROUNDS + " rounds:");
+
+		for (int way = 0; way < 3; way++) {
+			Arrays.sort(nanos[way]);
+			b.append(way == 0 ? " " : ", ");
+			b.append(names[way]);
+			b.append(" ");
+			b.append(bytes * 1000 / nanos[way][TIMING_ROUNDS / 2]);
+			b.append("MB/s");
+		}
+
+		System.out.println(b);
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	private static long time(FastAndRuthlessDiffImpl impl, byte[][] oldValues, byte[][] envelopes,
+			FARDBlockChecksums[] cached, int count) throws Exception {
+
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < count; i++) {
+			final int v = i % oldValues.length;
+			impl.applyEnvelopedDiff(oldValues[v], envelopes[v], cached == null ? null : cached[v]);
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private static boolean tryApply(FastAndRuthlessDiffImpl impl, byte[] base, byte[] envelope) throws Exception {
+		try {
+			impl.applyEnvelopedDiff(base, envelope);
+			return true;
+		} catch (HashCodeMismatchException e) {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,342 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.log.DeltaLog;
+import org.voltdb.voltutil.binarydiff.log.DeltaLogOptions;
+
+/**
+ * Checks DeltaLog gives back what was appended to it, including after a torn
+ * write at the end of the last segment, and reports append and replay MB/s.
+ *
+ */
+public class DeltaLogTest {
+
+	private static final int KEY_COUNT = 1000;
+
+	private static final int UPDATE_COUNT = 200000;
+
+	private static final int VALUE_SIZE = 8192;
+
+	private static final int SYNC_EVERY = 100;
+
+	private static final int THREAD_COUNT = 4;
+
+	private static final int RECORDS_PER_THREAD = 5000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		// Work out what we're going to log before we start timing anything
+		final int recordCount = KEY_COUNT + UPDATE_COUNT;
+		String[] keys = new String[recordCount];
+		byte[][] payloads = new byte[recordCount][];
+		byte[] types = new byte[recordCount];
+
+		Map<String, byte[]> expected = new HashMap<String, byte[]>();
+
+		for (int i = 0; i < recordCount; i++) {
+
+			keys[i] = "key" + (i < KEY_COUNT ? i : r.nextInt(KEY_COUNT));
+			byte[] oldValue = expected.get(keys[i]);
+
+			if (oldValue == null) {
+
+				byte[] value = new byte[VALUE_SIZE];
+				r.nextBytes(value);
+				expected.put(keys[i], value);
+
+				types[i] = DeltaLog.RECORD_FULL;
+				payloads[i] = value;
+
+			} else {
+
+				byte[] newValue = oldValue.clone();
+				int blockStart = r.nextInt(VALUE_SIZE - 100);
+				for (int z = blockStart; z < blockStart + r.nextInt(100); z++) {
+					newValue[z] = (byte) r.nextInt();
+				}
+				expected.put(keys[i], newValue);
+
+				try {
+					types[i] = DeltaLog.RECORD_DIFF;
+					payloads[i] = impl.calculateEnvelopedDiff(oldValue, newValue, 100);
+				} catch (Exception e) {
+					types[i] = DeltaLog.RECORD_FULL;
+					payloads[i] = newValue;
+				}
+			}
+		}
+
+		File dir = Files.createTempDirectory("deltalog").toFile();
+
+		DeltaLogOptions options = new DeltaLogOptions();
+		options.setSegmentSize(8 * 1024 * 1024);
+
+		// Append throughput, syncing every SYNC_EVERY records
+
+		DeltaLog log = new DeltaLog(dir, options);
+		long[] lsns = new long[recordCount];
+
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < recordCount; i++) {
+
+			lsns[i] = log.append(types[i], keys[i], payloads[i], 0, payloads[i].length);
+
+			if (i % SYNC_EVERY == SYNC_EVERY - 1) {
+				log.awaitDurable(lsns[i]);
+			}
+		}
+
+		log.sync();
+
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Appended " + recordCount + " records in " + elapsed + "ms = "
+				+ (log.getBytesAppended() / 1024 / elapsed * 1000 / 1024) + "MB/s");
+		System.out.println(log);
+
+		// Group commit - lots of threads all waiting for their own record
+
+		final DeltaLog sharedLog = log;
+		final long syncsBefore = log.getSyncCount();
+		Thread[] threads = new Thread[THREAD_COUNT];
+
+		for (int t = 0; t < threads.length; t++) {
+			final byte[] value = payloads[t];
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+							sharedLog.awaitDurable(sharedLog.appendFull("key" + (i % KEY_COUNT), value));
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+
+		start = System.currentTimeMillis();
+
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].start();
+		}
+
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+		}
+
+		System.out.println(THREAD_COUNT + " threads made " + (THREAD_COUNT * RECORDS_PER_THREAD)
+				+ " durable appends with " + (log.getSyncCount() - syncsBefore) + " syncs in "
+				+ (System.currentTimeMillis() - start) + "ms");
+
+		log.close();
+
+		// The group commit threads interleave, so which thread wrote each key
+		// last depends on timing. Work it out from the log itself.
+		final Map<String, byte[]> lastWriter = new HashMap<String, byte[]>();
+		log = new DeltaLog(dir, options);
+		log.replay(lsns[recordCount - 1] + 1, (lsn, type, key, bytes, offset, length) -> {
+			lastWriter.put(key, ArrayUtils.subarray(bytes, offset, offset + length));
+		});
+		expected.putAll(lastWriter);
+
+		// Replay throughput
+
+		Map<String, byte[]> replayed = new HashMap<String, byte[]>();
+
+		start = System.currentTimeMillis();
+		long replayedCount = log.replayInto(0, replayed);
+		elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+		long logBytes = log.getEndLsn() - log.getFirstLsn();
+		System.out.println("Replayed " + replayedCount + " records from " + log.getSegmentCount() + " segments in "
+				+ elapsed + "ms = " + (logBytes / 1024 / elapsed * 1000 / 1024) + "MB/s");
+
+		retCode = compare(expected, replayed) && retCode;
+
+		// Replay from the middle, which uses the sparse index
+
+		final int middle = recordCount / 2;
+		long count = log.replay(lsns[middle], (lsn, type, key, bytes, offset, length) -> {
+		});
+
+		if (count != recordCount - middle + (THREAD_COUNT * RECORDS_PER_THREAD)) {
+			System.err.println("Replay from middle gave " + count + " records");
+			retCode = false;
+		}
+
+		// Simulate a crash part way through writing a record at the end of the
+		// last segment, followed by garbage
+
+		final long endLsn = log.getEndLsn();
+		log.close();
+
+		File[] segmentFiles = dir.listFiles((d, name) -> name.endsWith(".fardlog"));
+		java.util.Arrays.sort(segmentFiles);
+		File lastSegment = segmentFiles[segmentFiles.length - 1];
+		long lastBase = Long.parseLong(lastSegment.getName().substring(0, 20));
+
+		try (RandomAccessFile raf = new RandomAccessFile(lastSegment, "rw")) {
+
+			raf.seek(endLsn - lastBase);
+
+			// Plausible length and type, then no CRC
+			raf.write(new byte[] { 100, 0, 0, 0, DeltaLog.RECORD_FULL, 3, 0, 'k', 'e', 'y' });
+
+			byte[] garbage = new byte[1000];
+			r.nextBytes(garbage);
+			raf.write(garbage);
+		}
+
+		log = new DeltaLog(dir, options);
+
+		if (log.getEndLsn() != endLsn) {
+			System.err.println("Recovery gave end LSN of " + log.getEndLsn() + ", expected " + endLsn);
+			retCode = false;
+		}
+
+		// Carry on writing after recovery
+		byte[] afterCrash = new byte[VALUE_SIZE];
+		r.nextBytes(afterCrash);
+		log.appendFull("key0", afterCrash);
+		log.close();
+		expected.put("key0", afterCrash);
+
+		log = new DeltaLog(dir, options);
+		replayed.clear();
+		log.replayInto(0, replayed);
+		log.close();
+
+		retCode = compare(expected, replayed) && retCode;
+
+		deleteAll(dir);
+
+		// Threads still waiting when the log is closed mustn't be told their
+		// records are durable before close() has forced them
+
+		final File closeDir = Files.createTempDirectory("deltalog").toFile();
+		final DeltaLog closingLog = new DeltaLog(closeDir, options);
+		final AtomicInteger earlyReturns = new AtomicInteger();
+
+		for (int t = 0; t < threads.length; t++) {
+			final byte[] value = payloads[t];
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+
+							final long lsn = closingLog.appendFull("key", value);
+							closingLog.awaitDurable(lsn);
+
+							if (closingLog.getDurableLsn() <= lsn) {
+								earlyReturns.incrementAndGet();
+							}
+						}
+					} catch (IllegalStateException e) {
+						// closed
+					} catch (Exception e) {
+						e.printStackTrace();
+						earlyReturns.incrementAndGet();
+					}
+				}
+			});
+			threads[t].start();
+		}
+
+		Thread.sleep(100);
+		closingLog.close();
+
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+		}
+
+		if (earlyReturns.get() > 0) {
+			System.err.println(earlyReturns.get() + " awaitDurable calls returned before their record was durable");
+			retCode = false;
+		}
+
+		// Nothing more will be appended, so waiting would never end
+		try {
+			closingLog.awaitDurable(closingLog.getEndLsn());
+			System.err.println("awaitDurable for an LSN after close returned");
+			retCode = false;
+		} catch (IOException e) {
+			// expected
+		}
+
+		deleteAll(closeDir);
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	private static boolean compare(Map<String, byte[]> expected, Map<String, byte[]> replayed) {
+
+		if (expected.size() != replayed.size()) {
+			System.err.println("Expected " + expected.size() + " keys, replay gave " + replayed.size());
+			return false;
+		}
+
+		for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+			if (!ArrayUtils.isEquals(entry.getValue(), replayed.get(entry.getKey()))) {
+				System.err.println(entry.getKey() + " differs after replay");
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static void deleteAll(File dir) throws IOException {
+
+		for (File f : dir.listFiles()) {
+			Files.delete(f.toPath());
+		}
+
+		Files.delete(dir.toPath());
+	}
+
+}
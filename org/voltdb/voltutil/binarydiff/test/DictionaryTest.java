@@ -0,0 +1,210 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.FARDDictionary;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+
+/**
+ * Trains a FARDDictionary on sample records and measures how much it saves
+ * on first writes, which otherwise have to go in full, and on updates.
+ *
+ */
+public class DictionaryTest {
+
+	private static final int SAMPLE_COUNT = 500;
+
+	private static final int NEW_KEY_COUNT = 5000;
+
+	private static final int UPDATE_COUNT = 5000;
+
+	private static final String[] STATUSES = { "active", "suspended", "closed", "pending_review" };
+
+	private static final String[] CITIES = { "Boston", "Bedford", "Dublin", "Chicago", "San Francisco", "London" };
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		ArrayList<byte[]> samples = new ArrayList<byte[]>(SAMPLE_COUNT);
+
+		for (int i = 0; i < SAMPLE_COUNT; i++) {
+			samples.add(makeRecord(r));
+		}
+
+		long start = System.currentTimeMillis();
+		FARDDictionary dictionary = FARDDictionary.train(1, samples, FARDDictionary.MAX_SIZE);
+		System.out.println("Trained " + dictionary + " from " + SAMPLE_COUNT + " samples in "
+				+ (System.currentTimeMillis() - start) + "ms");
+
+		// First writes
+
+		long fullBytes = 0;
+		long sentBytes = 0;
+		int diffed = 0;
+		byte[][] values = new byte[NEW_KEY_COUNT][];
+
+		start = System.currentTimeMillis();
+
+		for (int i = 0; i < NEW_KEY_COUNT; i++) {
+
+			values[i] = makeRecord(r);
+			fullBytes += values[i].length;
+
+			try {
+				byte[] envelope = impl.calculateEnvelopedDiff(null, values[i], 100, false, dictionary);
+				sentBytes += envelope.length;
+				diffed++;
+
+				if (!ArrayUtils.isEquals(values[i], impl.applyEnvelopedDiff(null, envelope, dictionary))) {
+					System.err.println("First write " + i + " differs");
+					retCode = false;
+				}
+
+			} catch (Exception e) {
+				sentBytes += values[i].length;
+			}
+		}
+
+		System.out.println("First writes: " + diffed + "/" + NEW_KEY_COUNT + " diffed, " + fullBytes + " -> "
+				+ sentBytes + " bytes, saved " + (100 - (sentBytes * 100 / fullBytes)) + "% in "
+				+ (System.currentTimeMillis() - start) + "ms");
+
+		// The wrong dictionary must be refused
+
+		byte[] envelope = impl.calculateEnvelopedDiff(null, values[0], 100, false, dictionary);
+		FARDDictionary otherDictionary = new FARDDictionary(2, dictionary.getBytes());
+
+		try {
+			impl.applyEnvelopedDiff(null, envelope, otherDictionary);
+			System.err.println("Applied a diff with the wrong dictionary");
+			retCode = false;
+		} catch (BadInputException e) {
+			// expected
+		}
+
+		try {
+			impl.applyEnvelopedDiff(null, envelope);
+			System.err.println("Applied a dictionary diff without a dictionary");
+			retCode = false;
+		} catch (BadInputException e) {
+			// expected
+		}
+
+		// Updates, with and without the dictionary alongside the old value
+
+		long plainBytes = 0;
+		long withDictionaryBytes = 0;
+
+		for (int i = 0; i < UPDATE_COUNT; i++) {
+
+			final int k = r.nextInt(NEW_KEY_COUNT);
+			byte[] newValue = updateRecord(values[k], r);
+
+			byte[] plain;
+
+			try {
+				plain = impl.calculateEnvelopedDiff(values[k], newValue, 100);
+			} catch (Exception e) {
+				plain = newValue;
+			}
+
+			byte[] withDictionary;
+
+			try {
+				withDictionary = impl.calculateEnvelopedDiff(values[k], newValue, 100, false, dictionary);
+
+				if (!ArrayUtils.isEquals(newValue, impl.applyEnvelopedDiff(values[k], withDictionary, dictionary))) {
+					System.err.println("Update " + i + " differs");
+					retCode = false;
+				}
+
+			} catch (Exception e) {
+				withDictionary = newValue;
+			}
+
+			plainBytes += plain.length;
+			withDictionaryBytes += withDictionary.length;
+			values[k] = newValue;
+		}
+
+		System.out.println("Updates: " + plainBytes + " bytes without dictionary, " + withDictionaryBytes + " with");
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	/**
+	 * @param r
+	 * @return a JSON customer record with a few orders
+	 */
+	private static byte[] makeRecord(Random r) {
+
+		StringBuilder b = new StringBuilder(4096);
+
+		b.append("{\"customerId\":" + r.nextInt(10000000) + ",\"name\":\"Customer " + r.nextInt(100000)
+				+ "\",\"status\":\"" + STATUSES[r.nextInt(STATUSES.length)] + "\",\"address\":{\"street\":\""
+				+ r.nextInt(999) + " Main Street\",\"city\":\"" + CITIES[r.nextInt(CITIES.length)]
+				+ "\",\"postcode\":\"" + r.nextInt(99999) + "\"},\"orders\":[");
+
+		for (int i = 0; i < 5 + r.nextInt(20); i++) {
+			b.append("{\"orderId\":" + r.nextInt(100000000) + ",\"state\":\"" + STATUSES[r.nextInt(STATUSES.length)]
+					+ "\",\"currency\":\"USD\",\"lineItems\":" + r.nextInt(10) + ",\"total\":" + r.nextInt(100000)
+					+ ",\"shippingMethod\":\"standard\",\"giftWrap\":false},");
+		}
+
+		b.append("]}");
+		return b.toString().getBytes();
+	}
+
+	/**
+	 * @param oldValue
+	 * @param r
+	 * @return oldValue with a new order on the end
+	 */
+	private static byte[] updateRecord(byte[] oldValue, Random r) {
+
+		String s = new String(oldValue);
+
+		if (s.length() > 12000) {
+			s = s.substring(0, s.indexOf("\"orders\":[") + 10) + "]}";
+		}
+
+		return (s.substring(0, s.length() - 2) + "{\"orderId\":" + r.nextInt(100000000) + ",\"state\":\"pending\""
+				+ ",\"currency\":\"USD\",\"lineItems\":1,\"total\":" + r.nextInt(100000)
+				+ ",\"shippingMethod\":\"express\",\"giftWrap\":true},]}").getBytes();
+	}
+
+}
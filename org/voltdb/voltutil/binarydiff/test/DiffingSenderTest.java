@@ -0,0 +1,170 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.client.DiffingSender;
+import org.voltdb.voltutil.binarydiff.client.DiffingSenderOptions;
+import org.voltdb.voltutil.binarydiff.client.DiffingSenderTransport;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+
+/**
+ * Sends a stream of updates through DiffingSender to an in memory 'server'
+ * with each cache mode, checking the server ends up with the right values
+ * even when someone else changes them behind our back.
+ *
+ */
+public class DiffingSenderTest {
+
+	private static final int KEY_COUNT = 2000;
+
+	private static final int CACHED_KEYS = 1000;
+
+	private static final int UPDATE_COUNT = 50000;
+
+	private static final int VALUE_SIZE = 8192;
+
+	private static final String[] WORDS = { "customer", "order", "line", "item", "price", "quantity", "status",
+			"shipped", "pending", "address", "street", "city", "total", "discount", "tax", "currency" };
+
+	/**
+	 * Stands in for a VoltDB procedure like DiffedUpdate in the README.
+	 */
+	private static class Server implements DiffingSenderTransport {
+
+		final HashMap<String, byte[]> values = new HashMap<String, byte[]>();
+
+		final FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		@Override
+		public void sendFull(String key, byte[] value) {
+			values.put(key, value.clone());
+		}
+
+		@Override
+		public void sendDiff(String key, byte[] diff, int baseHashcode) throws HashCodeMismatchException, IOException {
+			try {
+				values.put(key, impl.applyDiff(values.get(key), diff, baseHashcode));
+			} catch (BadInputException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		for (DiffingSenderOptions.CacheMode mode : DiffingSenderOptions.CacheMode.values()) {
+
+			Random r = new Random(0);
+
+			byte[][] expected = new byte[KEY_COUNT][];
+
+			for (int k = 0; k < KEY_COUNT; k++) {
+				expected[k] = textValue(r);
+			}
+
+			Server server = new Server();
+
+			DiffingSenderOptions options = new DiffingSenderOptions();
+			options.setCacheMode(mode);
+			options.setMaxKeys(CACHED_KEYS);
+
+			DiffingSender sender = new DiffingSender(options, server);
+
+			long start = System.currentTimeMillis();
+
+			for (int i = 0; i < UPDATE_COUNT; i++) {
+
+				// Most updates go to the first CACHED_KEYS / 2 keys
+				final int k = r.nextInt(10) < 8 ? r.nextInt(CACHED_KEYS / 2) : r.nextInt(KEY_COUNT);
+
+				byte[] newValue = expected[k].clone();
+				int blockStart = r.nextInt(VALUE_SIZE - 20);
+				byte[] word = WORDS[r.nextInt(WORDS.length)].getBytes();
+				System.arraycopy(word, 0, newValue, blockStart, Math.min(word.length, VALUE_SIZE - blockStart));
+				expected[k] = newValue;
+
+				sender.send("key" + k, newValue);
+
+				if (i % 1000 == 0) {
+					// Someone else changes a value on the server
+					byte[] changed = server.values.get("key" + k);
+					changed[VALUE_SIZE / 2]++;
+					expected[k] = changed.clone();
+				}
+			}
+
+			long elapsed = System.currentTimeMillis() - start;
+
+			for (int k = 0; k < KEY_COUNT; k++) {
+				byte[] onServer = server.values.get("key" + k);
+				if (onServer != null && !ArrayUtils.isEquals(expected[k], onServer)) {
+					System.err.println(mode + ": key" + k + " differs on server");
+					retCode = false;
+					break;
+				}
+			}
+
+			if (sender.getResyncs() == 0) {
+				System.err.println(mode + ": Expected some resyncs");
+				retCode = false;
+			}
+
+			System.out.println(mode + " took " + elapsed + "ms: " + sender);
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	/**
+	 * @param r
+	 * @return VALUE_SIZE bytes of repetitive text, which compresses well
+	 */
+	private static byte[] textValue(Random r) {
+
+		StringBuilder b = new StringBuilder(VALUE_SIZE + 20);
+
+		while (b.length() < VALUE_SIZE) {
+			b.append(WORDS[r.nextInt(WORDS.length)]);
+			b.append(r.nextInt(1000));
+			b.append(' ');
+		}
+
+		b.setLength(VALUE_SIZE);
+		return b.toString().getBytes();
+	}
+
+}
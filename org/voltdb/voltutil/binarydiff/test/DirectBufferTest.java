@@ -0,0 +1,283 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+/**
+ * Checks that the ByteBuffer versions of calculateDiff and applyDiff give the
+ * same answers as the byte[] versions for heap and direct buffers, and
+ * compares their throughput.
+ *
+ */
+public class DirectBufferTest {
+
+	private static final int CASE_COUNT = 5000;
+
+	private static final int VALUE_SIZE = 8192;
+
+	private static final int SPEED_VALUE_COUNT = 200;
+
+	private static final int SPEED_TEST_COUNT = 20000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		int uneconomic = 0;
+
+		for (int i = 0; i < CASE_COUNT; i++) {
+
+			final byte[] oldArray = TestValues.randomValue(r, 3 + r.nextInt(i % 10 == 0 ? 32000 : 2000));
+			final byte[] newArray = TestValues.edit(r, oldArray);
+
+			final int maxSplits = 1 + r.nextInt(100);
+
+			byte[] expected = null;
+
+			try {
+				expected = impl.calculateDiff(oldArray, newArray, maxSplits);
+			} catch (UneconomicToDiffException e) {
+				uneconomic++;
+			}
+
+			for (int direct = 0; direct < 2; direct++) {
+
+				// Put the values part way into their buffers to check we
+				// respect position and limit
+				final int pad = r.nextInt(16);
+				final ByteBuffer oldBuffer = wrap(oldArray, pad, direct == 1);
+				final ByteBuffer newBuffer = wrap(newArray, pad + 1, direct == 1);
+				final ByteBuffer diffBuffer = allocate(oldArray.length + pad, direct == 1);
+				diffBuffer.position(pad);
+
+				byte[] actual = null;
+
+				try {
+					impl.calculateDiff(oldBuffer, newBuffer, maxSplits, diffBuffer);
+					diffBuffer.flip().position(pad);
+					actual = new byte[diffBuffer.remaining()];
+					diffBuffer.duplicate().get(actual);
+				} catch (UneconomicToDiffException e) {
+					actual = null;
+				}
+
+				if (oldBuffer.position() != pad || newBuffer.position() != pad + 1) {
+					System.err.println("Input buffer position moved");
+					retCode = false;
+				}
+
+				if (!ArrayUtils.isEquals(expected, actual)) {
+					System.err.println("Diffs differ for case " + i + " direct=" + direct + " "
+							+ (expected == null ? "null" : expected.length) + " vs "
+							+ (actual == null ? "null" : actual.length));
+					retCode = false;
+					continue;
+				}
+
+				if (actual == null) {
+					continue;
+				}
+
+				final ByteBuffer outBuffer = allocate(newArray.length, direct == 1);
+				impl.applyDiff(oldBuffer, diffBuffer, ByteArrayLib.deterministicHashcode(oldArray), outBuffer);
+
+				final byte[] applied = new byte[newArray.length];
+				outBuffer.flip();
+				outBuffer.get(applied);
+
+				if (!ArrayUtils.isEquals(newArray, applied) || outBuffer.hasRemaining()) {
+					System.err.println("Applied arrays differ for case " + i + " direct=" + direct);
+					retCode = false;
+				}
+			}
+		}
+
+		System.out.println(CASE_COUNT + " cases compared, " + uneconomic + " uneconomic");
+
+		retCode = checkBadInput(impl) && retCode;
+
+		// Speed test, heap byte[] vs heap ByteBuffer vs direct ByteBuffer
+
+		byte[][] oldValues = new byte[SPEED_VALUE_COUNT][];
+		byte[][] newValues = new byte[SPEED_VALUE_COUNT][];
+		byte[][] diffs = new byte[SPEED_VALUE_COUNT][];
+		int[] hashes = new int[SPEED_VALUE_COUNT];
+
+		ByteBuffer[][] oldBuffers = new ByteBuffer[2][SPEED_VALUE_COUNT];
+		ByteBuffer[][] newBuffers = new ByteBuffer[2][SPEED_VALUE_COUNT];
+		ByteBuffer[][] diffBuffers = new ByteBuffer[2][SPEED_VALUE_COUNT];
+
+		for (int i = 0; i < SPEED_VALUE_COUNT; i++) {
+
+			oldValues[i] = TestValues.randomValue(r, VALUE_SIZE);
+			newValues[i] = oldValues[i].clone();
+
+			for (int j = 0; j < 5; j++) {
+				newValues[i][r.nextInt(VALUE_SIZE)] = '#';
+			}
+
+			diffs[i] = impl.calculateDiff(oldValues[i], newValues[i], 100);
+			hashes[i] = ByteArrayLib.deterministicHashcode(oldValues[i]);
+
+			for (int direct = 0; direct < 2; direct++) {
+				oldBuffers[direct][i] = wrap(oldValues[i], 0, direct == 1);
+				newBuffers[direct][i] = wrap(newValues[i], 0, direct == 1);
+				diffBuffers[direct][i] = wrap(diffs[i], 0, direct == 1);
+			}
+		}
+
+		final ByteBuffer[] scratch = { allocate(VALUE_SIZE, false), allocate(VALUE_SIZE, true) };
+		final long bytes = (long) SPEED_TEST_COUNT * VALUE_SIZE;
+
+		for (int pass = 0; pass < 2; pass++) {
+
+			final int count = pass == 0 ? SPEED_TEST_COUNT / 10 : SPEED_TEST_COUNT;
+
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				final int v = i % SPEED_VALUE_COUNT;
+				impl.calculateDiff(oldValues[v], newValues[v], 100);
+			}
+			final long arrayDiffNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				final int v = i % SPEED_VALUE_COUNT;
+				impl.applyDiff(oldValues[v], diffs[v], hashes[v]);
+			}
+			final long arrayApplyNanos = System.nanoTime() - start;
+
+			long[] bufferDiffNanos = new long[2];
+			long[] bufferApplyNanos = new long[2];
+
+			for (int direct = 0; direct < 2; direct++) {
+
+				start = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					final int v = i % SPEED_VALUE_COUNT;
+					scratch[direct].clear();
+					impl.calculateDiff(oldBuffers[direct][v], newBuffers[direct][v], 100, scratch[direct]);
+				}
+				bufferDiffNanos[direct] = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					final int v = i % SPEED_VALUE_COUNT;
+					scratch[direct].clear();
+					impl.applyDiff(oldBuffers[direct][v], diffBuffers[direct][v], hashes[v], scratch[direct]);
+				}
+				bufferApplyNanos[direct] = System.nanoTime() - start;
+			}
+
+			if (pass == 0) {
+				continue;
+			}
+
+			System.out.println("Diff:  byte[] " + (bytes * 1000 / arrayDiffNanos) + "MB/s, heap ByteBuffer "
+					+ (bytes * 1000 / bufferDiffNanos[0]) + "MB/s, direct ByteBuffer "
+					+ (bytes * 1000 / bufferDiffNanos[1]) + "MB/s");
+			System.out.println("Apply: byte[] " + (bytes * 1000 / arrayApplyNanos) + "MB/s, heap ByteBuffer "
+					+ (bytes * 1000 / bufferApplyNanos[0]) + "MB/s, direct ByteBuffer "
+					+ (bytes * 1000 / bufferApplyNanos[1]) + "MB/s");
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	/**
+	 * A REF past the end of the base and a truncated block must both be
+	 * rejected before anything is written.
+	 */
+	private static boolean checkBadInput(FastAndRuthlessDiffImpl impl) throws Exception {
+
+		boolean ok = true;
+
+		final byte[] base = "The quick brown fox".getBytes();
+		final ByteBuffer baseBuffer = wrap(base, 0, true);
+		final int hash = ByteArrayLib.deterministicHashcode(base);
+
+		final byte[][] badDiffs = { ArrayUtils.addAll(ByteArrayLib.encodeFARDData((short) 0, (short) 4),
+				ByteArrayLib.encodeFARDData((short) 10, (short) 40)),
+				ArrayUtils.subarray(ByteArrayLib.encodeFARDData("hello".getBytes()), 0, 7) };
+
+		for (int i = 0; i < badDiffs.length; i++) {
+
+			final ByteBuffer out = allocate(64, true);
+
+			try {
+				impl.applyDiff(baseBuffer, wrap(badDiffs[i], 0, true), hash, out);
+				System.err.println("Bad diff " + i + " wasn't rejected");
+				ok = false;
+			} catch (BadInputException e) {
+				if (out.position() != 0 || out.get(0) != 0) {
+					System.err.println("Bad diff " + i + " wrote output");
+					ok = false;
+				}
+			}
+		}
+
+		return ok;
+	}
+
+	private static ByteBuffer allocate(int capacity, boolean direct) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * @return a buffer holding value at position pad, with its limit at the end
+	 *         of value and a byte of junk after that
+	 */
+	private static ByteBuffer wrap(byte[] value, int pad, boolean direct) {
+
+		ByteBuffer buffer = allocate(pad + value.length + 1, direct);
+
+		for (int i = 0; i < pad; i++) {
+			buffer.put((byte) '?');
+		}
+
+		buffer.put(value);
+		buffer.put((byte) '?');
+		buffer.position(pad);
+		buffer.limit(pad + value.length);
+
+		return buffer;
+	}
+
+}
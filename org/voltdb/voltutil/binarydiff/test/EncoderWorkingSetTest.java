@@ -0,0 +1,198 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImplByteArrayParts;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that calculateDiff's parallel array working set gives the same
+ * answers as the FastAndRuthlessDiffImplByteArrayParts list it replaced, and
+ * compares how fast each is and how much each allocates.
+ *
+ */
+public class EncoderWorkingSetTest {
+
+	private static final int CASE_COUNT = 5000;
+
+	private static final int SPEED_VALUE_COUNT = 200;
+
+	private static final int SPEED_TEST_COUNT = 20000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		int uneconomic = 0;
+
+		for (int i = 0; i < CASE_COUNT; i++) {
+
+			final byte[] oldArray = TestValues.randomValue(r, 3 + r.nextInt(i % 10 == 0 ? 32000 : 2000));
+			final byte[] newArray = TestValues.edit(r, oldArray);
+			final int maxSplits = 1 + r.nextInt(100);
+
+			byte[] expected = null;
+			byte[] actual = null;
+
+			try {
+				expected = partsCalculateDiff(oldArray, newArray, maxSplits);
+			} catch (UneconomicToDiffException e) {
+				uneconomic++;
+			}
+
+			try {
+				actual = impl.calculateDiff(oldArray, newArray, maxSplits);
+			} catch (UneconomicToDiffException e) {
+				actual = null;
+			}
+
+			if (!ArrayUtils.isEquals(expected, actual)) {
+				System.err.println("Diffs differ for case " + i);
+				retCode = false;
+			}
+		}
+
+		System.out.println(CASE_COUNT + " cases compared, " + uneconomic + " uneconomic");
+
+		// Speed and allocation, for a few edits to an 8K value
+
+		byte[][] oldValues = new byte[SPEED_VALUE_COUNT][];
+		byte[][] newValues = new byte[SPEED_VALUE_COUNT][];
+
+		for (int i = 0; i < SPEED_VALUE_COUNT; i++) {
+
+			oldValues[i] = TestValues.randomValue(r, 8192);
+			newValues[i] = oldValues[i].clone();
+
+			for (int j = 0; j < 5; j++) {
+				newValues[i][r.nextInt(newValues[i].length)] = '#';
+			}
+		}
+
+		final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final long threadId = Thread.currentThread().getId();
+		final long bytes = (long) SPEED_TEST_COUNT * 8192;
+
+		for (int pass = 0; pass < 2; pass++) {
+
+			long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+
+			for (int i = 0; i < SPEED_TEST_COUNT; i++) {
+				partsCalculateDiff(oldValues[i % SPEED_VALUE_COUNT], newValues[i % SPEED_VALUE_COUNT], 100);
+			}
+
+			final long partsNanos = System.nanoTime() - start;
+			final long partsBytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+			startBytes = threadBean.getThreadAllocatedBytes(threadId);
+			start = System.nanoTime();
+
+			for (int i = 0; i < SPEED_TEST_COUNT; i++) {
+				impl.calculateDiff(oldValues[i % SPEED_VALUE_COUNT], newValues[i % SPEED_VALUE_COUNT], 100);
+			}
+
+			final long arrayNanos = System.nanoTime() - start;
+			final long arrayBytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+			if (pass == 0) {
+				continue;
+			}
+
+			System.out.println("Parts list:     " + (bytes * 1000 / partsNanos) + "MB/s, "
+					+ (partsBytes / SPEED_TEST_COUNT) + " bytes allocated per diff");
+			System.out.println("Parallel array: " + (bytes * 1000 / arrayNanos) + "MB/s, "
+					+ (arrayBytes / SPEED_TEST_COUNT) + " bytes allocated per diff");
+
+			if (arrayBytes > partsBytes) {
+				System.err.println("Parallel arrays allocated more");
+				retCode = false;
+			}
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	/**
+	 * calculateDiff as it was when it used a list of
+	 * FastAndRuthlessDiffImplByteArrayParts.
+	 */
+	private static byte[] partsCalculateDiff(byte[] oldArray, byte[] newArray, int maxSplits) throws Exception {
+
+		int splitCountsThisArray = 0;
+
+		ArrayList<FastAndRuthlessDiffImplByteArrayParts> diffArrayList = new ArrayList<FastAndRuthlessDiffImplByteArrayParts>();
+		diffArrayList.add(new FastAndRuthlessDiffImplByteArrayParts(newArray));
+
+		int splitTarget = ByteArrayLib.findSplitTarget(diffArrayList);
+		while (splitTarget > -1 && splitCountsThisArray < maxSplits) {
+			splitCountsThisArray += ByteArrayLib.splitByteArrayPartsByContent(diffArrayList, splitTarget, oldArray);
+			splitTarget = ByteArrayLib.findSplitTarget(diffArrayList);
+		}
+
+		splitTarget = ByteArrayLib.findRepeatingGroupTarget(diffArrayList);
+		while (splitTarget > -1 && splitCountsThisArray < maxSplits) {
+			splitCountsThisArray += ByteArrayLib.splitByteArrayPartsByRepeatingBytes(diffArrayList, splitTarget);
+			splitTarget = ByteArrayLib.findRepeatingGroupTarget(diffArrayList);
+		}
+
+		int totalMessageSize = 0;
+
+		for (int i = 0; i < diffArrayList.size(); i++) {
+			totalMessageSize += diffArrayList.get(i).messageSize();
+		}
+
+		byte[] outArray = new byte[totalMessageSize];
+
+		ByteArrayLib.giveUpIfUneconomic(oldArray, outArray);
+
+		int position = 0;
+
+		for (int i = 0; i < diffArrayList.size(); i++) {
+			byte[] tempArray = diffArrayList.get(i).getMessageBytes();
+			System.arraycopy(tempArray, 0, outArray, position, tempArray.length);
+			position += tempArray.length;
+		}
+
+		return outArray;
+	}
+
+}
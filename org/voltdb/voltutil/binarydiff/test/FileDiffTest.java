@@ -0,0 +1,206 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+import org.voltdb.voltutil.binarydiff.file.FileDiff;
+import org.voltdb.voltutil.binarydiff.file.FileDiffStats;
+
+/**
+ * Diffs and patches a large file with scattered edits, insertions and
+ * deletions, and checks that damaged diffs and the wrong old file are
+ * rejected.
+ *
+ */
+public class FileDiffTest {
+
+	private static final int FILE_SIZE = 64 * 1024 * 1024;
+
+	private static final int EDIT_COUNT = 2000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+
+		File dir = Files.createTempDirectory("FileDiffTest").toFile();
+		File oldFile = new File(dir, "old");
+		File newFile = new File(dir, "new");
+		File diffFile = new File(dir, "diff");
+		File outFile = new File(dir, "out");
+
+		byte[] oldBytes = TestValues.randomText(r, FILE_SIZE);
+		byte[] newBytes = edit(r, oldBytes);
+
+		Files.write(oldFile.toPath(), oldBytes);
+		Files.write(newFile.toPath(), newBytes);
+		oldBytes = null;
+
+		FileDiff fileDiff = new FileDiff();
+
+		FileDiffStats diffStats = fileDiff.diff(oldFile, newFile, diffFile);
+		System.out.println("Diff:  " + diffStats);
+
+		FileDiffStats patchStats = fileDiff.patch(oldFile, diffFile, outFile);
+		System.out.println("Patch: " + patchStats);
+
+		if (Files.mismatch(newFile.toPath(), outFile.toPath()) != -1) {
+			System.err.println("Patched file differs...");
+			retCode = false;
+		}
+
+		if (diffStats.getCompressionPercent() < 90) {
+			System.err.println("Diff only " + diffStats.getCompressionPercent() + "% smaller");
+			retCode = false;
+		}
+
+		// Truncated diff
+		File badDiff = new File(dir, "bad");
+		Files.copy(diffFile.toPath(), badDiff.toPath());
+
+		try (RandomAccessFile raf = new RandomAccessFile(badDiff, "rw")) {
+			raf.setLength(diffFile.length() - 10);
+		}
+
+		if (!rejected(fileDiff, oldFile, badDiff, outFile)) {
+			System.err.println("Truncated diff wasn't rejected");
+			retCode = false;
+		}
+
+		// A flipped byte in the diff
+		Files.copy(diffFile.toPath(), badDiff.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		try (RandomAccessFile raf = new RandomAccessFile(badDiff, "rw")) {
+			final long at = diffFile.length() / 2;
+			raf.seek(at);
+			final int b = raf.read();
+			raf.seek(at);
+			raf.write(b ^ 0x55);
+		}
+
+		if (!rejected(fileDiff, oldFile, badDiff, outFile)) {
+			System.err.println("Damaged diff wasn't rejected");
+			retCode = false;
+		}
+
+		// The old file has changed since we diffed it
+		try (RandomAccessFile raf = new RandomAccessFile(oldFile, "rw")) {
+			raf.seek(FILE_SIZE / 3);
+			raf.write('#');
+		}
+
+		if (!rejected(fileDiff, oldFile, diffFile, outFile)) {
+			System.err.println("Changed old file wasn't noticed");
+			retCode = false;
+		}
+
+		if (outFile.exists()) {
+			System.err.println("Failed patch left its output behind");
+			retCode = false;
+		}
+
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	private static boolean rejected(FileDiff fileDiff, File oldFile, File diffFile, File outFile) throws Exception {
+		try {
+			fileDiff.patch(oldFile, diffFile, outFile);
+			return false;
+		} catch (BadInputException | HashCodeMismatchException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @return a copy of oldBytes with overwrites, insertions and deletions of
+	 *         up to 2K, and a new tail
+	 */
+	private static byte[] edit(Random r, byte[] oldBytes) {
+
+		byte[] newBytes = new byte[oldBytes.length + (oldBytes.length / 100)];
+		int oldPosition = 0;
+		int newPosition = 0;
+
+		final int gap = oldBytes.length / EDIT_COUNT;
+
+		for (int i = 0; i < EDIT_COUNT; i++) {
+
+			final int keep = Math.min(r.nextInt(gap * 2), oldBytes.length - oldPosition);
+			System.arraycopy(oldBytes, oldPosition, newBytes, newPosition, keep);
+			oldPosition += keep;
+			newPosition += keep;
+
+			final int editLength = 1 + r.nextInt(2048);
+
+			switch (r.nextInt(3)) {
+			case 0:
+				// overwrite
+				for (int j = 0; j < editLength && newPosition < newBytes.length; j++) {
+					newBytes[newPosition++] = (byte) r.nextInt(256);
+				}
+				oldPosition = Math.min(oldBytes.length, oldPosition + editLength);
+				break;
+			case 1:
+				// insert
+				for (int j = 0; j < editLength && newPosition < newBytes.length; j++) {
+					newBytes[newPosition++] = (byte) r.nextInt(256);
+				}
+				break;
+			default:
+				// delete
+				oldPosition = Math.min(oldBytes.length, oldPosition + editLength);
+				break;
+			}
+		}
+
+		final int rest = Math.min(oldBytes.length - oldPosition, newBytes.length - newPosition - 1000);
+		System.arraycopy(oldBytes, oldPosition, newBytes, newPosition, rest);
+		newPosition += rest;
+
+		byte[] tail = TestValues.randomText(r, 1000);
+		System.arraycopy(tail, 0, newBytes, newPosition, tail.length);
+
+		return Arrays.copyOf(newBytes, newPosition + tail.length);
+	}
+
+}
@@ -0,0 +1,304 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.FARDEnvelope;
+import org.voltdb.voltutil.binarydiff.FARDValidator;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+
+/**
+ * Throws corrupted FARD data at the validator and decoders. The only thing
+ * they are allowed to do with it is decode it or throw BadInputException.
+ *
+ */
+public class FuzzTest {
+
+	private static final int CORPUS_SIZE = 1000;
+
+	private static final int FUZZ_COUNT = 1000000;
+
+	private static final int SPEED_TEST_COUNT = 1000;
+
+	public static void main(String[] args) {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		// Build a corpus of genuine diffs to mutate
+		ArrayList<byte[]> bases = new ArrayList<byte[]>(CORPUS_SIZE);
+		ArrayList<byte[]> diffs = new ArrayList<byte[]>(CORPUS_SIZE);
+		long diffBytes = 0;
+
+		while (diffs.size() < CORPUS_SIZE) {
+
+			byte[] oldValue = new byte[64 + r.nextInt(8192)];
+			r.nextBytes(oldValue);
+
+			byte[] newValue = oldValue.clone();
+
+			for (int j = 0; j < 5; j++) {
+				int blockStart = r.nextInt(newValue.length - 30);
+				int blockEnd = blockStart + r.nextInt(30);
+
+				if (r.nextBoolean()) {
+					for (int z = blockStart; z <= blockEnd; z++) {
+						newValue[z] = (byte) r.nextInt();
+					}
+				} else {
+					for (int z = blockStart; z <= blockEnd; z++) {
+						newValue[z] = 42;
+					}
+				}
+			}
+
+			try {
+				diffs.add(impl.calculateDiff(oldValue, newValue, 100));
+				bases.add(oldValue);
+				diffBytes += diffs.get(diffs.size() - 1).length;
+			} catch (Exception e) {
+				// Not interesting for this test
+			}
+		}
+
+		// Robustness
+
+		int accepted = 0;
+		int rejected = 0;
+
+		for (int i = 0; i < FUZZ_COUNT; i++) {
+
+			final int which = r.nextInt(CORPUS_SIZE);
+			final byte[] base = bases.get(which);
+			final byte[] mutant = mutate(diffs.get(which), r);
+
+			try {
+
+				int targetLength = -1;
+
+				try {
+					targetLength = FARDValidator.validate(mutant, base.length);
+				} catch (BadInputException e) {
+					rejected++;
+				}
+
+				try {
+					byte[] result = impl.applyDiff(base, mutant, ByteArrayLib.deterministicHashcode(base));
+
+					if (targetLength < 0) {
+						System.err.println("applyDiff accepted data the validator rejected");
+						retCode = false;
+					} else if (result.length != targetLength) {
+						System.err.println("applyDiff produced " + result.length + " bytes, validator said "
+								+ targetLength);
+						retCode = false;
+					} else {
+						accepted++;
+					}
+
+				} catch (BadInputException e) {
+					if (targetLength >= 0) {
+						System.err.println("applyDiff rejected data the validator accepted: " + e.getMessage());
+						retCode = false;
+					}
+				}
+
+				byte[] inPlaceArray = base.clone();
+
+				try {
+					impl.applyDiffInPlace(inPlaceArray, mutant, ByteArrayLib.deterministicHashcode(inPlaceArray));
+				} catch (BadInputException e) {
+					if (!ArrayUtils.isEquals(base, inPlaceArray)) {
+						System.err.println("applyDiffInPlace changed the array before rejecting it");
+						retCode = false;
+					}
+				}
+
+			} catch (Throwable t) {
+				System.err.println("Unexpected " + t.getClass().getName() + " for mutant " + i);
+				t.printStackTrace();
+				retCode = false;
+			}
+		}
+
+		System.out.println("Fuzzed " + FUZZ_COUNT + ": accepted=" + accepted + " rejected=" + rejected);
+
+		retCode = fuzzCompressedEnvelopes(r, impl) && retCode;
+
+		// Speed
+
+		long start = System.currentTimeMillis();
+
+		try {
+			for (int i = 0; i < SPEED_TEST_COUNT; i++) {
+				for (int j = 0; j < CORPUS_SIZE; j++) {
+					FARDValidator.validate(diffs.get(j), bases.get(j).length);
+				}
+			}
+		} catch (BadInputException e) {
+			System.err.println("Genuine diff failed validation: " + e.getMessage());
+			retCode = false;
+		}
+
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Validated " + (diffBytes * SPEED_TEST_COUNT) + " bytes in " + elapsed + "ms = "
+				+ ((diffBytes * SPEED_TEST_COUNT) / (elapsed * 1000)) + " MB/s");
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+
+	}
+
+	/**
+	 * Same idea for envelopes whose literals have been deflated, since
+	 * FARDLiteralCoder parses the ops and inflates before the validator sees
+	 * anything.
+	 * 
+	 * @param r
+	 * @param impl
+	 * @return true if nothing unexpected happened
+	 */
+	private static boolean fuzzCompressedEnvelopes(Random r, FastAndRuthlessDiffImpl impl) {
+
+		boolean retCode = true;
+
+		ArrayList<byte[]> bases = new ArrayList<byte[]>(CORPUS_SIZE);
+		ArrayList<byte[]> envelopes = new ArrayList<byte[]>(CORPUS_SIZE);
+
+		final String text = "Four score and seven years ago our fathers brought forth on this continent, a new nation, "
+				+ "conceived in Liberty, and dedicated to the proposition that all men are created equal. ";
+
+		while (envelopes.size() < CORPUS_SIZE) {
+
+			StringBuilder b = new StringBuilder();
+			while (b.length() < 2000 + r.nextInt(6000)) {
+				b.append(text.substring(r.nextInt(text.length())));
+			}
+
+			byte[] oldValue = b.toString().getBytes();
+			byte[] newValue = oldValue.clone();
+
+			for (int j = 0; j < 5; j++) {
+				int blockStart = r.nextInt(newValue.length - 200);
+				System.arraycopy(oldValue, r.nextInt(oldValue.length - 200), newValue, blockStart, 50 + r.nextInt(150));
+			}
+
+			try {
+				byte[] envelope = impl.calculateEnvelopedDiff(oldValue, newValue, 100, true);
+
+				if (FARDEnvelope.read(envelope).getFlags() == FARDEnvelope.FLAG_DEFLATED_LITERALS) {
+					envelopes.add(envelope);
+					bases.add(oldValue);
+				}
+			} catch (Exception e) {
+				// Not interesting for this test
+			}
+		}
+
+		int accepted = 0;
+		int rejected = 0;
+
+		for (int i = 0; i < FUZZ_COUNT / 10; i++) {
+
+			final int which = r.nextInt(CORPUS_SIZE);
+			final byte[] mutant = mutate(envelopes.get(which), r);
+
+			try {
+				impl.applyEnvelopedDiff(bases.get(which), mutant);
+				accepted++;
+			} catch (BadInputException | HashCodeMismatchException e) {
+				rejected++;
+			} catch (Throwable t) {
+				System.err.println("Unexpected " + t.getClass().getName() + " for compressed mutant " + i);
+				t.printStackTrace();
+				retCode = false;
+			}
+		}
+
+		System.out.println("Fuzzed " + (FUZZ_COUNT / 10) + " compressed envelopes: accepted=" + accepted
+				+ " rejected=" + rejected);
+
+		return retCode;
+	}
+
+	/**
+	 * Damage a diff in one of several ways.
+	 * 
+	 * @param diff
+	 *            a genuine diff
+	 * @param r
+	 * @return a copy of diff with something wrong with it
+	 */
+	private static byte[] mutate(byte[] diff, Random r) {
+
+		byte[] mutant = diff.clone();
+
+		switch (r.nextInt(5)) {
+		case 0:
+			// Flip some bits
+			for (int i = 0; i < 1 + r.nextInt(4); i++) {
+				int pos = r.nextInt(mutant.length);
+				mutant[pos] = (byte) (mutant[pos] ^ (1 << r.nextInt(8)));
+			}
+			break;
+		case 1:
+			// Truncate
+			mutant = ArrayUtils.subarray(mutant, 0, r.nextInt(mutant.length));
+			break;
+		case 2:
+			// Stick random bytes on the end
+			byte[] extra = new byte[1 + r.nextInt(20)];
+			r.nextBytes(extra);
+			mutant = ArrayUtils.addAll(mutant, extra);
+			break;
+		case 3:
+			// Put an extreme value in a random short
+			if (mutant.length > 1) {
+				short[] extremes = { Short.MIN_VALUE, -1, 0, Short.MAX_VALUE, Short.MAX_VALUE - 1, Short.MAX_VALUE - 2 };
+				short value = extremes[r.nextInt(extremes.length)];
+				int pos = r.nextInt(mutant.length - 1);
+				mutant[pos] = (byte) value;
+				mutant[pos + 1] = (byte) (value >> 8);
+			}
+			break;
+		default:
+			// Random garbage
+			r.nextBytes(mutant);
+		}
+
+		return mutant;
+	}
+
+}
@@ -0,0 +1,300 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.DiffGovernor;
+import org.voltdb.voltutil.binarydiff.DiffGovernorOptions;
+import org.voltdb.voltutil.binarydiff.FARDOptions;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+/**
+ * Checks that DiffGovernor moves between levels as latency, queue depth and
+ * CPU load change, stays within its bounds, skips diffing at level 0, gets
+ * smaller diffs at higher levels and gives correct diffs from many threads.
+ *
+ */
+public class GovernorTest {
+
+	private static final int PAIR_COUNT = 500;
+
+	private static final long NEVER = 3600 * 1000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+
+		byte[][] oldValues = new byte[PAIR_COUNT][];
+		byte[][] newValues = new byte[PAIR_COUNT][];
+
+		for (int i = 0; i < PAIR_COUNT; i++) {
+			oldValues[i] = TestValues.words(r, 2000 + r.nextInt(4000));
+			newValues[i] = TestValues.editWords(r, oldValues[i]);
+		}
+
+		// Level 3 is what FastAndRuthlessDiffImpl has always done
+		DiffGovernorOptions options = new DiffGovernorOptions();
+		DiffGovernor governor = new DiffGovernor(options);
+
+		if (!new FARDOptions().equals(governor.getLevelOptions(DiffGovernor.DEFAULT_LEVEL))
+				|| governor.getMaxSplits(DiffGovernor.DEFAULT_LEVEL) != 100) {
+			System.err.println("Default level isn't the default settings");
+			retCode = false;
+		}
+
+		// Queue depth and CPU load, with adjustments only when we ask
+		final AtomicInteger queueDepth = new AtomicInteger();
+		options = new DiffGovernorOptions();
+		options.setAdjustIntervalMs(NEVER);
+		options.setTargetLatencyMicros(NEVER * 1000);
+		options.setMinLevel(0);
+		governor = new DiffGovernor(options);
+		governor.setQueueDepthSource(() -> queueDepth.get());
+		governor.setCpuLoadSource(() -> 0.1);
+
+		queueDepth.set(options.getMaxQueueDepth() * 3);
+		governor.adjust();
+		retCode &= check(governor, 1, "Heavy queue should drop two levels");
+
+		governor.adjust();
+		retCode &= check(governor, DiffGovernor.SKIP_LEVEL, "Heavy queue should stop diffing");
+
+		try {
+			governor.calculateDiff(oldValues[0], newValues[0]);
+			System.err.println("Diffed at level 0");
+			retCode = false;
+		} catch (UneconomicToDiffException e) {
+			// expected
+		}
+
+		if (governor.getSkippedDiffs() != 1) {
+			System.err.println("Skipped diff wasn't counted");
+			retCode = false;
+		}
+
+		queueDepth.set(options.getMaxQueueDepth() * 3 / 4);
+		governor.adjust();
+		retCode &= check(governor, DiffGovernor.SKIP_LEVEL, "Moderate queue should hold level");
+
+		queueDepth.set(0);
+
+		for (int i = 1; i <= DiffGovernor.MAX_LEVEL + 2; i++) {
+			governor.adjust();
+		}
+
+		retCode &= check(governor, DiffGovernor.MAX_LEVEL, "Idle should climb to the top level");
+
+		governor.setCpuLoadSource(() -> 0.95);
+		governor.adjust();
+		retCode &= check(governor, DiffGovernor.MAX_LEVEL - 1, "Busy CPU should drop a level");
+
+		System.out.println(governor);
+
+		// Latency, with a target nothing can meet
+		options = new DiffGovernorOptions();
+		options.setAdjustIntervalMs(NEVER);
+		options.setTargetLatencyMicros(1);
+		governor = new DiffGovernor(options);
+		governor.setCpuLoadSource(() -> 0);
+
+		for (int i = 0; i < 10; i++) {
+			diff(governor, oldValues[i], newValues[i]);
+		}
+
+		governor.adjust();
+		retCode &= check(governor, 1, "Slow diffs should drop two levels");
+
+		for (int i = 0; i < 10; i++) {
+			diff(governor, oldValues[i], newValues[i]);
+		}
+
+		governor.adjust();
+		retCode &= check(governor, 1, "Shouldn't go below minLevel");
+
+		// Effort should buy compression
+		final long lowBytes = bytesAtLevel(1, oldValues, newValues);
+		final long highBytes = bytesAtLevel(DiffGovernor.MAX_LEVEL, oldValues, newValues);
+
+		System.out.println("Level 1: " + lowBytes + " bytes, level " + DiffGovernor.MAX_LEVEL + ": " + highBytes
+				+ " bytes");
+
+		if (highBytes >= lowBytes) {
+			System.err.println("Higher level didn't give smaller diffs");
+			retCode = false;
+		}
+
+		// Many threads finding the interval up at once should adjust once
+		options = new DiffGovernorOptions();
+		options.setAdjustIntervalMs(200);
+		options.setTargetLatencyMicros(NEVER * 1000);
+		options.setMinLevel(0);
+		options.setStartLevel(DiffGovernor.MAX_LEVEL);
+		governor = new DiffGovernor(options);
+		governor.setQueueDepthSource(() -> Integer.MAX_VALUE);
+		governor.setCpuLoadSource(() -> 0);
+
+		final DiffGovernor racedGovernor = governor;
+		final CyclicBarrier barrier = new CyclicBarrier(8);
+		Thread[] racers = new Thread[barrier.getParties()];
+
+		Thread.sleep(options.getAdjustIntervalMs() + 50);
+
+		for (int t = 0; t < racers.length; t++) {
+
+			final int pair = t;
+
+			racers[t] = new Thread(() -> {
+				try {
+					barrier.await();
+					diff(racedGovernor, oldValues[pair], newValues[pair]);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+
+			racers[t].start();
+		}
+
+		for (Thread thread : racers) {
+			thread.join();
+		}
+
+		if (governor.getAdjustments() != 1) {
+			System.err.println(racers.length + " threads made " + governor.getAdjustments() + " adjustments");
+			retCode = false;
+		}
+
+		retCode &= check(governor, DiffGovernor.MAX_LEVEL - 2, "One interval should drop two levels");
+
+		// Many threads, changing level all the time
+		options = new DiffGovernorOptions();
+		options.setAdjustIntervalMs(1);
+		options.setMinLevel(0);
+		governor = new DiffGovernor(options);
+
+		final DiffGovernor sharedGovernor = governor;
+		final AtomicBoolean threadsOk = new AtomicBoolean(true);
+		final Random queueRandom = new Random(1);
+		governor.setQueueDepthSource(() -> queueRandom.nextInt(1500));
+
+		Thread[] threads = new Thread[4];
+
+		for (int t = 0; t < threads.length; t++) {
+
+			threads[t] = new Thread(() -> {
+
+				FastAndRuthlessDiffImpl applyImpl = new FastAndRuthlessDiffImpl();
+
+				for (int i = 0; i < PAIR_COUNT * 4; i++) {
+
+					final int pair = i % PAIR_COUNT;
+
+					try {
+						byte[] diff = sharedGovernor.calculateDiff(oldValues[pair], newValues[pair]);
+
+						if (!ArrayUtils.isEquals(newValues[pair], applyImpl.applyDiff(oldValues[pair], diff,
+								ByteArrayLib.deterministicHashcode(oldValues[pair])))) {
+							threadsOk.set(false);
+						}
+					} catch (UneconomicToDiffException e) {
+						// fine
+					} catch (Exception e) {
+						e.printStackTrace();
+						threadsOk.set(false);
+					}
+				}
+			});
+
+			threads[t].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		System.out.println(governor);
+
+		long total = 0;
+
+		for (int i = 0; i <= DiffGovernor.MAX_LEVEL; i++) {
+			total += governor.getDiffsAtLevel(i);
+		}
+
+		if (!threadsOk.get() || total != PAIR_COUNT * 4 * threads.length) {
+			System.err.println("Diffs from many threads went wrong");
+			retCode = false;
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	private static boolean check(DiffGovernor governor, int expectedLevel, String message) {
+
+		if (governor.getLevel() != expectedLevel) {
+			System.err.println(message + ": level is " + governor.getLevel() + ", expected " + expectedLevel);
+			return false;
+		}
+
+		return true;
+	}
+
+	private static long bytesAtLevel(int level, byte[][] oldValues, byte[][] newValues) throws Exception {
+
+		DiffGovernorOptions options = new DiffGovernorOptions();
+		options.setMinLevel(level);
+		options.setMaxLevel(level);
+		options.setStartLevel(level);
+
+		DiffGovernor governor = new DiffGovernor(options);
+
+		for (int i = 0; i < oldValues.length; i++) {
+			diff(governor, oldValues[i], newValues[i]);
+		}
+
+		return governor.getBytesOut();
+	}
+
+	private static void diff(DiffGovernor governor, byte[] oldArray, byte[] newArray) throws Exception {
+		try {
+			governor.calculateDiff(oldArray, newArray);
+		} catch (UneconomicToDiffException e) {
+			// counted as full size
+		}
+	}
+
+}
@@ -0,0 +1,184 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.client.DiffingSender;
+import org.voltdb.voltutil.binarydiff.client.DiffingSenderOptions;
+import org.voltdb.voltutil.binarydiff.client.DiffingSenderTransport;
+import org.voltdb.voltutil.binarydiff.client.KeyEconomics;
+
+/**
+ * Sends updates for a mix of keys that diff well and keys that get a new
+ * random value every time through DiffingSender, with and without
+ * KeyEconomics. Checks that it stops diffing the random keys without
+ * skipping the good ones, that it notices when a random key starts diffing
+ * well, and that the server always ends up with the right values.
+ *
+ */
+public class KeyEconomicsTest {
+
+	private static final int KEY_COUNT = 400;
+
+	private static final int ROUNDS = 50;
+
+	private static final int VALUE_SIZE = 8192;
+
+	/**
+	 * Keeps values in memory, like DiffingSenderTest's.
+	 */
+	private static class Server implements DiffingSenderTransport {
+
+		final HashMap<String, byte[]> values = new HashMap<String, byte[]>();
+
+		final FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		@Override
+		public void sendFull(String key, byte[] value) {
+			values.put(key, value.clone());
+		}
+
+		@Override
+		public void sendDiff(String key, byte[] diff, int baseHashcode) throws IOException {
+			try {
+				values.put(key, impl.applyDiff(values.get(key), diff, baseHashcode));
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		long[] nanos = new long[2];
+		long[] diffs = new long[2];
+
+		for (int pass = 0; pass < 2; pass++) {
+
+			final boolean tracked = pass == 1;
+
+			Random r = new Random(0);
+			Server server = new Server();
+
+			DiffingSenderOptions options = new DiffingSenderOptions();
+			options.setEconomicsWidth(tracked ? KeyEconomics.DEFAULT_WIDTH : 0);
+
+			DiffingSender sender = new DiffingSender(options, server);
+
+			byte[][] expected = new byte[KEY_COUNT][];
+
+			final long start = System.nanoTime();
+
+			for (int round = 0; round < ROUNDS; round++) {
+				for (int k = 0; k < KEY_COUNT; k++) {
+
+					// Odd keys are 'encrypted'
+					if (expected[k] == null || k % 2 == 1) {
+						expected[k] = new byte[VALUE_SIZE];
+						r.nextBytes(expected[k]);
+					} else {
+						expected[k] = expected[k].clone();
+						expected[k][r.nextInt(VALUE_SIZE)]++;
+					}
+
+					sender.send("key" + k, expected[k]);
+				}
+			}
+
+			nanos[pass] = System.nanoTime() - start;
+			diffs[pass] = sender.getDiffsSent();
+
+			System.out.println((tracked ? "With" : "Without") + " KeyEconomics: " + sender + " Took "
+					+ (nanos[pass] / 1000000) + "ms");
+
+			if (tracked) {
+
+				System.out.println(sender.getEconomics());
+
+				// After the first few rounds nearly every random key should be
+				// skipped
+				final long randomKeyHits = (long) (KEY_COUNT / 2) * (ROUNDS - 1);
+
+				if (sender.getDiffsSkipped() < randomKeyHits * 8 / 10) {
+					System.err.println("Only skipped " + sender.getDiffsSkipped() + " of " + randomKeyHits);
+					retCode = false;
+				}
+
+				if (sender.getEconomics().getEstimatedNanosSaved() <= 0) {
+					System.err.println("No CPU saving estimated");
+					retCode = false;
+				}
+
+				// Now the odd keys start diffing well
+				final long skippedBefore = sender.getDiffsSkipped();
+				final long diffsBefore = sender.getDiffsSent();
+
+				for (int round = 0; round < ROUNDS; round++) {
+					for (int k = 1; k < KEY_COUNT; k += 2) {
+						expected[k] = expected[k].clone();
+						expected[k][r.nextInt(VALUE_SIZE)]++;
+						sender.send("key" + k, expected[k]);
+					}
+				}
+
+				final long recovered = sender.getDiffsSent() - diffsBefore;
+				System.out.println("After the change: " + recovered + " diffs, "
+						+ (sender.getDiffsSkipped() - skippedBefore) + " skipped");
+
+				if (recovered < (long) (KEY_COUNT / 2) * ROUNDS / 2) {
+					System.err.println("Didn't notice keys had started diffing well");
+					retCode = false;
+				}
+			}
+
+			for (int k = 0; k < KEY_COUNT; k++) {
+				if (!ArrayUtils.isEquals(expected[k], server.values.get("key" + k))) {
+					System.err.println("key" + k + " differs on server");
+					retCode = false;
+					break;
+				}
+			}
+		}
+
+		if (diffs[1] != diffs[0]) {
+			System.err.println("KeyEconomics changed how many diffs were sent: " + diffs[0] + " -> " + diffs[1]);
+			retCode = false;
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.FARDEnvelope;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+
+/**
+ * Measures what deflating DATA block literals buys, and what it costs, for
+ * a few classes of payload.
+ *
+ */
+public class LiteralCompressionTest {
+
+	private static final int PAIR_COUNT = 2000;
+
+	private static final int REPEATS = 5;
+
+	private static final String GETTYSBURG = "Four score and seven years ago our fathers brought forth on this "
+			+ "continent, a new nation, conceived in Liberty, and dedicated to the proposition that all men are "
+			+ "created equal. Now we are engaged in a great civil war, testing whether that nation, or any nation so "
+			+ "conceived and so dedicated, can long endure. We are met on a great battle-field of that war. ";
+
+	private static final String[] PAYLOAD_CLASSES = { "text", "json", "binary" };
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		System.out.println("Class\tPlain bytes\tCompressed bytes\tUsed\tPlain us/diff\tCompressed us/diff"
+				+ "\tPlain us/apply\tCompressed us/apply");
+
+		for (String payloadClass : PAYLOAD_CLASSES) {
+
+			Random r = new Random(0);
+			byte[][] olds = new byte[PAIR_COUNT][];
+			byte[][] news = new byte[PAIR_COUNT][];
+
+			for (int i = 0; i < PAIR_COUNT; i++) {
+				olds[i] = makeValue(payloadClass, r);
+				news[i] = edit(payloadClass, olds[i], r);
+			}
+
+			byte[][] plain = new byte[PAIR_COUNT][];
+			byte[][] compressed = new byte[PAIR_COUNT][];
+
+			long plainBytes = 0;
+			long compressedBytes = 0;
+			int used = 0;
+			long plainDiffNanos = 0;
+			long compressedDiffNanos = 0;
+			long plainApplyNanos = 0;
+			long compressedApplyNanos = 0;
+
+			for (int rep = 0; rep < REPEATS; rep++) {
+
+				// First pass warms up the JIT
+				final boolean measure = rep > 0;
+
+				long start = System.nanoTime();
+				for (int i = 0; i < PAIR_COUNT; i++) {
+					plain[i] = impl.calculateEnvelopedDiff(olds[i], news[i], 100);
+				}
+				if (measure) {
+					plainDiffNanos += System.nanoTime() - start;
+				}
+
+				start = System.nanoTime();
+				for (int i = 0; i < PAIR_COUNT; i++) {
+					compressed[i] = impl.calculateEnvelopedDiff(olds[i], news[i], 100, true);
+				}
+				if (measure) {
+					compressedDiffNanos += System.nanoTime() - start;
+				}
+
+				start = System.nanoTime();
+				for (int i = 0; i < PAIR_COUNT; i++) {
+					impl.applyEnvelopedDiff(olds[i], plain[i]);
+				}
+				if (measure) {
+					plainApplyNanos += System.nanoTime() - start;
+				}
+
+				start = System.nanoTime();
+				for (int i = 0; i < PAIR_COUNT; i++) {
+					impl.applyEnvelopedDiff(olds[i], compressed[i]);
+				}
+				if (measure) {
+					compressedApplyNanos += System.nanoTime() - start;
+				}
+			}
+
+			for (int i = 0; i < PAIR_COUNT; i++) {
+
+				plainBytes += plain[i].length;
+				compressedBytes += compressed[i].length;
+
+				if (FARDEnvelope.read(compressed[i]).getFlags() != 0) {
+					used++;
+				}
+
+				if (compressed[i].length > plain[i].length
+						|| !ArrayUtils.isEquals(news[i], impl.applyEnvelopedDiff(olds[i], compressed[i]))) {
+					System.err.println(payloadClass + " pair " + i + " is wrong");
+					retCode = false;
+				}
+			}
+
+			final long ops = (long) PAIR_COUNT * (REPEATS - 1) * 1000;
+
+			System.out.println(payloadClass + "\t" + plainBytes + "\t" + compressedBytes + "\t" + used + "/"
+					+ PAIR_COUNT + "\t" + (plainDiffNanos / ops) + "\t" + (compressedDiffNanos / ops) + "\t"
+					+ (plainApplyNanos / ops) + "\t" + (compressedApplyNanos / ops));
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	/**
+	 * @param payloadClass
+	 * @param r
+	 * @return a value of roughly 8K
+	 */
+	private static byte[] makeValue(String payloadClass, Random r) {
+
+		if (payloadClass.equals("binary")) {
+			byte[] value = new byte[8192];
+			r.nextBytes(value);
+			return value;
+		}
+
+		StringBuilder b = new StringBuilder(8300);
+
+		while (b.length() < 8000) {
+			if (payloadClass.equals("text")) {
+				b.append(GETTYSBURG.substring(r.nextInt(GETTYSBURG.length() / 2)));
+			} else {
+				b.append("{\"id\":" + r.nextInt(1000000) + ",\"name\":\"customer" + r.nextInt(1000)
+						+ "\",\"status\":\"" + (r.nextBoolean() ? "active" : "closed") + "\",\"balance\":"
+						+ r.nextInt(100000) + "},");
+			}
+		}
+
+		return b.toString().getBytes();
+	}
+
+	/**
+	 * Replace a few runs of the value with new content of the same class.
+	 * 
+	 * @param payloadClass
+	 * @param oldValue
+	 * @param r
+	 * @return the edited value
+	 */
+	private static byte[] edit(String payloadClass, byte[] oldValue, Random r) {
+
+		byte[] newValue = oldValue.clone();
+		byte[] donor = makeValue(payloadClass, r);
+
+		for (int j = 0; j < 4; j++) {
+			int length = 100 + r.nextInt(300);
+			System.arraycopy(donor, r.nextInt(donor.length - length), newValue, r.nextInt(newValue.length - length),
+					length);
+		}
+
+		return newValue;
+	}
+
+}
@@ -0,0 +1,367 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.DiffMerge;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
+import org.voltdb.voltutil.binarydiff.exceptions.MergeConflictException;
+import org.voltdb.voltutil.binarydiff.store.RecentVersionCache;
+
+/**
+ * Checks DiffMerge on hand made and random non overlapping edits, then has
+ * several threads update a few hot keys and measures how often they have to
+ * re-read and re-diff, with and without merging.
+ *
+ */
+public class MergeTest {
+
+	private static final int RANDOM_MERGES = 2000;
+
+	private static final int THREADS = 8;
+
+	private static final int HOT_KEYS = 4;
+
+	private static final int FIELDS = 64;
+
+	private static final int FIELD_SIZE = 64;
+
+	private static final int UPDATES_PER_THREAD = 250;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		// Two changes to different parts of a record
+
+		final String base = "{\"name\":\"Fred Smith\",\"city\":\"Boston\",\"balance\":100,"
+				+ "\"notes\":\"Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor\"}";
+		final String first = base.replace("Boston", "San Francisco");
+		final String second = base.replace("\"balance\":100", "\"balance\":99999");
+		final String both = first.replace("\"balance\":100", "\"balance\":99999");
+
+		byte[] diff = impl.calculateDiff(base.getBytes(), second.getBytes(), 100);
+		byte[] merged = DiffMerge.merge(base.getBytes(), first.getBytes(), diff);
+
+		if (!both.equals(new String(merged))) {
+			System.err.println("Merged " + new String(merged) + ", expected " + both);
+			retCode = false;
+		}
+
+		byte[] envelope = impl.calculateEnvelopedDiff(base.getBytes(), second.getBytes(), 100, true);
+		merged = DiffMerge.mergeEnveloped(base.getBytes(), first.getBytes(), envelope);
+
+		if (!both.equals(new String(merged))) {
+			System.err.println("Enveloped merge made " + new String(merged));
+			retCode = false;
+		}
+
+		// Two changes to the same part
+
+		final String clash = base.replace("Boston", "Bedford");
+		diff = impl.calculateDiff(base.getBytes(), clash.getBytes(), 100);
+
+		try {
+			DiffMerge.merge(base.getBytes(), first.getBytes(), diff);
+			System.err.println("Merged overlapping changes");
+			retCode = false;
+		} catch (MergeConflictException e) {
+			// expected
+		}
+
+		try {
+			DiffMerge.mergeEnveloped(first.getBytes(), first.getBytes(), envelope);
+			System.err.println("Merged an envelope against the wrong base");
+			retCode = false;
+		} catch (BadInputException e) {
+			// expected
+		}
+
+		retCode &= randomMerges(impl);
+
+		// Contention
+
+		long[] withoutMerging = contend(false);
+		long[] withMerging = contend(true);
+
+		System.out.println("Without merging: " + withoutMerging[0] + " updates, " + withoutMerging[1]
+				+ " retries, " + (withoutMerging[1] * 100 / withoutMerging[0]) + "% retry rate in "
+				+ withoutMerging[2] + "ms");
+		System.out.println("With merging: " + withMerging[0] + " updates, " + withMerging[1] + " retries, "
+				+ (withMerging[1] * 100 / withMerging[0]) + "% retry rate in " + withMerging[2] + "ms");
+
+		if (withoutMerging[3] != 0 || withMerging[3] != 0) {
+			System.err.println("Final values differ from what clients asked for");
+			retCode = false;
+		}
+
+		if (withMerging[1] * 4 > withoutMerging[1]) {
+			System.err.println("Merging didn't cut retries much");
+			retCode = false;
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	/**
+	 * Make two edits to random, well separated parts of a random array and
+	 * check that merging one into the other gives the same as making both.
+	 * 
+	 * @param impl
+	 * @return true if they all worked
+	 */
+	private static boolean randomMerges(FastAndRuthlessDiffImpl impl) {
+
+		Random r = new Random(0);
+		int merged = 0;
+
+		for (int i = 0; i < RANDOM_MERGES; i++) {
+
+			byte[] base = new byte[1024 + r.nextInt(4096)];
+
+			for (int j = 0; j < base.length; j++) {
+				base[j] = (byte) ('a' + r.nextInt(26));
+			}
+
+			final int half = base.length / 2;
+
+			// One edit in each half, away from the middle
+			final int startA = r.nextInt(half - 200);
+			final int endA = startA + r.nextInt(100);
+			final byte[] insertA = TestValues.randomText(r, r.nextInt(100));
+
+			final int startB = half + 100 + r.nextInt(half - 300);
+			final int endB = startB + r.nextInt(100);
+			final byte[] insertB = TestValues.randomText(r, r.nextInt(100));
+
+			final byte[] onlyA = splice(base, startA, endA, insertA);
+			final byte[] onlyB = splice(base, startB, endB, insertB);
+			final byte[] expected = splice(onlyA, startB + onlyA.length - base.length,
+					endB + onlyA.length - base.length, insertB);
+
+			try {
+
+				// Either one can be the late one
+				final boolean aFirst = r.nextBoolean();
+				final byte[] late = aFirst ? onlyB : onlyA;
+				final byte[] current = aFirst ? onlyA : onlyB;
+
+				byte[] diff = impl.calculateDiff(base, late, 100);
+				byte[] result = DiffMerge.merge(base, current, diff);
+
+				if (!ArrayUtils.isEquals(expected, result)) {
+					System.err.println("Random merge " + i + " differs");
+					return false;
+				}
+
+				merged++;
+
+			} catch (MergeConflictException e) {
+				// The encoder doesn't always keep the two edits apart
+			} catch (Exception e) {
+				System.err.println("Random merge " + i + " failed: " + e);
+				return false;
+			}
+		}
+
+		System.out.println("Random merges: " + merged + "/" + RANDOM_MERGES + " merged");
+
+		if (merged < RANDOM_MERGES * 9 / 10) {
+			System.err.println("Too many random merges conflicted");
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Have THREADS clients update random fields of HOT_KEYS keys, retrying
+	 * when the server refuses a diff.
+	 * 
+	 * @param merge
+	 *            true if the server should merge stale diffs
+	 * @return updates, retries, elapsed ms and how many keys ended up wrong
+	 * @throws InterruptedException
+	 */
+	private static long[] contend(boolean merge) throws InterruptedException {
+
+		final Server server = new Server(merge);
+		final AtomicLong updates = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+
+		Thread[] clients = new Thread[THREADS];
+
+		final long start = System.currentTimeMillis();
+
+		for (int t = 0; t < clients.length; t++) {
+
+			final long seed = t;
+
+			clients[t] = new Thread(() -> {
+
+				Random r = new Random(seed);
+				FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+				for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+
+					final String key = "hot" + r.nextInt(HOT_KEYS);
+					final int field = r.nextInt(FIELDS);
+					final byte[] content = TestValues.randomText(r, FIELD_SIZE);
+
+					while (true) {
+
+						final byte[] oldValue = server.get(key);
+						final byte[] newValue = oldValue.clone();
+						System.arraycopy(content, 0, newValue, field * FIELD_SIZE, FIELD_SIZE);
+
+						try {
+							// Time between reading and writing, when other
+							// clients get in first
+							Thread.sleep(1);
+
+							byte[] diff = impl.calculateDiff(oldValue, newValue, 100);
+							server.apply(key, diff, ByteArrayLib.deterministicHashcode(oldValue), oldValue,
+									newValue);
+							updates.incrementAndGet();
+							break;
+
+						} catch (HashCodeMismatchException | MergeConflictException e) {
+							retries.incrementAndGet();
+						} catch (Exception e) {
+							e.printStackTrace();
+							return;
+						}
+					}
+				}
+			});
+
+			clients[t].start();
+		}
+
+		for (int t = 0; t < clients.length; t++) {
+			clients[t].join();
+		}
+
+		final long elapsed = System.currentTimeMillis() - start;
+
+		if (merge) {
+			System.out.println(server.cache);
+		}
+
+		return new long[] { updates.get(), retries.get(), elapsed, server.countWrongKeys() };
+	}
+
+	/**
+	 * @return array with array[start..end) replaced by insert
+	 */
+	private static byte[] splice(byte[] array, int start, int end, byte[] insert) {
+		return ArrayUtils.addAll(ArrayUtils.addAll(ArrayUtils.subarray(array, 0, start), insert),
+				ArrayUtils.subarray(array, end, array.length));
+	}
+
+	/**
+	 * A server that either insists diffs are made against the current value
+	 * or merges them with a RecentVersionCache. Alongside each value it keeps
+	 * what the value should be if every client's changed bytes were applied in
+	 * order, to check merges against.
+	 */
+	private static class Server {
+
+		final HashMap<String, byte[]> values = new HashMap<String, byte[]>();
+		final HashMap<String, byte[]> expected = new HashMap<String, byte[]>();
+		final RecentVersionCache cache;
+
+		Server(boolean merge) {
+
+			cache = merge ? new RecentVersionCache(HOT_KEYS, 16) : null;
+
+			for (int k = 0; k < HOT_KEYS; k++) {
+
+				byte[] value = TestValues.randomText(new Random(k), FIELDS * FIELD_SIZE);
+				values.put("hot" + k, value);
+				expected.put("hot" + k, value.clone());
+
+				if (cache != null) {
+					cache.put("hot" + k, value);
+				}
+			}
+		}
+
+		synchronized byte[] get(String key) {
+			return values.get(key);
+		}
+
+		synchronized void apply(String key, byte[] diff, int baseHashCode, byte[] clientBase, byte[] clientTarget)
+				throws HashCodeMismatchException, MergeConflictException, BadInputException {
+
+			final byte[] current = values.get(key);
+			byte[] newValue;
+
+			if (cache == null) {
+				ByteArrayLib.checkHashCode(current, baseHashCode);
+				newValue = ByteArrayLib.decodeFARDData(current, diff);
+			} else {
+				newValue = cache.applyDiff(key, current, diff, baseHashCode);
+			}
+
+			values.put(key, newValue);
+
+			byte[] model = expected.get(key);
+
+			for (int i = 0; i < model.length; i++) {
+				if (clientBase[i] != clientTarget[i]) {
+					model[i] = clientTarget[i];
+				}
+			}
+		}
+
+		synchronized int countWrongKeys() {
+
+			int wrong = 0;
+
+			for (String key : values.keySet()) {
+				if (!ArrayUtils.isEquals(values.get(key), expected.get(key))) {
+					wrong++;
+				}
+			}
+
+			return wrong;
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.replication.ReplicationFollower;
+import org.voltdb.voltutil.binarydiff.replication.ReplicationPrimary;
+
+/**
+ * Replicates a changing dataset over a loopback socket and checks the follower
+ * ends up with the same data, including after its copy of a key is
+ * corrupted. Reports bytes shipped against full value replication and end to
+ * end lag.
+ *
+ */
+public class ReplicationTest {
+
+	private static final int KEY_COUNT = 1000;
+
+	private static final int HOT_KEY_COUNT = 10;
+
+	private static final int UPDATE_COUNT = 100000;
+
+	private static final int VALUE_SIZE = 8192;
+
+	private static final int BATCH_WINDOW_MS = 5;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Socket primarySocket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+		Socket followerSocket = server.accept();
+		server.close();
+
+		primarySocket.setTcpNoDelay(true);
+		followerSocket.setTcpNoDelay(true);
+
+		ReplicationFollower follower = new ReplicationFollower(followerSocket.getInputStream(),
+				followerSocket.getOutputStream());
+		ReplicationPrimary primary = new ReplicationPrimary(primarySocket.getOutputStream(),
+				primarySocket.getInputStream(), BATCH_WINDOW_MS, 100);
+
+		byte[][] expected = new byte[KEY_COUNT][];
+
+		for (int k = 0; k < KEY_COUNT; k++) {
+			expected[k] = new byte[VALUE_SIZE];
+			r.nextBytes(expected[k]);
+			primary.update("key" + k, expected[k]);
+		}
+
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < UPDATE_COUNT; i++) {
+
+			// A fifth of updates go to a handful of hot keys
+			final int k = r.nextInt(5) == 0 ? r.nextInt(HOT_KEY_COUNT) : r.nextInt(KEY_COUNT);
+
+			int blockStart = r.nextInt(VALUE_SIZE - 100);
+			for (int z = blockStart; z < blockStart + r.nextInt(100); z++) {
+				expected[k][z] = (byte) r.nextInt();
+			}
+
+			primary.update("key" + k, expected[k]);
+
+			// Roughly 10,000 updates a second, rather than as fast as we can
+			if (i % 10 == 0) {
+				Thread.sleep(1);
+			}
+
+			if (i == UPDATE_COUNT / 2) {
+
+				// Corrupt the follower's copy of a key, then change it
+				waitForCatchUp(primary, follower);
+				follower.get("key" + (KEY_COUNT - 1))[VALUE_SIZE / 2]++;
+
+				expected[KEY_COUNT - 1][10]++;
+				primary.update("key" + (KEY_COUNT - 1), expected[KEY_COUNT - 1]);
+			}
+		}
+
+		waitForCatchUp(primary, follower);
+
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+		primary.close();
+		follower.awaitFinished();
+		follower.close();
+		primarySocket.close();
+		followerSocket.close();
+
+		for (int k = 0; k < KEY_COUNT; k++) {
+			if (!ArrayUtils.isEquals(expected[k], follower.get("key" + k))) {
+				System.err.println("key" + k + " differs on follower");
+				retCode = false;
+			}
+		}
+
+		if (primary.getResyncsRequested() != 1 || follower.getDiffFramesFailed() != 1) {
+			System.err.println("Expected exactly one resync");
+			retCode = false;
+		}
+
+		System.out.println("Replicated " + (KEY_COUNT + UPDATE_COUNT) + " updates in " + elapsed + "ms");
+		System.out.println("Primary:  " + primary);
+		System.out.println("Follower: " + follower);
+		System.out.println("Full value replication would have sent " + primary.getUpdateBytes() + " bytes, we sent "
+				+ primary.getBytesShipped() + " ("
+				+ (primary.getBytesShipped() * 100 / primary.getUpdateBytes()) + "%)");
+
+		double[] lag = follower.getLagHistogram().getLatencyHistogram();
+		System.out.println("Lag ms: p50=" + percentile(lag, 50) + " p99=" + percentile(lag, 99) + " max="
+				+ percentile(lag, 100));
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	/**
+	 * Flush until every frame the primary sent has been dealt with by the
+	 * follower and any resyncs have been shipped.
+	 * 
+	 * @param primary
+	 * @param follower
+	 * @throws Exception
+	 */
+	private static void waitForCatchUp(ReplicationPrimary primary, ReplicationFollower follower) throws Exception {
+
+		while (true) {
+
+			primary.flush();
+
+			final long handled = follower.getFramesApplied() + follower.getDiffFramesFailed()
+					+ follower.getFramesIgnored();
+
+			if (handled == primary.getFramesShipped()
+					&& primary.getResyncsRequested() == follower.getDiffFramesFailed()) {
+				// Resync might have queued a value since our flush
+				primary.flush();
+				if (handled == primary.getFramesShipped()) {
+					return;
+				}
+			}
+
+			Thread.sleep(10);
+		}
+	}
+
+	private static int percentile(double[] histogram, int percent) {
+
+		double total = 0;
+
+		for (int i = 0; i < histogram.length; i++) {
+			total += histogram[i];
+		}
+
+		double seen = 0;
+
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen * 100 >= total * percent) {
+				return i;
+			}
+		}
+
+		return histogram.length - 1;
+	}
+
+}
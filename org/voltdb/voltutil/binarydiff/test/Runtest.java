@@ -23,11 +23,21 @@
 
 package org.voltdb.voltutil.binarydiff.test;
 
+import java.util.ArrayList;
 import java.util.Random;
 
 import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.ApplyBatch;
+import org.voltdb.voltutil.binarydiff.ApplyBatchItem;
+import org.voltdb.voltutil.binarydiff.ApplyBatchResult;
 import org.voltdb.voltutil.binarydiff.ArrayDiffIFace;
 import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.DiffAlgebra;
+import org.voltdb.voltutil.binarydiff.DiffBatch;
+import org.voltdb.voltutil.binarydiff.DiffBatchItem;
+import org.voltdb.voltutil.binarydiff.DiffBatchOptions;
+import org.voltdb.voltutil.binarydiff.DiffBatchResult;
+import org.voltdb.voltutil.binarydiff.FARDEnvelope;
 import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
 import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
 import org.voltdb.voltutil.binarydiff.exceptions.HashCodeMismatchException;
@@ -220,6 +230,52 @@ public class Runtest {
 							System.out.println(new String(testCases[j].target));
 							System.out.println(new String(actualResult));
 						}
+
+						if (testImpls[i] instanceof FastAndRuthlessDiffImpl) {
+
+							byte[] inPlaceArray = testCases[j].source.clone();
+							byte[] inPlaceResult = ((FastAndRuthlessDiffImpl) testImpls[i]).applyDiffInPlace(
+									inPlaceArray, diffValue, ByteArrayLib.deterministicHashcode(inPlaceArray));
+
+							if (!ArrayUtils.isEquals(testCases[j].target, inPlaceResult)) {
+								retCode = false;
+								System.err.println("In place arrays differ...");
+							}
+
+							if (inPlaceArray.length == testCases[j].target.length && inPlaceResult != inPlaceArray) {
+								retCode = false;
+								System.err.println("Same length diff wasn't applied in place...");
+							}
+
+							FastAndRuthlessDiffImpl fardImpl = (FastAndRuthlessDiffImpl) testImpls[i];
+							byte[] envelope = fardImpl.calculateEnvelopedDiff(testCases[j].source, testCases[j].target,
+									100);
+
+							if (!ArrayUtils.isEquals(testCases[j].target,
+									fardImpl.applyEnvelopedDiff(testCases[j].source, envelope))) {
+								retCode = false;
+								System.err.println("Enveloped arrays differ...");
+							}
+
+							byte[] compressedEnvelope = fardImpl.calculateEnvelopedDiff(testCases[j].source,
+									testCases[j].target, 100, true);
+
+							if (compressedEnvelope.length > envelope.length || !ArrayUtils.isEquals(
+									testCases[j].target, fardImpl.applyEnvelopedDiff(testCases[j].source,
+											compressedEnvelope))) {
+								retCode = false;
+								System.err.println("Compressed literal arrays differ...");
+							}
+
+							byte[] baseKeyEnvelope = FARDEnvelope.addBaseKey(compressedEnvelope, "base-" + j);
+
+							if (!("base-" + j).equals(FARDEnvelope.read(baseKeyEnvelope).getBaseKey())
+									|| !ArrayUtils.isEquals(testCases[j].target,
+											fardImpl.applyEnvelopedDiff(testCases[j].source, baseKeyEnvelope))) {
+								retCode = false;
+								System.err.println("Base key arrays differ...");
+							}
+						}
 					} catch (HashCodeMismatchException e) {
 						retCode = false;
 						e.printStackTrace();
@@ -258,6 +314,109 @@ public class Runtest {
 			System.out.println(testImpls[i]);
 		}
 
+		// Composition test - a diff there and a diff back should compose to a
+		// diff that changes nothing, and inverting a diff should take us back
+
+		FastAndRuthlessDiffImpl composeImpl = new FastAndRuthlessDiffImpl();
+
+		for (int j = 0; j < testCases.length; j++) {
+
+			if (testCases[j].tooSmall || testCases[j].uneconomic) {
+				continue;
+			}
+
+			System.out.println("Compose " + testCases[j].name);
+
+			try {
+				byte[] there = composeImpl.calculateDiff(testCases[j].source, testCases[j].target, 100);
+				byte[] undo = DiffAlgebra.invertDiff(testCases[j].source, there);
+
+				if (!ArrayUtils.isEquals(testCases[j].source, composeImpl.applyDiff(testCases[j].target, undo,
+						ByteArrayLib.deterministicHashcode(testCases[j].target)))) {
+					retCode = false;
+					System.err.println("Inverted arrays differ...");
+				}
+
+				byte[] back = composeImpl.calculateDiff(testCases[j].target, testCases[j].source, 100);
+				byte[] roundTrip = DiffAlgebra.compose(there, back);
+
+				if (!ArrayUtils.isEquals(testCases[j].source, composeImpl.applyDiff(testCases[j].source, roundTrip,
+						ByteArrayLib.deterministicHashcode(testCases[j].source)))) {
+					retCode = false;
+					System.err.println("Composed arrays differ...");
+				}
+
+			} catch (UneconomicToDiffException e) {
+				// The way back isn't always worth diffing
+			} catch (Exception e) {
+				retCode = false;
+				e.printStackTrace();
+			}
+		}
+
+		// In place test - same length diffs whose REF blocks move data around,
+		// so later ops read bytes that earlier ops overwrite
+
+		Random inPlaceRandom = new Random(0);
+		FastAndRuthlessDiffImpl inPlaceImpl = new FastAndRuthlessDiffImpl();
+
+		try {
+
+			for (int j = 0; j < TEST_COUNT; j++) {
+
+				byte[] base = new byte[100 + inPlaceRandom.nextInt(2000)];
+				inPlaceRandom.nextBytes(base);
+
+				byte[] diff = new byte[0];
+				int position = 0;
+
+				while (position < base.length) {
+
+					final int length = Math.min(base.length - position, 1 + inPlaceRandom.nextInt(200));
+					final int choice = inPlaceRandom.nextInt(4);
+
+					if (choice == 0) {
+						byte[] data = new byte[length];
+						inPlaceRandom.nextBytes(data);
+						diff = ArrayUtils.addAll(diff, ByteArrayLib.encodeFARDData(data));
+					} else {
+						final int source = choice == 1 ? position : inPlaceRandom.nextInt(base.length - length + 1);
+						diff = ArrayUtils.addAll(diff,
+								ByteArrayLib.encodeFARDData((short) source, (short) (source + length)));
+					}
+
+					position += length;
+				}
+
+				byte[] expected = ByteArrayLib.decodeFARDData(base, diff);
+				byte[] inPlaceArray = base.clone();
+
+				if (inPlaceImpl.applyDiffInPlace(inPlaceArray, diff,
+						ByteArrayLib.deterministicHashcode(inPlaceArray)) != inPlaceArray
+						|| !ArrayUtils.isEquals(expected, inPlaceArray)) {
+					retCode = false;
+					System.err.println("In place arrays differ for shuffled diff " + j);
+					break;
+				}
+			}
+
+		} catch (HashCodeMismatchException | BadInputException e) {
+			retCode = false;
+			e.printStackTrace();
+		}
+
+		try {
+			byte[] base = new byte[100];
+			inPlaceImpl.applyDiffInPlace(base, null, ByteArrayLib.deterministicHashcode(base));
+			retCode = false;
+			System.err.println("applyDiffInPlace accepted a null diff");
+		} catch (BadInputException e) {
+			// expected, as for applyDiff
+		} catch (Exception e) {
+			retCode = false;
+			e.printStackTrace();
+		}
+
 		if (retCode) {
 			System.out.println("Pass");
 		} else {
@@ -386,11 +545,182 @@ public class Runtest {
 			long elapsed = System.currentTimeMillis() - start;
 			System.out.println("Took " + elapsed + "ms to do " + randomTestData.length);
 			System.out.println(testImpls[j]);
-			
-			
+
+
 		}
-		
-		
+
+		// Speed test III - same data as test 2, diffed in parallel
+
+		System.out.println("TEST 3");
+
+		ArrayList<DiffBatchItem> batchItems = new ArrayList<DiffBatchItem>(randomTestData.length);
+
+		for (int q = 0; q < randomTestData.length; q++) {
+			batchItems.add(new DiffBatchItem(randomTestData[q].oldValue, randomTestData[q].newValue));
+		}
+
+		DiffBatch batch = new DiffBatch(new DiffBatchOptions());
+		DiffBatchResult batchResult = null;
+
+		try {
+			batchResult = batch.calculateAll(batchItems);
+
+			for (int q = 0; q < batchResult.getItemResults().size(); q++) {
+				if (batchResult.getItemResults().get(q).getIndex() != q) {
+					System.err.println("Batch results out of order at " + q);
+					retCode = false;
+					break;
+				}
+			}
+
+			System.out.println(batchResult);
+
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		batch.shutdown();
+
+		// Speed test IV - apply some of test 3's diffs serially and as a batch
+
+		System.out.println("TEST 4");
+
+		if (batchResult != null) {
+
+			final int applyCount = Math.min(10000, batchResult.getItemResults().size());
+			ArrayList<ApplyBatchItem> applyItems = new ArrayList<ApplyBatchItem>(applyCount);
+
+			for (int q = 0; q < applyCount; q++) {
+				applyItems.add(new ApplyBatchItem("key" + q, randomTestData[q].oldValue,
+						batchResult.getItemResults().get(q).getDiff(),
+						ByteArrayLib.deterministicHashcode(randomTestData[q].oldValue)));
+			}
+
+			long start = System.currentTimeMillis();
+
+			for (int q = 0; q < applyCount; q++) {
+				try {
+					testImpls[0].applyDiff(applyItems.get(q).getBase(), applyItems.get(q).getDiff(),
+							applyItems.get(q).getHashcode());
+				} catch (HashCodeMismatchException | BadInputException e) {
+					retCode = false;
+					e.printStackTrace();
+				}
+			}
+
+			System.out.println("Serial applyDiff took " + (System.currentTimeMillis() - start) + "ms to do " + applyCount);
+
+			ApplyBatch applyBatch = new ApplyBatch(Runtime.getRuntime().availableProcessors());
+
+			try {
+				ApplyBatchResult applyResult = applyBatch.applyAll(applyItems);
+
+				for (int q = 0; q < applyCount; q++) {
+					if (!ArrayUtils.isEquals(randomTestData[q].newValue, applyResult.getItemResults().get(q).getValue())) {
+						System.err.println("ApplyBatch arrays differ at " + q);
+						retCode = false;
+						break;
+					}
+				}
+
+				System.out.println("ApplyBatch " + applyResult);
+
+			} catch (BadInputException | InterruptedException e) {
+				retCode = false;
+				e.printStackTrace();
+			}
+
+			// Chains of diffs for the same key, where each item's base is the
+			// previous item's output, plus items that can't be applied
+
+			final int chainCount = 100;
+			final int chainLength = 5;
+			Random chainRandom = new Random(42);
+			ArrayList<ApplyBatchItem> chainItems = new ArrayList<ApplyBatchItem>();
+			ArrayList<byte[]> chainExpected = new ArrayList<byte[]>();
+
+			for (int c = 0; c < chainCount; c++) {
+
+				byte[] value = randomTestData[c].oldValue;
+
+				for (int v = 0; v < chainLength; v++) {
+
+					byte[] newValue = value.clone();
+					newValue[chainRandom.nextInt(newValue.length)] = (byte) chainRandom.nextInt(256);
+
+					byte[] diff = null;
+
+					try {
+						diff = testImpls[0].calculateDiff(value, newValue, 100);
+					} catch (TooSmallToDeltaException | TooBigToDeltaException | UneconomicToDiffException
+							| BadInputException e) {
+						// Stands in for a failed DiffBatchItemResult
+					}
+
+					// Only the first item for a key has its own base
+					chainItems.add(new ApplyBatchItem("chain" + c, v == 0 ? value : null, diff,
+							ByteArrayLib.deterministicHashcode(value)));
+					chainExpected.add(diff == null ? null : newValue);
+					value = newValue;
+				}
+			}
+
+			// A null diff, and everything after it for that key has no base
+			final int nullDiffItem = chainLength + 2;
+			chainItems.set(nullDiffItem, new ApplyBatchItem("chain1", null, null, chainItems.get(nullDiffItem)
+					.getHashcode()));
+
+			for (int q = nullDiffItem; q < chainLength * 2; q++) {
+				chainExpected.set(q, null);
+			}
+
+			// A corrupt diff, cut off half way through a block
+			final int corruptItem = chainLength * 2 + 1;
+			final byte[] corruptDiff = chainItems.get(corruptItem).getDiff();
+
+			if (corruptDiff != null) {
+				chainItems.set(corruptItem, new ApplyBatchItem("chain2", null,
+						ArrayUtils.subarray(corruptDiff, 0, corruptDiff.length - 1),
+						chainItems.get(corruptItem).getHashcode()));
+			}
+
+			for (int q = corruptItem; q < chainLength * 3; q++) {
+				chainExpected.set(q, null);
+			}
+
+			try {
+				ApplyBatchResult chainResult = applyBatch.applyAll(chainItems);
+
+				for (int q = 0; q < chainItems.size(); q++) {
+
+					final boolean ok = chainResult.getItemResults().get(q).isOk();
+
+					if (chainExpected.get(q) == null ? ok
+							: !ok || !ArrayUtils.isEquals(chainExpected.get(q),
+									chainResult.getItemResults().get(q).getValue())) {
+						System.err.println("ApplyBatch chained item " + q + " wrong: "
+								+ chainResult.getItemResults().get(q));
+						retCode = false;
+						break;
+					}
+				}
+
+				System.out.println("ApplyBatch chained " + chainResult);
+
+			} catch (BadInputException | InterruptedException e) {
+				retCode = false;
+				e.printStackTrace();
+			}
+
+			applyBatch.shutdown();
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+
 	}
 
 }
@@ -0,0 +1,226 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that a warmed up thread can diff and patch ByteBuffers, and patch to
+ * an OutputStream, without allocating, that its scratch space shrinks back
+ * after an unusually complicated diff, and that applyDiff still works when
+ * called from inside the OutputStream another applyDiff is writing to.
+ *
+ */
+public class ScratchArenaTest {
+
+	private static final int VALUE_COUNT = 100;
+
+	private static final int TEST_COUNT = 20000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final long threadId = Thread.currentThread().getId();
+
+		// 8K values with a few edits, including a run for a REPEAT block
+		ByteBuffer[] oldValues = new ByteBuffer[VALUE_COUNT];
+		ByteBuffer[] newValues = new ByteBuffer[VALUE_COUNT];
+		byte[][] oldArrays = new byte[VALUE_COUNT][];
+		byte[][] diffArrays = new byte[VALUE_COUNT][];
+		int[] hashes = new int[VALUE_COUNT];
+
+		for (int i = 0; i < VALUE_COUNT; i++) {
+
+			oldArrays[i] = TestValues.randomText(r, 8192);
+			byte[] newArray = oldArrays[i].clone();
+
+			for (int j = 0; j < 5; j++) {
+				newArray[r.nextInt(newArray.length)] = '#';
+			}
+
+			final int runStart = r.nextInt(8000);
+
+			for (int j = runStart; j < runStart + 100; j++) {
+				newArray[j] = '=';
+			}
+
+			oldValues[i] = direct(oldArrays[i]);
+			newValues[i] = direct(newArray);
+			diffArrays[i] = impl.calculateDiff(oldArrays[i], newArray, 100);
+			hashes[i] = ByteArrayLib.deterministicHashcode(oldArrays[i]);
+		}
+
+		ByteBuffer diffBuffer = ByteBuffer.allocateDirect(8192).order(ByteOrder.nativeOrder());
+		ByteBuffer outBuffer = ByteBuffer.allocateDirect(8192).order(ByteOrder.nativeOrder());
+		ByteArrayOutputStream outStream = new ByteArrayOutputStream(8192);
+
+		for (int pass = 0; pass < 2; pass++) {
+
+			long diffBytes = threadBean.getThreadAllocatedBytes(threadId);
+
+			for (int i = 0; i < TEST_COUNT; i++) {
+				diffBuffer.clear();
+				impl.calculateDiff(oldValues[i % VALUE_COUNT], newValues[i % VALUE_COUNT], 100, diffBuffer);
+			}
+
+			diffBytes = threadBean.getThreadAllocatedBytes(threadId) - diffBytes;
+
+			long applyBytes = threadBean.getThreadAllocatedBytes(threadId);
+
+			for (int i = 0; i < TEST_COUNT; i++) {
+
+				final int value = i % VALUE_COUNT;
+
+				diffBuffer.clear();
+				impl.calculateDiff(oldValues[value], newValues[value], 100, diffBuffer);
+				diffBuffer.flip();
+
+				outBuffer.clear();
+				impl.applyDiff(oldValues[value], diffBuffer, hashes[value], outBuffer);
+			}
+
+			applyBytes = threadBean.getThreadAllocatedBytes(threadId) - applyBytes - diffBytes;
+
+			long streamBytes = threadBean.getThreadAllocatedBytes(threadId);
+
+			for (int i = 0; i < TEST_COUNT; i++) {
+				outStream.reset();
+				impl.applyDiff(oldArrays[i % VALUE_COUNT], diffArrays[i % VALUE_COUNT], hashes[i % VALUE_COUNT],
+						outStream);
+			}
+
+			streamBytes = threadBean.getThreadAllocatedBytes(threadId) - streamBytes;
+
+			if (pass == 0) {
+				continue;
+			}
+
+			System.out.println("Direct buffer diff:  " + (diffBytes / TEST_COUNT) + " bytes allocated per call");
+			System.out.println("Direct buffer apply: " + (applyBytes / TEST_COUNT) + " bytes allocated per call");
+			System.out.println("Stream apply:        " + (streamBytes / TEST_COUNT) + " bytes allocated per call");
+
+			// The odd description for the compression histogram is allowed
+			if (diffBytes / TEST_COUNT > 0 || applyBytes / TEST_COUNT > 0 || streamBytes / TEST_COUNT > 0) {
+				System.err.println("Warmed up calls allocated");
+				retCode = false;
+			}
+		}
+
+		// A value made of many short matches needs lots of parts...
+		final long before = FastAndRuthlessDiffImpl.getThreadScratchBytes();
+
+		byte[] complexOld = TestValues.randomText(r, 32000);
+		byte[] complexNew = complexOld.clone();
+
+		for (int i = 0; i < complexNew.length; i += 20) {
+			complexNew[i] = '#';
+		}
+
+		impl.calculateDiff(complexOld, complexNew, Integer.MAX_VALUE);
+
+		final long afterComplex = FastAndRuthlessDiffImpl.getThreadScratchBytes();
+
+		// ...and ordinary diffs afterwards should give the space back
+		for (int i = 0; i < 1000; i++) {
+			diffBuffer.clear();
+			impl.calculateDiff(oldValues[i % VALUE_COUNT], newValues[i % VALUE_COUNT], 100, diffBuffer);
+		}
+
+		final long afterTrim = FastAndRuthlessDiffImpl.getThreadScratchBytes();
+
+		System.out.println("Scratch bytes: " + before + " -> " + afterComplex + " -> " + afterTrim);
+
+		if (afterTrim >= afterComplex || afterTrim > before * 2) {
+			System.err.println("Scratch space wasn't given back");
+			retCode = false;
+		}
+
+		// applyDiff from inside the stream applyDiff is writing to
+		final byte[] innerOld = oldArrays[1];
+		final byte[] innerDiff = diffArrays[1];
+		final int innerHash = hashes[1];
+		final ByteArrayOutputStream innerOut = new ByteArrayOutputStream();
+
+		OutputStream reentrantStream = new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("not used");
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					innerOut.write(impl.applyDiff(innerOld, innerDiff, innerHash));
+					impl.applyDiff(innerOld, innerDiff, innerHash, innerOut);
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+			}
+		};
+
+		impl.applyDiff(oldArrays[0], diffArrays[0], hashes[0], reentrantStream);
+
+		final byte[] expected = impl.applyDiff(innerOld, innerDiff, innerHash);
+		final byte[] written = innerOut.toByteArray();
+
+		if (written.length == 0 || written.length % (expected.length * 2) != 0 || !ArrayUtils
+				.isEquals(ArrayUtils.subarray(written, 0, expected.length * 2), ArrayUtils.addAll(expected, expected))) {
+			System.err.println("Reentrant applyDiff gave the wrong answer");
+			retCode = false;
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	private static ByteBuffer direct(byte[] value) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(value.length).order(ByteOrder.nativeOrder());
+		buffer.put(value);
+		buffer.flip();
+		return buffer;
+	}
+
+}
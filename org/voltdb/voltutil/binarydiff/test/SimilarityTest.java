@@ -0,0 +1,257 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.FARDEnvelope;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.similarity.SimilarityIndex;
+import org.voltdb.voltutil.binarydiff.similarity.SimilarityMatch;
+import org.voltdb.voltutil.stats.StatsHistogram;
+
+/**
+ * Sends brand new keys as diffs against similar existing values found by
+ * SimilarityIndex, and measures lookup, diff and apply speed.
+ *
+ */
+public class SimilarityTest {
+
+	private static final int FAMILY_COUNT = 200;
+
+	private static final int VALUE_SIZE = 8192;
+
+	private static final int INDEX_CAPACITY = 5000;
+
+	private static final int NEW_KEY_COUNT = 5000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+		SimilarityIndex index = new SimilarityIndex(INDEX_CAPACITY);
+
+		// What the receiver has
+		HashMap<String, byte[]> server = new HashMap<String, byte[]>();
+
+		// Unrelated families of records. Siblings share most of their bytes.
+		byte[][] templates = new byte[FAMILY_COUNT][];
+
+		for (int i = 0; i < templates.length; i++) {
+			templates[i] = new byte[VALUE_SIZE];
+			for (int j = 0; j < VALUE_SIZE; j++) {
+				templates[i][j] = (byte) (' ' + r.nextInt(95));
+			}
+		}
+
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < INDEX_CAPACITY; i++) {
+			final int family = i % FAMILY_COUNT;
+			final String key = family + "-" + i;
+			final byte[] value = sibling(templates[family], r);
+			index.put(key, value);
+			server.put(key, value);
+		}
+
+		System.out.println("Indexed " + INDEX_CAPACITY + " values in " + (System.currentTimeMillis() - start) + "ms");
+
+		// Warm up
+		for (int i = 0; i < 1000; i++) {
+			index.findBase(sibling(templates[r.nextInt(FAMILY_COUNT)], r));
+		}
+
+		StatsHistogram lookupMicros = new StatsHistogram(10000);
+		long lookupNanos = 0;
+		long diffNanos = 0;
+		long applyNanos = 0;
+		long fullBytes = 0;
+		long sentBytes = 0;
+		int rightFamily = 0;
+		int diffed = 0;
+
+		for (int i = 0; i < NEW_KEY_COUNT; i++) {
+
+			final int family = r.nextInt(FAMILY_COUNT);
+			final String key = family + "-new-" + i;
+			final byte[] value = sibling(templates[family], r);
+
+			fullBytes += value.length;
+
+			long t = System.nanoTime();
+			SimilarityMatch match = index.findBase(value);
+			t = System.nanoTime() - t;
+			lookupNanos += t;
+			lookupMicros.report((int) (t / 1000), null);
+
+			if (match == null) {
+				sentBytes += value.length;
+				server.put(key, value);
+				index.put(key, value);
+				continue;
+			}
+
+			if (match.getKey().startsWith(family + "-")) {
+				rightFamily++;
+			}
+
+			t = System.nanoTime();
+			byte[] envelope;
+
+			try {
+				envelope = FARDEnvelope.addBaseKey(impl.calculateEnvelopedDiff(match.getValue(), value, 100),
+						match.getKey());
+			} catch (Exception e) {
+				envelope = null;
+			}
+
+			diffNanos += System.nanoTime() - t;
+
+			if (envelope == null) {
+				sentBytes += value.length;
+				server.put(key, value);
+				index.put(key, value);
+				continue;
+			}
+
+			diffed++;
+			sentBytes += envelope.length;
+
+			// Receiver side: the envelope says which value to apply it to
+			t = System.nanoTime();
+			FARDEnvelope header = FARDEnvelope.read(envelope);
+			byte[] applied = impl.applyEnvelopedDiff(server.get(header.getBaseKey()), envelope);
+			applyNanos += System.nanoTime() - t;
+
+			if (!ArrayUtils.isEquals(value, applied)) {
+				System.err.println("New key " + key + " differs");
+				retCode = false;
+			}
+
+			server.put(key, applied);
+			index.put(key, value);
+		}
+
+		final double avgLookupMicros = lookupNanos / 1000.0 / NEW_KEY_COUNT;
+		final double[] histogram = lookupMicros.getLatencyHistogram();
+
+		System.out.println(index);
+		System.out.println("Lookup us: avg=" + String.format("%.1f", avgLookupMicros) + " p50="
+				+ percentile(histogram, 50) + " p99=" + percentile(histogram, 99));
+		System.out.println("Found the right family for " + rightFamily + "/" + NEW_KEY_COUNT + ", diffed " + diffed);
+		System.out.println("New keys: " + fullBytes + " -> " + sentBytes + " bytes, saved "
+				+ (100 - (sentBytes * 100 / fullBytes)) + "%");
+		System.out.println("Lookup " + mbPerSec(fullBytes, lookupNanos) + "MB/s, diff "
+				+ mbPerSec((long) diffed * VALUE_SIZE, diffNanos) + "MB/s, apply "
+				+ mbPerSec((long) diffed * VALUE_SIZE, applyNanos) + "MB/s");
+
+		if (index.size() != INDEX_CAPACITY) {
+			System.err.println("Index holds " + index.size() + " values, not " + INDEX_CAPACITY);
+			retCode = false;
+		}
+
+		if (rightFamily < NEW_KEY_COUNT * 99 / 100) {
+			System.err.println("Only found the right family for " + rightFamily + "/" + NEW_KEY_COUNT);
+			retCode = false;
+		}
+
+		if (avgLookupMicros >= 1000) {
+			System.err.println("Lookups took " + avgLookupMicros + "us");
+			retCode = false;
+		}
+
+		// Nothing in the index looks like noise
+		byte[] noise = new byte[VALUE_SIZE];
+		r.nextBytes(noise);
+
+		if (index.findBase(noise) != null) {
+			System.err.println("Found a base for random bytes");
+			retCode = false;
+		}
+
+		if (index.calculateEnvelopedDiff(impl, noise, 100) != null) {
+			System.err.println("Diffed random bytes");
+			retCode = false;
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	/**
+	 * @param template
+	 * @param r
+	 * @return a copy of template with a few bytes changed and a few inserted
+	 */
+	private static byte[] sibling(byte[] template, Random r) {
+
+		byte[] value = template.clone();
+
+		for (int i = 0; i < 20; i++) {
+			value[r.nextInt(value.length)] = (byte) ('0' + r.nextInt(10));
+		}
+
+		final int insertAt = r.nextInt(value.length);
+		final byte[] inserted = new byte[1 + r.nextInt(32)];
+
+		for (int i = 0; i < inserted.length; i++) {
+			inserted[i] = (byte) ('a' + r.nextInt(26));
+		}
+
+		return ArrayUtils.insert(insertAt, value, inserted);
+	}
+
+	private static long mbPerSec(long bytes, long nanos) {
+		return nanos == 0 ? 0 : (bytes * 1000) / nanos;
+	}
+
+	private static int percentile(double[] histogram, int percent) {
+
+		double total = 0;
+
+		for (int i = 0; i < histogram.length; i++) {
+			total += histogram[i];
+		}
+
+		double seen = 0;
+
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen * 100 >= total * percent) {
+				return i;
+			}
+		}
+
+		return histogram.length - 1;
+	}
+
+}
@@ -0,0 +1,212 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.BadInputException;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that applyDiff to an OutputStream or channel writes the same bytes as
+ * applyDiff to a byte[], and compares how much each allocates.
+ *
+ */
+public class StreamingApplyTest {
+
+	private static final int CASE_COUNT = 2000;
+
+	private static final int SPEED_TEST_COUNT = 20000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+		FastAndRuthlessDiffImpl impl = new FastAndRuthlessDiffImpl();
+
+		File file = File.createTempFile("StreamingApplyTest", ".out");
+		file.deleteOnExit();
+
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			for (int i = 0; i < CASE_COUNT; i++) {
+
+				final byte[] oldArray = randomValue(r, 3 + r.nextInt(30000));
+				final byte[] newArray = TestValues.edit(r, oldArray);
+
+				byte[] diff;
+
+				try {
+					diff = impl.calculateDiff(oldArray, newArray, 100);
+				} catch (UneconomicToDiffException e) {
+					continue;
+				}
+
+				final int hash = ByteArrayLib.deterministicHashcode(oldArray);
+
+				// OutputStream
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				long written = impl.applyDiff(oldArray, diff, hash, bos);
+
+				if (written != newArray.length || !ArrayUtils.isEquals(newArray, bos.toByteArray())) {
+					System.err.println("OutputStream arrays differ for case " + i);
+					retCode = false;
+				}
+
+				// A channel that can't do gathering writes
+				bos.reset();
+				impl.applyDiff(ByteBuffer.wrap(oldArray), ByteBuffer.wrap(diff), hash, Channels.newChannel(bos));
+
+				if (!ArrayUtils.isEquals(newArray, bos.toByteArray())) {
+					System.err.println("Channel arrays differ for case " + i);
+					retCode = false;
+				}
+
+				// FileChannel, which can, reading from direct buffers
+				fileChannel.truncate(0);
+				fileChannel.position(0);
+				impl.applyDiff(direct(oldArray), direct(diff), hash, fileChannel);
+
+				if (!ArrayUtils.isEquals(newArray, Files.readAllBytes(file.toPath()))) {
+					System.err.println("FileChannel arrays differ for case " + i);
+					retCode = false;
+				}
+			}
+		}
+
+		System.out.println(CASE_COUNT + " cases compared");
+
+		// A bad diff mustn't write anything
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final byte[] base = "The quick brown fox".getBytes();
+
+		try {
+			impl.applyDiff(base, ArrayUtils.addAll(ByteArrayLib.encodeFARDData((short) 0, (short) 4),
+					ByteArrayLib.encodeFARDData((short) 10, (short) 40)), ByteArrayLib.deterministicHashcode(base),
+					bos);
+			System.err.println("Bad diff wasn't rejected");
+			retCode = false;
+		} catch (BadInputException e) {
+			if (bos.size() != 0) {
+				System.err.println("Bad diff wrote output");
+				retCode = false;
+			}
+		}
+
+		// How much does each apply allocate for a 30K value?
+		final byte[] oldArray = randomValue(r, 30000);
+		final byte[] newArray = oldArray.clone();
+
+		for (int j = 0; j < 10; j++) {
+			newArray[r.nextInt(newArray.length)] = '#';
+		}
+
+		final byte[] diff = impl.calculateDiff(oldArray, newArray, 100);
+		final int hash = ByteArrayLib.deterministicHashcode(oldArray);
+		final OutputStream nullStream = OutputStream.nullOutputStream();
+		final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		final long threadId = Thread.currentThread().getId();
+
+		for (int pass = 0; pass < 2; pass++) {
+
+			long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+
+			for (int i = 0; i < SPEED_TEST_COUNT; i++) {
+				nullStream.write(impl.applyDiff(oldArray, diff, hash));
+			}
+
+			final long arrayNanos = System.nanoTime() - start;
+			final long arrayBytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+			startBytes = threadBean.getThreadAllocatedBytes(threadId);
+			start = System.nanoTime();
+
+			for (int i = 0; i < SPEED_TEST_COUNT; i++) {
+				impl.applyDiff(oldArray, diff, hash, nullStream);
+			}
+
+			final long streamNanos = System.nanoTime() - start;
+			final long streamBytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+			if (pass == 0) {
+				continue;
+			}
+
+			final long bytes = (long) SPEED_TEST_COUNT * newArray.length;
+
+			System.out.println("Apply to byte[]: " + (bytes * 1000 / arrayNanos) + "MB/s, "
+					+ (arrayBytes / SPEED_TEST_COUNT) + " bytes allocated per apply");
+			System.out.println("Apply to stream: " + (bytes * 1000 / streamNanos) + "MB/s, "
+					+ (streamBytes / SPEED_TEST_COUNT) + " bytes allocated per apply");
+
+			if (streamBytes / SPEED_TEST_COUNT > 1024) {
+				System.err.println("Streaming apply allocated too much");
+				retCode = false;
+			}
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	private static ByteBuffer direct(byte[] value) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(value.length);
+		buffer.put(value).flip();
+		return buffer;
+	}
+
+	/**
+	 * @return TestValues.randomValue with a long run as well, which needs more
+	 *         than one pass through the repeat buffer
+	 */
+	private static byte[] randomValue(Random r, int length) {
+
+		byte[] value = TestValues.randomValue(r, length);
+		TestValues.addRuns(r, value, 1, 10000);
+		return value;
+	}
+
+}
@@ -0,0 +1,190 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+
+/**
+ * Random values, and random edits of them, for the test mains to diff.
+ *
+ */
+public class TestValues {
+
+	public static final String[] WORDS = { "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog",
+			"customer", "account", "balance", "order", "status", "shipped", "pending", "a", "of", "and", "to",
+			"in" };
+
+	/**
+	 * @param r
+	 * @param length
+	 * @return length random lower case letters
+	 */
+	public static byte[] randomText(Random r, int length) {
+
+		byte[] text = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			text[i] = (byte) ('a' + r.nextInt(26));
+		}
+
+		return text;
+	}
+
+	/**
+	 * @param r
+	 * @param length
+	 * @return random text with a run of the same byte every 500 or so bytes,
+	 *         for the repeating block code to find
+	 */
+	public static byte[] randomValue(Random r, int length) {
+
+		byte[] value = randomText(r, length);
+		addRuns(r, value, length / 500, 40);
+		return value;
+	}
+
+	/**
+	 * Overwrite parts of value with runs of the same byte.
+	 * 
+	 * @param r
+	 * @param value
+	 * @param count
+	 *            how many runs
+	 * @param maxRunLength
+	 *            runs are between 5 and maxRunLength + 4 bytes long, less if
+	 *            they reach the end of value
+	 */
+	public static void addRuns(Random r, byte[] value, int count, int maxRunLength) {
+
+		for (int i = 0; i < count; i++) {
+			final int runStart = r.nextInt(value.length);
+			final int runLength = Math.min(value.length - runStart, 5 + r.nextInt(maxRunLength));
+			final byte b = (byte) r.nextInt(256);
+
+			for (int j = 0; j < runLength; j++) {
+				value[runStart + j] = b;
+			}
+		}
+	}
+
+	/**
+	 * @param r
+	 * @param oldArray
+	 * @return a copy of oldArray with up to 7 overwrites, inserts, deletes and
+	 *         runs, each up to 5% of its length. Always between 3 and
+	 *         Short.MAX_VALUE - 3 bytes long, as calculateDiff needs.
+	 */
+	public static byte[] edit(Random r, byte[] oldArray) {
+
+		byte[] value = oldArray.clone();
+		final int editCount = r.nextInt(8);
+
+		for (int e = 0; e < editCount && value.length > 3; e++) {
+
+			final int at = r.nextInt(value.length);
+			final int len = 1 + r.nextInt(Math.max(1, value.length / 20));
+
+			switch (r.nextInt(4)) {
+			case 0:
+				for (int j = at; j < Math.min(value.length, at + len); j++) {
+					value[j] = (byte) r.nextInt(256);
+				}
+				break;
+			case 1:
+				value = ArrayUtils.addAll(ArrayUtils.subarray(value, 0, at),
+						ArrayUtils.addAll(randomValue(r, len), ArrayUtils.subarray(value, at, value.length)));
+				break;
+			case 2:
+				value = ArrayUtils.addAll(ArrayUtils.subarray(value, 0, at),
+						ArrayUtils.subarray(value, at + len, value.length));
+				break;
+			default:
+				final byte b = (byte) r.nextInt(256);
+				for (int j = at; j < Math.min(value.length, at + len); j++) {
+					value[j] = b;
+				}
+				break;
+			}
+		}
+
+		if (value.length < 3 || value.length >= Short.MAX_VALUE - 2) {
+			return oldArray.clone();
+		}
+
+		return value;
+	}
+
+	/**
+	 * @param r
+	 * @param length
+	 * @return at least length bytes of WORDS, with the odd full stop
+	 */
+	public static byte[] words(Random r, int length) {
+
+		StringBuffer b = new StringBuffer();
+
+		while (b.length() < length) {
+			b.append(WORDS[r.nextInt(WORDS.length)]);
+			b.append(r.nextInt(10) == 0 ? ". " : " ");
+		}
+
+		return b.toString().getBytes();
+	}
+
+	/**
+	 * @param r
+	 * @param oldArray
+	 *            space separated words
+	 * @return oldArray with a word changed, added or removed every hundred or
+	 *         so bytes
+	 */
+	public static byte[] editWords(Random r, byte[] oldArray) {
+
+		String[] words = new String(oldArray).split(" ");
+		StringBuffer b = new StringBuffer();
+
+		for (int i = 0; i < words.length; i++) {
+
+			final int choice = r.nextInt(60);
+
+			if (choice == 0) {
+				continue;
+			} else if (choice == 1) {
+				b.append(WORDS[r.nextInt(WORDS.length)]);
+				b.append(' ');
+			} else if (choice == 2) {
+				words[i] = WORDS[r.nextInt(WORDS.length)];
+			}
+
+			b.append(words[i]);
+			b.append(' ');
+		}
+
+		return b.toString().getBytes();
+	}
+
+}
@@ -0,0 +1,160 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.ByteArrayLib;
+import org.voltdb.voltutil.binarydiff.FARDOptions;
+import org.voltdb.voltutil.binarydiff.FARDTuner;
+import org.voltdb.voltutil.binarydiff.FastAndRuthlessDiffImpl;
+import org.voltdb.voltutil.binarydiff.exceptions.UneconomicToDiffException;
+
+/**
+ * Tunes FARDOptions for a text workload and a binary one, then checks that
+ * the tuned options do at least as well as the defaults on pairs the tuner
+ * hasn't seen, that exploration stayed within its budget, and that the
+ * diffs the tuner returns apply correctly.
+ *
+ */
+public class TunerTest {
+
+	private static final int TRAINING_COUNT = 20000;
+
+	private static final int CHECK_COUNT = 2000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean retCode = true;
+
+		// Size alone, so what the tuner picks doesn't depend on timing
+		FARDTuner tuner = new FARDTuner(FARDTuner.DEFAULT_MAX_EXPLORATION_SHARE, Double.POSITIVE_INFINITY);
+		FastAndRuthlessDiffImpl checkImpl = new FastAndRuthlessDiffImpl();
+
+		Random r = new Random(0);
+
+		for (int i = 0; i < TRAINING_COUNT; i++) {
+
+			final boolean text = i % 2 == 0;
+			final byte[] oldArray = text ? TestValues.words(r, 2000 + r.nextInt(4000)) : binaryValue(r);
+			final byte[] newArray = text ? TestValues.editWords(r, oldArray) : editBinary(r, oldArray);
+
+			try {
+				byte[] diff = tuner.calculateDiff(text ? "text" : "binary", oldArray, newArray, 100);
+
+				if (!ArrayUtils.isEquals(newArray,
+						checkImpl.applyDiff(oldArray, diff, ByteArrayLib.deterministicHashcode(oldArray)))) {
+					System.err.println("Tuned diff didn't apply for case " + i);
+					retCode = false;
+				}
+			} catch (UneconomicToDiffException e) {
+				// fine
+			}
+		}
+
+		System.out.print(tuner);
+
+		for (String workloadClass : new String[] { "text", "binary" }) {
+
+			final FARDOptions tuned = tuner.getOptions(workloadClass);
+			final boolean text = workloadClass.equals("text");
+
+			long defaultBytes = 0;
+			long tunedBytes = 0;
+
+			for (int i = 0; i < CHECK_COUNT; i++) {
+				final byte[] oldArray = text ? TestValues.words(r, 2000 + r.nextInt(4000)) : binaryValue(r);
+				final byte[] newArray = text ? TestValues.editWords(r, oldArray) : editBinary(r, oldArray);
+				defaultBytes += diffLength(new FARDOptions(), oldArray, newArray);
+				tunedBytes += diffLength(tuned, oldArray, newArray);
+			}
+
+			System.out.println(workloadClass + ": default options " + defaultBytes + " bytes, tuned " + tunedBytes
+					+ " bytes");
+
+			if (tunedBytes > defaultBytes) {
+				System.err.println("Tuned options did worse for " + workloadClass);
+				retCode = false;
+			}
+
+			// Allow for a trial that started just under the limit
+			if (tuner.getExplorationShare(workloadClass) > FARDTuner.DEFAULT_MAX_EXPLORATION_SHARE * 1.5) {
+				System.err.println("Explored too much for " + workloadClass);
+				retCode = false;
+			}
+		}
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	private static int diffLength(FARDOptions options, byte[] oldArray, byte[] newArray) throws Exception {
+		try {
+			return new FastAndRuthlessDiffImpl(options).calculateDiff(oldArray, newArray, 100).length;
+		} catch (UneconomicToDiffException e) {
+			return newArray.length;
+		}
+	}
+
+	/**
+	 * Fixed size records of random bytes, with a run of zeros for padding.
+	 */
+	private static byte[] binaryValue(Random r) {
+
+		byte[] value = new byte[4096 + r.nextInt(4096)];
+		r.nextBytes(value);
+
+		for (int i = 0; i < value.length; i += 64) {
+			for (int j = 48; j < 64 && i + j < value.length; j++) {
+				value[i + j] = 0;
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * Change a 4 byte field in a few records.
+	 */
+	private static byte[] editBinary(Random r, byte[] oldArray) {
+
+		byte[] value = oldArray.clone();
+
+		for (int i = 0; i < 5; i++) {
+			final int record = r.nextInt(value.length / 64) * 64;
+			value[record + 8] = (byte) r.nextInt(256);
+			value[record + 9] = (byte) r.nextInt(256);
+			value[record + 10] = (byte) r.nextInt(256);
+			value[record + 11] = (byte) r.nextInt(256);
+		}
+
+		return value;
+	}
+
+}
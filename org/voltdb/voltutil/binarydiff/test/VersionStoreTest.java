@@ -0,0 +1,201 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.voltutil.binarydiff.test;
+
+import java.util.Random;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.voltdb.voltutil.binarydiff.store.DeltaChainVersionStore;
+import org.voltdb.voltutil.stats.StatsHistogram;
+
+/**
+ * Checks DeltaChainVersionStore gives back what was put into it, and reports
+ * storage used, write throughput and random read latency.
+ *
+ */
+public class VersionStoreTest {
+
+	private static final int KEY_COUNT = 100;
+
+	private static final int VERSION_COUNT = 200;
+
+	private static final int VALUE_SIZE = 8192;
+
+	private static final int KEYFRAME_INTERVAL = 16;
+
+	private static final int READ_COUNT = 100000;
+
+	public static void main(String[] args) {
+
+		boolean retCode = true;
+
+		Random r = new Random(0);
+
+		// Every version of every key, so we can check what we get back
+		byte[][][] expected = new byte[KEY_COUNT][VERSION_COUNT][];
+
+		for (int k = 0; k < KEY_COUNT; k++) {
+
+			expected[k][0] = new byte[VALUE_SIZE];
+			r.nextBytes(expected[k][0]);
+
+			for (int v = 1; v < VERSION_COUNT; v++) {
+
+				expected[k][v] = expected[k][v - 1].clone();
+
+				for (int j = 0; j < 3; j++) {
+					int blockStart = r.nextInt(VALUE_SIZE - 30);
+					for (int z = blockStart; z < blockStart + r.nextInt(30); z++) {
+						expected[k][v][z] = (byte) r.nextInt();
+					}
+				}
+			}
+		}
+
+		DeltaChainVersionStore store = new DeltaChainVersionStore(KEYFRAME_INTERVAL, 100);
+
+		// Write throughput
+
+		long start = System.currentTimeMillis();
+
+		for (int v = 0; v < VERSION_COUNT; v++) {
+			for (int k = 0; k < KEY_COUNT; k++) {
+				long version = store.put("key" + k, expected[k][v]);
+
+				if (version != v) {
+					System.err.println("Expected version " + v + ", got " + version);
+					retCode = false;
+				}
+			}
+		}
+
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Wrote " + (KEY_COUNT * VERSION_COUNT) + " versions in " + elapsed + "ms = "
+				+ ((KEY_COUNT * VERSION_COUNT * 1000L) / elapsed) + "/s");
+		System.out.println(store);
+
+		retCode = checkReads(store, expected, r) && retCode;
+
+		// Compact everything but the newest 32 versions down to a keyframe
+		// every 64
+
+		start = System.currentTimeMillis();
+		long saved = store.compact(0, 32, 64);
+		System.out.println("Compaction saved " + saved + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+		System.out.println(store);
+
+		retCode = checkReads(store, expected, r) && retCode;
+		retCode = checkDeltas(store, 32, 64) && retCode;
+
+		// Drop all but the newest 100 versions
+
+		store.compact(100, 32, 64);
+		System.out.println(store);
+
+		for (int k = 0; k < KEY_COUNT; k++) {
+			if (store.getOldestVersion("key" + k) != VERSION_COUNT - 100) {
+				System.err.println("Retention didn't work for key" + k);
+				retCode = false;
+			}
+		}
+
+		retCode = checkReads(store, expected, r) && retCode;
+		retCode = checkDeltas(store, 32, 64) && retCode;
+
+		if (retCode) {
+			System.out.println("Pass");
+		} else {
+			System.err.println("Fail");
+		}
+	}
+
+	/**
+	 * Check that the newest recentVersions versions of each key are fewer than
+	 * KEYFRAME_INTERVAL deltas from a keyframe, and the rest fewer than
+	 * agedKeyframeInterval.
+	 * 
+	 * @param store
+	 * @param recentVersions
+	 * @param agedKeyframeInterval
+	 * @return true if they are
+	 */
+	private static boolean checkDeltas(DeltaChainVersionStore store, int recentVersions,
+			int agedKeyframeInterval) {
+
+		for (int k = 0; k < KEY_COUNT; k++) {
+			for (long v = store.getOldestVersion("key" + k); v < VERSION_COUNT; v++) {
+
+				final int deltas = store.getDeltasToRebuild("key" + k, v);
+				final int limit = v >= VERSION_COUNT - recentVersions ? KEYFRAME_INTERVAL : agedKeyframeInterval;
+
+				if (deltas < 0 || deltas >= limit) {
+					System.err.println("key" + k + " version " + v + " needs " + deltas + " deltas");
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Read random versions, checking them and reporting latency.
+	 * 
+	 * @param store
+	 * @param expected
+	 * @param r
+	 * @return true if everything matched
+	 */
+	private static boolean checkReads(DeltaChainVersionStore store, byte[][][] expected, Random r) {
+
+		boolean retCode = true;
+		StatsHistogram latencyHistogram = new StatsHistogram(1000);
+
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < READ_COUNT; i++) {
+
+			final int k = r.nextInt(KEY_COUNT);
+			final long oldest = store.getOldestVersion("key" + k);
+			final int v = (int) (oldest + r.nextInt((int) (VERSION_COUNT - oldest)));
+
+			long readStart = System.nanoTime();
+			byte[] value = store.get("key" + k, v);
+			latencyHistogram.report((int) ((System.nanoTime() - readStart) / 1000), null);
+
+			if (!ArrayUtils.isEquals(expected[k][v], value)) {
+				System.err.println("key" + k + " version " + v + " differs");
+				retCode = false;
+				break;
+			}
+		}
+
+		System.out.println("Read " + READ_COUNT + " random versions in " + (System.currentTimeMillis() - start)
+				+ "ms. Latency in microseconds:");
+		System.out.println(latencyHistogram);
+
+		return retCode;
+	}
+
+}